@@ -27,9 +27,11 @@ import org.springframework.beans.factory.DisposableBean;
 import org.springframework.boot.autoconfigure.AutoConfigureAfter;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Conditional;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.lang.NonNull;
 import top.dcenter.ums.security.core.executor.properties.ExecutorProperties;
+import top.dcenter.ums.security.core.oauth.config.OnCacheRefreshAheadCondition;
 
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -42,7 +44,8 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * 1. 第三方授权登录 AccessToken 维护有效期定时任务配置.<br>
- * 2. 第三方授权登录时, 异步更新用户的第三方授权用户信息的 Executor 属性配置
+ * 2. 第三方授权登录时, 异步更新用户的第三方授权用户信息的 Executor 属性配置<br>
+ * 3. redis 缓存提前刷新(refresh-ahead)的 Executor 属性配置
  * @author YongWu zheng
  * @version V1.0  Created by 2020-10-15 10:21
  */
@@ -55,6 +58,7 @@ public class ExecutorAutoConfiguration implements DisposableBean {
     private ScheduledExecutorService jobTaskScheduledExecutor;
     private ExecutorService updateConnectionExecutorService;
     private ExecutorService refreshTokenExecutorService;
+    private ExecutorService cacheRefreshAheadExecutorService;
 
     public ExecutorAutoConfiguration(ExecutorProperties executorProperties) {
         this.executorProperties = executorProperties;
@@ -106,6 +110,22 @@ public class ExecutorAutoConfiguration implements DisposableBean {
         return threadPoolExecutor;
     }
 
+    @Bean()
+    @Conditional(OnCacheRefreshAheadCondition.class)
+    public ExecutorService cacheRefreshAheadTaskExecutor() {
+        ExecutorProperties.CacheRefreshAheadExecutorProperties cacheRefreshAhead = executorProperties.getCacheRefreshAhead();
+        ThreadPoolExecutor threadPoolExecutor =
+                new ThreadPoolExecutor(cacheRefreshAhead.getCorePoolSize(),
+                                           cacheRefreshAhead.getMaximumPoolSize(),
+                                           cacheRefreshAhead.getKeepAliveTime(),
+                                           cacheRefreshAhead.getTimeUnit(),
+                                           new LinkedBlockingQueue<>(cacheRefreshAhead.getBlockingQueueCapacity()),
+                                           getThreadFactory(cacheRefreshAhead.getPoolName()),
+                                           cacheRefreshAhead.getRejectedExecutionHandlerPolicy().getRejectedHandler());
+        this.cacheRefreshAheadExecutorService = threadPoolExecutor;
+        return threadPoolExecutor;
+    }
+
     private ThreadFactory getThreadFactory(String poolName) {
         return new DefaultThreadFactory(poolName);
     }
@@ -140,6 +160,18 @@ public class ExecutorAutoConfiguration implements DisposableBean {
             }
         }
 
+        if (cacheRefreshAheadExecutorService != null)
+        {
+            cacheRefreshAheadExecutorService.shutdown();
+            //noinspection ResultOfMethodCallIgnored
+            cacheRefreshAheadExecutorService.awaitTermination(executorProperties.getCacheRefreshAhead().getExecutorShutdownTimeout().toMillis(),
+                                                              TimeUnit.MILLISECONDS);
+            if (!cacheRefreshAheadExecutorService.isTerminated()) {
+                // log.error("Processor did not terminate in time")
+                cacheRefreshAheadExecutorService.shutdownNow();
+            }
+        }
+
         if (jobTaskScheduledExecutor != null)
         {
             jobTaskScheduledExecutor.shutdown();
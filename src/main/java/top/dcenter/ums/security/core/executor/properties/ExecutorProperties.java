@@ -59,6 +59,11 @@ public class ExecutorProperties {
      * 注意: 第三方授权登录时是异步更新第三方用户信息与 token 信息到本地数据库时使用此配置, 需要根据实际生产环境进行优化
      */
     private final UserConnectionUpdateExecutorProperties userConnectionUpdate = new UserConnectionUpdateExecutorProperties();
+    /**
+     * redis 缓存提前刷新(refresh-ahead)的 Executor 属性, 只在 ums.cache.redis.open=true 时创建,<br>
+     * 注意: 有界队列, 刷新任务被拒绝时放弃本次刷新(继续使用旧缓存), 需要根据实际生产环境进行优化
+     */
+    private final CacheRefreshAheadExecutorProperties cacheRefreshAhead = new CacheRefreshAheadExecutorProperties();
 
     @Getter
     @Setter
@@ -167,4 +172,42 @@ public class ExecutorProperties {
          */
         private Duration executorShutdownTimeout = Duration.ofSeconds(10);
     }
-}
\ No newline at end of file
+
+    @Getter
+    @Setter
+    public static class CacheRefreshAheadExecutorProperties {
+        /**
+         * 线程池中空闲时保留的线程数, 默认: 0
+         */
+        private Integer corePoolSize = 0;
+        /**
+         * 最大线程数, 默认: 本机核心数
+         */
+        private Integer maximumPoolSize = Runtime.getRuntime().availableProcessors();
+        /**
+         * keep alive time, 默认: 10
+         */
+        private Integer keepAliveTime = 10;
+        /**
+         * keepAliveTime 时间单位, 默认: 秒
+         */
+        private TimeUnit timeUnit = TimeUnit.SECONDS;
+        /**
+         * blocking queue capacity, 默认: maximumPoolSize * 2
+         */
+        private Integer blockingQueueCapacity = maximumPoolSize * 2;
+        /**
+         * 线程池名称, 默认: cacheRefreshAhead
+         */
+        private String poolName = "cacheRefreshAhead";
+        /**
+         * 拒绝策略, 默认: ABORT<br>
+         * 注意: 不要改为 CALLER_RUNS, 否则刷新任务被拒绝时会在读取缓存的线程中同步刷新.
+         */
+        private RejectedExecutionHandlerPolicy rejectedExecutionHandlerPolicy = RejectedExecutionHandlerPolicy.ABORT;
+        /**
+         * 线程池关闭过程的超时时间, 默认: 10 秒
+         */
+        private Duration executorShutdownTimeout = Duration.ofSeconds(10);
+    }
+}
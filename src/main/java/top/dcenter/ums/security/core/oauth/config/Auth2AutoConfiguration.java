@@ -25,32 +25,53 @@ package top.dcenter.ums.security.core.oauth.config;
 
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.boot.autoconfigure.AutoConfigureAfter;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingClass;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.cache.CacheManager;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.security.crypto.encrypt.Encryptors;
 import org.springframework.security.crypto.encrypt.TextEncryptor;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.util.StringUtils;
+import top.dcenter.ums.security.core.oauth.enums.RefreshTokenClaimMode;
+import top.dcenter.ums.security.core.oauth.job.LocalRefreshTokenDueQueue;
+import top.dcenter.ums.security.core.oauth.job.RedisRefreshTokenDueQueue;
+import top.dcenter.ums.security.core.oauth.job.RefreshTokenDueQueue;
 import top.dcenter.ums.security.core.oauth.job.RefreshTokenJob;
 import top.dcenter.ums.security.core.oauth.job.RefreshTokenJobImpl;
 import top.dcenter.ums.security.core.oauth.justauth.Auth2RequestHolder;
 import top.dcenter.ums.security.core.oauth.properties.Auth2Properties;
+import top.dcenter.ums.security.core.oauth.properties.HttpConfigProperties;
 import top.dcenter.ums.security.core.oauth.properties.RepositoryProperties;
 import top.dcenter.ums.security.core.oauth.repository.UsersConnectionRepository;
 import top.dcenter.ums.security.core.oauth.repository.UsersConnectionTokenRepository;
 import top.dcenter.ums.security.core.oauth.repository.factory.Auth2JdbcUsersConnectionRepositoryFactory;
 import top.dcenter.ums.security.core.oauth.repository.factory.UsersConnectionRepositoryFactory;
+import top.dcenter.ums.security.core.oauth.repository.filter.ConnectionBloomFilter;
+import top.dcenter.ums.security.core.oauth.repository.filter.RedisBloomFilter;
+import top.dcenter.ums.security.core.oauth.repository.jdbc.Auth2JdbcUsersConnectionRepository;
 import top.dcenter.ums.security.core.oauth.repository.jdbc.Auth2JdbcUsersConnectionTokenRepository;
 import top.dcenter.ums.security.core.oauth.service.Auth2StateCoder;
 import top.dcenter.ums.security.core.oauth.service.Auth2UserService;
 import top.dcenter.ums.security.core.oauth.service.DefaultAuth2UserServiceImpl;
+import top.dcenter.ums.security.core.oauth.service.DefaultProviderTokenServiceImpl;
+import top.dcenter.ums.security.core.oauth.service.ProviderTokenLease;
+import top.dcenter.ums.security.core.oauth.service.ProviderTokenService;
 import top.dcenter.ums.security.core.oauth.service.UmsUserDetailsService;
 import top.dcenter.ums.security.core.oauth.signup.ConnectionService;
+import top.dcenter.ums.security.core.oauth.signup.ConnectionUpdateFilter;
+import top.dcenter.ums.security.core.oauth.signup.ConnectionUpdateJournal;
+import top.dcenter.ums.security.core.oauth.signup.ConnectionUpdateWriteBehind;
 import top.dcenter.ums.security.core.oauth.signup.DefaultConnectionServiceImpl;
 import top.dcenter.ums.security.core.oauth.userdetails.converter.AuthenticationToUserDetailsConverter;
 import top.dcenter.ums.security.core.oauth.userdetails.converter.Oauth2TokenAuthenticationTokenToUserConverter;
@@ -59,6 +80,7 @@ import javax.sql.DataSource;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.time.Duration;
 import java.util.concurrent.ExecutorService;
 
 import static top.dcenter.ums.security.core.oauth.consts.SecurityConstants.QUERY_TABLE_EXIST_SQL_RESULT_SET_COLUMN_INDEX;
@@ -110,10 +132,21 @@ public class Auth2AutoConfiguration implements InitializingBean {
     @ConditionalOnProperty(prefix = "ums.oauth", name = "enable-user-connection-and-auth-token-table", havingValue = "true")
     public UsersConnectionRepository usersConnectionRepository(UsersConnectionRepositoryFactory usersConnectionRepositoryFactory,
                                                                JdbcTemplate auth2UserConnectionJdbcTemplate,
-                                                               @Qualifier("connectionTextEncryptor") TextEncryptor connectionTextEncryptor) {
-        return usersConnectionRepositoryFactory.getUsersConnectionRepository(auth2UserConnectionJdbcTemplate,
-                                                                             connectionTextEncryptor,
-                                                                             repositoryProperties);
+                                                               @Qualifier("connectionTextEncryptor") TextEncryptor connectionTextEncryptor,
+                                                               ObjectProvider<ConnectionBloomFilter> connectionBloomFilter,
+                                                               @Qualifier("auth2RedisHashCacheManager") ObjectProvider<CacheManager> auth2RedisHashCacheManager) {
+        UsersConnectionRepository usersConnectionRepository =
+                usersConnectionRepositoryFactory.getUsersConnectionRepository(auth2UserConnectionJdbcTemplate,
+                                                                              connectionTextEncryptor,
+                                                                              repositoryProperties);
+        if (usersConnectionRepository instanceof Auth2JdbcUsersConnectionRepository)
+        {
+            Auth2JdbcUsersConnectionRepository jdbcUsersConnectionRepository =
+                    (Auth2JdbcUsersConnectionRepository) usersConnectionRepository;
+            jdbcUsersConnectionRepository.setConnectionBloomFilter(connectionBloomFilter.getIfAvailable());
+            jdbcUsersConnectionRepository.setCacheManager(auth2RedisHashCacheManager.getIfAvailable());
+        }
+        return usersConnectionRepository;
     }
 
     @Bean
@@ -135,10 +168,16 @@ public class Auth2AutoConfiguration implements InitializingBean {
     public ConnectionService connectionSignUp(UmsUserDetailsService userDetailsService,
                                               @Autowired(required = false) UsersConnectionTokenRepository usersConnectionTokenRepository,
                                               UsersConnectionRepository usersConnectionRepository,
-                                              @Autowired(required = false) Auth2StateCoder auth2StateCoder) {
-        return new DefaultConnectionServiceImpl(userDetailsService, auth2Properties,
-                                                usersConnectionRepository, usersConnectionTokenRepository,
-                                                auth2StateCoder);
+                                              @Autowired(required = false) Auth2StateCoder auth2StateCoder,
+                                              ObjectProvider<ConnectionBloomFilter> connectionBloomFilter,
+                                              ObjectProvider<ConnectionUpdateFilter> connectionUpdateFilter) {
+        DefaultConnectionServiceImpl connectionService =
+                new DefaultConnectionServiceImpl(userDetailsService, auth2Properties,
+                                                 usersConnectionRepository, usersConnectionTokenRepository,
+                                                 auth2StateCoder);
+        connectionService.setConnectionBloomFilter(connectionBloomFilter.getIfAvailable());
+        connectionService.setConnectionUpdateFilter(connectionUpdateFilter.getIfAvailable());
+        return connectionService;
     }
 
     @Bean
@@ -223,6 +262,11 @@ public class Auth2AutoConfiguration implements InitializingBean {
                             connection.commit();
                         }
                     }
+                    else
+                    {
+                        warnIfAuthTokenRefreshIndexMissing(connection, database);
+                        warnIfAuthTokenClaimColumnsMissing(connection, database);
+                    }
                 }
             }
             else
@@ -235,6 +279,54 @@ public class Auth2AutoConfiguration implements InitializingBean {
 
     }
 
+    /**
+     * 已有的 auth_token 表缺少定时刷新 token 任务使用的 (enableRefresh, expireTime, id) 索引时输出警告日志
+     */
+    private void warnIfAuthTokenRefreshIndexMissing(Connection connection, String database) {
+        try (final PreparedStatement preparedStatement =
+                     connection.prepareStatement(repositoryProperties.getQueryAuthTokenRefreshIndexExistSql(database));
+             ResultSet resultSet = preparedStatement.executeQuery())
+        {
+            resultSet.next();
+            if (resultSet.getInt(QUERY_TABLE_EXIST_SQL_RESULT_SET_COLUMN_INDEX) < 1)
+            {
+                log.warn("{} 表缺少定时刷新 token 任务使用的索引, 到期 token 的查询会全表扫描, 请执行: {}",
+                         repositoryProperties.getAuthTokenTableName(),
+                         repositoryProperties.getCreateAuthTokenRefreshIndexSql());
+            }
+        }
+        catch (Exception e)
+        {
+            log.warn("查询 {} 表的索引失败: {}", repositoryProperties.getAuthTokenTableName(), e.getMessage());
+        }
+    }
+
+    /**
+     * 定时刷新 token 任务使用数据库领取模式时, 已有的 auth_token 表缺少租约字段(claimedBy, claimedUntil)时输出警告日志
+     */
+    private void warnIfAuthTokenClaimColumnsMissing(Connection connection, String database) {
+        if (RefreshTokenClaimMode.NONE.equals(auth2Properties.getRefreshTokenClaimMode()))
+        {
+            return;
+        }
+        try (final PreparedStatement preparedStatement =
+                     connection.prepareStatement(repositoryProperties.getQueryAuthTokenClaimColumnExistSql(database));
+             ResultSet resultSet = preparedStatement.executeQuery())
+        {
+            resultSet.next();
+            if (resultSet.getInt(QUERY_TABLE_EXIST_SQL_RESULT_SET_COLUMN_INDEX) < 1)
+            {
+                log.warn("{} 表缺少定时刷新 token 任务数据库领取模式使用的租约字段, 请执行: {}",
+                         repositoryProperties.getAuthTokenTableName(),
+                         repositoryProperties.getAddAuthTokenClaimColumnsSql());
+            }
+        }
+        catch (Exception e)
+        {
+            log.warn("查询 {} 表的字段失败: {}", repositoryProperties.getAuthTokenTableName(), e.getMessage());
+        }
+    }
+
     @Configuration
     @ConditionalOnProperty(prefix = "ums.oauth", name = "enable-user-connection-and-auth-token-table", havingValue = "true")
     static class JobAutoConfiguration {
@@ -250,9 +342,23 @@ public class Auth2AutoConfiguration implements InitializingBean {
         public RefreshTokenJob refreshTokenJob(@Autowired(required = false)
                                                UsersConnectionTokenRepository usersConnectionTokenRepository,
                                                UsersConnectionRepository usersConnectionRepository,
-                                               @Qualifier("refreshTokenTaskExecutor") ExecutorService refreshTokenTaskExecutor) {
-            return new RefreshTokenJobImpl(usersConnectionRepository, usersConnectionTokenRepository,
-                                           auth2Properties, refreshTokenTaskExecutor);
+                                               @Qualifier("refreshTokenTaskExecutor") ExecutorService refreshTokenTaskExecutor,
+                                               ObjectProvider<PlatformTransactionManager> transactionManager,
+                                               ObjectProvider<RefreshTokenDueQueue> refreshTokenDueQueue,
+                                               ObjectProvider<ProviderTokenLease> providerTokenLease) {
+            PlatformTransactionManager platformTransactionManager = transactionManager.getIfUnique();
+            TransactionTemplate transactionTemplate = null;
+            if (platformTransactionManager != null)
+            {
+                transactionTemplate = new TransactionTemplate(platformTransactionManager);
+            }
+            RefreshTokenJobImpl refreshTokenJob =
+                    new RefreshTokenJobImpl(usersConnectionRepository, usersConnectionTokenRepository,
+                                            auth2Properties, refreshTokenTaskExecutor, transactionTemplate);
+            refreshTokenJob.setRefreshTokenDueQueue(refreshTokenDueQueue.getIfAvailable());
+            // 与按需刷新共用同一个租约实例, 本机租约才能互斥
+            providerTokenLease.ifAvailable(refreshTokenJob::setProviderTokenLease);
+            return refreshTokenJob;
         }
     }
 
@@ -270,10 +376,164 @@ public class Auth2AutoConfiguration implements InitializingBean {
         @ConditionalOnMissingBean(type = {"top.dcenter.ums.security.core.oauth.repository.UsersConnectionTokenRepository"})
         @ConditionalOnProperty(prefix = "ums.oauth", name = "enable-auth-token-table", havingValue = "true")
         public UsersConnectionTokenRepository usersConnectionTokenRepository(@Qualifier("connectionTextEncryptor") TextEncryptor connectionTextEncryptor,
-                                                                             JdbcTemplate auth2UserConnectionJdbcTemplate) {
-            return new Auth2JdbcUsersConnectionTokenRepository(auth2UserConnectionJdbcTemplate,
-                                                               connectionTextEncryptor,
-                                                               repositoryProperties.getAuthTokenTableName());
+                                                                             JdbcTemplate auth2UserConnectionJdbcTemplate,
+                                                                             @Qualifier("auth2RedisHashCacheManager") ObjectProvider<CacheManager> auth2RedisHashCacheManager,
+                                                                             Auth2Properties auth2Properties,
+                                                                             ObjectProvider<RefreshTokenDueQueue> refreshTokenDueQueue) {
+            Auth2JdbcUsersConnectionTokenRepository usersConnectionTokenRepository =
+                    new Auth2JdbcUsersConnectionTokenRepository(auth2UserConnectionJdbcTemplate,
+                                                                connectionTextEncryptor,
+                                                                repositoryProperties.getAuthTokenTableName());
+            usersConnectionTokenRepository.setCacheManager(auth2RedisHashCacheManager.getIfAvailable());
+            usersConnectionTokenRepository.setFetchSize(auth2Properties.getRefreshTokenFetchSize());
+            usersConnectionTokenRepository.setRefreshTokenDueQueue(refreshTokenDueQueue.getIfAvailable());
+            return usersConnectionTokenRepository;
+        }
+
+        @Bean
+        @ConditionalOnMissingBean(type = "top.dcenter.ums.security.core.oauth.service.ProviderTokenLease")
+        @ConditionalOnProperty(prefix = "ums.oauth", name = "enable-auth-token-table", havingValue = "true")
+        public ProviderTokenLease providerTokenLease(UsersConnectionTokenRepository usersConnectionTokenRepository,
+                                                     Auth2Properties auth2Properties) {
+            return new ProviderTokenLease(usersConnectionTokenRepository, auth2Properties.getProviderToken().getLeaseTtl());
+        }
+
+        @Bean
+        @ConditionalOnMissingBean(type = "top.dcenter.ums.security.core.oauth.service.ProviderTokenService")
+        @ConditionalOnProperty(prefix = "ums.oauth", name = "enable-auth-token-table", havingValue = "true")
+        public ProviderTokenService providerTokenService(UsersConnectionRepository usersConnectionRepository,
+                                                         UsersConnectionTokenRepository usersConnectionTokenRepository,
+                                                         ProviderTokenLease providerTokenLease,
+                                                         ObjectProvider<PlatformTransactionManager> transactionManager,
+                                                         Auth2Properties auth2Properties) {
+            PlatformTransactionManager platformTransactionManager = transactionManager.getIfUnique();
+            TransactionTemplate transactionTemplate = null;
+            if (platformTransactionManager != null)
+            {
+                transactionTemplate = new TransactionTemplate(platformTransactionManager);
+            }
+            // 第三方 HTTP 超时时间按国外第三方与国内第三方中较大的值
+            HttpConfigProperties proxy = auth2Properties.getProxy();
+            Duration httpTimeout = proxy.getTimeout().compareTo(proxy.getForeignTimeout()) >= 0 ?
+                    proxy.getTimeout() : proxy.getForeignTimeout();
+            return new DefaultProviderTokenServiceImpl(usersConnectionRepository, usersConnectionTokenRepository,
+                                                       transactionTemplate, auth2Properties.getProviderToken(),
+                                                       providerTokenLease, httpTimeout);
+        }
+
+        @Bean
+        @ConditionalOnProperty(prefix = "ums.repository.write-behind", name = "enabled", havingValue = "true")
+        public ConnectionUpdateWriteBehind connectionUpdateWriteBehind(UsersConnectionRepository usersConnectionRepository,
+                                                                       ObjectProvider<UsersConnectionTokenRepository> usersConnectionTokenRepository,
+                                                                       ObjectProvider<PlatformTransactionManager> transactionManager,
+                                                                       ObjectProvider<ConnectionUpdateFilter> connectionUpdateFilter,
+                                                                       Auth2Properties auth2Properties) {
+            PlatformTransactionManager platformTransactionManager = transactionManager.getIfUnique();
+            TransactionTemplate transactionTemplate = null;
+            if (platformTransactionManager != null)
+            {
+                transactionTemplate = new TransactionTemplate(platformTransactionManager);
+            }
+            ConnectionUpdateWriteBehind connectionUpdateWriteBehind =
+                    new ConnectionUpdateWriteBehind(usersConnectionRepository,
+                                                    usersConnectionTokenRepository.getIfAvailable(),
+                                                    transactionTemplate,
+                                                    repositoryProperties.getWriteBehind(),
+                                                    auth2Properties.getProxy().getHttpConfig().getTimeout());
+            connectionUpdateWriteBehind.setConnectionUpdateFilter(connectionUpdateFilter.getIfAvailable());
+            return connectionUpdateWriteBehind;
+        }
+
+        @Bean
+        @ConditionalOnProperty(prefix = "ums.repository.journal", name = "enabled", havingValue = "true")
+        public ConnectionUpdateJournal connectionUpdateJournal(UsersConnectionRepository usersConnectionRepository,
+                                                               ObjectProvider<UsersConnectionTokenRepository> usersConnectionTokenRepository,
+                                                               ObjectProvider<PlatformTransactionManager> transactionManager,
+                                                               ObjectProvider<ConnectionUpdateFilter> connectionUpdateFilter,
+                                                               @Qualifier("connectionTextEncryptor") TextEncryptor connectionTextEncryptor,
+                                                               Auth2Properties auth2Properties) {
+            PlatformTransactionManager platformTransactionManager = transactionManager.getIfUnique();
+            TransactionTemplate transactionTemplate = null;
+            if (platformTransactionManager != null)
+            {
+                transactionTemplate = new TransactionTemplate(platformTransactionManager);
+            }
+            ConnectionUpdateJournal connectionUpdateJournal =
+                    new ConnectionUpdateJournal(usersConnectionRepository,
+                                                usersConnectionTokenRepository.getIfAvailable(),
+                                                transactionTemplate,
+                                                connectionTextEncryptor,
+                                                repositoryProperties.getJournal(),
+                                                auth2Properties.getProxy().getHttpConfig().getTimeout());
+            connectionUpdateJournal.setConnectionUpdateFilter(connectionUpdateFilter.getIfAvailable());
+            return connectionUpdateJournal;
+        }
+
+        @Bean
+        @ConditionalOnProperty(prefix = "ums.repository.skip-unchanged-update", name = "enabled", havingValue = "true")
+        public ConnectionUpdateFilter connectionUpdateFilter(Auth2Properties auth2Properties) {
+            return new ConnectionUpdateFilter(auth2Properties.getProxy().getHttpConfig().getTimeout(),
+                                              repositoryProperties.getSkipUnchangedUpdate().getExpireTimeTolerance());
+        }
+
+        @Bean
+        @ConditionalOnProperty(prefix = "ums.repository.bloom-filter", name = "enabled", havingValue = "true")
+        public ConnectionBloomFilter connectionBloomFilter(JdbcTemplate auth2UserConnectionJdbcTemplate,
+                                                           ObjectProvider<RedisBloomFilter> connectionRedisBloomFilter) {
+            RedisBloomFilter redisBloomFilter = connectionRedisBloomFilter.getIfAvailable();
+            if (repositoryProperties.getBloomFilter().getRedisEnabled() && redisBloomFilter == null)
+            {
+                throw new IllegalStateException("ums.repository.bloom-filter.redis-enabled=true 时需要 RedisConnectionFactory");
+            }
+            return new ConnectionBloomFilter(auth2UserConnectionJdbcTemplate, repositoryProperties, redisBloomFilter);
+        }
+
+    }
+
+    @Configuration
+    @ConditionalOnClass(name = "org.springframework.data.redis.connection.RedisConnectionFactory")
+    @ConditionalOnProperty(prefix = "ums.repository.bloom-filter", name = "redis-enabled", havingValue = "true")
+    static class RedisBloomFilterAutoConfiguration {
+
+        @Bean
+        public RedisBloomFilter connectionRedisBloomFilter(RedisConnectionFactory redisConnectionFactory,
+                                                           RepositoryProperties repositoryProperties) {
+            RepositoryProperties.BloomFilter bloomFilter = repositoryProperties.getBloomFilter();
+            return new RedisBloomFilter(redisConnectionFactory, bloomFilter.getRedisKeyPrefix(),
+                                        bloomFilter.getRedisExpectedInsertions(), bloomFilter.getFpp());
+        }
+
+    }
+
+    @Configuration
+    @ConditionalOnClass(name = "org.springframework.data.redis.connection.RedisConnectionFactory")
+    @ConditionalOnProperty(prefix = "ums.oauth.refresh-token-due-queue", name = "enabled", havingValue = "true")
+    static class RedisRefreshTokenDueQueueAutoConfiguration {
+
+        @Bean
+        public RefreshTokenDueQueue refreshTokenDueQueue(ObjectProvider<RedisConnectionFactory> redisConnectionFactory,
+                                                         Auth2Properties auth2Properties) {
+            RedisConnectionFactory connectionFactory = redisConnectionFactory.getIfAvailable();
+            if (connectionFactory == null)
+            {
+                // 本地队列只适用于单实例部署, 没有设置 singleNode=true 时启动失败
+                log.warn("到期 token 队列: 没有 RedisConnectionFactory, 使用本地队列, 只适用于单实例部署");
+                return new LocalRefreshTokenDueQueue(auth2Properties.getRefreshTokenDueQueue());
+            }
+            return new RedisRefreshTokenDueQueue(connectionFactory, auth2Properties.getRefreshTokenDueQueue(),
+                                                 Duration.ofHours(RefreshTokenJobImpl.REFRESH_TOKEN_JOB_KEY_EXPIRED_IN));
+        }
+
+    }
+
+    @Configuration
+    @ConditionalOnMissingClass("org.springframework.data.redis.connection.RedisConnectionFactory")
+    @ConditionalOnProperty(prefix = "ums.oauth.refresh-token-due-queue", name = "enabled", havingValue = "true")
+    static class LocalRefreshTokenDueQueueAutoConfiguration {
+
+        @Bean
+        public RefreshTokenDueQueue refreshTokenDueQueue(Auth2Properties auth2Properties) {
+            return new LocalRefreshTokenDueQueue(auth2Properties.getRefreshTokenDueQueue());
         }
 
     }
@@ -53,6 +53,9 @@ import top.dcenter.ums.security.core.oauth.service.Auth2StateCoder;
 import top.dcenter.ums.security.core.oauth.service.Auth2UserService;
 import top.dcenter.ums.security.core.oauth.service.UmsUserDetailsService;
 import top.dcenter.ums.security.core.oauth.signup.ConnectionService;
+import top.dcenter.ums.security.core.oauth.signup.ConnectionUpdateFilter;
+import top.dcenter.ums.security.core.oauth.signup.ConnectionUpdateJournal;
+import top.dcenter.ums.security.core.oauth.signup.ConnectionUpdateWriteBehind;
 import top.dcenter.ums.security.core.oauth.userdetails.converter.AuthenticationToUserDetailsConverter;
 
 import javax.servlet.http.HttpServletRequest;
@@ -97,6 +100,15 @@ public class Auth2AutoConfigurer extends SecurityConfigurerAdapter<DefaultSecuri
     @SuppressWarnings({"SpringJavaAutowiredFieldsWarningInspection"})
     @Autowired(required = false)
     private AuthenticationDetailsSource<HttpServletRequest, ?> authenticationDetailsSource;
+    @SuppressWarnings({"SpringJavaAutowiredFieldsWarningInspection"})
+    @Autowired(required = false)
+    private ConnectionUpdateWriteBehind connectionUpdateWriteBehind;
+    @SuppressWarnings({"SpringJavaAutowiredFieldsWarningInspection"})
+    @Autowired(required = false)
+    private ConnectionUpdateFilter connectionUpdateFilter;
+    @SuppressWarnings({"SpringJavaAutowiredFieldsWarningInspection"})
+    @Autowired(required = false)
+    private ConnectionUpdateJournal connectionUpdateJournal;
 
     public Auth2AutoConfigurer(Auth2Properties auth2Properties,
                                UmsUserDetailsService umsUserDetailsService,
@@ -156,6 +168,9 @@ public class Auth2AutoConfigurer extends SecurityConfigurerAdapter<DefaultSecuri
                 auth2UserService, connectionSignUp, umsUserDetailsService,
                 updateConnectionTaskExecutor, auth2Properties.getAutoSignUp(), auth2Properties.getTemporaryUserAuthorities(),
                 auth2Properties.getTemporaryUserPassword(), authenticationToUserDetailsConverter);
+        auth2LoginAuthenticationProvider.setConnectionUpdateWriteBehind(connectionUpdateWriteBehind);
+        auth2LoginAuthenticationProvider.setConnectionUpdateFilter(connectionUpdateFilter);
+        auth2LoginAuthenticationProvider.setConnectionUpdateJournal(connectionUpdateJournal);
 
 
         Boolean oneClickLoginPropertiesEnable = oneClickLoginProperties.getEnable();
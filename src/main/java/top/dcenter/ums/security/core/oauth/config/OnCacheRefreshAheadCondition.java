@@ -0,0 +1,60 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.config;
+
+import org.springframework.boot.autoconfigure.condition.ConditionOutcome;
+import org.springframework.boot.autoconfigure.condition.SpringBootCondition;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.context.annotation.ConditionContext;
+import org.springframework.core.type.AnnotatedTypeMetadata;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * 开启缓存(ums.cache.redis.open=true)且 ums.cache.redis.refresh-ahead.cache-names 不为空时匹配. <br>
+ * 通过 {@link Binder} 绑定 cache-names, 同时支持逗号分隔与 yaml 列表(cache-names[0])两种配置方式.
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/22 10:12
+ */
+public class OnCacheRefreshAheadCondition extends SpringBootCondition {
+
+    @Override
+    public ConditionOutcome getMatchOutcome(ConditionContext context, AnnotatedTypeMetadata metadata) {
+        Binder binder = Binder.get(context.getEnvironment());
+        boolean open = binder.bind("ums.cache.redis.open", Boolean.class).orElse(false);
+        if (!open)
+        {
+            return ConditionOutcome.noMatch("ums.cache.redis.open is not true");
+        }
+        Set<String> cacheNames = binder.bind("ums.cache.redis.refresh-ahead.cache-names", Bindable.setOf(String.class))
+                                       .orElse(Collections.emptySet());
+        if (cacheNames.isEmpty())
+        {
+            return ConditionOutcome.noMatch("ums.cache.redis.refresh-ahead.cache-names is empty");
+        }
+        return ConditionOutcome.match("refresh-ahead cache names: " + cacheNames);
+    }
+}
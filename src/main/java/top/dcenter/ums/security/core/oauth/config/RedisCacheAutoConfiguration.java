@@ -29,42 +29,83 @@ import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.databind.jsontype.impl.LaissezFaireSubTypeValidator;
+import io.lettuce.core.cluster.ClusterClientOptions;
+import io.lettuce.core.cluster.ClusterTopologyRefreshOptions;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.springframework.aop.Advisor;
+import org.springframework.aop.ClassFilter;
+import org.springframework.aop.Pointcut;
+import org.springframework.aop.support.ClassFilters;
+import org.springframework.aop.support.ComposablePointcut;
+import org.springframework.aop.support.DefaultPointcutAdvisor;
+import org.springframework.aop.support.RootClassFilter;
+import org.springframework.aop.support.annotation.AnnotationMatchingPointcut;
+import org.springframework.beans.factory.ListableBeanFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.config.BeanDefinition;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.autoconfigure.data.redis.RedisProperties;
 import org.springframework.cache.Cache;
 import org.springframework.cache.CacheManager;
+import org.springframework.cache.annotation.CacheEvict;
+import org.springframework.cache.annotation.CachePut;
+import org.springframework.cache.annotation.Cacheable;
+import org.springframework.cache.annotation.Caching;
 import org.springframework.cache.annotation.CachingConfigurerSupport;
 import org.springframework.cache.annotation.EnableCaching;
 import org.springframework.cache.interceptor.CacheErrorHandler;
 import org.springframework.cache.interceptor.CacheResolver;
 import org.springframework.cache.interceptor.KeyGenerator;
 import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Conditional;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Role;
+import org.springframework.core.Ordered;
 import org.springframework.data.redis.cache.RedisCacheConfiguration;
+import org.springframework.data.redis.connection.RedisClusterConfiguration;
 import org.springframework.data.redis.connection.RedisConfiguration;
 import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.RedisSentinelConfiguration;
 import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
 import org.springframework.data.redis.connection.lettuce.LettuceClientConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnection;
 import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
 import org.springframework.data.redis.connection.lettuce.LettucePoolingClientConfiguration;
 import org.springframework.data.redis.serializer.Jackson2JsonRedisSerializer;
 import org.springframework.data.redis.serializer.RedisSerializationContext;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.data.redis.serializer.StringRedisSerializer;
 import org.springframework.lang.NonNull;
 import org.springframework.security.jackson2.CoreJackson2Module;
 import org.springframework.security.web.jackson2.WebJackson2Module;
+import top.dcenter.ums.security.core.oauth.enums.CacheValueSerializer;
 import top.dcenter.ums.security.core.oauth.jackson.deserializes.Auth2Jackson2Module;
 import top.dcenter.ums.security.core.oauth.properties.RedisCacheProperties;
+import top.dcenter.ums.security.core.oauth.repository.UsersConnectionRepository;
+import top.dcenter.ums.security.core.oauth.repository.UsersConnectionTokenRepository;
+import top.dcenter.ums.security.core.oauth.repository.jdbc.cache.CompactRedisSerializer;
+import top.dcenter.ums.security.core.oauth.repository.jdbc.cache.RedisHashCacheBatchInterceptor;
+import top.dcenter.ums.security.core.oauth.repository.jdbc.cache.RedisHashCacheCleanOptions;
+import top.dcenter.ums.security.core.oauth.repository.jdbc.cache.RedisHashCacheLoadLease;
 import top.dcenter.ums.security.core.oauth.repository.jdbc.cache.RedisHashCacheManager;
+import top.dcenter.ums.security.core.oauth.repository.jdbc.cache.RedisHashCacheMetricsRegistrar;
+import top.dcenter.ums.security.core.oauth.repository.jdbc.cache.RedisHashCacheRefreshAhead;
+import top.dcenter.ums.security.core.oauth.repository.jdbc.cache.RedisHashCacheRefreshAheadInterceptor;
+import top.dcenter.ums.security.core.oauth.repository.jdbc.cache.RedisHashNearCacheBroadcaster;
+import top.dcenter.ums.security.core.oauth.repository.jdbc.key.generator.DigestHashCacheKeyGenerator;
+import top.dcenter.ums.security.core.oauth.repository.jdbc.key.generator.MethodNameHashCacheKeyGenerator;
+import top.dcenter.ums.security.core.oauth.repository.jdbc.key.generator.ParamsHashCacheKeyGenerator;
 import top.dcenter.ums.security.core.oauth.repository.jdbc.key.generator.RemoveConnectionsByConnectionKeyWithUserIdKeyGenerator;
 
 import java.time.Duration;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
 /**
  * 简单的实现 Redis cache 自定义配置 {@link CacheManager}, 向 IOC 容器中注入 beanName=socialRedisHashCacheManager 的实例. <br><br>
@@ -75,6 +116,19 @@ import java.util.Set;
  * 当然也可自定义 {@link CachingConfigurerSupport} .<br>
  * 2. 缓存穿透: 对查询结果 null 值进行缓存, 添加时更新缓存 null 值, 或者 删除此缓存.<br>
  * 3. 取缓存 TTL 的 20% 作为动态的随机变量上下浮动, 防止同时缓存失效而缓存击穿.<br>
+ * 4. 缓存未命中时的分布式加载租约: 通过 ums.cache.redis.lease.cache-names 开启, 集群中只有获取到租约的节点查询数据库并回填缓存.<br>
+ * 5. 进程内一级缓存: 通过 ums.cache.redis.near-cache.cache-names 开启, 缓存 put/evict/clear 时通过 redis pub/sub 通知其他节点失效一级缓存.<br>
+ * 6. 缓存 clear 时使用 SCAN + UNLINK 增量清理, 不使用 KEYS 命令, 通过 ums.cache.redis.clean.* 配置.<br>
+ * 7. 一次方法调用中 {@code @CacheEvict/@CachePut} 产生的 redis 命令合并为一次 pipeline 发送, 通过 ums.cache.redis.batch.enabled 关闭.<br>
+ * 8. hash 缓存的 put/putIfAbsent 使用预加载的 lua 脚本(EVALSHA)原子执行, 通过 ums.cache.redis.script.* 配置.<br>
+ * 9. 缓存 value 的序列化方式通过 ums.cache.redis.value-serializer 选择, COMPACT 时 ConnectionData/AuthTokenPo 等使用紧凑的二进制格式.<br>
+ * 10. 大于阈值的 value 使用 Deflate 压缩, 通过 ums.cache.redis.compression.cache-names 开启.<br>
+ * 11. 缓存的命中率与操作延迟统计, 注册到 micrometer 或 JMX, 通过 ums.cache.redis.metrics.enabled 关闭.<br>
+ * 12. 热点缓存提前刷新: 剩余过期时间低于阈值时异步刷新, 通过 ums.cache.redis.refresh-ahead.cache-names 开启.<br>
+ * 13. 支持 Redis Cluster 与 Sentinel: 根据 spring.redis.cluster.* 与 spring.redis.sentinel.* 创建连接,
+ * 通过 ums.cache.redis.topology.* 配置读取节点策略与 hash tag.<br>
+ * 14. pipeline 命令缓冲刷新, 通过 ums.cache.redis.connection.pipelining-flush-size 配置;
+ * 缓存写入器的连接模式(每条命令获取连接或共享原生连接), 通过 ums.cache.redis.connection.writer-mode 配置.<br>
  * @author YongWu zheng
  * @version V2.0  Created by  2020-06-11 22:57
  */
@@ -139,6 +193,40 @@ public class RedisCacheAutoConfiguration {
             getJackson2JsonRedisSerializer();
 
 
+    /**
+     * redis 配置: 配置了 spring.redis.sentinel.* 时使用 Sentinel, 配置了 spring.redis.cluster.* 时使用 Cluster, 否则使用单机.
+     */
+    private RedisConfiguration createRedisConfiguration(int dbIndex, String hostName, int port, String password) {
+
+        RedisProperties.Sentinel sentinel = redisProperties.getSentinel();
+        if (sentinel != null && sentinel.getMaster() != null)
+        {
+            RedisSentinelConfiguration sentinelConfiguration =
+                    new RedisSentinelConfiguration(sentinel.getMaster(), new HashSet<>(sentinel.getNodes()));
+            sentinelConfiguration.setDatabase(dbIndex);
+            sentinelConfiguration.setPassword(password);
+            return sentinelConfiguration;
+        }
+
+        RedisProperties.Cluster cluster = redisProperties.getCluster();
+        if (cluster != null && cluster.getNodes() != null && !cluster.getNodes().isEmpty())
+        {
+            // Redis Cluster 只有 0 号数据库, 忽略 cache.database-index
+            RedisClusterConfiguration clusterConfiguration = new RedisClusterConfiguration(cluster.getNodes());
+            if (cluster.getMaxRedirects() != null)
+            {
+                clusterConfiguration.setMaxRedirects(cluster.getMaxRedirects());
+            }
+            clusterConfiguration.setPassword(password);
+            return clusterConfiguration;
+        }
+
+        RedisStandaloneConfiguration standaloneConfiguration = new RedisStandaloneConfiguration(hostName, port);
+        standaloneConfiguration.setDatabase(dbIndex);
+        standaloneConfiguration.setPassword(password);
+        return standaloneConfiguration;
+    }
+
     /**
      * 自定义 LettuceConnectionFactory
      */
@@ -148,10 +236,8 @@ public class RedisCacheAutoConfiguration {
             Long maxWait, Long timeOut, Duration shutdownTimeOut){
 
         //redis配置
-        RedisConfiguration redisConfiguration = new
-                RedisStandaloneConfiguration(hostName, port);
-        ((RedisStandaloneConfiguration) redisConfiguration).setDatabase(dbIndex);
-        ((RedisStandaloneConfiguration) redisConfiguration).setPassword(password);
+        RedisConfiguration redisConfiguration = createRedisConfiguration(dbIndex, hostName, port, password);
+        RedisCacheProperties.Topology topology = redisCacheProperties.getTopology();
 
         //连接池配置
         //noinspection rawtypes
@@ -167,11 +253,33 @@ public class RedisCacheAutoConfiguration {
 
         builder.shutdownTimeout(shutdownTimeOut);
         builder.poolConfig(genericObjectPoolConfig);
+        if (!(redisConfiguration instanceof RedisStandaloneConfiguration))
+        {
+            // Cluster 与 Sentinel 时的读取节点策略
+            builder.readFrom(topology.getReadFrom().getReadFrom());
+        }
+        if (redisConfiguration instanceof RedisClusterConfiguration)
+        {
+            // 集群拓扑刷新: 节点故障转移或 slot 迁移后及时更新路由
+            ClusterTopologyRefreshOptions refreshOptions = ClusterTopologyRefreshOptions.builder()
+                    .enablePeriodicRefresh(topology.getClusterRefreshPeriod())
+                    .enableAllAdaptiveRefreshTriggers()
+                    .build();
+            builder.clientOptions(ClusterClientOptions.builder().topologyRefreshOptions(refreshOptions).build());
+        }
         LettuceClientConfiguration lettuceClientConfiguration = builder.build();
         //根据配置和客户端配置创建连接
         LettuceConnectionFactory lettuceConnectionFactory = new
                 LettuceConnectionFactory(redisConfiguration,lettuceClientConfiguration);
 
+        // 批量 put/evict 与 clear 的 pipeline 缓冲多条命令后再刷新到网络
+        RedisCacheProperties.Connection connection = redisCacheProperties.getConnection();
+        if (connection.getPipeliningFlushSize() > 1)
+        {
+            lettuceConnectionFactory.setPipeliningFlushPolicy(
+                    LettuceConnection.PipeliningFlushPolicy.buffered(connection.getPipeliningFlushSize()));
+        }
+
         lettuceConnectionFactory.afterPropertiesSet();
         return lettuceConnectionFactory;
     }
@@ -182,7 +290,9 @@ public class RedisCacheAutoConfiguration {
      */
     @Bean("auth2RedisHashCacheManager")
     @ConditionalOnMissingBean(name = "auth2RedisHashCacheManager")
-    public CacheManager redisCacheManager(RedisConnectionFactory redisConnectionFactory) {
+    public CacheManager redisCacheManager(RedisConnectionFactory redisConnectionFactory,
+                                          @Qualifier("cacheRefreshAheadTaskExecutor")
+                                          ObjectProvider<ExecutorService> cacheRefreshAheadTaskExecutor) {
 
         RedisCacheProperties.Cache cache = redisCacheProperties.getCache();
 
@@ -209,14 +319,22 @@ public class RedisCacheAutoConfiguration {
                      lettuce.getShutdownTimeout());
         }
 
+        // value 序列化器: 默认 json, COMPACT 时对 ConnectionData/AuthTokenPo 等使用紧凑的二进制格式, 其他类型仍使用 json
+        RedisSerializer<Object> valueSerializer;
+        //noinspection unchecked
+        valueSerializer = (RedisSerializer<Object>) jackson2JsonRedisSerializer;
+        if (CacheValueSerializer.COMPACT.equals(redisCacheProperties.getValueSerializer()))
+        {
+            valueSerializer = new CompactRedisSerializer(valueSerializer);
+        }
+
         RedisCacheConfiguration defaultCacheConfig = RedisCacheConfiguration.defaultCacheConfig();
         // 设置缓存管理器管理的缓存的默认过期时间
-        //noinspection unchecked
         defaultCacheConfig = defaultCacheConfig.entryTtl(cache.getDefaultExpireTime())
                 // 设置 key为string序列化
                 .serializeKeysWith(RedisSerializationContext.SerializationPair.fromSerializer(new StringRedisSerializer()))
-                // 设置value为json序列化
-                .serializeValuesWith(RedisSerializationContext.SerializationPair.fromSerializer(jackson2JsonRedisSerializer));
+                // 设置value序列化
+                .serializeValuesWith(RedisSerializationContext.SerializationPair.fromSerializer(valueSerializer));
                 // 不缓存空值
                 //.disableCachingNullValues()
 
@@ -230,13 +348,111 @@ public class RedisCacheAutoConfiguration {
                           defaultCacheConfig.entryTtl(cache.getEntryTtl()));
         }
 
-        //noinspection UnnecessaryLocalVariable
-        RedisHashCacheManager cacheManager = RedisHashCacheManager.builder(lettuceConnectionFactory)
+        RedisCacheProperties.Lease lease = redisCacheProperties.getLease();
+        RedisCacheProperties.NearCache nearCache = redisCacheProperties.getNearCache();
+        RedisCacheProperties.Clean clean = redisCacheProperties.getClean();
+        RedisCacheProperties.Compression compression = redisCacheProperties.getCompression();
+        RedisHashNearCacheBroadcaster nearCacheBroadcaster = null;
+        if (!nearCache.getCacheNames().isEmpty())
+        {
+            nearCacheBroadcaster = new RedisHashNearCacheBroadcaster(lettuceConnectionFactory, nearCache.getChannel());
+        }
+
+        RedisHashCacheManager.RedisHashCacheManagerBuilder builder =
+                RedisHashCacheManager.builder(lettuceConnectionFactory)
                 .cacheDefaults(defaultCacheConfig)
                 .initialCacheNames(cacheNames)
                 .withInitialCacheConfigurations(configMap)
-                .build();
-        return cacheManager;
+                // 缓存未命中时的分布式加载租约
+                .withLoadLease(lease.getCacheNames(),
+                               RedisHashCacheLoadLease.of(lease.getTtl(), lease.getWaitTimeout(), lease.getPollInterval()))
+                // 进程内一级缓存与失效消息广播
+                .withNearCache(nearCache.getCacheNames(), nearCache.getMaximumSize(), nearCache.getTtl())
+                .nearCacheBroadcaster(nearCacheBroadcaster)
+                // 缓存 clear 时使用 SCAN + UNLINK 增量清理
+                .cleanOptions(RedisHashCacheCleanOptions.of(clean.getScanCount(), clean.getBatchSize(),
+                                                            clean.getPause(), clean.getUnlink(), null))
+                // 大于阈值的 value 压缩
+                .withCompression(compression.getCacheNames(), compression.getThreshold(), compression.getLevel());
+
+        if (lettuceConnectionFactory.isClusterAware() && redisCacheProperties.getTopology().getHashTag())
+        {
+            // Redis Cluster: 对 key 添加 hash tag, 使 hash key 与其租约 key 落在同一个 slot
+            builder.withHashTag();
+        }
+
+        RedisCacheProperties.RefreshAhead refreshAhead = redisCacheProperties.getRefreshAhead();
+        ExecutorService refreshAheadExecutor = cacheRefreshAheadTaskExecutor.getIfAvailable();
+        if (!refreshAhead.getCacheNames().isEmpty() && refreshAheadExecutor != null)
+        {
+            // 热点缓存提前刷新
+            builder.withRefreshAhead(refreshAhead.getCacheNames(),
+                                     RedisHashCacheRefreshAhead.of(refreshAhead.getRatio(), refreshAheadExecutor));
+        }
+
+        if (redisCacheProperties.getScript().getEnabled())
+        {
+            // 使用预加载的 lua 脚本执行 hash 缓存写入
+            builder.withScripts(redisCacheProperties.getScript().getTtlRefreshRatio());
+        }
+
+        // 缓存写入器执行命令的连接模式
+        builder.withWriterMode(redisCacheProperties.getConnection().getWriterMode());
+
+        return builder.build();
+    }
+
+    /**
+     * 把一次方法调用中 {@code @Caching/@CacheEvict/@CachePut} 产生的 redis 命令合并为一次 pipeline 发送,
+     * 在缓存拦截器(默认: {@link Ordered#LOWEST_PRECEDENCE})的外层执行. 只拦截 {@link UsersConnectionRepository} 与
+     * {@link UsersConnectionTokenRepository} 的实现类, 不影响应用中其他使用缓存注解的 bean.
+     * @return Advisor
+     */
+    @Bean
+    @Role(BeanDefinition.ROLE_INFRASTRUCTURE)
+    @ConditionalOnProperty(prefix = "ums.cache.redis.batch", name = "enabled", havingValue = "true", matchIfMissing = true)
+    public static Advisor redisHashCacheBatchAdvisor() {
+        Pointcut pointcut = new ComposablePointcut(AnnotationMatchingPointcut.forMethodAnnotation(Caching.class))
+                .union(AnnotationMatchingPointcut.forMethodAnnotation(CacheEvict.class))
+                .union(AnnotationMatchingPointcut.forMethodAnnotation(CachePut.class))
+                .intersection(repositoryClassFilter());
+        DefaultPointcutAdvisor advisor = new DefaultPointcutAdvisor(pointcut, new RedisHashCacheBatchInterceptor());
+        advisor.setOrder(Ordered.LOWEST_PRECEDENCE - 1);
+        return advisor;
+    }
+
+    /**
+     * 记录 {@link UsersConnectionRepository} 与 {@link UsersConnectionTokenRepository} 实现类中 {@code @Cacheable} 方法的
+     * 目标对象与参数, 作为提前刷新的 loader, 在缓存拦截器(默认: {@link Ordered#LOWEST_PRECEDENCE})的外层执行.
+     * 只在配置了 ums.cache.redis.refresh-ahead.cache-names 时注册.
+     * @return Advisor
+     */
+    @Bean
+    @Role(BeanDefinition.ROLE_INFRASTRUCTURE)
+    @Conditional(OnCacheRefreshAheadCondition.class)
+    public static Advisor redisHashCacheRefreshAheadAdvisor() {
+        Pointcut pointcut = new ComposablePointcut(repositoryClassFilter())
+                .intersection(AnnotationMatchingPointcut.forMethodAnnotation(Cacheable.class).getMethodMatcher());
+        DefaultPointcutAdvisor advisor = new DefaultPointcutAdvisor(pointcut, new RedisHashCacheRefreshAheadInterceptor());
+        advisor.setOrder(Ordered.LOWEST_PRECEDENCE - 1);
+        return advisor;
+    }
+
+    private static ClassFilter repositoryClassFilter() {
+        return ClassFilters.union(new RootClassFilter(UsersConnectionRepository.class),
+                                  new RootClassFilter(UsersConnectionTokenRepository.class));
+    }
+
+    /**
+     * 注册 auth2RedisHashCacheManager 中缓存的命中率与操作延迟统计, 有 MeterRegistry 时注册到 micrometer, 否则注册到 JMX.
+     * @return RedisHashCacheMetricsRegistrar
+     */
+    @Bean
+    @ConditionalOnProperty(prefix = "ums.cache.redis.metrics", name = "enabled", havingValue = "true", matchIfMissing = true)
+    public RedisHashCacheMetricsRegistrar redisHashCacheMetricsRegistrar(
+            @Qualifier("auth2RedisHashCacheManager") CacheManager auth2RedisHashCacheManager,
+            ListableBeanFactory beanFactory) {
+        return new RedisHashCacheMetricsRegistrar(auth2RedisHashCacheManager, "auth2RedisHashCacheManager", beanFactory);
     }
 
     @Bean("removeConnectionsByConnectionKeyWithUserIdKeyGenerator")
@@ -244,6 +460,46 @@ public class RedisCacheAutoConfiguration {
         return new RemoveConnectionsByConnectionKeyWithUserIdKeyGenerator();
     }
 
+    /**
+     * (providerId, providerUserId) 或 (userId, providerId) 参数的 key 生成器, hash key 前缀: hs:
+     */
+    @Bean("hsParamsKeyGenerator")
+    public ParamsHashCacheKeyGenerator hsParamsKeyGenerator() {
+        return new ParamsHashCacheKeyGenerator("hs:");
+    }
+
+    /**
+     * (userId, providerId) 参数的 key 生成器, hash key 前缀: h:
+     */
+    @Bean("hParamsKeyGenerator")
+    public ParamsHashCacheKeyGenerator hParamsKeyGenerator() {
+        return new ParamsHashCacheKeyGenerator("h:");
+    }
+
+    /**
+     * (userId) 参数与方法名的 key 生成器, hash key 前缀: hm:
+     */
+    @Bean("hmMethodNameKeyGenerator")
+    public MethodNameHashCacheKeyGenerator hmMethodNameKeyGenerator() {
+        return new MethodNameHashCacheKeyGenerator("hm:");
+    }
+
+    /**
+     * (providerId/userId, 集合/Map) 参数的 key 生成器, hash key 前缀: hm:
+     */
+    @Bean("hmDigestKeyGenerator")
+    public DigestHashCacheKeyGenerator hmDigestKeyGenerator() {
+        return new DigestHashCacheKeyGenerator("hm:", 0, 1);
+    }
+
+    /**
+     * (MapSqlParameterSource, sql, userId) 参数的 key 生成器, hash key 前缀: hm:
+     */
+    @Bean("hmDigestWithUserIdKeyGenerator")
+    public DigestHashCacheKeyGenerator hmDigestWithUserIdKeyGenerator() {
+        return new DigestHashCacheKeyGenerator("hm:", 2, 0);
+    }
+
     @Bean
     @ConditionalOnMissingBean(type = {"org.springframework.cache.interceptor.CacheErrorHandler"})
     public CacheErrorHandler cacheErrorHandler() {
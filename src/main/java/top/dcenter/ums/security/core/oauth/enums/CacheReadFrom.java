@@ -0,0 +1,73 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.enums;
+
+import io.lettuce.core.ReadFrom;
+
+/**
+ * redis 缓存读取节点策略枚举, 用于 Redis Cluster 与 Sentinel(主从)
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/6 15:08
+ */
+@SuppressWarnings("unused")
+public enum CacheReadFrom {
+    /**
+     * 只从 master 读取
+     */
+    MASTER {
+        @Override
+        public ReadFrom getReadFrom() {
+            return ReadFrom.MASTER;
+        }
+    },
+    /**
+     * 优先从 master 读取, master 不可用时从 replica 读取
+     */
+    MASTER_PREFERRED {
+        @Override
+        public ReadFrom getReadFrom() {
+            return ReadFrom.MASTER_PREFERRED;
+        }
+    },
+    /**
+     * 优先从 replica 读取, replica 不可用时从 master 读取
+     */
+    REPLICA_PREFERRED {
+        @Override
+        public ReadFrom getReadFrom() {
+            return ReadFrom.REPLICA_PREFERRED;
+        }
+    },
+    /**
+     * 只从 replica 读取
+     */
+    REPLICA {
+        @Override
+        public ReadFrom getReadFrom() {
+            return ReadFrom.REPLICA;
+        }
+    };
+
+    public abstract ReadFrom getReadFrom();
+}
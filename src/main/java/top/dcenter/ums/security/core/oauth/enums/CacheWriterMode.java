@@ -0,0 +1,42 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package top.dcenter.ums.security.core.oauth.enums;
+
+/**
+ * redis 缓存写入器(RedisHashCacheWriter)执行命令的连接模式
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/24 10:20
+ */
+public enum CacheWriterMode {
+    /**
+     * 每条命令从 RedisConnectionFactory 获取 RedisConnection, 执行后关闭
+     */
+    DEDICATED,
+    /**
+     * get/hGet/put/remove/hRemove 等非事务, 非阻塞的命令直接在一个共享的线程安全的 Lettuce 原生连接上发送,
+     * 不再每条命令获取与关闭 RedisConnection, 命令由 Lettuce 自动刷新与合并写入;
+     * MULTI/EXEC, pipeline, lua 脚本与清理等命令仍通过 RedisConnection 执行.
+     * 只对共享原生连接的 LettuceConnectionFactory 生效, 否则使用 DEDICATED
+     */
+    SHARED
+}
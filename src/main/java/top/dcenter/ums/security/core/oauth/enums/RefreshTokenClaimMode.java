@@ -0,0 +1,47 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.enums;
+
+/**
+ * 没有 redis 时, 分布式定时刷新 token 任务的数据库领取(claim)模式枚举
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/13 9:40
+ */
+@SuppressWarnings("unused")
+public enum RefreshTokenClaimMode {
+    /**
+     * 不领取, 每台服务器都执行全部刷新任务, 适用于单机应用
+     */
+    NONE,
+    /**
+     * 通过 {@code SELECT ... FOR UPDATE SKIP LOCKED} 领取到期 token 并写入租约(claimedBy, claimedUntil),
+     * 服务器之间不会相互阻塞, 需要数据库支持(如: mysql 8.0+, postgresql 9.5+)
+     */
+    SKIP_LOCKED,
+    /**
+     * 通过带条件(claimedUntil 已过期)的 update 写入租约(claimedBy, claimedUntil)领取到期 token, 适用于不支持
+     * {@code SKIP LOCKED} 的数据库
+     */
+    LEASE
+}
@@ -0,0 +1,125 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.job;
+
+import org.springframework.lang.NonNull;
+import top.dcenter.ums.security.core.oauth.entity.AuthTokenPo;
+import top.dcenter.ums.security.core.oauth.properties.Auth2Properties;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static top.dcenter.ums.security.core.oauth.enums.EnableRefresh.YES;
+
+/**
+ * {@link RefreshTokenDueQueue} 的公共实现: 计算到期时间与重试延迟, 过滤不需要刷新的 token
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/15 10:12
+ */
+public abstract class AbstractRefreshTokenDueQueue implements RefreshTokenDueQueue {
+
+    protected final long leadTimeMillis;
+    protected final long retryDelayMillis;
+    protected final long maxRetryDelayMillis;
+    /**
+     * 同一个 token 连续取出的最大次数, 小于等于 0 时不限制
+     */
+    protected final int maxAttempts;
+
+    protected AbstractRefreshTokenDueQueue(@NonNull Auth2Properties.DueQueue dueQueue) {
+        this.leadTimeMillis = Math.max(0L, dueQueue.getLeadTime().toMillis());
+        this.retryDelayMillis = Math.max(1000L, dueQueue.getRetryDelay().toMillis());
+        this.maxRetryDelayMillis = Math.max(retryDelayMillis, dueQueue.getMaxRetryDelay().toMillis());
+        this.maxAttempts = dueQueue.getMaxAttempts() == null ? 0 : dueQueue.getMaxAttempts();
+    }
+
+    @Override
+    public void schedule(@NonNull Collection<AuthTokenPo> tokens) {
+        final Map<Long, Long> dueTimes = new HashMap<>(tokens.size() * 4 / 3 + 1);
+        for (AuthTokenPo token : tokens)
+        {
+            if (token.getId() == null)
+            {
+                continue;
+            }
+            final Long expireTime = token.getExpireTime();
+            if (YES.equals(token.getEnableRefresh()) && expireTime != null && expireTime > 0L)
+            {
+                dueTimes.put(token.getId(), dueAt(token));
+            }
+            else
+            {
+                remove(token.getId());
+            }
+        }
+        if (!dueTimes.isEmpty())
+        {
+            add(dueTimes);
+        }
+    }
+
+    @Override
+    public long dueAt(@NonNull AuthTokenPo token) {
+        long lead = leadTimeMillis;
+        final int expireIn = token.getExpireIn();
+        if (expireIn > 0)
+        {
+            // 有效期较短的 token 在有效期过半时刷新, 避免刷新后立即再次到期
+            lead = Math.min(lead, TimeUnit.SECONDS.toMillis(expireIn) / 2);
+        }
+        return token.getExpireTime() - lead;
+    }
+
+    /**
+     * 第 attempts 次取出后重新到期的延迟: retryDelay * 2^(attempts - 1), 不超过 maxRetryDelay
+     * @param attempts  取出次数, 从 1 开始
+     * @return  延迟毫秒数
+     */
+    protected long retryDelayMillis(int attempts) {
+        final int shift = Math.max(0, attempts - 1);
+        if (shift >= Long.numberOfLeadingZeros(retryDelayMillis) - 1)
+        {
+            // 左移溢出
+            return maxRetryDelayMillis;
+        }
+        return Math.min(maxRetryDelayMillis, retryDelayMillis << shift);
+    }
+
+    /**
+     * @param attempts  取出次数, 从 1 开始
+     * @return  是否是最后一次取出
+     */
+    protected boolean isLastAttempt(int attempts) {
+        return maxAttempts > 0 && attempts >= maxAttempts;
+    }
+
+    /**
+     * 放入或更新 token 的到期时间, 并重置取出次数
+     * @param dueTimes  key 为 token id, value 为到期时间戳
+     */
+    protected abstract void add(@NonNull Map<Long, Long> dueTimes);
+
+}
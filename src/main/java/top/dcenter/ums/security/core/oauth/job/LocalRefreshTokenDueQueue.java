@@ -0,0 +1,175 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.job;
+
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+import top.dcenter.ums.security.core.oauth.properties.Auth2Properties;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 本地按时间分桶的到期 token 队列: 按 tick 把到期时间分桶, 桶按时间排序, 取出时只遍历已到期的桶. <br>
+ * 注意: 只适用于单机应用, 需要设置 {@code ums.oauth.refresh-token-due-queue.single-node=true},
+ * 分布式应用请使用 {@link RedisRefreshTokenDueQueue}.
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/15 10:12
+ */
+public class LocalRefreshTokenDueQueue extends AbstractRefreshTokenDueQueue {
+
+    private final long tickMillis;
+    /**
+     * key 为桶(到期时间 / tick), value 为桶内的 token id
+     */
+    private final NavigableMap<Long, Set<Long>> buckets = new TreeMap<>();
+    /**
+     * key 为 token id, value 为所在的桶
+     */
+    private final Map<Long, Long> index = new HashMap<>();
+    /**
+     * key 为 token id, value 为连续取出的次数
+     */
+    private final Map<Long, Integer> attempts = new HashMap<>();
+    private final AtomicBoolean seedLock = new AtomicBoolean(false);
+    private volatile Long seededUntil;
+
+    /**
+     * @param dueQueue  到期 token 队列属性
+     * @throws IllegalStateException    没有设置单实例部署(singleNode=true)时
+     */
+    public LocalRefreshTokenDueQueue(@NonNull Auth2Properties.DueQueue dueQueue) {
+        super(dueQueue);
+        if (!Boolean.TRUE.equals(dueQueue.getSingleNode()))
+        {
+            // 多实例部署时本地队列只包含本机写入的 token, 其他服务器写入的 token 不会被刷新
+            throw new IllegalStateException("到期 token 队列: 没有 RedisConnectionFactory 时使用本地队列, 只适用于单实例部署, "
+                                                    + "单实例部署时设置 ums.oauth.refresh-token-due-queue.single-node=true");
+        }
+        this.tickMillis = Math.max(1L, dueQueue.getTick().toMillis());
+    }
+
+    @Override
+    protected synchronized void add(@NonNull Map<Long, Long> dueTimes) {
+        dueTimes.forEach((tokenId, dueAt) -> {
+            attempts.remove(tokenId);
+            move(tokenId, Math.floorDiv(dueAt, tickMillis));
+        });
+    }
+
+    @Override
+    public synchronized void remove(@NonNull Long tokenId) {
+        attempts.remove(tokenId);
+        final Long bucket = index.remove(tokenId);
+        if (bucket != null)
+        {
+            removeFromBucket(tokenId, bucket);
+        }
+    }
+
+    @NonNull
+    @Override
+    public synchronized List<Long> pollDue(long now, int max) {
+        final List<Long> due = new ArrayList<>(Math.min(max, index.size()));
+        final Iterator<Set<Long>> dueBuckets = buckets.headMap(Math.floorDiv(now, tickMillis), true).values().iterator();
+        while (due.size() < max && dueBuckets.hasNext())
+        {
+            final Iterator<Long> ids = dueBuckets.next().iterator();
+            while (due.size() < max && ids.hasNext())
+            {
+                due.add(ids.next());
+            }
+        }
+        // 取出的 token 按取出次数延后重新到期, 最后一次取出时从队列中删除
+        for (Long tokenId : due)
+        {
+            final int attempt = attempts.merge(tokenId, 1, Integer::sum);
+            if (isLastAttempt(attempt))
+            {
+                remove(tokenId);
+            }
+            else
+            {
+                move(tokenId, Math.floorDiv(now + retryDelayMillis(attempt), tickMillis));
+            }
+        }
+        return due;
+    }
+
+    @Override
+    public synchronized long size() {
+        return index.size();
+    }
+
+    @Override
+    public boolean tryAcquireSeedLock() {
+        return seedLock.compareAndSet(false, true);
+    }
+
+    @Override
+    public void releaseSeedLock() {
+        seedLock.set(false);
+    }
+
+    @Nullable
+    @Override
+    public Long getSeededUntil() {
+        return seededUntil;
+    }
+
+    @Override
+    public void setSeededUntil(long expireTime) {
+        this.seededUntil = expireTime;
+    }
+
+    private void move(@NonNull Long tokenId, long bucket) {
+        final Long old = index.put(tokenId, bucket);
+        if (old != null)
+        {
+            if (old == bucket)
+            {
+                return;
+            }
+            removeFromBucket(tokenId, old);
+        }
+        buckets.computeIfAbsent(bucket, k -> new HashSet<>()).add(tokenId);
+    }
+
+    private void removeFromBucket(@NonNull Long tokenId, @NonNull Long bucket) {
+        final Set<Long> ids = buckets.get(bucket);
+        if (ids != null && ids.remove(tokenId) && ids.isEmpty())
+        {
+            buckets.remove(bucket);
+        }
+    }
+
+}
@@ -0,0 +1,230 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.job;
+
+import org.springframework.data.redis.connection.DefaultTuple;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+import top.dcenter.ums.security.core.oauth.properties.Auth2Properties;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * redis sorted set 实现的分布式到期 token 队列: member 为 token id, score 为到期时间戳. <br>
+ * 通过 lua 脚本原子地取出到期的 token 并按取出次数(hash)把 score 指数退避地延后, 多台服务器同时取出时一个 token 只会被一台服务器取出.
+ * 队列, 取出次数与已放入的 expireTime 上界使用同一个 hash tag, redis 数据丢失时一起丢失, 由定时任务重新放入所有 token.
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/15 10:12
+ */
+public class RedisRefreshTokenDueQueue extends AbstractRefreshTokenDueQueue {
+
+    private static final byte[] QUEUE_KEY = "{ums:refresh-token-due}:queue".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ATTEMPTS_KEY = "{ums:refresh-token-due}:attempts".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SEEDED_UNTIL_KEY = "{ums:refresh-token-due}:seeded-until".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SEED_LOCK_KEY = "{ums:refresh-token-due}:seed".getBytes(StandardCharsets.UTF_8);
+    /**
+     * 每个 ZADD 命令的最大 member 数
+     */
+    private static final int ADD_BATCH_SIZE = 1000;
+
+    /**
+     * KEYS: queue, attempts; ARGV: now, max, retryDelay, maxRetryDelay, maxAttempts.
+     * 取出到期的 token id, 取出次数加 1, 把到期时间延后 min(retryDelay * 2^(取出次数 - 1), maxRetryDelay);
+     * 取出次数达到 maxAttempts(大于 0 时)的 token 从队列中删除
+     */
+    private static final byte[] POLL_SCRIPT = (
+            "local ids = redis.call('ZRANGEBYSCORE', KEYS[1], '-inf', ARGV[1], 'LIMIT', 0, ARGV[2]) " +
+            "local now, delay, maxDelay, maxAttempts = " +
+            "tonumber(ARGV[1]), tonumber(ARGV[3]), tonumber(ARGV[4]), tonumber(ARGV[5]) " +
+            "for _, id in ipairs(ids) do " +
+            "  local attempts = redis.call('HINCRBY', KEYS[2], id, 1) " +
+            "  if maxAttempts > 0 and attempts >= maxAttempts then " +
+            "    redis.call('ZREM', KEYS[1], id) " +
+            "    redis.call('HDEL', KEYS[2], id) " +
+            "  else " +
+            "    redis.call('ZADD', KEYS[1], now + math.min(delay * 2 ^ (attempts - 1), maxDelay), id) " +
+            "  end " +
+            "end " +
+            "return ids").getBytes(StandardCharsets.UTF_8);
+    /**
+     * KEYS: lock; ARGV: owner. 只释放自己持有的锁
+     */
+    private static final byte[] RELEASE_SCRIPT = (
+            "if redis.call('GET', KEYS[1]) == ARGV[1] then return redis.call('DEL', KEYS[1]) end " +
+            "return 0").getBytes(StandardCharsets.UTF_8);
+
+    private final RedisConnectionFactory redisConnectionFactory;
+    private final Duration seedLockTtl;
+    /**
+     * 本机持有锁时锁的值
+     */
+    private final byte[] seedLockOwner = UUID.randomUUID().toString().getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * @param redisConnectionFactory    redis connection factory
+     * @param dueQueue                  到期 token 队列属性
+     * @param seedLockTtl               把数据库中的 token 放入队列的锁的过期时间, 持有锁的服务器宕机时锁在过期后释放
+     */
+    public RedisRefreshTokenDueQueue(@NonNull RedisConnectionFactory redisConnectionFactory,
+                                     @NonNull Auth2Properties.DueQueue dueQueue,
+                                     @NonNull Duration seedLockTtl) {
+        super(dueQueue);
+        this.redisConnectionFactory = redisConnectionFactory;
+        this.seedLockTtl = seedLockTtl;
+    }
+
+    @Override
+    protected void add(@NonNull Map<Long, Long> dueTimes) {
+        try (final RedisConnection connection = redisConnectionFactory.getConnection())
+        {
+            final Iterator<Map.Entry<Long, Long>> iterator = dueTimes.entrySet().iterator();
+            connection.openPipeline();
+            try
+            {
+                while (iterator.hasNext())
+                {
+                    final Set<RedisZSetCommands.Tuple> tuples = new HashSet<>();
+                    while (tuples.size() < ADD_BATCH_SIZE && iterator.hasNext())
+                    {
+                        final Map.Entry<Long, Long> entry = iterator.next();
+                        tuples.add(new DefaultTuple(bytes(entry.getKey()), entry.getValue().doubleValue()));
+                    }
+                    connection.zAdd(QUEUE_KEY, tuples);
+                    // 重新放入的 token 重置取出次数
+                    connection.hDel(ATTEMPTS_KEY, tuples.stream().map(RedisZSetCommands.Tuple::getValue)
+                                                        .toArray(byte[][]::new));
+                }
+            }
+            finally
+            {
+                connection.closePipeline();
+            }
+        }
+    }
+
+    @Override
+    public void remove(@NonNull Long tokenId) {
+        try (final RedisConnection connection = redisConnectionFactory.getConnection())
+        {
+            connection.openPipeline();
+            try
+            {
+                connection.zRem(QUEUE_KEY, bytes(tokenId));
+                connection.hDel(ATTEMPTS_KEY, bytes(tokenId));
+            }
+            finally
+            {
+                connection.closePipeline();
+            }
+        }
+    }
+
+    @NonNull
+    @Override
+    public List<Long> pollDue(long now, int max) {
+        final List<byte[]> result;
+        try (final RedisConnection connection = redisConnectionFactory.getConnection())
+        {
+            result = connection.eval(POLL_SCRIPT, ReturnType.MULTI, 2, QUEUE_KEY, ATTEMPTS_KEY,
+                                     bytes(now), bytes(max), bytes(retryDelayMillis), bytes(maxRetryDelayMillis),
+                                     bytes(maxAttempts));
+        }
+        if (result == null || result.isEmpty())
+        {
+            return Collections.emptyList();
+        }
+        final List<Long> ids = new ArrayList<>(result.size());
+        for (byte[] id : result)
+        {
+            ids.add(Long.valueOf(new String(id, StandardCharsets.UTF_8)));
+        }
+        return ids;
+    }
+
+    @Override
+    public long size() {
+        try (final RedisConnection connection = redisConnectionFactory.getConnection())
+        {
+            final Long size = connection.zCard(QUEUE_KEY);
+            return size == null ? 0L : size;
+        }
+    }
+
+    @Override
+    public boolean tryAcquireSeedLock() {
+        try (final RedisConnection connection = redisConnectionFactory.getConnection())
+        {
+            final Boolean lock = connection.set(SEED_LOCK_KEY, seedLockOwner,
+                                                Expiration.milliseconds(seedLockTtl.toMillis()),
+                                                RedisStringCommands.SetOption.SET_IF_ABSENT);
+            return lock != null && lock;
+        }
+    }
+
+    @Override
+    public void releaseSeedLock() {
+        try (final RedisConnection connection = redisConnectionFactory.getConnection())
+        {
+            connection.eval(RELEASE_SCRIPT, ReturnType.INTEGER, 1, SEED_LOCK_KEY, seedLockOwner);
+        }
+    }
+
+    @Nullable
+    @Override
+    public Long getSeededUntil() {
+        try (final RedisConnection connection = redisConnectionFactory.getConnection())
+        {
+            final byte[] value = connection.get(SEEDED_UNTIL_KEY);
+            return value == null ? null : Long.valueOf(new String(value, StandardCharsets.UTF_8));
+        }
+    }
+
+    @Override
+    public void setSeededUntil(long expireTime) {
+        try (final RedisConnection connection = redisConnectionFactory.getConnection())
+        {
+            connection.set(SEEDED_UNTIL_KEY, bytes(expireTime));
+        }
+    }
+
+    private static byte[] bytes(long value) {
+        return Long.toString(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+}
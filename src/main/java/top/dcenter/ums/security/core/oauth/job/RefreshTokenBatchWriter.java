@@ -0,0 +1,280 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.job;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+import org.springframework.transaction.support.TransactionTemplate;
+import top.dcenter.ums.security.core.oauth.entity.AuthTokenPo;
+import top.dcenter.ums.security.core.oauth.repository.UsersConnectionRepository;
+import top.dcenter.ums.security.core.oauth.repository.UsersConnectionTokenRepository;
+import top.dcenter.ums.security.core.oauth.repository.jdbc.cache.RedisHashCacheBatchInterceptor;
+
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 刷新 token 定时任务的批量写入: 收集刷新后的 {@link AuthTokenPo}, 每 batchSize 条通过
+ * {@link UsersConnectionTokenRepository#updateAuthTokens(List)} 与
+ * {@link UsersConnectionRepository#updateConnectionsByTokenIds(List)} 在一个事务中批量更新 auth_token 与 user_connection,
+ * 两张表的缓存失效在同一个 {@link RedisHashCacheBatchInterceptor#runInBatch(Runnable)} 中合并, 事务提交后通过一次 pipeline 发送;
+ * 批次写入失败时降级为逐条更新; 每条 token 写入(成功或失败)后执行其 afterWrite, 每个批次的 afterWrite 执行后再执行
+ * afterBatch, 如: afterWrite 收集刷新租约, afterBatch 批量释放.
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/14 11:05
+ */
+@Slf4j
+final class RefreshTokenBatchWriter {
+
+    private final UsersConnectionRepository usersConnectionRepository;
+    private final UsersConnectionTokenRepository usersConnectionTokenRepository;
+    @Nullable
+    private final TransactionTemplate transactionTemplate;
+    private final int batchSize;
+    @Nullable
+    private final Runnable afterBatch;
+
+    private final Queue<Pending> buffer = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    RefreshTokenBatchWriter(@NonNull UsersConnectionRepository usersConnectionRepository,
+                            @NonNull UsersConnectionTokenRepository usersConnectionTokenRepository,
+                            @Nullable TransactionTemplate transactionTemplate,
+                            int batchSize) {
+        this(usersConnectionRepository, usersConnectionTokenRepository, transactionTemplate, batchSize, null);
+    }
+
+    /**
+     * @param afterBatch    每个批次写入(成功或失败)且批次内 token 的 afterWrite 执行后执行, 可以为 null
+     */
+    RefreshTokenBatchWriter(@NonNull UsersConnectionRepository usersConnectionRepository,
+                            @NonNull UsersConnectionTokenRepository usersConnectionTokenRepository,
+                            @Nullable TransactionTemplate transactionTemplate,
+                            int batchSize,
+                            @Nullable Runnable afterBatch) {
+        this.usersConnectionRepository = usersConnectionRepository;
+        this.usersConnectionTokenRepository = usersConnectionTokenRepository;
+        this.transactionTemplate = transactionTemplate;
+        this.batchSize = Math.max(1, batchSize);
+        this.afterBatch = afterBatch;
+    }
+
+    /**
+     * 添加刷新后的 token, 达到 batchSize 时由当前线程写入一个批次
+     * @param token 刷新后的 token
+     */
+    void add(@NonNull AuthTokenPo token) {
+        add(token, null);
+    }
+
+    /**
+     * 添加刷新后的 token, 达到 batchSize 时由当前线程写入一个批次
+     * @param token         刷新后的 token
+     * @param afterWrite    token 写入(成功或失败)后执行, 可以为 null
+     */
+    void add(@NonNull AuthTokenPo token, @Nullable Runnable afterWrite) {
+        buffer.add(new Pending(token, afterWrite));
+        if (size.incrementAndGet() >= batchSize)
+        {
+            writeBatch();
+        }
+    }
+
+    /**
+     * 写入所有剩余的 token, 在刷新任务都完成后调用
+     */
+    void flush() {
+        //noinspection StatementWithEmptyBody
+        while (writeBatch() > 0)
+        {
+        }
+    }
+
+    /**
+     * 从缓冲区取出最多 batchSize 条并写入
+     * @return  取出的记录数
+     */
+    private int writeBatch() {
+        final List<Pending> pendings = new ArrayList<>(batchSize);
+        Pending pending;
+        while (pendings.size() < batchSize && (pending = buffer.poll()) != null)
+        {
+            pendings.add(pending);
+        }
+        if (pendings.isEmpty())
+        {
+            return 0;
+        }
+        size.addAndGet(-pendings.size());
+        final List<AuthTokenPo> batch = new ArrayList<>(pendings.size());
+        for (Pending p : pendings)
+        {
+            batch.add(p.token);
+        }
+        try
+        {
+            write(batch);
+        }
+        finally
+        {
+            for (Pending p : pendings)
+            {
+                p.afterWrite();
+            }
+            afterBatch();
+        }
+        return pendings.size();
+    }
+
+    private void afterBatch() {
+        if (afterBatch == null)
+        {
+            return;
+        }
+        try
+        {
+            afterBatch.run();
+        }
+        catch (Exception e)
+        {
+            log.warn("RefreshToken 批次写入后的回调执行失败: error={}", e.getMessage());
+        }
+    }
+
+    private void write(@NonNull List<AuthTokenPo> batch) {
+        try
+        {
+            executeInTransaction(() -> {
+                usersConnectionTokenRepository.updateAuthTokens(batch);
+                usersConnectionRepository.updateConnectionsByTokenIds(batch);
+            });
+        }
+        catch (Exception e)
+        {
+            log.warn("RefreshToken 批量更新失败, 降级为逐条更新: batchSize={}, error={}", batch.size(), e.getMessage(), e);
+            for (AuthTokenPo authTokenPo : batch)
+            {
+                try
+                {
+                    executeInTransaction(() -> {
+                        usersConnectionTokenRepository.updateAuthToken(authTokenPo);
+                        usersConnectionRepository.updateConnectionByTokenId(authTokenPo);
+                    });
+                }
+                catch (Exception ex)
+                {
+                    log.error(String.format("RefreshToken 失败: tokenId=%s, error=%s",
+                                            authTokenPo.getId(), ex.getMessage()), ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * 在事务(transactionTemplate 不为 null 时)中执行 action, action 产生的缓存操作合并为一个批次, 事务提交后一次发送
+     */
+    private void executeInTransaction(UpdateAction action) throws Exception {
+        if (transactionTemplate == null)
+        {
+            runInCacheBatch(action);
+            return;
+        }
+        try
+        {
+            transactionTemplate.executeWithoutResult(status -> unchecked(() -> runInCacheBatch(action)));
+        }
+        catch (UndeclaredThrowableException e)
+        {
+            throw unwrap(e);
+        }
+    }
+
+    private static void runInCacheBatch(UpdateAction action) throws Exception {
+        try
+        {
+            RedisHashCacheBatchInterceptor.runInBatch(() -> unchecked(action));
+        }
+        catch (UndeclaredThrowableException e)
+        {
+            throw unwrap(e);
+        }
+    }
+
+    private static void unchecked(UpdateAction action) {
+        try
+        {
+            action.run();
+        }
+        catch (RuntimeException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new UndeclaredThrowableException(e);
+        }
+    }
+
+    private static Exception unwrap(UndeclaredThrowableException e) {
+        Throwable cause = e.getUndeclaredThrowable();
+        return cause instanceof Exception ? (Exception) cause : e;
+    }
+
+    private interface UpdateAction {
+        void run() throws Exception;
+    }
+
+    private static final class Pending {
+
+        private final AuthTokenPo token;
+        @Nullable
+        private final Runnable afterWrite;
+
+        private Pending(@NonNull AuthTokenPo token, @Nullable Runnable afterWrite) {
+            this.token = token;
+            this.afterWrite = afterWrite;
+        }
+
+        private void afterWrite() {
+            if (afterWrite == null)
+            {
+                return;
+            }
+            try
+            {
+                afterWrite.run();
+            }
+            catch (Exception e)
+            {
+                log.warn("RefreshToken 写入后的回调执行失败: tokenId={}, error={}", token.getId(), e.getMessage());
+            }
+        }
+    }
+
+}
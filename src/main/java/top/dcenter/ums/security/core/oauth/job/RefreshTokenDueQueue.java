@@ -0,0 +1,98 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.job;
+
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+import top.dcenter.ums.security.core.oauth.entity.AuthTokenPo;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * 按到期时间(expireTime - leadTime)排序的到期 token 队列, 由 auth_token 的保存与更新放入, 由刷新线程持续取出刷新.
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/15 10:12
+ */
+public interface RefreshTokenDueQueue {
+
+    /**
+     * 放入或更新 token 的到期时间, 不支持刷新(enableRefresh=0)或无过期时间的 token 从队列中删除
+     * @param tokens    保存或更新后的 token
+     */
+    void schedule(@NonNull Collection<AuthTokenPo> tokens);
+
+    /**
+     * 从队列中删除 token
+     * @param tokenId   token id
+     */
+    void remove(@NonNull Long tokenId);
+
+    /**
+     * 取出到期时间小于等于 now 的 token id, 最多 max 个; 取出的 token 到期时间延后, 延迟从 retryDelay 开始每次加倍,
+     * 不超过 maxRetryDelay, 刷新成功后会按新的过期时间重新放入(重置取出次数), 刷新失败或服务器宕机时在延迟后重新到期;
+     * 取出次数达到 maxAttempts 的 token 最后一次取出时从队列中删除
+     * @param now   当前时间戳
+     * @param max   最多取出的个数
+     * @return  到期的 token id
+     */
+    @NonNull
+    List<Long> pollDue(long now, int max);
+
+    /**
+     * @return  队列中的 token 数
+     */
+    long size();
+
+    /**
+     * 获取把数据库中的 token 放入队列的锁, 同一时间只有一个线程(分布式时一台服务器)执行
+     * @return  获取成功返回 true
+     */
+    boolean tryAcquireSeedLock();
+
+    /**
+     * 释放 {@link #tryAcquireSeedLock()} 获取的锁
+     */
+    void releaseSeedLock();
+
+    /**
+     * @return  expireTime 不超过此值的 token 已放入队列; 队列未初始化(首次启用或队列数据丢失)时返回 null
+     */
+    @Nullable
+    Long getSeededUntil();
+
+    /**
+     * 记录已放入队列的 token 的 expireTime 上界
+     * @param expireTime    expireTime 上界
+     */
+    void setSeededUntil(long expireTime);
+
+    /**
+     * 计算 token 的到期(需要刷新)时间
+     * @param token token
+     * @return  到期时间戳
+     */
+    long dueAt(@NonNull AuthTokenPo token);
+
+}
@@ -25,30 +25,58 @@ package top.dcenter.ums.security.core.oauth.job;
 
 import lombok.extern.slf4j.Slf4j;
 import me.zhyd.oauth.exception.AuthException;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.data.redis.connection.RedisConnection;
 import org.springframework.data.redis.connection.RedisConnectionFactory;
 import org.springframework.lang.NonNull;
 import org.springframework.lang.Nullable;
+import org.springframework.scheduling.support.CronSequenceGenerator;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.util.Assert;
 import top.dcenter.ums.security.core.oauth.entity.AuthTokenPo;
+import top.dcenter.ums.security.core.oauth.enums.RefreshTokenClaimMode;
 import top.dcenter.ums.security.core.oauth.justauth.Auth2RequestHolder;
 import top.dcenter.ums.security.core.oauth.justauth.request.Auth2DefaultRequest;
 import top.dcenter.ums.security.core.oauth.properties.Auth2Properties;
 import top.dcenter.ums.security.core.oauth.repository.UsersConnectionRepository;
 import top.dcenter.ums.security.core.oauth.repository.UsersConnectionTokenRepository;
+import top.dcenter.ums.security.core.oauth.service.ProviderTokenLease;
 
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static top.dcenter.ums.security.core.oauth.enums.EnableRefresh.NO;
+import static top.dcenter.ums.security.core.oauth.enums.EnableRefresh.YES;
 
 /**
  * 刷新 token 定时任务实现, 前提条件, {@link AuthTokenPo} auth_token 表的 id 为 Long 类型
@@ -56,21 +84,54 @@ import static top.dcenter.ums.security.core.oauth.enums.EnableRefresh.NO;
  * @version V2.0  Created by 2020/10/14 14:03
  */
 @Slf4j
-public class RefreshTokenJobImpl implements RefreshTokenJob {
+public class RefreshTokenJobImpl implements RefreshTokenJob, InitializingBean, DisposableBean {
 
     /**
      * refresh token 定时任务锁的 redis key
      */
     public static final String REFRESH_TOKEN_JOB = "RefreshTokenJob:HashKey:lock";
     /**
-     * refresh token 定时任务锁的 redis key 的过期时间, 单位: 小时
+     * refresh token 定时任务锁(分区队列运行)的 redis key 的过期时间, 单位: 小时
      */
     public static final Integer REFRESH_TOKEN_JOB_KEY_EXPIRED_IN = 6;
 
     private final UsersConnectionRepository usersConnectionRepository;
     private final UsersConnectionTokenRepository usersConnectionTokenRepository;
     private final Auth2Properties auth2Properties;
-    private final ExecutorService refreshTokenTaskExecutor;
+    private final RefreshTokenPipeline refreshTokenPipeline;
+    /**
+     * 刷新结果的批量写入, usersConnectionTokenRepository 为 null 时为 null
+     */
+    @Nullable
+    private final RefreshTokenBatchWriter refreshTokenBatchWriter;
+    private final RefreshTokenPartitionQueue partitionQueue;
+    /**
+     * 与按需刷新(ProviderTokenService)共用的单个 token 刷新租约, 为 null 时不使用租约
+     */
+    @Nullable
+    private ProviderTokenLease providerTokenLease;
+    /**
+     * 刷新结果已写入, 等待批次写入后批量释放的租约, key 为 tokenId, value 为租约标识
+     */
+    private final ConcurrentHashMap<Long, String> writtenLeases = new ConcurrentHashMap<>();
+    /**
+     * 分布式执行定时任务时, 分区租约的续租线程
+     */
+    private final ScheduledExecutorService heartbeatExecutor;
+    /**
+     * 到期 token 队列, 为 null 时使用定时任务集中刷新
+     */
+    @Nullable
+    private RefreshTokenDueQueue refreshTokenDueQueue;
+    /**
+     * 到期 token 队列的刷新线程
+     */
+    @Nullable
+    private ScheduledExecutorService dueQueueExecutor;
+    /**
+     * 是否已把不支持 refresh token 的第三方的 token 批量更新为 enableRefresh=0
+     */
+    private final AtomicBoolean enableRefreshCorrected = new AtomicBoolean(false);
     @SuppressWarnings("SpringJavaAutowiredMembersInspection")
     @Autowired(required = false)
     private RedisConnectionFactory redisConnectionFactory;
@@ -79,14 +140,87 @@ public class RefreshTokenJobImpl implements RefreshTokenJob {
                                @Autowired(required = false) UsersConnectionTokenRepository usersConnectionTokenRepository,
                                Auth2Properties auth2Properties,
                                @Qualifier("refreshTokenTaskExecutor") ExecutorService refreshTokenTaskExecutor) {
+        this(usersConnectionRepository, usersConnectionTokenRepository, auth2Properties, refreshTokenTaskExecutor, null);
+    }
+
+    /**
+     * @param usersConnectionRepository         usersConnectionRepository
+     * @param usersConnectionTokenRepository    usersConnectionTokenRepository
+     * @param auth2Properties                   auth2Properties
+     * @param refreshTokenTaskExecutor          refreshTokenTaskExecutor
+     * @param transactionTemplate               批量写入刷新结果时每个批次的事务, 为 null 时不使用事务
+     */
+    public RefreshTokenJobImpl(UsersConnectionRepository usersConnectionRepository,
+                               @Nullable UsersConnectionTokenRepository usersConnectionTokenRepository,
+                               Auth2Properties auth2Properties,
+                               ExecutorService refreshTokenTaskExecutor,
+                               @Nullable TransactionTemplate transactionTemplate) {
         Assert.notNull(refreshTokenTaskExecutor, "refreshTokenTaskExecutor cannot be null");
         Assert.notNull(usersConnectionRepository, "usersConnectionRepository cannot be null");
         Assert.notNull(auth2Properties, "auth2Properties cannot be null");
 
-        this.refreshTokenTaskExecutor = refreshTokenTaskExecutor;
+        this.refreshTokenPipeline = new RefreshTokenPipeline(refreshTokenTaskExecutor,
+                                                             auth2Properties.getRefreshTokenRateLimit());
         this.usersConnectionRepository = usersConnectionRepository;
         this.usersConnectionTokenRepository = usersConnectionTokenRepository;
         this.auth2Properties = auth2Properties;
+        this.refreshTokenBatchWriter = usersConnectionTokenRepository == null ? null :
+                new RefreshTokenBatchWriter(usersConnectionRepository, usersConnectionTokenRepository,
+                                            transactionTemplate, auth2Properties.getRefreshTokenWriteBatchSize(),
+                                            this::releaseWrittenLeases);
+        this.providerTokenLease = usersConnectionTokenRepository == null ? null :
+                new ProviderTokenLease(usersConnectionTokenRepository, auth2Properties.getProviderToken().getLeaseTtl());
+        this.partitionQueue = new RefreshTokenPartitionQueue(auth2Properties.getRefreshTokenLeaseTtl(),
+                                                             Duration.ofHours(REFRESH_TOKEN_JOB_KEY_EXPIRED_IN));
+        this.heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "ums-refresh-token-lease-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @param refreshTokenDueQueue  到期 token 队列, 设置后由刷新线程持续刷新到期 token, 定时任务改为增量把数据库中将到期的 token 放入队列
+     */
+    public void setRefreshTokenDueQueue(@Nullable RefreshTokenDueQueue refreshTokenDueQueue) {
+        this.refreshTokenDueQueue = refreshTokenDueQueue;
+    }
+
+    /**
+     * @param providerTokenLease    与按需刷新(ProviderTokenService)共用的刷新租约, 必须与按需刷新是同一个实例, 否则本机租约不能互斥
+     */
+    public void setProviderTokenLease(@NonNull ProviderTokenLease providerTokenLease) {
+        this.providerTokenLease = providerTokenLease;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        refreshTokenPipeline.afterPropertiesSet();
+        if (refreshTokenDueQueue == null || !auth2Properties.getEnableAuthTokenTable())
+        {
+            return;
+        }
+        final RefreshTokenDueQueue dueQueue = refreshTokenDueQueue;
+        final long pollInterval = Math.max(1L, auth2Properties.getRefreshTokenDueQueue().getPollInterval().toMillis());
+        dueQueueExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "ums-refresh-token-due-queue");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // 队列未初始化(首次启用或 redis 数据丢失)时先把数据库中的 token 放入队列, 否则增量放入
+        dueQueueExecutor.execute(() -> seedDueQueue(dueQueue));
+        dueQueueExecutor.scheduleWithFixedDelay(() -> drainDueQueue(dueQueue),
+                                                pollInterval, pollInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void destroy() {
+        if (dueQueueExecutor != null)
+        {
+            dueQueueExecutor.shutdownNow();
+        }
+        heartbeatExecutor.shutdownNow();
+        refreshTokenPipeline.destroy();
     }
 
 
@@ -96,11 +230,24 @@ public class RefreshTokenJobImpl implements RefreshTokenJob {
         if (!auth2Properties.getEnableAuthTokenTable()) {
             return;
         }
+        correctEnableRefresh();
+        if (this.refreshTokenDueQueue != null)
+        {
+            // 到期 token 队列由刷新线程持续刷新, 定时任务只增量放入下一次执行前将到期的 token, 检测到队列数据丢失时全部重新放入
+            seedDueQueue(this.refreshTokenDueQueue);
+            return;
+        }
         if (this.redisConnectionFactory != null)
         {
             // 分布式
             distributedRefreshToken();
         }
+        else if (!RefreshTokenClaimMode.NONE.equals(auth2Properties.getRefreshTokenClaimMode())
+                && usersConnectionTokenRepository.supportsClaim())
+        {
+            // 分布式, 没有 redis, 通过数据库领取
+            claimedRefreshToken(auth2Properties.getRefreshTokenClaimMode());
+        }
         else
         {
             // 单机
@@ -109,9 +256,506 @@ public class RefreshTokenJobImpl implements RefreshTokenJob {
     }
 
     /**
-     * 分布式执行定时任务
+     * 没有 redis 时的分布式执行定时任务: 每台服务器每次从数据库领取 batchCount 条到期 token(写入租约), 刷新完成后再领取下一批,
+     * 直到没有可领取的 token; 处理快的服务器会领取更多批次, 一条 token 只会被一台服务器刷新
+     * @param mode  数据库领取模式
+     */
+    private void claimedRefreshToken(@NonNull RefreshTokenClaimMode mode) {
+        try
+        {
+            final long start = Instant.now().toEpochMilli();
+            // 过期时间戳(获取小于此时间戳的记录)
+            final long expiredTime = start + Duration.ofHours(auth2Properties.getRemainingExpireIn()).toMillis();
+            final long claimTtl = auth2Properties.getRefreshTokenClaimTtl().toMillis();
+            final int batchCount = auth2Properties.getBatchCount();
+            log.info("分布式(数据库领取) refreshToken 定时刷新任务开始: mode={}, batchCount={}", mode, batchCount);
+            long count = 0L;
+            int batches = 0;
+            List<AuthTokenPo> claimed;
+            do
+            {
+                final long now = Instant.now().toEpochMilli();
+                claimed = usersConnectionTokenRepository.claimDueAuthTokens(expiredTime, UUID.randomUUID().toString(),
+                                                                            now, now + claimTtl, batchCount, mode);
+                if (!claimed.isEmpty())
+                {
+                    batches++;
+                    count += claimed.size();
+                    // 刷新完成后再领取下一批, 避免领取超过自身处理能力的 token
+                    // 领取的 token 已写入 auth_token 表的租约, 按需刷新不会同时刷新
+                    awaitAndFlush(dispatch(claimed, true));
+                }
+            } while (!claimed.isEmpty());
+            log.info("分布式(数据库领取) refreshToken 定时刷新任务结束: mode={}, 领取批次={}, 到期 token 数={}, 总耗时={} 毫秒",
+                     mode, batches, count, Instant.now().toEpochMilli() - start);
+        }
+        catch (Exception e)
+        {
+            log.error(String.format("分布式(数据库领取) refreshToken 定时刷新任务异常, error=%s", e.getMessage()), e);
+        }
+    }
+
+    /**
+     * 应用启动后执行定时任务时, 把不支持 refresh token 的第三方的 token 批量更新为 enableRefresh=0,
+     * 这些 token 不再被定时任务获取; 更新成功后不再执行, 更新失败时下一次定时任务重试
+     */
+    private void correctEnableRefresh() {
+        // 同一时间只有一个线程执行
+        if (!enableRefreshCorrected.compareAndSet(false, true))
+        {
+            return;
+        }
+        final Set<String> providerIds = Auth2RequestHolder.getNotSupportRefreshTokenProviderIds();
+        if (providerIds.isEmpty())
+        {
+            // 第三方还未初始化或都支持 refresh token, 下一次定时任务再检查
+            enableRefreshCorrected.set(false);
+            return;
+        }
+        try
+        {
+            int count = usersConnectionTokenRepository.updateEnableRefreshByProviderIds(NO, providerIds);
+            log.info("RefreshToken 第三方 {} 不支持, 更新 enableRefresh=0 的 token 数={}", providerIds, count);
+        }
+        catch (Exception e)
+        {
+            enableRefreshCorrected.set(false);
+            log.error(String.format("RefreshToken 批量更新第三方 %s 的 enableRefresh 失败, 下一次定时任务重试: error=%s",
+                                    providerIds, e.getMessage()), e);
+        }
+    }
+
+    /**
+     * 把数据库中可刷新的 token 按到期时间放入队列(幂等), 同一时间只有一个线程(分布式时一台服务器)执行: <br>
+     * 1. 队列未初始化(首次启用或队列数据丢失)时放入所有可刷新的 token. <br>
+     * 2. 否则只增量放入 expireTime 在上次放入的上界之后, 且在下一次定时任务执行前到期的 token,
+     * 扫描的记录数只与时间窗口内的记录数相关; 窗口之前的 token 已在队列中, 或在保存与更新时放入.
+     * @param dueQueue  到期 token 队列
+     */
+    private void seedDueQueue(@NonNull RefreshTokenDueQueue dueQueue) {
+        try
+        {
+            if (!dueQueue.tryAcquireSeedLock())
+            {
+                log.info("到期 token 队列: 其他服务器正在放入 token, 跳过");
+                return;
+            }
+            try
+            {
+                final long start = Instant.now().toEpochMilli();
+                final long until = nextSeedUntil(start);
+                final Long seededUntil = dueQueue.getSeededUntil();
+                final long count;
+                if (seededUntil == null)
+                {
+                    count = scheduleAllTokens(dueQueue);
+                    log.info("到期 token 队列: 初始化放入 token 数={}, 队列大小={}, 总耗时={} 毫秒",
+                             count, dueQueue.size(), Instant.now().toEpochMilli() - start);
+                }
+                else if (seededUntil < until && usersConnectionTokenRepository.supportsDueScan())
+                {
+                    count = scheduleDueTokens(dueQueue, seededUntil, Long.MAX_VALUE, until);
+                    log.info("到期 token 队列: 增量放入 token 数={}, expireTime 范围=({}, {}], 总耗时={} 毫秒",
+                             count, seededUntil, until, Instant.now().toEpochMilli() - start);
+                }
+                dueQueue.setSeededUntil(seededUntil == null ? until : Math.max(seededUntil, until));
+            }
+            finally
+            {
+                dueQueue.releaseSeedLock();
+            }
+        }
+        catch (Exception e)
+        {
+            log.error(String.format("到期 token 队列放入 token 异常, error=%s", e.getMessage()), e);
+        }
+    }
+
+    /**
+     * 把数据库中所有可刷新的 token 放入队列
+     * @param dueQueue  到期 token 队列
+     * @return  放入的 token 数
+     * @throws Exception    查询错误
+     */
+    private long scheduleAllTokens(@NonNull RefreshTokenDueQueue dueQueue) throws Exception {
+        if (usersConnectionTokenRepository.supportsDueScan())
+        {
+            return scheduleDueTokens(dueQueue, Long.MIN_VALUE, 0L, Long.MAX_VALUE);
+        }
+        // 按 id 范围遍历
+        final int pageSize = auth2Properties.getBatchCount();
+        final Long maxTokenId = usersConnectionTokenRepository.getMaxTokenId();
+        long count = 0L;
+        for (long startId = 1L; startId <= maxTokenId; startId += pageSize)
+        {
+            List<AuthTokenPo> page =
+                    usersConnectionTokenRepository.findAuthTokenByExpireTimeAndBetweenId(Long.MAX_VALUE, startId,
+                                                                                         startId + pageSize - 1);
+            dueQueue.schedule(page);
+            count += page.size();
+        }
+        return count;
+    }
+
+    /**
+     * 按 (expireTime, id) 键集分页把 (lowerExpireTime, lowerId) 之后且 expireTime 不超过 untilExpireTime 的 token 放入队列
+     * @param dueQueue          到期 token 队列
+     * @param lowerExpireTime   范围下界(不包含)的 expireTime
+     * @param lowerId           范围下界(不包含)的 id
+     * @param untilExpireTime   范围上界(包含)的 expireTime
+     * @return  放入的 token 数
+     * @throws Exception    查询错误
+     */
+    private long scheduleDueTokens(@NonNull RefreshTokenDueQueue dueQueue, long lowerExpireTime, long lowerId,
+                                   long untilExpireTime) throws Exception {
+        final int pageSize = auth2Properties.getBatchCount();
+        long lastExpireTime = lowerExpireTime;
+        long lastId = lowerId;
+        long count = 0L;
+        List<AuthTokenPo> page;
+        do
+        {
+            page = usersConnectionTokenRepository.findDueAuthTokens(untilExpireTime, Long.MAX_VALUE,
+                                                                    lastExpireTime, lastId, pageSize);
+            if (!page.isEmpty())
+            {
+                AuthTokenPo last = page.get(page.size() - 1);
+                lastExpireTime = last.getExpireTime();
+                lastId = last.getId();
+                dueQueue.schedule(page);
+            }
+            count += page.size();
+        } while (page.size() >= pageSize);
+        return count;
+    }
+
+    /**
+     * 下一次放入前可能到期的 token 的 expireTime 上界: 下一次定时任务执行的时间 + leadTime
+     * @param now   当前时间戳
+     * @return  expireTime 上界
+     */
+    private long nextSeedUntil(long now) {
+        long next;
+        try
+        {
+            next = new CronSequenceGenerator(auth2Properties.getRefreshTokenJobCron()).next(new Date(now)).getTime();
+        }
+        catch (IllegalArgumentException e)
+        {
+            next = now + TimeUnit.DAYS.toMillis(1L);
+        }
+        return next + auth2Properties.getRefreshTokenDueQueue().getLeadTime().toMillis();
+    }
+
+    /**
+     * 从队列取出到期的 token 刷新, 直到没有到期的 token; 队列中的到期时间与数据库记录不一致(如: 事务回滚)时按数据库记录校正
+     * @param dueQueue  到期 token 队列
+     */
+    private void drainDueQueue(@NonNull RefreshTokenDueQueue dueQueue) {
+        try
+        {
+            final int batchCount = auth2Properties.getBatchCount();
+            List<Long> tokenIds;
+            do
+            {
+                final long now = Instant.now().toEpochMilli();
+                tokenIds = dueQueue.pollDue(now, batchCount);
+                if (tokenIds.isEmpty())
+                {
+                    return;
+                }
+                final List<AuthTokenPo> authTokens = usersConnectionTokenRepository.findAuthTokensByIds(tokenIds);
+                final Set<Long> found = new HashSet<>(authTokens.size() * 4 / 3 + 1);
+                final List<AuthTokenPo> due = new ArrayList<>(authTokens.size());
+                final List<AuthTokenPo> notDue = new ArrayList<>();
+                for (AuthTokenPo token : authTokens)
+                {
+                    found.add(token.getId());
+                    if (YES.equals(token.getEnableRefresh()) && token.getExpireTime() != null
+                            && token.getExpireTime() > 0L && dueQueue.dueAt(token) <= now)
+                    {
+                        due.add(token);
+                    }
+                    else
+                    {
+                        notDue.add(token);
+                    }
+                }
+                // 已删除的 token 从队列中删除, 未到期或不支持刷新的 token 按数据库记录重新放入或删除
+                tokenIds.stream().filter(id -> !found.contains(id)).forEach(dueQueue::remove);
+                if (!notDue.isEmpty())
+                {
+                    dueQueue.schedule(notDue);
+                }
+                awaitAndFlush(dispatch(due, false));
+            } while (tokenIds.size() >= batchCount && !Thread.currentThread().isInterrupted());
+        }
+        catch (Exception e)
+        {
+            log.error(String.format("到期 token 队列刷新异常, error=%s", e.getMessage()), e);
+        }
+    }
+
+    /**
+     * 分布式执行定时任务: 创建运行的服务器按 (expireTime, id) 把到期 token 划分为记录数相近的范围分区, 每台服务器从 redis 分区队列中
+     * 领取分区(租约)后按键集分页刷新, 执行期间续租; 没有待领取的分区时轮询, 直到所有分区完成或运行过期,
+     * 宕机服务器的分区在租约过期后由其他服务器重新领取
      */
     private void distributedRefreshToken() {
+        if (!usersConnectionTokenRepository.supportsDueScan())
+        {
+            log.info("分布式 refreshToken 定时刷新任务: UsersConnectionTokenRepository 不支持 findDueAuthTokens, 按 id 范围遍历");
+            legacyDistributedRefreshToken();
+            return;
+        }
+        try (final RedisConnection connection = this.redisConnectionFactory.getConnection())
+        {
+            final Instant now = Instant.now();
+            final long deadline = now.toEpochMilli() + Duration.ofHours(REFRESH_TOKEN_JOB_KEY_EXPIRED_IN).toMillis();
+
+            RefreshTokenPartitionQueue.Run run = partitionQueue.current(connection);
+            if (run == null)
+            {
+                // 过期时间戳(获取小于此时间戳的记录)
+                final long expiredTime = now.toEpochMilli() + Duration.ofHours(auth2Properties.getRemainingExpireIn()).toMillis();
+                final List<long[]> boundaries = usersConnectionTokenRepository.findDueAuthTokenBoundaries(
+                        expiredTime, Math.max(1, auth2Properties.getRefreshTokenPartitions()));
+                run = partitionQueue.join(connection, expiredTime, boundaries);
+            }
+            if (run == null)
+            {
+                log.warn("分布式 refreshToken 定时刷新任务: 加入运行失败");
+                return;
+            }
+            final int partitions = run.getPartitions();
+            log.info("分布式 refreshToken 定时刷新任务开始: runId={}, 分区数={}, batchCount={}",
+                     run.getRunId(), partitions, auth2Properties.getBatchCount());
+            long count = 0L;
+            int claimed = 0;
+            long partition;
+            while ((partition = partitionQueue.claim(connection, run)) != RefreshTokenPartitionQueue.ALL_DONE)
+            {
+                if (partition >= 0)
+                {
+                    claimed++;
+                    log.info("分布式 refreshToken 定时刷新任务: 领取第 {} 分区", partition);
+                    count += refreshClaimedPartition(connection, run, (int) partition);
+                    continue;
+                }
+                // 其他服务器持有剩余分区的租约, 轮询直到分区完成或租约过期后接手
+                if (Instant.now().toEpochMilli() >= deadline || !isCurrentRun(connection, run))
+                {
+                    log.info("分布式 refreshToken 定时刷新任务: runId={} 已过期, 停止等待剩余分区", run.getRunId());
+                    break;
+                }
+                try
+                {
+                    TimeUnit.MILLISECONDS.sleep(partitionQueue.getHeartbeatIntervalMillis());
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+
+            if (partition == RefreshTokenPartitionQueue.ALL_DONE)
+            {
+                log.info("分布式 refreshToken 定时刷新任务: runId={} 所有分区已完成", run.getRunId());
+            }
+            log.info("分布式 refreshToken 定时刷新任务结束: runId={}, 分区数={}, 本机执行分区数={}, 到期 token 数={}, 总耗时={} 毫秒",
+                     run.getRunId(), partitions, claimed, count, Instant.now().toEpochMilli() - now.toEpochMilli());
+        }
+        catch (Exception e)
+        {
+            log.error(String.format("分布式 refreshToken 定时刷新任务异常, error=%s", e.getMessage()), e);
+        }
+    }
+
+    private boolean isCurrentRun(@NonNull RedisConnection connection, @NonNull RefreshTokenPartitionQueue.Run run) {
+        final RefreshTokenPartitionQueue.Run current = partitionQueue.current(connection);
+        return current != null && current.getRunId().equals(run.getRunId());
+    }
+
+    /**
+     * 执行已领取的分区, 执行期间定时续租, 执行完成(包括异步刷新任务)后标记分区完成
+     * @param connection    redis connection
+     * @param run           当前运行
+     * @param partition     已领取的分区
+     * @return  到期 token 数
+     */
+    private long refreshClaimedPartition(@NonNull RedisConnection connection,
+                                         @NonNull RefreshTokenPartitionQueue.Run run,
+                                         int partition) {
+        final long interval = partitionQueue.getHeartbeatIntervalMillis();
+        final ScheduledFuture<?> heartbeat = heartbeatExecutor.scheduleWithFixedDelay(() -> {
+            // 续租使用独立的 connection, 避免与执行线程共用
+            try (final RedisConnection heartbeatConnection = this.redisConnectionFactory.getConnection())
+            {
+                if (!partitionQueue.heartbeat(heartbeatConnection, run, partition))
+                {
+                    log.warn("分布式 refreshToken 定时刷新任务: 第 {} 分区的租约已过期", partition);
+                }
+            }
+            catch (Exception e)
+            {
+                log.warn("分布式 refreshToken 定时刷新任务: 第 {} 分区续租失败, error={}", partition, e.getMessage());
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+        try
+        {
+            final long[] lower = run.lowerBound(partition);
+            final long[] upper = run.upperBound(partition);
+            final long count = refreshDueTokens(upper[0], upper[1], lower[0], lower[1]);
+            if (!partitionQueue.complete(connection, run, partition))
+            {
+                log.warn("分布式 refreshToken 定时刷新任务: 第 {} 分区完成时租约已过期, 该分区可能被其他服务器重复执行", partition);
+            }
+            return count;
+        }
+        finally
+        {
+            heartbeat.cancel(false);
+        }
+    }
+
+    /**
+     * 单机执行定时任务: 按键集分页刷新到期 token
+     */
+    private void refreshToken() {
+        if (!usersConnectionTokenRepository.supportsDueScan())
+        {
+            log.info("refreshToken 定时刷新任务: UsersConnectionTokenRepository 不支持 findDueAuthTokens, 按 id 范围遍历");
+            legacyRefreshToken();
+            return;
+        }
+        try
+        {
+            long start = Instant.now().toEpochMilli();
+            log.info("refreshToken 定时刷新任务开始: batchCount={}", auth2Properties.getBatchCount());
+            // 过期时间戳(获取小于此时间戳的记录)
+            final long expiredTime = start + Duration.ofHours(auth2Properties.getRemainingExpireIn()).toMillis();
+            long count = refreshDueTokens(expiredTime, Long.MAX_VALUE, Long.MIN_VALUE, 0L);
+            log.info("refreshToken 定时刷新任务结束: 到期 token 数={}, 总耗时={} 毫秒",
+                     count, Instant.now().toEpochMilli() - start);
+        }
+        catch (Exception e)
+        {
+            log.error(String.format("单机 refreshToken 定时刷新任务异常, error=%s", e.getMessage()), e);
+        }
+    }
+
+    /**
+     * 按 (expireTime, id) 键集分页获取范围 ((lowerExpireTime, lowerId), (expiredTime, maxId)] 内到期的 token,
+     * 从第三方刷新 token 信息, 并对 user_connection 与 auth_token 表进行更新; 未完成的刷新任务超过一页时,
+     * 先等待最早提交的任务完成再获取下一页, 避免到期 token 与刷新任务在内存中无限堆积
+     * @param expiredTime       范围上界(包含)的 expireTime
+     * @param maxId             范围上界(包含)的 id
+     * @param lowerExpireTime   范围下界(不包含)的 expireTime
+     * @param lowerId           范围下界(不包含)的 id
+     * @return  到期 token 数
+     */
+    private long refreshDueTokens(long expiredTime, long maxId, long lowerExpireTime, long lowerId) {
+        final int pageSize = auth2Properties.getBatchCount();
+        long lastExpireTime = lowerExpireTime;
+        long lastId = lowerId;
+        long count = 0L;
+        final Deque<Future<?>> futures = new ArrayDeque<>();
+        List<AuthTokenPo> page;
+        do
+        {
+            try
+            {
+                page = usersConnectionTokenRepository.findDueAuthTokens(expiredTime, maxId, lastExpireTime, lastId,
+                                                                        pageSize);
+            }
+            catch (Exception e)
+            {
+                log.error(String.format("refreshToken 定时刷新任务从 auth_token 获取到期 token 出现异常: " +
+                                                "lastExpireTime=%d, lastId=%d, error=%s",
+                                        lastExpireTime, lastId, e.getMessage()), e);
+                break;
+            }
+            if (!page.isEmpty())
+            {
+                AuthTokenPo last = page.get(page.size() - 1);
+                lastExpireTime = last.getExpireTime();
+                lastId = last.getId();
+            }
+            count += page.size();
+            futures.addAll(dispatch(page, false));
+            if (!awaitOutstanding(futures, pageSize))
+            {
+                break;
+            }
+        } while (page.size() >= pageSize);
+
+        awaitAndFlush(futures);
+        return count;
+    }
+
+    /**
+     * 移除已完成的异步刷新任务, 并按提交顺序等待最早的任务完成, 直到未完成的任务数不超过 maxOutstanding
+     * @param futures           按提交顺序排列的异步刷新任务
+     * @param maxOutstanding    允许未完成的最大任务数
+     * @return  当前线程被中断时返回 false
+     */
+    private boolean awaitOutstanding(@NonNull Deque<Future<?>> futures, int maxOutstanding) {
+        futures.removeIf(Future::isDone);
+        while (futures.size() > maxOutstanding)
+        {
+            if (!await(futures.pollFirst()))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 等待异步刷新任务完成后, 批量写入剩余的刷新结果, 刷新任务内部已处理异常
+     * @param futures   异步刷新任务
+     */
+    private void awaitAndFlush(@NonNull Collection<Future<?>> futures) {
+        for (Future<?> future : futures)
+        {
+            if (!await(future))
+            {
+                break;
+            }
+        }
+        if (refreshTokenBatchWriter != null)
+        {
+            refreshTokenBatchWriter.flush();
+        }
+    }
+
+    /**
+     * 等待异步刷新任务完成, 刷新任务内部已处理异常
+     * @param future    异步刷新任务
+     * @return  当前线程被中断时返回 false
+     */
+    private boolean await(@NonNull Future<?> future) {
+        try
+        {
+            future.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        catch (ExecutionException e)
+        {
+            log.error(String.format("refreshToken 异步刷新任务异常, error=%s", e.getMessage()), e);
+        }
+        return true;
+    }
+
+    /**
+     * 分布式执行定时任务, 按 id 范围遍历
+     */
+    private void legacyDistributedRefreshToken() {
         try (final RedisConnection connection = this.redisConnectionFactory.getConnection())
         {
             final Instant now = Instant.now();
@@ -119,7 +763,7 @@ public class RefreshTokenJobImpl implements RefreshTokenJob {
             final byte[] key = REFRESH_TOKEN_JOB.getBytes(StandardCharsets.UTF_8.name());
             final long expiredIn = Duration.ofHours(REFRESH_TOKEN_JOB_KEY_EXPIRED_IN).getSeconds();
             // 设置过期时间
-            connection.expireAt(key, now.plusSeconds(expiredIn).toEpochMilli());
+            connection.expireAt(key, now.plusSeconds(expiredIn).getEpochSecond());
 
             Long maxTokenId = usersConnectionTokenRepository.getMaxTokenId();
             Integer batchCount = auth2Properties.getBatchCount();
@@ -159,9 +803,9 @@ public class RefreshTokenJobImpl implements RefreshTokenJob {
     }
 
     /**
-     * 单机执行定时任务
+     * 单机执行定时任务, 按 id 范围遍历
      */
-    private void refreshToken() {
+    private void legacyRefreshToken() {
         try
         {
             long start = Instant.now().toEpochMilli();
@@ -203,14 +847,7 @@ public class RefreshTokenJobImpl implements RefreshTokenJob {
                     usersConnectionTokenRepository.findAuthTokenByExpireTimeAndBetweenId(expiredTime,
                                                                                          1L + ((long) batch) * batchCount,
                                                                                          (batch + 1L) * batchCount);
-            // 异步更新, 如果异步线程池处理过慢, refreshTokenTaskExecutor 的默认拒绝策略为 CallerRunsPolicy, 即改为同步更新
-            authTokenPoList.forEach(
-                    token ->
-                    {
-                        final Auth2DefaultRequest auth2DefaultRequest = Auth2RequestHolder.getAuth2DefaultRequest(token.getProviderId());
-                        refreshTokenTaskExecutor.execute(() -> getTokenAndUpdateAuthTokenPo(token, auth2DefaultRequest));
-                    }
-            );
+            awaitAndFlush(dispatch(authTokenPoList, false));
         }
         catch (Exception e) {
             log.error(String.format("refreshToken 定时刷新任务从 auth_token 获取的记录数出现异常: 第 %d 批次, batchCount=%d, error=%s",
@@ -219,55 +856,248 @@ public class RefreshTokenJobImpl implements RefreshTokenJob {
     }
 
     /**
-     * 从第三方刷新 token 信息, 并对 user_connection 与 auth_token 表进行更新
+     * 异步从第三方刷新 token 信息, 并对 user_connection 与 auth_token 表进行更新
+     * @param authTokenPoList   到期的 token
+     * @param claimed           是否已通过 auth_token 表的租约领取, 为 false 时先批量获取本页 token 的 {@link ProviderTokenLease}
+     * @return  异步刷新任务
+     */
+    private List<Future<?>> dispatch(@NonNull List<AuthTokenPo> authTokenPoList, boolean claimed) {
+        final PageLease pageLease;
+        final List<AuthTokenPo> tokens;
+        if (!claimed && providerTokenLease != null && !authTokenPoList.isEmpty())
+        {
+            pageLease = new PageLease(providerTokenLease.newOwner());
+            tokens = acquireAndReload(authTokenPoList, pageLease.owner);
+        }
+        else
+        {
+            pageLease = null;
+            tokens = authTokenPoList;
+        }
+        // 异步更新, 按第三方服务商限流, 达到上限的第三方服务商的任务在各自的队列中等待, 队列已满时阻塞, 不会在当前线程执行刷新任务
+        final List<Future<?>> futures = new ArrayList<>(tokens.size());
+        for (AuthTokenPo token : tokens)
+        {
+            final Auth2DefaultRequest auth2DefaultRequest = Auth2RequestHolder.getAuth2DefaultRequest(token.getProviderId());
+            try
+            {
+                futures.add(refreshTokenPipeline.submit(token.getProviderId(),
+                                                        () -> getTokenAndUpdateAuthTokenPo(token, auth2DefaultRequest,
+                                                                                           pageLease)));
+            }
+            catch (RejectedExecutionException e)
+            {
+                log.error(String.format("RefreshToken 任务被拒绝执行: tokenId=%s, error=%s",
+                                        token.getId(), e.getMessage()), e);
+                if (pageLease != null)
+                {
+                    releaseLease(token.getId(), pageLease.owner);
+                }
+            }
+        }
+        return futures;
+    }
+
+    /**
+     * 以同一个租约标识批量获取本页 token 的刷新租约(有 redis 时为一次 pipeline), 并通过一次查询从数据库(不经过缓存)
+     * 重新获取已获取租约的 token. 租约被持有(正在被按需刷新), 已删除, 不再支持刷新或 expireTime 已变化(获取租约前已被按需刷新)
+     * 的 token 跳过, 跳过的租约批量释放.
+     * @param page  到期的 token
+     * @param owner 租约标识
+     * @return  获取租约后的最新 token
+     */
+    @NonNull
+    private List<AuthTokenPo> acquireAndReload(@NonNull List<AuthTokenPo> page, @NonNull String owner) {
+        final ProviderTokenLease lease = this.providerTokenLease;
+        final List<Long> ids = new ArrayList<>(page.size());
+        for (AuthTokenPo token : page)
+        {
+            ids.add(token.getId());
+        }
+        final Set<Long> acquired;
+        try
+        {
+            acquired = lease.tryAcquireAll(redisConnectionFactory, ids, owner);
+        }
+        catch (Exception e)
+        {
+            log.error(String.format("RefreshToken 批量获取刷新租约失败, 跳过本页: size=%d, error=%s",
+                                    ids.size(), e.getMessage()), e);
+            return Collections.emptyList();
+        }
+        if (acquired.isEmpty())
+        {
+            log.debug("RefreshToken 跳过: 本页 token 都正在被按需刷新, size={}", ids.size());
+            return Collections.emptyList();
+        }
+
+        final Map<Long, AuthTokenPo> latest = new HashMap<>(acquired.size() * 2);
+        final Map<Long, String> skipped = new HashMap<>();
+        try
+        {
+            for (AuthTokenPo token : usersConnectionTokenRepository.findAuthTokensByIds(new ArrayList<>(acquired)))
+            {
+                latest.put(token.getId(), token);
+            }
+        }
+        catch (Exception e)
+        {
+            log.error(String.format("RefreshToken 获取租约后重新获取 token 失败, 跳过本页: size=%d, error=%s",
+                                    acquired.size(), e.getMessage()), e);
+            acquired.forEach(tokenId -> skipped.put(tokenId, owner));
+            lease.releaseAll(redisConnectionFactory, skipped);
+            return Collections.emptyList();
+        }
+
+        final List<AuthTokenPo> tokens = new ArrayList<>(acquired.size());
+        for (AuthTokenPo token : page)
+        {
+            final Long tokenId = token.getId();
+            if (!acquired.contains(tokenId))
+            {
+                log.debug("RefreshToken 跳过: token 正在被按需刷新, tokenId={}", tokenId);
+                continue;
+            }
+            final AuthTokenPo current = latest.get(tokenId);
+            if (current == null || !YES.equals(current.getEnableRefresh())
+                    || !Objects.equals(current.getExpireTime(), token.getExpireTime()))
+            {
+                log.debug("RefreshToken 跳过: token 已被删除或已被按需刷新, tokenId={}", tokenId);
+                skipped.put(tokenId, owner);
+                continue;
+            }
+            tokens.add(current);
+        }
+        lease.releaseAll(redisConnectionFactory, skipped);
+        return tokens;
+    }
+
+    /**
+     * 从第三方刷新 token 信息, 并对 user_connection 与 auth_token 表进行更新.<br>
+     * 持有批量获取的 {@link ProviderTokenLease} 时, 排队时间超过租约时间的一半则先续租, 续租失败时跳过;
+     * 租约在刷新结果写入后随批次批量释放, 未写入时立即释放.
      * @param token                 {@link AuthTokenPo}
      * @param auth2DefaultRequest   {@link Auth2DefaultRequest}
+     * @param pageLease             批量获取的刷新租约, 已通过 auth_token 表的租约领取或不使用租约时为 null
      */
     private void getTokenAndUpdateAuthTokenPo(@NonNull AuthTokenPo token,
-                                         @Nullable Auth2DefaultRequest auth2DefaultRequest) {
-        if (auth2DefaultRequest != null)
+                                              @Nullable Auth2DefaultRequest auth2DefaultRequest,
+                                              @Nullable PageLease pageLease) {
+        if (auth2DefaultRequest == null)
         {
+            log.info("RefreshToken 不支持: providerId={}, ", token.getProviderId());
+            return;
+        }
+        final Long tokenId = token.getId();
+        String leaseOwner = pageLease == null ? null : pageLease.owner;
+        try {
+            if (!Auth2RequestHolder.isSupportRefreshToken(token.getProviderId()))
+            {
+                // 第三方不支持 refresh token, 不再调用第三方
+                log.info("RefreshToken 第三方 {} 不支持: tokenId={}", token.getProviderId(), tokenId);
+                usersConnectionTokenRepository.updateEnableRefreshByTokenId(NO, tokenId);
+                return;
+            }
+            if (pageLease != null && !renewIfNecessary(tokenId, pageLease))
+            {
+                // 租约已过期, 可能已被按需刷新持有
+                leaseOwner = null;
+                log.debug("RefreshToken 跳过: 刷新租约已过期, tokenId={}", tokenId);
+                return;
+            }
+
+            AuthTokenPo authTokenPo;
             try {
-                AuthTokenPo authTokenPo;
-                try {
-                    // 从第三方刷新 accessToken
-                    authTokenPo = auth2DefaultRequest.refreshToken(token);
-                }
-                catch (Exception e) {
-                    String msg;
+                // 从第三方刷新 accessToken
+                authTokenPo = auth2DefaultRequest.refreshToken(token);
+            }
+            catch (Exception e) {
+                String msg;
 
-                    if (e instanceof AuthException)
-                    {
-                        msg = String.format("RefreshToken 第三方 %s 不支持: tokenId=%s",
-                                            token.getProviderId(), token.getId());
-                        log.info(msg);
-                        authTokenPo = token;
-                        authTokenPo.setEnableRefresh(NO);
-                        // 更新为第三方不支持 refresh token
-                        usersConnectionTokenRepository.updateEnableRefreshByTokenId(NO, token.getId());
-                    }
-                    else
-                    {
-                        msg = String.format("RefreshToken 失败: tokenId=%s, error=%s",
-                                            token.getId(), e.getMessage());
-                        log.error(msg, e);
-                    }
-                    return;
+                if (e instanceof AuthException)
+                {
+                    msg = String.format("RefreshToken 第三方 %s 不支持: tokenId=%s",
+                                        token.getProviderId(), tokenId);
+                    log.info(msg);
+                    // 更新为第三方不支持 refresh token
+                    usersConnectionTokenRepository.updateEnableRefreshByTokenId(NO, tokenId);
+                }
+                else
+                {
+                    msg = String.format("RefreshToken 失败: tokenId=%s, error=%s",
+                                        tokenId, e.getMessage());
+                    log.error(msg, e);
                 }
+                return;
+            }
 
-                // 根据 authTokenPo 对 user_connection 与 auth_token 表进行更新
+            // 根据 authTokenPo 对 user_connection 与 auth_token 表进行更新, 有批量写入时每 refreshTokenWriteBatchSize 条批量更新
+            if (refreshTokenBatchWriter != null)
+            {
+                final String heldLease = leaseOwner;
+                // 租约在刷新结果写入后随批次批量释放
+                leaseOwner = null;
+                refreshTokenBatchWriter.add(authTokenPo,
+                                            heldLease == null ? null : () -> writtenLeases.put(tokenId, heldLease));
+            }
+            else
+            {
                 updateAuthTokenPo(authTokenPo);
-
             }
-            catch (Exception e) {
-                String msg = String.format("RefreshToken 失败: tokenId=%s, error=%s",
-                                           token.getId(), e.getMessage());
-                log.error(msg, e);
+
+        }
+        catch (Exception e) {
+            String msg = String.format("RefreshToken 失败: tokenId=%s, error=%s",
+                                       tokenId, e.getMessage());
+            log.error(msg, e);
+        }
+        finally {
+            if (leaseOwner != null)
+            {
+                releaseLease(tokenId, leaseOwner);
             }
         }
-        else
+    }
+
+    /**
+     * 批量获取的租约排队等待刷新的时间超过租约时间的一半时续租, 避免刷新过程中租约过期
+     * @param tokenId   token id
+     * @param pageLease 批量获取的刷新租约
+     * @return  租约仍由 pageLease 持有时返回 true
+     * @throws Exception    续租异常
+     */
+    private boolean renewIfNecessary(@NonNull Long tokenId, @NonNull PageLease pageLease) throws Exception {
+        final ProviderTokenLease lease = this.providerTokenLease;
+        if (lease == null || System.nanoTime() - pageLease.acquiredAt < lease.getLeaseTtl().toNanos() / 2)
         {
-            log.info("RefreshToken 不支持: providerId={}, ", token.getProviderId());
+            return true;
+        }
+        return lease.renew(redisConnectionFactory, tokenId, pageLease.owner);
+    }
+
+    /**
+     * 批次写入后批量释放已写入的 token 的刷新租约
+     */
+    private void releaseWrittenLeases() {
+        final ProviderTokenLease lease = this.providerTokenLease;
+        if (lease == null || writtenLeases.isEmpty())
+        {
+            return;
+        }
+        final Map<Long, String> leases = new HashMap<>();
+        writtenLeases.forEach((tokenId, owner) -> {
+            if (writtenLeases.remove(tokenId, owner))
+            {
+                leases.put(tokenId, owner);
+            }
+        });
+        lease.releaseAll(redisConnectionFactory, leases);
+    }
+
+    private void releaseLease(@NonNull Long tokenId, @NonNull String leaseOwner) {
+        if (providerTokenLease != null)
+        {
+            providerTokenLease.release(redisConnectionFactory, tokenId, leaseOwner);
         }
     }
 
@@ -282,4 +1112,21 @@ public class RefreshTokenJobImpl implements RefreshTokenJob {
         usersConnectionRepository.updateConnectionByTokenId(token);
     }
 
+    /**
+     * 一页 token 批量获取的刷新租约
+     */
+    private static final class PageLease {
+
+        private final String owner;
+        /**
+         * 获取租约的时间, {@link System#nanoTime()}
+         */
+        private final long acquiredAt;
+
+        private PageLease(@NonNull String owner) {
+            this.owner = owner;
+            this.acquiredAt = System.nanoTime();
+        }
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,334 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.job;
+
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * 分布式刷新 token 任务的 redis 分区工作队列, 通过 lua 脚本保证原子性: <br>
+ * 1. 每个刷新窗口创建一次运行(run), 运行中保存本次的过期时间与按 (expireTime, id) 划分的分区上界, 所有服务器按相同的范围执行;
+ * 所有分区放入待领取队列(pending). <br>
+ * 2. 服务器从待领取队列领取分区并写入带过期时间的租约(leases), 执行期间续租; 租约过期时间由 redis 服务器时间(TIME)计算,
+ * 不受各服务器时钟偏差影响. <br>
+ * 3. 租约过期(服务器宕机)的分区在下次领取时放回待领取队列, 由其他服务器重新领取. <br>
+ * 4. 完成的分区记录到已完成集合(done), 已完成数等于分区数时本次运行结束; 没有待领取的分区时服务器轮询,
+ * 直到所有分区完成或运行过期, 以便接手宕机服务器的分区. <br>
+ * 所有 key 使用相同的 hash tag, 兼容 redis cluster.
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/12 10:26
+ */
+class RefreshTokenPartitionQueue {
+
+    /**
+     * 没有待领取的分区, 但还有其他服务器持有租约的分区
+     */
+    static final long NONE_PENDING = -1L;
+    /**
+     * 所有分区都已完成
+     */
+    static final long ALL_DONE = -2L;
+
+    private static final String KEY_PREFIX = "{ums:refresh-token-job}:";
+    private static final byte[] RUN_KEY = bytes(KEY_PREFIX + "run");
+
+    /**
+     * KEYS: run, pending; ARGV: run, partitions, runTtlMillis.
+     * 运行已存在时返回已存在的运行, 否则创建运行并把所有分区放入待领取队列
+     */
+    private static final byte[] JOIN_SCRIPT = (
+            "local run = redis.call('GET', KEYS[1]) " +
+            "if run then return run end " +
+            "redis.call('SET', KEYS[1], ARGV[1], 'PX', ARGV[3]) " +
+            "for i = 0, tonumber(ARGV[2]) - 1 do redis.call('RPUSH', KEYS[2], i) end " +
+            "redis.call('PEXPIRE', KEYS[2], ARGV[3]) " +
+            "return ARGV[1]").getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * 以毫秒为单位的 redis 服务器时间 now; redis 5 之前需要先开启命令复制(effects replication)才能在 TIME 之后执行写命令
+     */
+    private static final String REDIS_NOW =
+            "if redis.replicate_commands then redis.replicate_commands() end " +
+            "local time = redis.call('TIME') " +
+            "local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000) ";
+
+    /**
+     * KEYS: pending, leases, done; ARGV: owner, leaseTtlMillis, partitions, runTtlMillis.
+     * 先回收过期租约, 再领取分区; 返回分区, 或 {@link #NONE_PENDING}, {@link #ALL_DONE}
+     */
+    private static final byte[] CLAIM_SCRIPT = (
+            REDIS_NOW +
+            "local leases = redis.call('HGETALL', KEYS[2]) " +
+            "for i = 1, #leases, 2 do " +
+            "  local v = leases[i + 1] " +
+            "  local expireAt = tonumber(string.sub(v, string.find(v, '|', 1, true) + 1)) " +
+            "  if expireAt < now then " +
+            "    redis.call('HDEL', KEYS[2], leases[i]) " +
+            "    redis.call('RPUSH', KEYS[1], leases[i]) " +
+            "  end " +
+            "end " +
+            "local p = redis.call('LPOP', KEYS[1]) " +
+            "if p then " +
+            "  redis.call('HSET', KEYS[2], p, ARGV[1] .. '|' .. string.format('%d', now + tonumber(ARGV[2]))) " +
+            "  redis.call('PEXPIRE', KEYS[2], ARGV[4]) " +
+            "  return tonumber(p) " +
+            "end " +
+            "if redis.call('SCARD', KEYS[3]) >= tonumber(ARGV[3]) then return -2 end " +
+            "return -1").getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * KEYS: leases; ARGV: owner, partition, leaseTtlMillis. 租约仍属于 owner 时续租, 返回 1, 否则返回 0
+     */
+    private static final byte[] HEARTBEAT_SCRIPT = (
+            REDIS_NOW +
+            "local v = redis.call('HGET', KEYS[1], ARGV[2]) " +
+            "if v and string.sub(v, 1, string.len(ARGV[1]) + 1) == ARGV[1] .. '|' then " +
+            "  redis.call('HSET', KEYS[1], ARGV[2], ARGV[1] .. '|' .. string.format('%d', now + tonumber(ARGV[3]))) " +
+            "  return 1 " +
+            "end " +
+            "return 0").getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * KEYS: pending, leases, done; ARGV: owner, partition, runTtlMillis.
+     * 标记分区完成; 租约仍属于 owner 时释放租约并返回 1, 租约已被回收时返回 0
+     */
+    private static final byte[] COMPLETE_SCRIPT = (
+            "local v = redis.call('HGET', KEYS[2], ARGV[2]) " +
+            "local owned = 0 " +
+            "if v and string.sub(v, 1, string.len(ARGV[1]) + 1) == ARGV[1] .. '|' then " +
+            "  redis.call('HDEL', KEYS[2], ARGV[2]) " +
+            "  owned = 1 " +
+            "end " +
+            "redis.call('LREM', KEYS[1], 0, ARGV[2]) " +
+            "redis.call('SADD', KEYS[3], ARGV[2]) " +
+            "redis.call('PEXPIRE', KEYS[3], ARGV[3]) " +
+            "return owned").getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * 租约持有者标识: 进程名(pid@host) + 随机 UUID
+     */
+    private final String owner;
+    private final long leaseTtlMillis;
+    private final long runTtlMillis;
+
+    /**
+     * @param leaseTtl  分区租约时长
+     * @param runTtl    一次运行的过期时间, 运行结束后保留至过期, 保证一个刷新窗口只运行一次
+     */
+    RefreshTokenPartitionQueue(@NonNull Duration leaseTtl, @NonNull Duration runTtl) {
+        this.owner = ManagementFactory.getRuntimeMXBean().getName() + ":" + UUID.randomUUID().toString();
+        this.leaseTtlMillis = Math.max(1000L, leaseTtl.toMillis());
+        this.runTtlMillis = runTtl.toMillis();
+    }
+
+    /**
+     * 获取当前运行
+     * @param connection    redis connection
+     * @return  当前运行, 没有运行或运行已过期时返回 null
+     */
+    @Nullable
+    Run current(@NonNull RedisConnection connection) {
+        final byte[] result = connection.get(RUN_KEY);
+        return result == null ? null : Run.parse(new String(result, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 加入当前运行, 运行不存在时按 expiredTime 与 boundaries 创建
+     * @param connection    redis connection
+     * @param expiredTime   本次运行的过期时间戳(刷新小于等于此时间戳的 token)
+     * @param boundaries    按 (expireTime, id) 划分的分区上界(包含), 分区数为 boundaries.size() + 1
+     * @return  当前运行, 返回 null 表示 redis 未返回结果
+     */
+    @Nullable
+    Run join(@NonNull RedisConnection connection, long expiredTime, @NonNull List<long[]> boundaries) {
+        final Run created = new Run(UUID.randomUUID().toString(), expiredTime,
+                                    boundaries.toArray(new long[boundaries.size()][]));
+        final byte[] result = connection.eval(JOIN_SCRIPT, ReturnType.VALUE, 2,
+                                              RUN_KEY,
+                                              created.pendingKey,
+                                              bytes(created.format()),
+                                              bytes(Integer.toString(created.partitions)),
+                                              bytes(Long.toString(runTtlMillis)));
+        if (result == null)
+        {
+            return null;
+        }
+        return Run.parse(new String(result, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 领取分区
+     * @param connection    redis connection
+     * @param run           当前运行
+     * @return  分区, 或 {@link #NONE_PENDING}, {@link #ALL_DONE}
+     */
+    long claim(@NonNull RedisConnection connection, @NonNull Run run) {
+        final Long result = connection.eval(CLAIM_SCRIPT, ReturnType.INTEGER, 3,
+                                            run.pendingKey, run.leasesKey, run.doneKey,
+                                            bytes(owner),
+                                            bytes(Long.toString(leaseTtlMillis)),
+                                            bytes(Integer.toString(run.partitions)),
+                                            bytes(Long.toString(runTtlMillis)));
+        return result == null ? NONE_PENDING : result;
+    }
+
+    /**
+     * 续租
+     * @param connection    redis connection
+     * @param run           当前运行
+     * @param partition     分区
+     * @return  租约仍属于当前服务器时返回 true
+     */
+    boolean heartbeat(@NonNull RedisConnection connection, @NonNull Run run, long partition) {
+        final Long result = connection.eval(HEARTBEAT_SCRIPT, ReturnType.INTEGER, 1,
+                                            run.leasesKey,
+                                            bytes(owner),
+                                            bytes(Long.toString(partition)),
+                                            bytes(Long.toString(leaseTtlMillis)));
+        return result != null && result == 1L;
+    }
+
+    /**
+     * 标记分区完成
+     * @param connection    redis connection
+     * @param run           当前运行
+     * @param partition     分区
+     * @return  租约仍属于当前服务器时返回 true, 返回 false 表示租约已过期被回收, 该分区可能被其他服务器重复执行
+     */
+    boolean complete(@NonNull RedisConnection connection, @NonNull Run run, long partition) {
+        final Long result = connection.eval(COMPLETE_SCRIPT, ReturnType.INTEGER, 3,
+                                            run.pendingKey, run.leasesKey, run.doneKey,
+                                            bytes(owner),
+                                            bytes(Long.toString(partition)),
+                                            bytes(Long.toString(runTtlMillis)));
+        return result != null && result == 1L;
+    }
+
+    /**
+     * 续租间隔
+     * @return  租约时长的 1/3
+     */
+    long getHeartbeatIntervalMillis() {
+        return leaseTtlMillis / 3;
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 一次刷新任务的运行: 分区 p 的范围为 (boundaries[p - 1], boundaries[p]], 第一个分区的下界为 (Long.MIN_VALUE, 0),
+     * 最后一个分区的上界为 (expiredTime, Long.MAX_VALUE)
+     */
+    static final class Run {
+
+        private final String runId;
+        private final long expiredTime;
+        private final long[][] boundaries;
+        private final int partitions;
+        private final byte[] pendingKey;
+        private final byte[] leasesKey;
+        private final byte[] doneKey;
+
+        Run(String runId, long expiredTime, long[][] boundaries) {
+            this.runId = runId;
+            this.expiredTime = expiredTime;
+            this.boundaries = boundaries;
+            this.partitions = boundaries.length + 1;
+            this.pendingKey = bytes(KEY_PREFIX + runId + ":pending");
+            this.leasesKey = bytes(KEY_PREFIX + runId + ":leases");
+            this.doneKey = bytes(KEY_PREFIX + runId + ":done");
+        }
+
+        /**
+         * 格式: runId|expiredTime|expireTime,id;expireTime,id...
+         */
+        String format() {
+            final StringBuilder sb = new StringBuilder(runId).append('|').append(expiredTime).append('|');
+            for (int i = 0; i < boundaries.length; i++)
+            {
+                sb.append(i == 0 ? "" : ";").append(boundaries[i][0]).append(',').append(boundaries[i][1]);
+            }
+            return sb.toString();
+        }
+
+        /**
+         * @return  格式不正确(如: 旧版本创建的运行)时返回 null
+         */
+        @Nullable
+        static Run parse(String value) {
+            final String[] parts = value.split("\\|", -1);
+            if (parts.length != 3)
+            {
+                return null;
+            }
+            final String[] keys = parts[2].isEmpty() ? new String[0] : parts[2].split(";");
+            final long[][] boundaries = new long[keys.length][];
+            for (int i = 0; i < keys.length; i++)
+            {
+                final int sep = keys[i].indexOf(',');
+                boundaries[i] = new long[]{Long.parseLong(keys[i].substring(0, sep)),
+                        Long.parseLong(keys[i].substring(sep + 1))};
+            }
+            return new Run(parts[0], Long.parseLong(parts[1]), boundaries);
+        }
+
+        /**
+         * @param partition 分区
+         * @return  分区下界(不包含) {expireTime, id}
+         */
+        long[] lowerBound(int partition) {
+            return partition == 0 ? new long[]{Long.MIN_VALUE, 0L} : boundaries[partition - 1];
+        }
+
+        /**
+         * @param partition 分区
+         * @return  分区上界(包含) {expireTime, id}
+         */
+        long[] upperBound(int partition) {
+            return partition == boundaries.length ? new long[]{expiredTime, Long.MAX_VALUE} : boundaries[partition];
+        }
+
+        String getRunId() {
+            return runId;
+        }
+
+        long getExpiredTime() {
+            return expiredTime;
+        }
+
+        int getPartitions() {
+            return partitions;
+        }
+    }
+
+}
@@ -0,0 +1,530 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package top.dcenter.ums.security.core.oauth.job;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+import top.dcenter.ums.security.core.oauth.properties.Auth2Properties;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * 按第三方服务商限流的刷新 token 任务管道: <br>
+ * 1. 每个第三方服务商一个等待队列, 某个第三方服务商达到上限时只有它自己的任务排队, 不影响其他第三方服务商;
+ * 等待队列达到 maxPending 时提交任务的线程阻塞等待, 超过 submitTimeout 时拒绝该任务, 避免未派发的任务无限堆积. <br>
+ * 2. 第三方服务商设置了每秒请求数时使用令牌桶限速, 令牌不足时由定时线程在下一个令牌可用时再派发, 工作线程不等待令牌. <br>
+ * 3. 第三方服务商设置了同时执行数时, 达到上限的任务在队列中等待已执行的任务完成. <br>
+ * 4. 总的执行中任务数不超过线程池的最大线程数与队列容量之和, 线程池不会触发拒绝策略, 提交任务的线程不会自己执行刷新任务. <br>
+ * 默认不限速也不限制同时执行数, 只受线程池容量限制. <br>
+ * 统计数据注册为 JMX MBean: {@code top.dcenter.ums.security:type=RefreshTokenPipeline}.
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/13 16:20
+ */
+@Slf4j
+public class RefreshTokenPipeline implements RefreshTokenPipelineMXBean, InitializingBean, DisposableBean {
+
+    private static final String OBJECT_NAME = "top.dcenter.ums.security:type=RefreshTokenPipeline";
+    /**
+     * providerId 为 null 时的统计 key
+     */
+    private static final String UNKNOWN_PROVIDER = "unknown";
+    /**
+     * 线程池已满时重新派发的延迟
+     */
+    private static final long SATURATED_RETRY_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(10L);
+
+    private final ExecutorService executor;
+    private final Auth2Properties.RefreshTokenRateLimit rateLimit;
+    /**
+     * 线程池可容纳的任务数(最大线程数 + 队列剩余容量)
+     */
+    private final Semaphore capacity;
+    /**
+     * 每个第三方服务商等待队列中未派发的最大任务数, 小于等于 0 时不限制
+     */
+    private final int maxPending;
+    private final long submitTimeoutNanos;
+    private final Map<String, Lane> lanes = new ConcurrentHashMap<>();
+    /**
+     * 令牌不足时延迟派发的定时线程, 第一次限速时创建
+     */
+    private volatile ScheduledExecutorService rateLimitScheduler;
+    private volatile boolean destroyed = false;
+    private ObjectName registeredObjectName;
+
+    public RefreshTokenPipeline(@NonNull ExecutorService executor,
+                                @NonNull Auth2Properties.RefreshTokenRateLimit rateLimit) {
+        this.executor = executor;
+        this.rateLimit = rateLimit;
+        this.capacity = new Semaphore(capacityOf(executor));
+        this.maxPending = rateLimit.getMaxPending() == null ? 0 : rateLimit.getMaxPending();
+        this.submitTimeoutNanos = rateLimit.getSubmitTimeout() == null ? 0L : rateLimit.getSubmitTimeout().toNanos();
+    }
+
+    /**
+     * 提交刷新任务; 第三方服务商达到限速或同时执行数上限, 或线程池容量已满时, 任务在该第三方服务商的队列中等待,
+     * 等待队列已满时阻塞到队列有空位或超过 submitTimeout
+     * @param providerId    第三方服务商 id
+     * @param task          刷新任务
+     * @return  刷新任务的 Future, 线程池拒绝执行时 {@link Future#get()} 抛出 cause 为 {@link RejectedExecutionException} 的异常
+     * @throws RejectedExecutionException   管道已关闭, 或等待队列已满且等待超时或被中断
+     */
+    @NonNull
+    public Future<?> submit(@Nullable String providerId, @NonNull Runnable task) throws RejectedExecutionException {
+        if (destroyed)
+        {
+            throw new RejectedExecutionException("RefreshTokenPipeline has been destroyed");
+        }
+        final String laneId = providerId == null ? UNKNOWN_PROVIDER : providerId;
+        final Lane lane = lanes.computeIfAbsent(laneId, this::newLane);
+        lane.submitted.increment();
+        final RefreshTask refreshTask = new RefreshTask(task);
+        synchronized (lane)
+        {
+            awaitPendingSlot(laneId, lane);
+            lane.pending.add(refreshTask);
+        }
+        drain(lane);
+        if (!refreshTask.dispatched)
+        {
+            lane.backpressureWaits.increment();
+        }
+        return refreshTask;
+    }
+
+    /**
+     * 等待队列已满时等待任务被派发或拒绝, 在 Lane 的锁内调用
+     * @param providerId    第三方服务商 id
+     * @param lane          第三方服务商的限流状态
+     * @throws RejectedExecutionException   管道已关闭, 或等待超时或被中断
+     */
+    private void awaitPendingSlot(@NonNull String providerId, @NonNull Lane lane) throws RejectedExecutionException {
+        if (maxPending <= 0 || lane.pending.size() < maxPending)
+        {
+            return;
+        }
+        lane.submitWaits.increment();
+        final long deadline = System.nanoTime() + submitTimeoutNanos;
+        long remainingNanos = submitTimeoutNanos;
+        while (lane.pending.size() >= maxPending)
+        {
+            if (destroyed)
+            {
+                throw new RejectedExecutionException("RefreshTokenPipeline has been destroyed");
+            }
+            if (remainingNanos <= 0L)
+            {
+                lane.rejected.increment();
+                throw new RejectedExecutionException(String.format("RefreshTokenPipeline 等待队列已满: providerId=%s, " +
+                                                                           "maxPending=%d", providerId, maxPending));
+            }
+            try
+            {
+                TimeUnit.NANOSECONDS.timedWait(lane, remainingNanos);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                lane.rejected.increment();
+                throw new RejectedExecutionException("等待 RefreshTokenPipeline 等待队列空位时被中断", e);
+            }
+            remainingNanos = deadline - System.nanoTime();
+        }
+    }
+
+    /**
+     * 派发第三方服务商队列中可执行的任务, 不阻塞
+     * @param lane  第三方服务商的限流状态
+     */
+    private void drain(@NonNull Lane lane) {
+        for (;;)
+        {
+            final RefreshTask next;
+            synchronized (lane)
+            {
+                if (lane.pending.isEmpty() || lane.delayed)
+                {
+                    return;
+                }
+                if (lane.maxInFlight > 0 && lane.running >= lane.maxInFlight)
+                {
+                    return;
+                }
+                if (!capacity.tryAcquire())
+                {
+                    return;
+                }
+                final long waitNanos = lane.bucket.tryAcquire();
+                if (waitNanos > 0L)
+                {
+                    capacity.release();
+                    lane.delayed = true;
+                    lane.rateLimitedWaits.increment();
+                    scheduleDrain(lane, waitNanos);
+                    return;
+                }
+                next = lane.pending.poll();
+                lane.notifyAll();
+                next.dispatched = true;
+                lane.running++;
+            }
+            execute(lane, next);
+        }
+    }
+
+    private void execute(@NonNull Lane lane, @NonNull RefreshTask task) {
+        try
+        {
+            executor.execute(() -> {
+                try
+                {
+                    task.run();
+                    lane.completed.increment();
+                }
+                finally
+                {
+                    release(lane);
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            if (executor.isShutdown())
+            {
+                lane.rejected.increment();
+                task.reject(e);
+                release(lane);
+                return;
+            }
+            // 工作线程归还许可后到回到线程池前的短暂时间内线程池仍可能是满的, 放回队列头部稍后重新派发
+            synchronized (lane)
+            {
+                lane.running--;
+                lane.pending.addFirst(task);
+                lane.delayed = true;
+            }
+            capacity.release();
+            scheduleDrain(lane, SATURATED_RETRY_DELAY_NANOS);
+        }
+    }
+
+    /**
+     * 任务结束后归还许可, 并派发等待中的任务: 同时执行数只影响本第三方服务商, 线程池容量所有第三方服务商共享
+     * @param lane  执行完成的任务所属的第三方服务商
+     */
+    private void release(@NonNull Lane lane) {
+        synchronized (lane)
+        {
+            lane.running--;
+        }
+        capacity.release();
+        drain(lane);
+        for (Lane other : lanes.values())
+        {
+            if (other != lane)
+            {
+                drain(other);
+            }
+        }
+    }
+
+    private void scheduleDrain(@NonNull Lane lane, long delayNanos) {
+        try
+        {
+            scheduler().schedule(() -> {
+                synchronized (lane)
+                {
+                    lane.delayed = false;
+                }
+                drain(lane);
+            }, delayNanos, TimeUnit.NANOSECONDS);
+        }
+        catch (RejectedExecutionException e)
+        {
+            // 管道已关闭
+            rejectPending(lane);
+        }
+    }
+
+    private void rejectPending(@NonNull Lane lane) {
+        synchronized (lane)
+        {
+            lane.delayed = false;
+            RefreshTask task;
+            while ((task = lane.pending.poll()) != null)
+            {
+                lane.rejected.increment();
+                task.reject(new RejectedExecutionException("RefreshTokenPipeline has been destroyed"));
+            }
+            lane.notifyAll();
+        }
+    }
+
+    @NonNull
+    private ScheduledExecutorService scheduler() {
+        ScheduledExecutorService scheduler = this.rateLimitScheduler;
+        if (scheduler == null)
+        {
+            synchronized (this)
+            {
+                scheduler = this.rateLimitScheduler;
+                if (scheduler == null)
+                {
+                    scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                        Thread thread = new Thread(r, "ums-refresh-token-rate-limit");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                    this.rateLimitScheduler = scheduler;
+                }
+            }
+        }
+        return scheduler;
+    }
+
+    @NonNull
+    private Lane newLane(@NonNull String providerId) {
+        final Double permitsPerSecond = rateLimit.getProviderPermitsPerSecond()
+                                                 .getOrDefault(providerId, rateLimit.getPermitsPerSecond());
+        final Integer maxInFlight = rateLimit.getProviderMaxInFlight()
+                                             .getOrDefault(providerId, rateLimit.getMaxInFlight());
+        return new Lane(new TokenBucket(permitsPerSecond == null ? 0D : permitsPerSecond,
+                                        Math.max(1, rateLimit.getBurst() == null ? 1 : rateLimit.getBurst())),
+                        maxInFlight == null ? 0 : Math.max(0, maxInFlight));
+    }
+
+    private static int capacityOf(@NonNull ExecutorService executor) {
+        if (executor instanceof ThreadPoolExecutor)
+        {
+            final ThreadPoolExecutor threadPoolExecutor = (ThreadPoolExecutor) executor;
+            return Math.max(1, threadPoolExecutor.getMaximumPoolSize()
+                    + threadPoolExecutor.getQueue().remainingCapacity());
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(objectName))
+            {
+                server.registerMBean(this, objectName);
+                registeredObjectName = objectName;
+            }
+        }
+        catch (Exception e)
+        {
+            log.warn("注册刷新 token 任务管道统计 MBean 失败: {}", e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        destroyed = true;
+        final ScheduledExecutorService scheduler = this.rateLimitScheduler;
+        if (scheduler != null)
+        {
+            scheduler.shutdownNow();
+        }
+        // 拒绝队列中未派发的任务, 避免等待结果的线程一直阻塞
+        lanes.values().forEach(this::rejectPending);
+
+        if (registeredObjectName == null)
+        {
+            return;
+        }
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredObjectName);
+        }
+        catch (Exception e)
+        {
+            log.warn("注销刷新 token 任务管道统计 MBean 失败: {}", registeredObjectName, e);
+        }
+        registeredObjectName = null;
+    }
+
+    @Override
+    public Map<String, Long> getSubmitted() {
+        return collect(lane -> lane.submitted.sum());
+    }
+
+    @Override
+    public Map<String, Long> getCompleted() {
+        return collect(lane -> lane.completed.sum());
+    }
+
+    @Override
+    public Map<String, Long> getRejected() {
+        return collect(lane -> lane.rejected.sum());
+    }
+
+    @Override
+    public Map<String, Long> getBackpressureWaits() {
+        return collect(lane -> lane.backpressureWaits.sum());
+    }
+
+    @Override
+    public Map<String, Long> getSubmitWaits() {
+        return collect(lane -> lane.submitWaits.sum());
+    }
+
+    @Override
+    public Map<String, Long> getRateLimitedWaits() {
+        return collect(lane -> lane.rateLimitedWaits.sum());
+    }
+
+    @Override
+    public Map<String, Integer> getInFlight() {
+        return collect(lane -> {
+            synchronized (lane)
+            {
+                return lane.running;
+            }
+        });
+    }
+
+    @Override
+    public Map<String, Integer> getPending() {
+        return collect(lane -> {
+            synchronized (lane)
+            {
+                return lane.pending.size();
+            }
+        });
+    }
+
+    private <T> Map<String, T> collect(@NonNull Function<Lane, T> mapper) {
+        final Map<String, T> result = new TreeMap<>();
+        lanes.forEach((providerId, lane) -> result.put(providerId, mapper.apply(lane)));
+        return result;
+    }
+
+    /**
+     * 刷新任务, 派发前被拒绝时以 {@link RejectedExecutionException} 结束
+     */
+    private static final class RefreshTask extends FutureTask<Void> {
+
+        private volatile boolean dispatched = false;
+
+        private RefreshTask(@NonNull Runnable task) {
+            super(task, null);
+        }
+
+        private void reject(@NonNull RejectedExecutionException e) {
+            setException(e);
+        }
+    }
+
+    /**
+     * 第三方服务商的等待队列, 限流状态与统计, 队列与计数由 Lane 的锁保护
+     */
+    private static final class Lane {
+
+        private final TokenBucket bucket;
+        /**
+         * 同时执行的最大任务数, 小于等于 0 时不限制
+         */
+        private final int maxInFlight;
+        private final Deque<RefreshTask> pending = new ArrayDeque<>();
+        private int running = 0;
+        /**
+         * 是否已安排在下一个令牌可用时派发
+         */
+        private boolean delayed = false;
+        private final LongAdder submitted = new LongAdder();
+        private final LongAdder completed = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+        private final LongAdder backpressureWaits = new LongAdder();
+        private final LongAdder rateLimitedWaits = new LongAdder();
+        private final LongAdder submitWaits = new LongAdder();
+
+        private Lane(@NonNull TokenBucket bucket, int maxInFlight) {
+            this.bucket = bucket;
+            this.maxInFlight = maxInFlight;
+        }
+    }
+
+    /**
+     * 令牌桶: 不等待, 令牌不足时返回下一个令牌可用前的时间, 由调用方安排延迟派发; 在 Lane 的锁内调用
+     */
+    static final class TokenBucket {
+
+        private final double permitsPerNano;
+        private final double burst;
+        private double tokens;
+        private long lastNanos;
+
+        TokenBucket(double permitsPerSecond, int burst) {
+            this.permitsPerNano = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+            this.burst = burst;
+            this.tokens = burst;
+            this.lastNanos = System.nanoTime();
+        }
+
+        /**
+         * 获取一个令牌
+         * @return  0 表示已获取令牌(或不限速), 否则为下一个令牌可用前的纳秒数, 此时未获取令牌
+         */
+        long tryAcquire() {
+            if (permitsPerNano <= 0D)
+            {
+                return 0L;
+            }
+            final long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - lastNanos) * permitsPerNano);
+            lastNanos = now;
+            if (tokens >= 1D)
+            {
+                tokens -= 1D;
+                return 0L;
+            }
+            return Math.max(1L, (long) Math.ceil((1D - tokens) / permitsPerNano));
+        }
+    }
+
+}
@@ -0,0 +1,76 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.job;
+
+import java.util.Map;
+
+/**
+ * {@link RefreshTokenPipeline} 的 JMX 接口, 注册到 platform MBeanServer:
+ * {@code top.dcenter.ums.security:type=RefreshTokenPipeline}. 统计数据的 key 为 providerId.
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/13 16:20
+ */
+public interface RefreshTokenPipelineMXBean {
+
+    /**
+     * @return 提交的刷新任务数
+     */
+    Map<String, Long> getSubmitted();
+
+    /**
+     * @return 执行完成的刷新任务数, 按时间求导即为吞吐量
+     */
+    Map<String, Long> getCompleted();
+
+    /**
+     * @return 被拒绝(线程池拒绝, 管道关闭或等待队列已满且等待超时)的刷新任务数
+     */
+    Map<String, Long> getRejected();
+
+    /**
+     * @return 提交时因达到同时执行数上限, 线程池容量已满或限速而未能立即执行, 进入等待队列的次数
+     */
+    Map<String, Long> getBackpressureWaits();
+
+    /**
+     * @return 提交时等待队列已满(达到 maxPending), 提交任务的线程阻塞等待的次数
+     */
+    Map<String, Long> getSubmitWaits();
+
+    /**
+     * @return 因令牌桶令牌不足而延迟派发的次数
+     */
+    Map<String, Long> getRateLimitedWaits();
+
+    /**
+     * @return 已派发到线程池(执行中或在线程池队列中)的刷新任务数
+     */
+    Map<String, Integer> getInFlight();
+
+    /**
+     * @return 在第三方服务商等待队列中未派发的刷新任务数
+     */
+    Map<String, Integer> getPending();
+
+}
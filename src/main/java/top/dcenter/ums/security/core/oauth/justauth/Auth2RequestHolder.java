@@ -30,6 +30,7 @@ import me.zhyd.oauth.config.AuthConfig;
 import me.zhyd.oauth.config.AuthDefaultSource;
 import me.zhyd.oauth.config.AuthSource;
 import me.zhyd.oauth.enums.scope.*;
+import me.zhyd.oauth.model.AuthToken;
 import me.zhyd.oauth.request.AuthDefaultRequest;
 import org.springframework.beans.BeansException;
 import org.springframework.beans.factory.InitializingBean;
@@ -58,8 +59,10 @@ import top.dcenter.ums.security.core.oauth.properties.JustAuthProperties;
 import java.lang.reflect.Field;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 import static java.lang.String.join;
@@ -126,6 +129,12 @@ public final class Auth2RequestHolder implements InitializingBean, ApplicationCo
      */
     private static final Map<AuthSource, String> SOURCE_PROVIDER_ID_MAP = new ConcurrentHashMap<>();
 
+    /**
+     * key 为 providerId, value 为是否支持 refresh token, 应用启动时根据 {@link AuthSource} 对应的
+     * {@link AuthDefaultRequest} 子类是否重写了 {@code refresh(AuthToken)} 方法确定
+     */
+    private static final Map<String, Boolean> PROVIDER_ID_REFRESH_SUPPORT_MAP = new ConcurrentHashMap<>();
+
     private ApplicationContext applicationContext;
 
     /**
@@ -202,6 +211,35 @@ public final class Auth2RequestHolder implements InitializingBean, ApplicationCo
         return Collections.unmodifiableCollection(SOURCE_PROVIDER_ID_MAP.values());
     }
 
+    /**
+     * 第三方是否支持 refresh token
+     * @param providerId    providerId
+     * @return  第三方不支持 refresh token 时返回 false, 支持或未知的第三方返回 true
+     */
+    public static boolean isSupportRefreshToken(@Nullable String providerId) {
+        if (providerId == null)
+        {
+            return true;
+        }
+        return !Boolean.FALSE.equals(PROVIDER_ID_REFRESH_SUPPORT_MAP.get(providerId));
+    }
+
+    /**
+     * 获取不支持 refresh token 的 providerIds
+     * @return  不支持 refresh token 的 providerId Set
+     */
+    @NonNull
+    public static Set<String> getNotSupportRefreshTokenProviderIds() {
+        Set<String> providerIds = new HashSet<>();
+        PROVIDER_ID_REFRESH_SUPPORT_MAP.forEach((providerId, support) -> {
+            if (!support)
+            {
+                providerIds.add(providerId);
+            }
+        });
+        return providerIds;
+    }
+
     @Override
     public void setApplicationContext(@NonNull ApplicationContext applicationContext) throws BeansException {
         this.applicationContext = applicationContext;
@@ -289,6 +327,10 @@ public final class Auth2RequestHolder implements InitializingBean, ApplicationCo
 
                 }
 
+                if (source != null) {
+                    putRefreshSupport(providerId, source);
+                }
+
                 BaseAuth2Properties baseAuth2Properties = ((BaseAuth2Properties) baseProperties);
                 if (baseAuth2Properties.getClientId() != null && baseAuth2Properties.getClientSecret() != null)
                 {
@@ -305,6 +347,29 @@ public final class Auth2RequestHolder implements InitializingBean, ApplicationCo
             }
         }
 
+        log.info("第三方是否支持 refresh token: {}", PROVIDER_ID_REFRESH_SUPPORT_MAP);
+    }
+
+    /**
+     * 根据 source 对应的 {@link AuthDefaultRequest} 子类是否重写了 {@code refresh(AuthToken)} 方法,
+     * 确定第三方是否支持 refresh token, 并存储在 {@link #PROVIDER_ID_REFRESH_SUPPORT_MAP} 中.
+     * JustAuth 中未重写此方法的第三方调用时抛出 {@link me.zhyd.oauth.exception.AuthException}(NOT_IMPLEMENTED).
+     * @param providerId    providerId
+     * @param source        {@link AuthSource}
+     */
+    private static void putRefreshSupport(@NonNull String providerId, @NonNull AuthSource source) {
+        try {
+            Class<?> declaringClass = getAuthRequestClassBySource(source)
+                    .getMethod("refresh", AuthToken.class).getDeclaringClass();
+            PROVIDER_ID_REFRESH_SUPPORT_MAP.put(providerId,
+                                                AuthDefaultRequest.class.isAssignableFrom(declaringClass)
+                                                        && !AuthDefaultRequest.class.equals(declaringClass));
+        }
+        catch (Exception e) {
+            if (log.isDebugEnabled()) {
+                log.debug("获取不到 {} 是否支持 refresh token: {}", providerId, e.getMessage());
+            }
+        }
     }
 
     /**
@@ -33,7 +33,9 @@ import java.time.Duration;
 import java.util.concurrent.TimeUnit;
 
 /**
- * auth state redis cache, 适用单机与分布式
+ * auth state redis cache, 适用单机与分布式. <br>
+ * 使用 IOC 容器中的 StringRedisTemplate, 支持 spring.redis.sentinel.* 与 spring.redis.cluster.* 配置的 Sentinel 与 Cluster;
+ * 只使用单 key 命令, 且 state 写入后马上读取, 不要配置为从 replica 读取.
  * @author YongWu zheng
  * @version V1.0  Created by 2020/10/6 19:22
  */
@@ -27,6 +27,8 @@ import com.xkcoding.http.config.HttpConfig;
 import me.zhyd.oauth.model.AuthToken;
 import me.zhyd.oauth.model.AuthUser;
 import org.springframework.beans.BeanUtils;
+import top.dcenter.ums.security.core.oauth.enums.EnableRefresh;
+import top.dcenter.ums.security.core.oauth.justauth.Auth2RequestHolder;
 import top.dcenter.ums.security.core.oauth.justauth.request.Auth2DefaultRequest;
 import top.dcenter.ums.security.core.oauth.entity.AuthTokenPo;
 import top.dcenter.ums.security.core.oauth.entity.ConnectionData;
@@ -51,6 +53,11 @@ public class JustAuthUtil {
         authToken.setProviderId(providerId);
         // 有效期转时间戳
         Auth2DefaultRequest.expireIn2Timestamp(timeout, token.getExpireIn(), authToken);
+        // 第三方不支持 refresh token 时直接保存为 enableRefresh=0, 定时任务不再获取此 token
+        if (!Auth2RequestHolder.isSupportRefreshToken(providerId))
+        {
+            authToken.setEnableRefresh(EnableRefresh.NO);
+        }
         return authToken;
     }
 
@@ -30,11 +30,16 @@ import org.springframework.boot.context.properties.NestedConfigurationProperty;
 import org.springframework.data.redis.connection.RedisConnectionFactory;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.web.authentication.AuthenticationSuccessHandler;
+import top.dcenter.ums.security.core.oauth.enums.RefreshTokenClaimMode;
 import top.dcenter.ums.security.core.oauth.filter.login.Auth2LoginAuthenticationFilter;
 import top.dcenter.ums.security.core.oauth.job.RefreshTokenJob;
 import top.dcenter.ums.security.core.oauth.signup.ConnectionService;
 import top.dcenter.ums.security.core.oauth.userdetails.TemporaryUser;
 
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * 第三方授权登录属性
  * @author YongWu zheng
@@ -321,11 +326,65 @@ public class Auth2Properties {
     private Boolean enableRefreshTokenJob = false;
 
     /**
-     * 定时刷新 accessToken 任务时, 批处理数据库的记录数.<br>
+     * 定时刷新 accessToken 任务时, 批处理数据库的记录数, 即按 (expireTime, id) 键集分页查询到期 token 的每页记录数.<br>
      * 注意: 分布式应用时, 此配置不同服务器配置必须是一样的. batchCount 大小需要根据实际生产环境进行优化
      */
     private Integer batchCount = 1000;
 
+    /**
+     * 定时刷新 accessToken 任务分页查询到期 token 时的 JDBC fetchSize, 默认: 1000. <br>
+     * 注意: mysql 需要配合 useCursorFetch=true, 或设置为 -2147483648(Integer.MIN_VALUE) 才会流式读取
+     */
+    private Integer refreshTokenFetchSize = 1000;
+
+    /**
+     * 分布式定时刷新 accessToken 任务时, 到期 token 按 (expireTime, id) 划分为最多 refreshTokenPartitions 个记录数相近的范围分区,
+     * 每台服务器从 redis 分区队列中领取分区后执行, 空闲的服务器会继续领取剩余分区, 默认: 16.<br>
+     * 注意: 分布式应用时, 此配置不同服务器配置必须是一样的, 且应大于服务器数量
+     */
+    private Integer refreshTokenPartitions = 16;
+
+    /**
+     * 分布式定时刷新 accessToken 任务时, 服务器领取分区的租约时长, 默认: 2 分钟.<br>
+     * 执行期间每 refreshTokenLeaseTtl / 3 续租一次, 服务器宕机导致租约过期后, 分区会被其他服务器重新领取
+     */
+    private Duration refreshTokenLeaseTtl = Duration.ofMinutes(2);
+
+    /**
+     * 没有 redis 时, 定时刷新 accessToken 任务的数据库领取模式, 默认: NONE, 即每台服务器都执行全部刷新任务.<br>
+     * 分布式应用没有 redis 时设置为 SKIP_LOCKED(需要数据库支持 SELECT ... FOR UPDATE SKIP LOCKED) 或 LEASE,
+     * 每台服务器每次领取 batchCount 条到期 token, 处理完再领取下一批, 一条 token 只会被一台服务器刷新.<br>
+     * 注意: 需要 auth_token 表有 claimedBy 与 claimedUntil 字段
+     */
+    private RefreshTokenClaimMode refreshTokenClaimMode = RefreshTokenClaimMode.NONE;
+
+    /**
+     * 数据库领取模式下, 领取到期 token 的租约时长, 默认: 10 分钟.<br>
+     * 租约期间其他服务器不会领取此 token, 刷新失败的 token 在租约过期后才会被重新领取, 应大于刷新一批 token 的耗时
+     */
+    private Duration refreshTokenClaimTtl = Duration.ofMinutes(10);
+
+    /**
+     * 定时刷新 accessToken 任务按第三方服务商限流: 令牌桶限制每秒请求数, 并限制同时执行的请求数
+     */
+    private RefreshTokenRateLimit refreshTokenRateLimit = new RefreshTokenRateLimit();
+
+    /**
+     * 定时刷新 accessToken 任务批量写入刷新结果的批次大小, 每个批次在一个事务中批量更新 auth_token 与 user_connection,
+     * 事务提交后批量失效缓存, 默认: 500
+     */
+    private Integer refreshTokenWriteBatchSize = 500;
+
+    /**
+     * 按过期时间排序的到期 token 队列: 开启后在 token 过期前 leadTime 持续刷新, 代替定时任务集中刷新
+     */
+    private DueQueue refreshTokenDueQueue = new DueQueue();
+
+    /**
+     * 按需获取有效 accessToken({@code ProviderTokenService}) 的属性
+     */
+    private ProviderToken providerToken = new ProviderToken();
+
     /**
      * accessToken 的剩余有效期内进行刷新 accessToken, 默认: 24, 单位: 小时.<br>
      * 注意: 需要根据实际生产环境进行优化
@@ -348,4 +407,109 @@ public class Auth2Properties {
     @NestedConfigurationProperty
     private HttpConfigProperties proxy = new HttpConfigProperties();
 
+    @Getter
+    @Setter
+    public static class RefreshTokenRateLimit {
+
+        /**
+         * 每个第三方服务商每秒最多发起的刷新请求数(令牌桶速率), 小于等于 0 时不限速, 默认: 0(不限速).
+         * 一般只对有限流的第三方服务商通过 providerPermitsPerSecond 单独设置
+         */
+        private Double permitsPerSecond = 0D;
+        /**
+         * 令牌桶容量, 即空闲后允许的突发请求数, 只在限速时有效, 默认: 10
+         */
+        private Integer burst = 10;
+        /**
+         * 每个第三方服务商同时执行的最大刷新请求数, 达到此值时该第三方服务商的任务在各自的队列中等待, 不影响其他第三方服务商,
+         * 小于等于 0 时不限制(只受线程池容量限制), 默认: 0
+         */
+        private Integer maxInFlight = 0;
+        /**
+         * 每个第三方服务商等待队列中未派发的最大任务数, 队列已满时提交任务的线程阻塞等待, 超过 submitTimeout 时拒绝该任务,
+         * 小于等于 0 时不限制, 默认: 1000
+         */
+        private Integer maxPending = 1000;
+        /**
+         * 等待队列已满时提交任务的线程最长等待时间, 超时的任务被拒绝, 由下一次定时任务重新刷新, 默认: 60 秒
+         */
+        private Duration submitTimeout = Duration.ofSeconds(60);
+        /**
+         * 按第三方服务商(providerId)单独设置每秒最多发起的刷新请求数, 如: wechat_open: 2.0, 未设置时使用 permitsPerSecond
+         */
+        private Map<String, Double> providerPermitsPerSecond = new HashMap<>();
+        /**
+         * 按第三方服务商(providerId)单独设置同时执行的最大刷新请求数, 未设置时使用 maxInFlight
+         */
+        private Map<String, Integer> providerMaxInFlight = new HashMap<>();
+
+    }
+
+    @Getter
+    @Setter
+    public static class DueQueue {
+
+        /**
+         * 是否开启到期 token 队列, 默认: false. <br>
+         * 开启后 auth_token 的保存与更新会按 expireTime - leadTime 放入队列, 刷新线程每 pollInterval 取出到期的 token 刷新,
+         * 刷新负载随 token 的过期时间分散到全天; 启动时或检测到队列数据丢失时把数据库中所有可刷新的 token 放入队列,
+         * 之后 refreshTokenJobCron 定时任务只增量放入下一次执行前将到期的 token(幂等).<br>
+         * 有 RedisConnectionFactory 时使用 redis sorted set(分布式), 否则使用本地按时间分桶的队列(只适用于单机应用, 需要设置 singleNode=true).
+         */
+        private Boolean enabled = false;
+        /**
+         * 在 token 过期前多长时间刷新, 默认: 10 分钟. token 有效期(expireIn)小于 2 * leadTime 时在有效期过半时刷新
+         */
+        private Duration leadTime = Duration.ofMinutes(10);
+        /**
+         * 刷新线程从队列取出到期 token 的间隔, 默认: 1 秒
+         */
+        private Duration pollInterval = Duration.ofSeconds(1);
+        /**
+         * 取出的 token 刷新失败(或服务器宕机)时, 第一次重新到期的延迟, 之后每次重试延迟加倍, 不超过 maxRetryDelay, 默认: 5 分钟
+         */
+        private Duration retryDelay = Duration.ofMinutes(5);
+        /**
+         * 重新到期的最大延迟, 默认: 1 小时
+         */
+        private Duration maxRetryDelay = Duration.ofHours(1);
+        /**
+         * 同一个 token 连续取出的最大次数, 最后一次取出时从队列中删除, 不再重试, token 下次保存或更新时重新放入队列;
+         * 小于等于 0 时不限制, 默认: 8
+         */
+        private Integer maxAttempts = 8;
+        /**
+         * 本地队列的时间分桶大小, 默认: 1 秒
+         */
+        private Duration tick = Duration.ofSeconds(1);
+        /**
+         * 是否单实例部署, 默认: false. 没有 RedisConnectionFactory 时使用本地队列, 必须设置为 true, 否则启动失败;
+         * 多实例部署时每台服务器的本地队列只包含本机写入的 token
+         */
+        private Boolean singleNode = false;
+
+    }
+
+    @Getter
+    @Setter
+    public static class ProviderToken {
+
+        /**
+         * accessToken 剩余有效期小于 safetyMargin 时同步刷新, 默认: 1 分钟
+         */
+        private Duration safetyMargin = Duration.ofMinutes(1);
+        /**
+         * 同步刷新的租约时间, 租约期间同一 token 的其他刷新请求(包括其他服务器与定时刷新任务)等待此次刷新的结果, 默认: 30 秒. <br>
+         * 有 RedisConnectionFactory 时使用 redis 租约, 否则使用 auth_token 表的租约字段(claimedBy, claimedUntil),
+         * 都不可用时只在本机互斥. 必须大于 proxy.timeout 与 proxy.foreignTimeout 中较大的值, 定时刷新任务持有的租约
+         * 在刷新结果批量写入后释放.
+         */
+        private Duration leaseTtl = Duration.ofSeconds(30);
+        /**
+         * 等待其他请求刷新结果的最长时间, 实际最长等待此值加上第三方 HTTP 超时时间(其他服务器正在请求第三方), 默认: 10 秒
+         */
+        private Duration waitTimeout = Duration.ofSeconds(10);
+
+    }
+
 }
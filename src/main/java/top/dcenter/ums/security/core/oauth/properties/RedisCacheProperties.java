@@ -26,6 +26,9 @@ package top.dcenter.ums.security.core.oauth.properties;
 import lombok.Getter;
 import lombok.Setter;
 import org.springframework.boot.context.properties.ConfigurationProperties;
+import top.dcenter.ums.security.core.oauth.enums.CacheReadFrom;
+import top.dcenter.ums.security.core.oauth.enums.CacheWriterMode;
+import top.dcenter.ums.security.core.oauth.enums.CacheValueSerializer;
 
 import java.time.Duration;
 import java.util.HashSet;
@@ -42,6 +45,56 @@ public class RedisCacheProperties {
 
     private final Cache cache = new Cache();
 
+    /**
+     * 缓存未命中时的分布式加载租约配置
+     */
+    private final Lease lease = new Lease();
+
+    /**
+     * 进程内一级缓存(near cache)配置
+     */
+    private final NearCache nearCache = new NearCache();
+
+    /**
+     * 缓存 clear 时的增量清理配置
+     */
+    private final Clean clean = new Clean();
+
+    /**
+     * 缓存批量操作配置
+     */
+    private final Batch batch = new Batch();
+
+    /**
+     * hash 缓存写入的 lua 脚本配置
+     */
+    private final Script script = new Script();
+
+    /**
+     * 缓存 value 压缩配置
+     */
+    private final Compression compression = new Compression();
+
+    /**
+     * 缓存统计指标配置
+     */
+    private final Metrics metrics = new Metrics();
+
+    /**
+     * 缓存提前刷新(refresh-ahead)配置
+     */
+    private final RefreshAhead refreshAhead = new RefreshAhead();
+
+    /**
+     * Redis Cluster 与 Sentinel 配置, 集群节点与哨兵节点使用 spring.redis.cluster.* 与 spring.redis.sentinel.* 配置
+     */
+    private final Topology topology = new Topology();
+
+    /**
+     * Lettuce 连接配置: pipeline 刷新策略
+     */
+    private final Connection connection = new Connection();
+
     /**
      * Redis cache is open, 默认 false
      */
@@ -55,6 +108,14 @@ public class RedisCacheProperties {
     @Setter
     private Boolean useIocRedisConnectionFactory = false;
 
+    /**
+     * 缓存 value 的序列化方式, 默认: JSON. <br>
+     * COMPACT: ConnectionData, AuthTokenPo, ArrayList, LinkedMultiValueMap, HashSet, String 使用紧凑的二进制格式, 其他类型仍使用 JSON;
+     * 可以读取已缓存的 JSON 数据. 注意: 滚动升级时, 未升级的节点无法读取 COMPACT 格式的缓存数据.
+     */
+    @Setter
+    private CacheValueSerializer valueSerializer = CacheValueSerializer.JSON;
+
 
 
     @Getter
@@ -82,4 +143,195 @@ public class RedisCacheProperties {
 
     }
 
-}
\ No newline at end of file
+    @Getter
+    @Setter
+    public static class Lease {
+
+        /**
+         * 开启分布式加载租约的缓存名称, 默认: 空, 即不开启. 例如: UCHC.<br>
+         * 缓存未命中时, 集群中只有获取到租约(SET NX PX)的节点查询数据库并回填缓存, 其他节点轮询等待回填的缓存,
+         * 防止热点缓存同时失效时所有节点同时查询数据库. 只对 {@code @Cacheable(sync = true)} 的缓存操作生效.
+         */
+        private Set<String> cacheNames = new HashSet<>();
+        /**
+         * 租约的过期时间, 应大于一次数据库查询的耗时, 默认: 3 秒
+         */
+        private Duration ttl = Duration.ofSeconds(3);
+        /**
+         * 未获取到租约的节点等待缓存回填的最长时间, 超时后自行查询数据库, 默认: 2 秒
+         */
+        private Duration waitTimeout = Duration.ofSeconds(2);
+        /**
+         * 未获取到租约的节点轮询缓存的间隔, 默认: 50 毫秒
+         */
+        private Duration pollInterval = Duration.ofMillis(50);
+
+    }
+
+    @Getter
+    @Setter
+    public static class NearCache {
+
+        /**
+         * 开启进程内一级缓存的缓存名称, 默认: 空, 即不开启. 例如: UCHC.<br>
+         * 命中一级缓存时不访问 redis; 缓存 put/evict/clear 时通过 redis pub/sub 通知其他节点失效一级缓存.
+         */
+        private Set<String> cacheNames = new HashSet<>();
+        /**
+         * 每个缓存的一级缓存最大缓存项数量, 缓存已满时按访问频率决定是否准入新的缓存项, 默认: 10000
+         */
+        private Long maximumSize = 10000L;
+        /**
+         * 一级缓存项写入后的过期时间, pub/sub 失效消息丢失时作为最终一致的兜底, 不宜过长, 默认: 30 秒
+         */
+        private Duration ttl = Duration.ofSeconds(30);
+        /**
+         * 一级缓存失效消息的 redis pub/sub 频道, 默认: ums:cache:near:invalidate
+         */
+        private String channel = "ums:cache:near:invalidate";
+
+    }
+
+    @Getter
+    @Setter
+    public static class Clean {
+
+        /**
+         * 缓存 clear 时 SCAN 命令的 COUNT 参数, 默认: 1000
+         */
+        private Integer scanCount = 1000;
+        /**
+         * 缓存 clear 时每批删除的 key 的数量, 每批通过 pipeline 分块执行 UNLINK, 默认: 1000
+         */
+        private Integer batchSize = 1000;
+        /**
+         * 缓存 clear 时每批删除之间的暂停时间, 用于降低对 redis 的压力, 默认: 0, 即不暂停
+         */
+        private Duration pause = Duration.ZERO;
+        /**
+         * 缓存 clear 时是否使用 UNLINK(redis 4.0+, 异步释放内存), false 时使用 DEL, 默认: true
+         */
+        private Boolean unlink = true;
+
+    }
+
+    @Getter
+    @Setter
+    public static class Batch {
+
+        /**
+         * 是否把一次方法调用中 {@code @CacheEvict/@CachePut} 产生的 redis 命令合并为一次 pipeline(MULTI/EXEC) 发送,
+         * 存在事务时在事务提交后发送, 默认: true
+         */
+        private Boolean enabled = true;
+
+    }
+
+    @Getter
+    @Setter
+    public static class Script {
+
+        /**
+         * 是否使用启动时预加载的 lua 脚本(EVALSHA)执行 hash 缓存的 put/putIfAbsent, 每次写入只需一次网络往返且是原子操作, 默认: true
+         */
+        private Boolean enabled = true;
+        /**
+         * 使用 lua 脚本时, hash 剩余过期时间大于 ttl * ttlRefreshRatio 时不重新设置过期时间, 取值范围: [0, 1],
+         * 0 表示每次写入都重新设置过期时间, 默认: 0.5
+         */
+        private Double ttlRefreshRatio = 0.5D;
+
+    }
+
+    @Getter
+    @Setter
+    public static class Compression {
+
+        /**
+         * 开启 value 压缩的缓存名称, 默认: 空, 即不开启. 例如: UCHACC.<br>
+         * 序列化后大于等于 threshold 的 value 使用 JDK Deflate 压缩, 未压缩的旧数据可以正常读取.
+         */
+        private Set<String> cacheNames = new HashSet<>();
+        /**
+         * 压缩阈值, 单位: 字节, 默认: 1024
+         */
+        private Integer threshold = 1024;
+        /**
+         * 压缩级别, 取值范围: [0, 9], 默认: 1(最快速度)
+         */
+        private Integer level = 1;
+
+    }
+
+    @Getter
+    @Setter
+    public static class Metrics {
+
+        /**
+         * 是否注册缓存的命中率与延迟统计, 默认: true. <br>
+         * 有 micrometer 与 MeterRegistry 时注册到 micrometer(cache.gets, cache.puts, cache.redis.operations 等),
+         * 否则注册为 JMX MBean: top.dcenter.ums.security:type=RedisHashCache,name=缓存名称
+         */
+        private Boolean enabled = true;
+
+    }
+
+    @Getter
+    @Setter
+    public static class RefreshAhead {
+
+        /**
+         * 开启提前刷新的缓存名称, 默认: 空, 即不开启. 例如: UCHC.<br>
+         * 只对 UsersConnectionRepository/UsersConnectionTokenRepository 中 {@code @Cacheable(sync = true)} 的方法生效:
+         * 命中缓存且剩余过期时间低于阈值时, 在 ums.executor.cache-refresh-ahead 线程池中重新调用该方法刷新缓存, 刷新期间继续返回旧值.
+         * 为空时不创建 ums.executor.cache-refresh-ahead 线程池.
+         */
+        private Set<String> cacheNames = new HashSet<>();
+        /**
+         * 剩余过期时间小于等于 entryTtl * ratio 时提前刷新, 取值范围: (0, 1), 默认: 0.2. <br>
+         * 开启 lua 脚本时应小于 script.ttl-refresh-ratio * 0.8, 否则刷新时不会重新设置 hash 的过期时间.
+         */
+        private Double ratio = 0.2D;
+
+    }
+
+    @Getter
+    @Setter
+    public static class Topology {
+
+        /**
+         * Cluster 与 Sentinel 时的读取节点策略, 默认: MASTER. <br>
+         * 从 replica 读取时, evict/put 后短时间内可能读取到旧值(主从复制延迟); 只对 ums 自己创建的 RedisConnectionFactory 生效.
+         */
+        private CacheReadFrom readFrom = CacheReadFrom.MASTER;
+        /**
+         * Redis Cluster 时是否对缓存 key 添加 hash tag, 如: UCHC::{hs:github}, 默认: true. <br>
+         * 使 hash key 与其加载租约 key 落在同一个 slot; 注意: 开启后不能读取未添加 hash tag 的旧缓存数据.
+         */
+        private Boolean hashTag = true;
+        /**
+         * Redis Cluster 拓扑的定时刷新间隔, 默认: 60 秒
+         */
+        private Duration clusterRefreshPeriod = Duration.ofSeconds(60);
+
+    }
+
+    @Getter
+    @Setter
+    public static class Connection {
+
+        /**
+         * pipeline 中缓冲多少条命令后批量刷新到网络, 默认: 0 表示每条命令立即刷新.
+         * 对批量 put/evict 与 clear 的 pipeline 生效
+         */
+        private Integer pipeliningFlushSize = 0;
+        /**
+         * 缓存写入器执行命令的连接模式, 默认: DEDICATED. <br>
+         * SHARED 时 get/hGet/put/remove 等非事务命令直接在共享的 Lettuce 原生连接上发送, 不再每条命令获取与关闭 RedisConnection,
+         * 高并发时减少连接获取的同步与对象创建; MULTI/EXEC, pipeline, lua 脚本与清理仍通过 RedisConnection 执行.
+         */
+        private CacheWriterMode writerMode = CacheWriterMode.DEDICATED;
+
+    }
+
+}
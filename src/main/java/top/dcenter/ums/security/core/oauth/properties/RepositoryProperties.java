@@ -27,10 +27,13 @@ import lombok.Getter;
 import lombok.Setter;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.lang.NonNull;
+import org.springframework.util.unit.DataSize;
 import top.dcenter.ums.security.core.oauth.entity.AuthTokenPo;
 import top.dcenter.ums.security.core.oauth.repository.factory.Auth2JdbcUsersConnectionRepositoryFactory;
 import top.dcenter.ums.security.core.oauth.repository.factory.UsersConnectionRepositoryFactory;
 
+import java.time.Duration;
+
 /**
  * OAuth2 第三方登录 user_connection 持久化表字段, sql语句属性 设置
  *
@@ -53,6 +56,23 @@ public class RepositoryProperties {
      */
     private String textEncryptorSalt = "cd538b1b077542aca5f86942b6507fe2";
 
+    /**
+     * 第三方登录记录 (providerId, providerUserId) 的布隆过滤器配置
+     */
+    private final BloomFilter bloomFilter = new BloomFilter();
+    /**
+     * 第三方授权登录成功后更新 user_connection 与 auth_token 的合并延迟写配置
+     */
+    private final WriteBehind writeBehind = new WriteBehind();
+    /**
+     * 第三方授权登录成功后跳过冗余更新的配置
+     */
+    private final SkipUnchangedUpdate skipUnchangedUpdate = new SkipUnchangedUpdate();
+    /**
+     * 第三方授权登录成功后更新 user_connection 与 auth_token 的本地持久化日志配置
+     */
+    private final Journal journal = new Journal();
+
     /* ========================== 数据库初始化相关语句 ============================= */
 
     /**
@@ -109,7 +129,10 @@ public class RepositoryProperties {
             "  `screenName` varchar(64) COMMENT 'Twitter附带属性',\n" +
             "  `oauthCallbackConfirmed` varchar(64) COMMENT 'Twitter附带属性',\n" +
             "  `expireTime` bigint(20) DEFAULT '-1' COMMENT '过期时间, 基于 1970-01-01T00:00:00Z, 无过期时间默认为 -1',\n" +
-            "  PRIMARY KEY (`id`)\n" +
+            "  `claimedBy` varchar(64) DEFAULT NULL COMMENT '定时刷新 token 任务领取此记录的租约标识',\n" +
+            "  `claimedUntil` bigint(20) NOT NULL DEFAULT '-1' COMMENT '定时刷新 token 任务领取此记录的租约过期时间, 基于 1970-01-01T00:00:00Z',\n" +
+            "  PRIMARY KEY (`id`),\n" +
+            "  KEY `idx_enableRefresh_expireTime_id` (`enableRefresh`, `expireTime`, `id`)\n" +
             ") ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;";
 
 
@@ -117,6 +140,58 @@ public class RepositoryProperties {
         return String.format(createAuthTokenTableSql, authTokenTableName);
     }
 
+    /**
+     * 查询 authTokenTableName 是否有定时刷新 token 任务键集分页使用的 (enableRefresh, expireTime, id) 索引的语句。 <br><br>
+     * 注意： sql 语句中的 %s 必须写上，且 %s 的顺序必须与后面的字段名称所对应的含义对应 :<br><br>
+     * authTokenTableName、<br><br>
+     * database
+     */
+    private String queryAuthTokenRefreshIndexExistSql = "SELECT COUNT(1) FROM information_schema.statistics WHERE " +
+            "table_name = '%s' AND table_schema = '%s' AND index_name = 'idx_enableRefresh_expireTime_id'";
+
+    public String getQueryAuthTokenRefreshIndexExistSql(@NonNull String database) {
+        return String.format(queryAuthTokenRefreshIndexExistSql, authTokenTableName, database);
+    }
+
+    /**
+     * 已有的 authTokenTableName 添加 (enableRefresh, expireTime, id) 索引的语句, 启动时缺少索引会输出此语句的警告日志, 不会自动执行。 <br><br>
+     * 注意： sql 语句中的 %s 必须写上，且 %s 的顺序必须与后面的字段名称所对应的含义对应 :<br><br>
+     * authTokenTableName、<br><br>
+     */
+    private String createAuthTokenRefreshIndexSql = "ALTER TABLE `%s` ADD INDEX `idx_enableRefresh_expireTime_id` " +
+            "(`enableRefresh`, `expireTime`, `id`)";
+
+    public String getCreateAuthTokenRefreshIndexSql() {
+        return String.format(createAuthTokenRefreshIndexSql, authTokenTableName);
+    }
+
+    /**
+     * 查询 authTokenTableName 是否有定时刷新 token 任务数据库领取模式使用的租约字段(claimedBy, claimedUntil)的语句。 <br><br>
+     * 注意： sql 语句中的 %s 必须写上，且 %s 的顺序必须与后面的字段名称所对应的含义对应 :<br><br>
+     * authTokenTableName、<br><br>
+     * database
+     */
+    private String queryAuthTokenClaimColumnExistSql = "SELECT COUNT(1) FROM information_schema.columns WHERE " +
+            "table_name = '%s' AND table_schema = '%s' AND column_name = 'claimedUntil'";
+
+    public String getQueryAuthTokenClaimColumnExistSql(@NonNull String database) {
+        return String.format(queryAuthTokenClaimColumnExistSql, authTokenTableName, database);
+    }
+
+    /**
+     * 已有的 authTokenTableName 添加租约字段(claimedBy, claimedUntil)的语句, ums.oauth.refresh-token-claim-mode 不为 NONE
+     * 且启动时缺少字段会输出此语句的警告日志, 不会自动执行。 <br><br>
+     * 注意： sql 语句中的 %s 必须写上，且 %s 的顺序必须与后面的字段名称所对应的含义对应 :<br><br>
+     * authTokenTableName、<br><br>
+     */
+    private String addAuthTokenClaimColumnsSql = "ALTER TABLE `%s` " +
+            "ADD COLUMN `claimedBy` varchar(64) DEFAULT NULL COMMENT '定时刷新 token 任务领取此记录的租约标识', " +
+            "ADD COLUMN `claimedUntil` bigint(20) NOT NULL DEFAULT '-1' COMMENT '定时刷新 token 任务领取此记录的租约过期时间'";
+
+    public String getAddAuthTokenClaimColumnsSql() {
+        return String.format(addAuthTokenClaimColumnsSql, authTokenTableName);
+    }
+
     /* ==========================自定义第三方登录用户表及相关 CURD 语句============================= */
 
     /**
@@ -455,6 +530,16 @@ public class RepositoryProperties {
                              providerUserIdColumnName);
     }
 
+    /**
+     * 第三方登录用户数据库用户表条件更新语句: 在 {@link #getUpdateConnectionSql()} 的基础上追加
+     * " and (expireTimeColumnName is null or expireTimeColumnName <= ?)", 只更新 expireTime 不晚于记录的行,
+     * 用于重放日志时避免旧记录覆盖已刷新的 token.
+     */
+    public String getUpdateConnectionIfNotStaleSql() {
+        return getUpdateConnectionSql() + " and (" + expireTimeColumnName + " is null or "
+                + expireTimeColumnName + " <= ?)";
+    }
+
     /**
      * 第三方登录用户数据库用户表添加用户语句。 <br><br>
      * 注意： sql 语句中的 %s 必须写上，问号必须与指定的 %s 相对应, %s按顺序会用对应的 :<br><br>
@@ -590,4 +675,142 @@ public class RepositoryProperties {
                              providerUserIdColumnName);
     }
 
-}
\ No newline at end of file
+    @Getter
+    @Setter
+    public static class BloomFilter {
+
+        /**
+         * 是否开启第三方登录记录的布隆过滤器, 开启后首次第三方登录时跳过缓存与 user_connection 查询, 默认: false
+         */
+        private Boolean enabled = false;
+        /**
+         * 进程内过滤器第一个分片的容量, 插入数量超过容量时自动扩容, 默认: 1000000
+         */
+        private Long initialCapacity = 1_000_000L;
+        /**
+         * 误判率, 取值范围: (0, 1), 默认: 0.01
+         */
+        private Double fpp = 0.01D;
+        /**
+         * 启动时流式读取 user_connection 的 fetchSize, 默认: 1000. mysql 需要配合 useCursorFetch=true,
+         * 或设置为 -2147483648(Integer.MIN_VALUE) 才会流式读取
+         */
+        private Integer fetchSize = 1000;
+        /**
+         * 是否同时使用 redis bitmap 过滤器, 多实例部署时必须开启, 否则其他实例新增的记录会被误判为不存在, 默认: false
+         */
+        private Boolean redisEnabled = false;
+        /**
+         * 是否单实例部署, 默认: false. 不开启 redis 过滤器时必须设置为 true, 否则启动失败;
+         * 只有单实例部署时才信任进程内过滤器的"不存在"结果
+         */
+        private Boolean singleNode = false;
+        /**
+         * redis 过滤器的 key 前缀, 默认: ums:bloom:uc
+         */
+        private String redisKeyPrefix = "ums:bloom:uc";
+        /**
+         * redis 过滤器的预计插入数量(redis bitmap 不扩容), 默认: 10000000
+         */
+        private Long redisExpectedInsertions = 10_000_000L;
+        /**
+         * 构建 redis 过滤器时每个 pipeline 写入的记录数, 默认: 1000
+         */
+        private Integer redisBatchSize = 1000;
+        /**
+         * redis 过滤器构建锁的过期时间, 同一时间只有一个应用实例构建, 默认: 10 分钟
+         */
+        private Duration buildLockTtl = Duration.ofMinutes(10);
+        /**
+         * 写入 redis 过滤器失败后, 延迟多久从数据库重新构建 redis 过滤器, 重新构建失败时按此间隔重试, 默认: 30 秒
+         */
+        private Duration rebuildDelay = Duration.ofSeconds(30);
+
+    }
+
+    @Getter
+    @Setter
+    public static class WriteBehind {
+
+        /**
+         * 是否开启合并延迟写: 授权登录成功后不再逐条更新 user_connection 与 auth_token, 而是在时间窗口内按
+         * (userId, providerId, providerUserId) 合并(只保留最新一次), 再批量写入数据库, 默认: false. <br>
+         * 注意: 窗口内应用宕机(非正常关闭)会丢失未写入的更新, 下次登录时会再次更新.
+         */
+        private Boolean enabled = false;
+        /**
+         * 合并时间窗口, 即批量写入的间隔, 默认: 1 秒
+         */
+        private Duration window = Duration.ofSeconds(1);
+        /**
+         * 每个批次的最大记录数, 默认: 500
+         */
+        private Integer batchSize = 500;
+        /**
+         * 待写入记录数达到此值时不等待时间窗口, 立即写入, 默认: 10000
+         */
+        private Integer maxPending = 10000;
+        /**
+         * 应用关闭时等待写入剩余记录的超时时间, 默认: 10 秒
+         */
+        private Duration shutdownTimeout = Duration.ofSeconds(10);
+
+    }
+
+    @Getter
+    @Setter
+    public static class SkipUnchangedUpdate {
+
+        /**
+         * 是否开启跳过冗余更新: 授权登录成功后用户信息(displayName, profileUrl, imageUrl)与 token 都未改变时不更新
+         * user_connection 与 auth_token, 只有用户信息改变时只更新 user_connection, 默认: false
+         */
+        private Boolean enabled = false;
+        /**
+         * token 过期时间的误差, 误差内视为未改变, 默认: 1 分钟
+         */
+        private Duration expireTimeTolerance = Duration.ofMinutes(1);
+
+    }
+
+    @Getter
+    @Setter
+    public static class Journal {
+
+        /**
+         * 是否开启本地持久化日志: 授权登录成功后的更新追加到 mmap 映射的本地日志文件, 由后台线程批量写入数据库, 登录线程不等待数据库写入,
+         * 应用重启后回放未写入的更新. 开启后优先于 ums.repository.write-behind 与 updateConnectionTaskExecutor, 默认: false
+         */
+        private Boolean enabled = false;
+        /**
+         * 日志目录, 每个应用实例必须使用独立的目录(通过文件锁独占), 且需要是持久化的目录, 默认: ${user.home}/.ums/connection-journal
+         */
+        private String directory = System.getProperty("user.home") + "/.ums/connection-journal";
+        /**
+         * 每个日志文件的大小, 最小 1MB, 默认: 64MB
+         */
+        private DataSize segmentSize = DataSize.ofMegabytes(64);
+        /**
+         * 日志文件数量上限(包括未消费与正在写入的文件), 达到上限时降级为 updateConnectionTaskExecutor 异步更新, 默认: 16
+         */
+        private Integer maxSegments = 16;
+        /**
+         * 每个批次写入数据库的最大记录数, 默认: 500
+         */
+        private Integer batchSize = 500;
+        /**
+         * 没有未消费的日志时的轮询间隔, 默认: 200 毫秒
+         */
+        private Duration pollInterval = Duration.ofMillis(200);
+        /**
+         * 数据库不可用时的重试间隔, 默认: 5 秒
+         */
+        private Duration retryInterval = Duration.ofSeconds(5);
+        /**
+         * 应用关闭时等待消费线程结束的超时时间, 未消费的日志在下次启动时回放, 默认: 10 秒
+         */
+        private Duration shutdownTimeout = Duration.ofSeconds(10);
+
+    }
+
+}
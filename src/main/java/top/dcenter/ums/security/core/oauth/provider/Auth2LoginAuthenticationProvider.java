@@ -20,6 +20,7 @@ import lombok.extern.slf4j.Slf4j;
 import me.zhyd.oauth.model.AuthUser;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.support.MessageSourceAccessor;
+import org.springframework.lang.Nullable;
 import org.springframework.security.authentication.AccountExpiredException;
 import org.springframework.security.authentication.AnonymousAuthenticationToken;
 import org.springframework.security.authentication.AuthenticationProvider;
@@ -46,6 +47,9 @@ import top.dcenter.ums.security.core.oauth.repository.UsersConnectionRepository;
 import top.dcenter.ums.security.core.oauth.service.Auth2UserService;
 import top.dcenter.ums.security.core.oauth.service.UmsUserDetailsService;
 import top.dcenter.ums.security.core.oauth.signup.ConnectionService;
+import top.dcenter.ums.security.core.oauth.signup.ConnectionUpdateFilter;
+import top.dcenter.ums.security.core.oauth.signup.ConnectionUpdateJournal;
+import top.dcenter.ums.security.core.oauth.signup.ConnectionUpdateWriteBehind;
 import top.dcenter.ums.security.core.oauth.token.Auth2AuthenticationToken;
 import top.dcenter.ums.security.core.oauth.token.Auth2LoginAuthenticationToken;
 import top.dcenter.ums.security.core.oauth.userdetails.TemporaryUser;
@@ -105,6 +109,21 @@ public class Auth2LoginAuthenticationProvider implements AuthenticationProvider
 	private UserCache userCache = new NullUserCache();
 	private UserDetailsChecker preAuthenticationChecks = new DefaultPreAuthenticationChecks();
 	private UserDetailsChecker postAuthenticationChecks = new DefaultPostAuthenticationChecks();
+	/**
+	 * 不为 null 时授权登录成功后的更新交由合并延迟写批量写入
+	 */
+	@Nullable
+	private ConnectionUpdateWriteBehind connectionUpdateWriteBehind;
+	/**
+	 * 不为 null 时用户信息与 token 未改变则跳过更新
+	 */
+	@Nullable
+	private ConnectionUpdateFilter connectionUpdateFilter;
+	/**
+	 * 不为 null 时授权登录成功后的更新追加到本地持久化日志, 优先于合并延迟写与异步更新
+	 */
+	@Nullable
+	private ConnectionUpdateJournal connectionUpdateJournal;
 
 	/**
 	 * Constructs an {@code Auth2LoginAuthenticationProvider} using the provided
@@ -335,6 +354,32 @@ public class Auth2LoginAuthenticationProvider implements AuthenticationProvider
 	 * @param connectionData    {@link ConnectionData}
 	 */
 	private void asyncUpdateUserConnectionAndToken(AuthUser authUser, ConnectionData connectionData) {
+		// 用户信息与 token 未改变, 跳过更新
+		if (connectionUpdateFilter != null && connectionUpdateFilter.skip(authUser, connectionData)) {
+			return;
+		}
+		if (connectionUpdateJournal != null) {
+			try {
+				// 追加到本地持久化日志, 返回 false 时(已关闭或日志文件数量达到上限)降级
+				if (connectionUpdateJournal.append(authUser, connectionData)) {
+					return;
+				}
+			}
+			catch (Exception e) {
+				log.error(String.format("追加第三方授权登录用户信息与 token 信息到本地日志失败: %s, 降级更新", e.getMessage()), e);
+			}
+		}
+		if (connectionUpdateWriteBehind != null) {
+			try {
+				// 合并延迟写, 返回 false 时(已关闭)走异步更新
+				if (connectionUpdateWriteBehind.offer(authUser, connectionData)) {
+					return;
+				}
+			}
+			catch (Exception e) {
+				log.error(String.format("提交第三方授权登录用户信息与 token 信息到合并延迟写失败: %s, 再次异步更新", e.getMessage()), e);
+			}
+		}
 		try {
 			// 异步更新第三方授权登录用户信息与 token 信息, 拒绝策略为: CALLER_RUNS
 			updateConnectionTaskExecutor.execute(
@@ -414,6 +459,27 @@ public class Auth2LoginAuthenticationProvider implements AuthenticationProvider
 		this.postAuthenticationChecks = postAuthenticationChecks;
 	}
 
+	/**
+	 * @param connectionUpdateWriteBehind   授权登录成功后更新 user_connection 与 auth_token 的合并延迟写, 为 null 时逐条异步更新
+	 */
+	public void setConnectionUpdateWriteBehind(@Nullable ConnectionUpdateWriteBehind connectionUpdateWriteBehind) {
+		this.connectionUpdateWriteBehind = connectionUpdateWriteBehind;
+	}
+
+	/**
+	 * @param connectionUpdateFilter    跳过冗余更新, 为 null 时每次授权登录成功都更新
+	 */
+	public void setConnectionUpdateFilter(@Nullable ConnectionUpdateFilter connectionUpdateFilter) {
+		this.connectionUpdateFilter = connectionUpdateFilter;
+	}
+
+	/**
+	 * @param connectionUpdateJournal   授权登录成功后更新的本地持久化日志, 为 null 时不使用
+	 */
+	public void setConnectionUpdateJournal(@Nullable ConnectionUpdateJournal connectionUpdateJournal) {
+		this.connectionUpdateJournal = connectionUpdateJournal;
+	}
+
 	private class DefaultPreAuthenticationChecks implements UserDetailsChecker {
 		@Override
 		public void check(UserDetails user) {
@@ -129,6 +129,47 @@ public interface UsersConnectionRepository {
 	 */
 	ConnectionData updateConnection(ConnectionData connection);
 
+	/**
+	 * 批量更新第三方登录记录, 用于合并后的批量写入. <br>
+	 * 默认实现逐个调用 {@link #updateConnection(ConnectionData)}, 注意: 此时不经过 spring cache 代理,
+	 * 使用缓存的自定义实现需要覆盖此方法并自行失效缓存.
+	 * @param connections   需要更新的第三方登录记录
+	 */
+	default void updateConnections(List<ConnectionData> connections) {
+		for (ConnectionData connection : connections)
+		{
+			updateConnection(connection);
+		}
+	}
+
+	/**
+	 * 批量更新第三方登录记录, 只更新数据库中 expireTime 不晚于记录 expireTime 的行, 用于重放日志等可能写入过期数据的场景,
+	 * 避免旧记录覆盖之后已更新的 token. <br>
+	 * 默认实现逐个通过 {@link #getConnection(String, ConnectionKey)} 比较 expireTime 后调用
+	 * {@link #updateConnection(ConnectionData)}, 比较与更新不是原子操作, 自定义实现应覆盖此方法使用条件更新.
+	 * @param connections   需要更新的第三方登录记录
+	 */
+	default void updateConnectionsIfNotStale(List<ConnectionData> connections) {
+		for (ConnectionData connection : connections)
+		{
+			ConnectionData current;
+			try
+			{
+				current = getConnection(connection.getUserId(),
+				                        new ConnectionKey(connection.getProviderId(), connection.getProviderUserId()));
+			}
+			catch (NoSuchConnectionException e)
+			{
+				continue;
+			}
+			if (current.getExpireTime() == null || connection.getExpireTime() == null
+					|| current.getExpireTime() <= connection.getExpireTime())
+			{
+				updateConnection(connection);
+			}
+		}
+	}
+
 	/**
 	 * 解除绑定.
 	 * Remove all Connections between the current user and the provider from this repository.
@@ -189,6 +230,20 @@ public interface UsersConnectionRepository {
 	 */
 	ConnectionData updateConnectionByTokenId(AuthTokenPo token);
 
+	/**
+	 * 根据 {@code AuthTokenPo#getId()} 批量更新 {@link ConnectionData} 的 accessToken, refreshToken 与 expireTime,
+	 * 用于 refreshToken 定时任务的批量写入. <br>
+	 * 默认实现逐个调用 {@link #updateConnectionByTokenId(AuthTokenPo)}, 注意: 此时不经过 spring cache 代理,
+	 * 使用缓存的自定义实现需要覆盖此方法并自行失效缓存.
+	 * @param tokens    刷新后的 {@link AuthTokenPo}
+	 */
+	default void updateConnectionsByTokenIds(List<AuthTokenPo> tokens) {
+		for (AuthTokenPo token : tokens)
+		{
+			updateConnectionByTokenId(token);
+		}
+	}
+
 	/**
 	 * 根据 tokenId 查找 {@link ConnectionData}<br>
 	 * 注意: 这里不做 spring cache 缓存处理, 这个接口主要用于 refreshToken 的定时任务, 只调用一次, 缓存无意义
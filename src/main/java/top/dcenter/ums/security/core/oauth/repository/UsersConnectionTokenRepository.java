@@ -23,11 +23,15 @@
 
 package top.dcenter.ums.security.core.oauth.repository;
 
+import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.lang.NonNull;
 import org.springframework.lang.Nullable;
 import top.dcenter.ums.security.core.oauth.entity.AuthTokenPo;
 import top.dcenter.ums.security.core.oauth.enums.EnableRefresh;
+import top.dcenter.ums.security.core.oauth.enums.RefreshTokenClaimMode;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -66,6 +70,44 @@ public interface UsersConnectionTokenRepository {
 	@NonNull
 	AuthTokenPo updateAuthToken(@NonNull AuthTokenPo authToken) throws Exception;
 
+	/**
+	 * 批量更新 {@link AuthTokenPo}, 用于合并后的批量写入. <br>
+	 * 默认实现逐个调用 {@link #updateAuthToken(AuthTokenPo)}, 注意: 此时不经过 spring cache 代理,
+	 * 使用缓存的自定义实现需要覆盖此方法并自行失效缓存.
+	 * @param authTokens    需要更新的 {@link AuthTokenPo}
+	 * @throws Exception    数据更新异常
+	 */
+	default void updateAuthTokens(@NonNull List<AuthTokenPo> authTokens) throws Exception {
+		for (AuthTokenPo authToken : authTokens)
+		{
+			updateAuthToken(authToken);
+		}
+	}
+
+	/**
+	 * 批量更新 {@link AuthTokenPo}, 只更新数据库中 expireTime 不晚于记录 expireTime 的行, 用于重放日志等可能写入过期数据的场景,
+	 * 避免旧记录覆盖之后已刷新的 token. <br>
+	 * 默认实现逐个通过 {@link #findAuthTokenById(String)} 比较 expireTime 后调用 {@link #updateAuthToken(AuthTokenPo)},
+	 * 比较与更新不是原子操作, 自定义实现应覆盖此方法使用条件更新.
+	 * @param authTokens    需要更新的 {@link AuthTokenPo}
+	 * @throws Exception    数据更新异常
+	 */
+	default void updateAuthTokensIfNotStale(@NonNull List<AuthTokenPo> authTokens) throws Exception {
+		for (AuthTokenPo authToken : authTokens)
+		{
+			final AuthTokenPo current = findAuthTokenById(authToken.getId().toString());
+			if (current == null)
+			{
+				continue;
+			}
+			if (current.getExpireTime() == null || authToken.getExpireTime() == null
+					|| current.getExpireTime() <= authToken.getExpireTime())
+			{
+				updateAuthToken(authToken);
+			}
+		}
+	}
+
 	/**
 	 * 删除 id = tokenId 的记录
 	 * @param tokenId   tokenId
@@ -94,6 +136,135 @@ public interface UsersConnectionTokenRepository {
 	List<AuthTokenPo> findAuthTokenByExpireTimeAndBetweenId(@NonNull Long expiredTime, @NonNull Long startId,
 	                                                        @NonNull Long endId) throws Exception;
 
+	/**
+	 * 是否支持 {@link #findDueAuthTokens(Long, Long, Long, Long, int)} 键集分页查询, 默认: false.<br>
+	 *     返回 false 时定时任务使用 {@link #findAuthTokenByExpireTimeAndBetweenId(Long, Long, Long)} 按 id 范围遍历.
+	 * @return  是否支持键集分页查询
+	 */
+	default boolean supportsDueScan() {
+		return false;
+	}
+
+	/**
+	 * 是否支持租约: {@link #claimDueAuthTokens(Long, String, Long, Long, int, RefreshTokenClaimMode)},
+	 * {@link #claimAuthToken(Long, String, Long, Long)} 与 {@link #releaseAuthTokenClaim(Long, String)}, 默认: false.<br>
+	 *     返回 false 时没有 redis 的分布式定时任务降级为每台服务器都执行全部刷新任务, 按需刷新 token 只在本机合并刷新请求.
+	 * @return  是否支持租约
+	 */
+	default boolean supportsClaim() {
+		return false;
+	}
+
+	/**
+	 * 按 (expireTime, id) 排序的键集分页(keyset pagination), 获取 enableRefresh=1 且 (expireTime, id) 排在
+	 * (lastExpireTime, lastId) 之后且不超过 (expiredTime, maxId) 的 token 数据, 需要 (enableRefresh, expireTime, id) 索引.<br>
+	 *     用于定时 refreshToken 任务, 不做 spring cache 缓存处理. 只在 {@link #supportsDueScan()} 返回 true 时调用,
+	 *     默认实现返回空列表.
+	 * @param expiredTime       过期时间, 范围上界(包含)的 expireTime
+	 * @param maxId             范围上界(包含)的 id, 不分区时为 {@link Long#MAX_VALUE}
+	 * @param lastExpireTime    上一页最后一条记录的 expireTime, 第一页为范围下界(不包含)的 expireTime 或 {@link Long#MIN_VALUE}
+	 * @param lastId            上一页最后一条记录的 id, 第一页为范围下界(不包含)的 id 或 0
+	 * @param pageSize          每页记录数
+	 * @return  符合条件的 {@link AuthTokenPo} 列表, 记录数小于 pageSize 时表示没有下一页
+	 * @throws Exception   查询错误
+	 */
+	@NonNull
+	default List<AuthTokenPo> findDueAuthTokens(@NonNull Long expiredTime, @NonNull Long maxId,
+	                                            @NonNull Long lastExpireTime, @NonNull Long lastId,
+	                                            int pageSize) throws Exception {
+		return new ArrayList<>();
+	}
+
+	/**
+	 * 把过期时间小于等于 expiredTime 且 enableRefresh=1 的 token 按 (expireTime, id) 顺序划分为最多 partitionCount 个
+	 * 记录数相近的范围, 返回前 n - 1 个范围的上界(包含) {expireTime, id}, 用于分布式定时 refreshToken 任务按范围分区,
+	 * 每个分区通过 {@link #findDueAuthTokens(Long, Long, Long, Long, int)} 只扫描自己的索引范围.<br>
+	 *     只在 {@link #supportsDueScan()} 返回 true 时调用, 默认实现返回空列表, 即不分区.
+	 * @param expiredTime       过期时间
+	 * @param partitionCount    最大分区数
+	 * @return  按顺序排列的分区上界 {expireTime, id}, 最多 partitionCount - 1 个
+	 * @throws Exception   查询错误
+	 */
+	@NonNull
+	default List<long[]> findDueAuthTokenBoundaries(@NonNull Long expiredTime, int partitionCount) throws Exception {
+		return new ArrayList<>();
+	}
+
+	/**
+	 * 根据 tokenId 批量获取 token 数据, 不存在的 tokenId 不返回.<br>
+	 *     用于到期 token 队列的刷新线程, 不做 spring cache 缓存处理. 默认实现逐个调用 {@link #findAuthTokenById(String)}.
+	 * @param tokenIds  token id
+	 * @return  {@link AuthTokenPo} 列表
+	 * @throws Exception   查询错误
+	 */
+	@NonNull
+	default List<AuthTokenPo> findAuthTokensByIds(@NonNull List<Long> tokenIds) throws Exception {
+		final List<AuthTokenPo> authTokens = new ArrayList<>(tokenIds.size());
+		for (Long tokenId : tokenIds)
+		{
+			try
+			{
+				final AuthTokenPo authToken = findAuthTokenById(tokenId.toString());
+				if (authToken != null)
+				{
+					authTokens.add(authToken);
+				}
+			}
+			catch (EmptyResultDataAccessException e)
+			{
+				// token 已删除
+			}
+		}
+		return authTokens;
+	}
+
+	/**
+	 * 领取(claim)过期时间小于等于 expiredTime 且 enableRefresh=1 且租约(claimedUntil)已过期的 token 数据, 按 (expireTime, id) 排序,
+	 * 最多 limit 条, 并把租约设置为 (claimedBy, claimedUntil), 租约期间其他服务器不会领取这些 token.<br>
+	 *     用于没有 redis 时的分布式定时 refreshToken 任务, 不做 spring cache 缓存处理. 只在 {@link #supportsClaim()}
+	 *     返回 true 时调用, 默认实现不领取并返回空列表.
+	 * @param expiredTime   过期时间
+	 * @param claimedBy     租约标识, 每次领取唯一
+	 * @param now           当前时间戳, 租约过期时间小于此时间戳的记录可以领取
+	 * @param claimedUntil  租约过期时间戳
+	 * @param limit         最多领取的记录数
+	 * @param mode          领取模式, {@link RefreshTokenClaimMode#SKIP_LOCKED} 或 {@link RefreshTokenClaimMode#LEASE}
+	 * @return  领取成功的 {@link AuthTokenPo} 列表, 为空时表示没有可领取的记录
+	 * @throws Exception   查询或更新错误
+	 */
+	@NonNull
+	default List<AuthTokenPo> claimDueAuthTokens(@NonNull Long expiredTime, @NonNull String claimedBy,
+	                                             @NonNull Long now, @NonNull Long claimedUntil, int limit,
+	                                             @NonNull RefreshTokenClaimMode mode) throws Exception {
+		return new ArrayList<>();
+	}
+
+	/**
+	 * 领取(claim)单个 token 的租约, 租约(claimedUntil)已过期时写入新租约, 用于多台服务器同时刷新同一 token 时只有一台刷新.<br>
+	 * 只在 {@link #supportsClaim()} 返回 true 时调用, 默认实现不领取并返回 false.
+	 * @param tokenId       token id
+	 * @param claimedBy     租约标识
+	 * @param now           当前时间戳
+	 * @param claimedUntil  租约过期时间戳
+	 * @return  是否领取成功
+	 * @throws Exception    更新异常
+	 */
+	default boolean claimAuthToken(@NonNull Long tokenId, @NonNull String claimedBy,
+	                               @NonNull Long now, @NonNull Long claimedUntil) throws Exception {
+		return false;
+	}
+
+	/**
+	 * 释放 {@link #claimAuthToken(Long, String, Long, Long)} 领取的租约, 租约标识不是 claimedBy 时什么都不做.<br>
+	 * 只在 {@link #supportsClaim()} 返回 true 时调用, 默认实现什么都不做.
+	 * @param tokenId       token id
+	 * @param claimedBy     租约标识
+	 * @throws Exception    更新异常
+	 */
+	default void releaseAuthTokenClaim(@NonNull Long tokenId, @NonNull String claimedBy) throws Exception {
+		// 默认不支持租约, 没有需要释放的租约
+	}
+
 	/**
 	 * 根据 tokenId 更新 auth_token 表中的 enableRefresh 字段
 	 * @param enableRefresh {@link EnableRefresh}
@@ -102,5 +273,20 @@ public interface UsersConnectionTokenRepository {
 	 */
 	void updateEnableRefreshByTokenId(@NonNull EnableRefresh enableRefresh, @NonNull Long tokenId) throws Exception;
 
+	/**
+	 * 批量更新 providerIds 对应的第三方的所有 token 的 enableRefresh 字段, 如: 把不支持 refresh token 的第三方的 token 更新为
+	 * {@link EnableRefresh#NO}, 定时任务不再获取这些 token.<br>
+	 * 默认实现不批量更新并返回 0, 定时任务刷新这些 token 时通过 {@link #updateEnableRefreshByTokenId(EnableRefresh, Long)}
+	 * 逐个更新.
+	 * @param enableRefresh {@link EnableRefresh}
+	 * @param providerIds   第三方服务商 ID
+	 * @return  更新的记录数
+	 * @throws Exception    更新异常
+	 */
+	default int updateEnableRefreshByProviderIds(@NonNull EnableRefresh enableRefresh,
+	                                             @NonNull Collection<String> providerIds) throws Exception {
+		return 0;
+	}
+
 
 }
\ No newline at end of file
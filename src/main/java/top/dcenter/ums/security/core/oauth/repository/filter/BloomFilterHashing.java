@@ -0,0 +1,166 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.repository.filter;
+
+/**
+ * 布隆过滤器的哈希: MurmurHash3 x64 128 位, 使用双重哈希(h1 + i * h2)生成 k 个位索引.
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/8 9:12
+ */
+final class BloomFilterHashing {
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private BloomFilterHashing() {}
+
+    /**
+     * 位数组大小: m = -n * ln(p) / (ln2)^2
+     * @param expectedInsertions    预计插入数量
+     * @param fpp                   误判率
+     * @return  位数组大小
+     */
+    static long optimalNumOfBits(long expectedInsertions, double fpp) {
+        return (long) Math.ceil(-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+    }
+
+    /**
+     * 哈希函数个数: k = m / n * ln2
+     * @param expectedInsertions    预计插入数量
+     * @param numBits               位数组大小
+     * @return  哈希函数个数
+     */
+    static int optimalNumOfHashFunctions(long expectedInsertions, long numBits) {
+        return Math.max(1, (int) Math.round((double) numBits / expectedInsertions * Math.log(2)));
+    }
+
+    /**
+     * @param hash      {@link #hash128(byte[])} 的结果
+     * @param numHashes 哈希函数个数
+     * @param numBits   位数组大小
+     * @return  k 个位索引
+     */
+    static long[] indexes(long[] hash, int numHashes, long numBits) {
+        long[] indexes = new long[numHashes];
+        long combined = hash[0];
+        for (int i = 0; i < numHashes; i++)
+        {
+            indexes[i] = (combined & Long.MAX_VALUE) % numBits;
+            combined += hash[1];
+        }
+        return indexes;
+    }
+
+    static long[] hash128(byte[] data) {
+        final int length = data.length;
+        final int blocks = length >>> 4;
+        long h1 = 0L;
+        long h2 = 0L;
+
+        for (int i = 0; i < blocks; i++)
+        {
+            long k1 = getLong(data, i << 4);
+            long k2 = getLong(data, (i << 4) + 8);
+
+            h1 ^= mixK1(k1);
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            h2 ^= mixK2(k2);
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        long k1 = 0L;
+        long k2 = 0L;
+        final int tail = blocks << 4;
+        switch (length & 15)
+        {
+            case 15: k2 ^= (long) (data[tail + 14] & 0xff) << 48;
+            case 14: k2 ^= (long) (data[tail + 13] & 0xff) << 40;
+            case 13: k2 ^= (long) (data[tail + 12] & 0xff) << 32;
+            case 12: k2 ^= (long) (data[tail + 11] & 0xff) << 24;
+            case 11: k2 ^= (long) (data[tail + 10] & 0xff) << 16;
+            case 10: k2 ^= (long) (data[tail + 9] & 0xff) << 8;
+            case 9: k2 ^= data[tail + 8] & 0xff;
+                h2 ^= mixK2(k2);
+            case 8: k1 ^= (long) (data[tail + 7] & 0xff) << 56;
+            case 7: k1 ^= (long) (data[tail + 6] & 0xff) << 48;
+            case 6: k1 ^= (long) (data[tail + 5] & 0xff) << 40;
+            case 5: k1 ^= (long) (data[tail + 4] & 0xff) << 32;
+            case 4: k1 ^= (long) (data[tail + 3] & 0xff) << 24;
+            case 3: k1 ^= (long) (data[tail + 2] & 0xff) << 16;
+            case 2: k1 ^= (long) (data[tail + 1] & 0xff) << 8;
+            case 1: k1 ^= data[tail] & 0xff;
+                h1 ^= mixK1(k1);
+            default:
+        }
+
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+        h1 += h2;
+        h2 += h1;
+        return new long[]{h1, h2};
+    }
+
+    private static long getLong(byte[] data, int offset) {
+        return (data[offset] & 0xffL)
+                | (data[offset + 1] & 0xffL) << 8
+                | (data[offset + 2] & 0xffL) << 16
+                | (data[offset + 3] & 0xffL) << 24
+                | (data[offset + 4] & 0xffL) << 32
+                | (data[offset + 5] & 0xffL) << 40
+                | (data[offset + 6] & 0xffL) << 48
+                | (data[offset + 7] & 0xffL) << 56;
+    }
+
+    private static long mixK1(long k1) {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        k1 *= C2;
+        return k1;
+    }
+
+    private static long mixK2(long k2) {
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        k2 *= C1;
+        return k2;
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.repository.filter;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+import top.dcenter.ums.security.core.oauth.properties.RepositoryProperties;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * 已存在的第三方登录记录 (providerId, providerUserId) 的布隆过滤器: 首次第三方登录时跳过缓存与 user_connection 查询. <br>
+ * 1. 进程内使用 {@link ScalableBloomFilter}, 启动时在后台线程流式读取 user_connection 构建, 构建完成前总是返回 true. <br>
+ * 2. 开启 redis 时同时使用 {@link RedisBloomFilter}: 进程内过滤器返回 false 时再查询 redis,
+ *    使其他应用实例新增的第三方登录记录也能被识别; 不使用 redis 时必须声明单实例部署(single-node), 否则启动失败. <br>
+ * 3. addConnection 时写入; 写入 redis 失败时使 redis 过滤器失效, 并在后台从数据库重新构建 redis 过滤器. <br>
+ * 4. 布隆过滤器不支持删除, removeConnection 后只是多一次误判, 直到下次重启重新构建.
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/8 11:05
+ */
+@Slf4j
+public class ConnectionBloomFilter implements SmartInitializingSingleton, DisposableBean {
+
+    private static final char SEPARATOR = '\u0000';
+
+    private final JdbcTemplate jdbcTemplate;
+    private final RepositoryProperties repositoryProperties;
+    private final RepositoryProperties.BloomFilter properties;
+    private final ScalableBloomFilter localBloomFilter;
+    @Nullable
+    private final RedisBloomFilter redisBloomFilter;
+
+    /**
+     * 进程内过滤器是否构建完成
+     */
+    private volatile boolean localReady = false;
+    private volatile boolean closed = false;
+    private Thread builder;
+    /**
+     * redis 过滤器重新构建是否已在计划中
+     */
+    private final AtomicBoolean rebuildScheduled = new AtomicBoolean(false);
+    private volatile ScheduledExecutorService rebuildExecutor;
+
+    /**
+     * @param jdbcTemplate          user_connection 的 JdbcTemplate
+     * @param repositoryProperties  {@link RepositoryProperties}
+     * @param redisBloomFilter      为 null 时只使用进程内过滤器, 此时必须声明单实例部署
+     * @throws IllegalStateException    redisBloomFilter 为 null 且没有声明单实例部署时
+     */
+    public ConnectionBloomFilter(@NonNull JdbcTemplate jdbcTemplate,
+                                 @NonNull RepositoryProperties repositoryProperties,
+                                 @Nullable RedisBloomFilter redisBloomFilter) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.repositoryProperties = repositoryProperties;
+        this.properties = repositoryProperties.getBloomFilter();
+        if (redisBloomFilter == null && !properties.getSingleNode())
+        {
+            // 多实例部署时只使用进程内过滤器, 其他实例新增的记录会被误判为不存在, 导致重复注册
+            throw new IllegalStateException("第三方登录记录布隆过滤器: 多实例部署时需要开启 ums.repository.bloom-filter.redis-enabled, "
+                                                    + "单实例部署时设置 ums.repository.bloom-filter.single-node=true");
+        }
+        this.localBloomFilter = new ScalableBloomFilter(properties.getInitialCapacity(), properties.getFpp());
+        this.redisBloomFilter = redisBloomFilter;
+    }
+
+    /**
+     * @param providerId        第三方服务商
+     * @param providerUserId    第三方用户 Id
+     * @return  返回 false 时一定不存在此第三方登录记录; 未构建完成或 redis 异常时返回 true
+     */
+    public boolean mightContain(@NonNull String providerId, @NonNull String providerUserId) {
+        final long[] hash = hash(providerId, providerUserId);
+        if (localReady && localBloomFilter.mightContain(hash))
+        {
+            return true;
+        }
+        if (redisBloomFilter == null)
+        {
+            return !localReady;
+        }
+        try
+        {
+            return redisBloomFilter.mightContain(hash);
+        }
+        catch (RuntimeException e)
+        {
+            log.warn("redis异常: 查询第三方登录记录布隆过滤器失败, providerId={}, providerUserId={}: {}",
+                     providerId, providerUserId, e.getMessage());
+            return true;
+        }
+    }
+
+    /**
+     * 添加第三方登录记录
+     * @param providerId        第三方服务商
+     * @param providerUserId    第三方用户 Id
+     */
+    public void put(@NonNull String providerId, @NonNull String providerUserId) {
+        final long[] hash = hash(providerId, providerUserId);
+        localBloomFilter.put(hash);
+        if (redisBloomFilter == null)
+        {
+            return;
+        }
+        try
+        {
+            redisBloomFilter.put(hash);
+        }
+        catch (RuntimeException e)
+        {
+            log.error("redis异常: 写入第三方登录记录布隆过滤器失败, 使 redis 过滤器失效并重新构建, providerId={}, providerUserId={}",
+                      providerId, providerUserId, e);
+            try
+            {
+                redisBloomFilter.invalidate();
+            }
+            catch (RuntimeException ex)
+            {
+                log.error("redis异常: 使第三方登录记录布隆过滤器失效失败: {}", ex.getMessage());
+            }
+            scheduleRebuild();
+        }
+    }
+
+    public boolean isLocalReady() {
+        return localReady;
+    }
+
+    /**
+     * @return 进程内过滤器已插入的元素数量
+     */
+    public long getLocalCount() {
+        return localBloomFilter.getCount();
+    }
+
+    @Override
+    public void afterSingletonsInstantiated() {
+        builder = new Thread(this::build, "connectionBloomFilterBuilder");
+        builder.setDaemon(true);
+        builder.start();
+    }
+
+    @Override
+    public void destroy() {
+        closed = true;
+        if (builder != null)
+        {
+            builder.interrupt();
+        }
+        if (rebuildExecutor != null)
+        {
+            rebuildExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * 在 rebuildDelay 后从数据库重新构建 redis 过滤器, 已在计划中时忽略
+     */
+    void scheduleRebuild() {
+        if (closed || redisBloomFilter == null || !rebuildScheduled.compareAndSet(false, true))
+        {
+            return;
+        }
+        getRebuildExecutor().schedule(this::rebuildRedis, properties.getRebuildDelay().toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 使 redis 过滤器失效后从数据库重新构建. 其他实例正在构建时, 其读取的数据可能不包含本实例写入失败的记录,
+     * 所以获取不到构建锁或 redis 异常时都会再次计划重新构建, 直到本实例完成一次构建.
+     */
+    private void rebuildRedis() {
+        rebuildScheduled.set(false);
+        if (closed)
+        {
+            return;
+        }
+        //noinspection ConstantConditions
+        final RedisBloomFilter redis = redisBloomFilter;
+        try
+        {
+            redis.invalidate();
+            if (!redis.tryLockBuild(properties.getBuildLockTtl()))
+            {
+                log.info("第三方登录记录 redis 布隆过滤器正在由其他实例构建, {} 后重试", properties.getRebuildDelay());
+                scheduleRebuild();
+                return;
+            }
+            final long start = System.currentTimeMillis();
+            final int batchSize = properties.getRedisBatchSize();
+            final List<long[]> batch = new ArrayList<>(batchSize);
+            streamConnections(hash -> {
+                batch.add(hash);
+                if (batch.size() >= batchSize)
+                {
+                    redis.putAll(batch);
+                    batch.clear();
+                }
+            });
+            if (!batch.isEmpty())
+            {
+                redis.putAll(batch);
+            }
+            redis.markReady();
+            log.info("第三方登录记录 redis 布隆过滤器重新构建完成, 耗时 {} ms", System.currentTimeMillis() - start);
+        }
+        catch (RuntimeException e)
+        {
+            if (closed)
+            {
+                return;
+            }
+            log.error("第三方登录记录 redis 布隆过滤器重新构建失败, {} 后重试: {}", properties.getRebuildDelay(), e.getMessage());
+            scheduleRebuild();
+        }
+    }
+
+    private ScheduledExecutorService getRebuildExecutor() {
+        if (rebuildExecutor == null)
+        {
+            synchronized (this)
+            {
+                if (rebuildExecutor == null)
+                {
+                    rebuildExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                        Thread thread = new Thread(runnable, "connectionBloomFilterRebuilder");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+            }
+        }
+        return rebuildExecutor;
+    }
+
+    /**
+     * 流式读取 user_connection 构建过滤器; 构建期间 addConnection 写入的记录同样会写入过滤器.
+     */
+    private void build() {
+        final long start = System.currentTimeMillis();
+        boolean buildRedis = false;
+        try
+        {
+            buildRedis = redisBloomFilter != null
+                    && !redisBloomFilter.isReady()
+                    && redisBloomFilter.tryLockBuild(properties.getBuildLockTtl());
+        }
+        catch (RuntimeException e)
+        {
+            log.warn("redis异常: 获取第三方登录记录布隆过滤器构建锁失败: {}", e.getMessage());
+        }
+
+        final boolean withRedis = buildRedis;
+        final int batchSize = properties.getRedisBatchSize();
+        final List<long[]> batch = new ArrayList<>(withRedis ? batchSize : 0);
+        try
+        {
+            streamConnections(hash -> {
+                localBloomFilter.put(hash);
+                if (withRedis)
+                {
+                    batch.add(hash);
+                    if (batch.size() >= batchSize)
+                    {
+                        redisBloomFilter.putAll(batch);
+                        batch.clear();
+                    }
+                }
+            });
+            localReady = true;
+            if (withRedis)
+            {
+                if (!batch.isEmpty())
+                {
+                    redisBloomFilter.putAll(batch);
+                }
+                redisBloomFilter.markReady();
+            }
+            log.info("第三方登录记录布隆过滤器构建完成: count={}, redis={}, 耗时 {} ms",
+                     localBloomFilter.getCount(), withRedis, System.currentTimeMillis() - start);
+        }
+        catch (RuntimeException e)
+        {
+            if (closed)
+            {
+                return;
+            }
+            // 构建失败时过滤器保持未就绪, 不影响正常查询
+            log.error("第三方登录记录布隆过滤器构建失败: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 流式读取 user_connection 的 (providerId, providerUserId)
+     * @param consumer  {@link BloomFilterHashing#hash128(byte[])} 的结果
+     */
+    private void streamConnections(Consumer<long[]> consumer) {
+        JdbcTemplate template = new JdbcTemplate(jdbcTemplate.getDataSource());
+        template.setFetchSize(properties.getFetchSize());
+        template.query(String.format("select %s, %s from %s",
+                                     repositoryProperties.getProviderIdColumnName(),
+                                     repositoryProperties.getProviderUserIdColumnName(),
+                                     repositoryProperties.getUserConnectionTableName()),
+                       rs -> {
+                           if (closed)
+                           {
+                               throw new IllegalStateException("application is closing");
+                           }
+                           consumer.accept(hash(rs.getString(1), rs.getString(2)));
+                       });
+    }
+
+    private static long[] hash(String providerId, String providerUserId) {
+        return BloomFilterHashing.hash128((providerId + SEPARATOR + providerUserId).getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.repository.filter;
+
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.RedisStringCommands.SetOption;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.lang.NonNull;
+import org.springframework.util.Assert;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * 使用 redis bitmap(SETBIT/GETBIT) 的布隆过滤器, 多个应用实例共享. <br>
+ * redis bitmap 最大 2^32 位, 所以不扩容, 位数组大小由 expectedInsertions 与 fpp 确定. 位数组大小或哈希函数个数变化时使用新的 key,
+ * 所有 key 使用相同的 hash tag, Redis Cluster 时在同一个 slot. <br>
+ * 未构建完成(不存在 ready key)时 {@link #mightContain(byte[])} 总是返回 true.
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/8 10:21
+ */
+public class RedisBloomFilter {
+
+    /**
+     * redis bitmap 的最大位数
+     */
+    private static final long MAX_BITS = 1L << 32;
+    private static final byte[] READY_VALUE = "1".getBytes(StandardCharsets.UTF_8);
+
+    private final RedisConnectionFactory connectionFactory;
+    private final long numBits;
+    private final int numHashes;
+    private final byte[] bitsKey;
+    private final byte[] readyKey;
+    private final byte[] buildLockKey;
+
+    /**
+     * @param connectionFactory     redis 连接工厂
+     * @param keyPrefix             redis key 前缀, 如: ums:bloom:uc
+     * @param expectedInsertions    预计插入数量
+     * @param fpp                   误判率, 取值范围: (0, 1)
+     */
+    public RedisBloomFilter(@NonNull RedisConnectionFactory connectionFactory, @NonNull String keyPrefix,
+                            long expectedInsertions, double fpp) {
+        Assert.notNull(connectionFactory, "connectionFactory must not be null");
+        Assert.hasText(keyPrefix, "keyPrefix must not be empty");
+        Assert.isTrue(expectedInsertions > 0, "expectedInsertions must be greater than 0");
+        Assert.isTrue(fpp > 0D && fpp < 1D, "fpp must be between 0 and 1");
+        this.connectionFactory = connectionFactory;
+        this.numBits = Math.min(BloomFilterHashing.optimalNumOfBits(expectedInsertions, fpp), MAX_BITS);
+        this.numHashes = BloomFilterHashing.optimalNumOfHashFunctions(expectedInsertions, numBits);
+        String key = "{" + keyPrefix + "}:" + numBits + ":" + numHashes;
+        this.bitsKey = key.getBytes(StandardCharsets.UTF_8);
+        this.readyKey = (key + ":ready").getBytes(StandardCharsets.UTF_8);
+        this.buildLockKey = (key + ":building").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 在一个 pipeline 中检查 ready key 与 k 个位
+     * @param value 元素
+     * @return  返回 false 时 value 一定不存在; 未构建完成时返回 true
+     */
+    public boolean mightContain(byte[] value) {
+        return mightContain(BloomFilterHashing.hash128(value));
+    }
+
+    /**
+     * @param value 元素
+     */
+    public void put(byte[] value) {
+        put(BloomFilterHashing.hash128(value));
+    }
+
+    boolean mightContain(long[] hash) {
+        final long[] indexes = BloomFilterHashing.indexes(hash, numHashes, numBits);
+        List<Object> results = executePipelined(connection -> {
+            connection.exists(readyKey);
+            for (long index : indexes)
+            {
+                connection.getBit(bitsKey, index);
+            }
+            return null;
+        });
+        if (!Boolean.TRUE.equals(results.get(0)))
+        {
+            return true;
+        }
+        for (int i = 1, len = results.size(); i < len; i++)
+        {
+            if (!Boolean.TRUE.equals(results.get(i)))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void put(long[] hash) {
+        putAll(Collections.singletonList(hash));
+    }
+
+    /**
+     * 在一个 pipeline 中设置多个元素的位
+     * @param hashes    {@link BloomFilterHashing#hash128(byte[])} 的结果
+     */
+    void putAll(List<long[]> hashes) {
+        executePipelined(connection -> {
+            for (long[] hash : hashes)
+            {
+                for (long index : BloomFilterHashing.indexes(hash, numHashes, numBits))
+                {
+                    connection.setBit(bitsKey, index, true);
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * @return 是否已构建完成
+     */
+    public boolean isReady() {
+        return execute(connection -> connection.exists(readyKey));
+    }
+
+    /**
+     * 获取构建锁, 同一时间只有一个应用实例从数据库构建
+     * @param ttl   锁的过期时间
+     * @return  是否获取成功
+     */
+    boolean tryLockBuild(Duration ttl) {
+        return execute(connection -> connection.set(buildLockKey, READY_VALUE,
+                                                     Expiration.from(ttl), SetOption.SET_IF_ABSENT));
+    }
+
+    /**
+     * 标记构建完成并释放构建锁
+     */
+    void markReady() {
+        execute(connection -> {
+            connection.set(readyKey, READY_VALUE);
+            connection.del(buildLockKey);
+            return Boolean.TRUE;
+        });
+    }
+
+    /**
+     * 删除 ready key: 写入失败时使过滤器失效(总是返回 true), 直到下次构建完成
+     */
+    void invalidate() {
+        execute(connection -> connection.del(readyKey) != null);
+    }
+
+    public long getNumBits() {
+        return numBits;
+    }
+
+    public int getNumHashes() {
+        return numHashes;
+    }
+
+    private List<Object> executePipelined(Function<RedisConnection, Object> callback) {
+        RedisConnection connection = connectionFactory.getConnection();
+        //noinspection TryFinallyCanBeTryWithResources
+        try
+        {
+            connection.openPipeline();
+            callback.apply(connection);
+            // closePipeline 按顺序返回 pipeline 中所有命令的结果
+            return connection.closePipeline();
+        }
+        finally
+        {
+            connection.close();
+        }
+    }
+
+    private boolean execute(Function<RedisConnection, Boolean> callback) {
+        RedisConnection connection = connectionFactory.getConnection();
+        //noinspection TryFinallyCanBeTryWithResources
+        try
+        {
+            return Boolean.TRUE.equals(callback.apply(connection));
+        }
+        finally
+        {
+            connection.close();
+        }
+    }
+}
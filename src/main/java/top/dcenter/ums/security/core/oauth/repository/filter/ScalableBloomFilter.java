@@ -0,0 +1,200 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.repository.filter;
+
+import org.springframework.util.Assert;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 进程内可扩容的布隆过滤器(Scalable Bloom Filter), 线程安全. <br>
+ * 当前分片插入数量达到容量时追加新分片, 新分片容量翻倍且误判率减半, 总误判率不超过 fpp * 2.
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/8 9:40
+ */
+public class ScalableBloomFilter {
+
+    /**
+     * 新分片的容量增长倍数
+     */
+    private static final int GROWTH = 2;
+    /**
+     * 新分片的误判率收紧比例
+     */
+    private static final double TIGHTENING_RATIO = 0.5D;
+
+    private final List<Slice> slices = new CopyOnWriteArrayList<>();
+    private final double fpp;
+
+    /**
+     * @param initialCapacity   第一个分片的容量
+     * @param fpp               误判率, 取值范围: (0, 1)
+     */
+    public ScalableBloomFilter(long initialCapacity, double fpp) {
+        Assert.isTrue(initialCapacity > 0, "initialCapacity must be greater than 0");
+        Assert.isTrue(fpp > 0D && fpp < 1D, "fpp must be between 0 and 1");
+        // 各分片误判率为 fpp * (1 - r) * r^i, 求和不超过 fpp
+        this.fpp = fpp;
+        this.slices.add(new Slice(initialCapacity, fpp * (1 - TIGHTENING_RATIO)));
+    }
+
+    /**
+     * @param value 元素
+     * @return  返回 false 时 value 一定不存在
+     */
+    public boolean mightContain(byte[] value) {
+        return mightContain(BloomFilterHashing.hash128(value));
+    }
+
+    /**
+     * @param value 元素
+     */
+    public void put(byte[] value) {
+        put(BloomFilterHashing.hash128(value));
+    }
+
+    /**
+     * @param hash  {@link BloomFilterHashing#hash128(byte[])} 的结果
+     * @return  返回 false 时 value 一定不存在
+     */
+    boolean mightContain(long[] hash) {
+        for (Slice slice : slices)
+        {
+            if (slice.mightContain(hash))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param hash  {@link BloomFilterHashing#hash128(byte[])} 的结果
+     */
+    void put(long[] hash) {
+        if (mightContain(hash))
+        {
+            return;
+        }
+        currentSlice().put(hash);
+    }
+
+    /**
+     * @return 分片数量
+     */
+    public int getSliceCount() {
+        return slices.size();
+    }
+
+    /**
+     * @return 已插入的元素数量(不含重复元素)
+     */
+    public long getCount() {
+        long count = 0L;
+        for (Slice slice : slices)
+        {
+            count += slice.count.get();
+        }
+        return count;
+    }
+
+    public double getFpp() {
+        return fpp;
+    }
+
+    private Slice currentSlice() {
+        Slice current = slices.get(slices.size() - 1);
+        if (current.count.get() < current.capacity)
+        {
+            return current;
+        }
+        synchronized (slices)
+        {
+            current = slices.get(slices.size() - 1);
+            if (current.count.get() >= current.capacity)
+            {
+                current = new Slice(current.capacity * GROWTH, current.fpp * TIGHTENING_RATIO);
+                slices.add(current);
+            }
+            return current;
+        }
+    }
+
+    private static final class Slice {
+
+        private final long capacity;
+        private final double fpp;
+        private final long numBits;
+        private final int numHashes;
+        private final AtomicLongArray bits;
+        private final AtomicLong count = new AtomicLong();
+
+        private Slice(long capacity, double fpp) {
+            this.capacity = capacity;
+            this.fpp = fpp;
+            // 按 64 位对齐
+            this.numBits = ((BloomFilterHashing.optimalNumOfBits(capacity, fpp) + 63) >>> 6) << 6;
+            this.numHashes = BloomFilterHashing.optimalNumOfHashFunctions(capacity, numBits);
+            this.bits = new AtomicLongArray(Math.toIntExact(numBits >>> 6));
+        }
+
+        private boolean mightContain(long[] hash) {
+            for (long index : BloomFilterHashing.indexes(hash, numHashes, numBits))
+            {
+                if ((bits.get((int) (index >>> 6)) & (1L << index)) == 0L)
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void put(long[] hash) {
+            boolean changed = false;
+            for (long index : BloomFilterHashing.indexes(hash, numHashes, numBits))
+            {
+                final int i = (int) (index >>> 6);
+                final long mask = 1L << index;
+                long word;
+                do
+                {
+                    word = bits.get(i);
+                    if ((word & mask) != 0L)
+                    {
+                        break;
+                    }
+                }
+                while (!bits.compareAndSet(i, word, word | mask));
+                changed |= (word & mask) == 0L;
+            }
+            if (changed)
+            {
+                count.incrementAndGet();
+            }
+        }
+    }
+}
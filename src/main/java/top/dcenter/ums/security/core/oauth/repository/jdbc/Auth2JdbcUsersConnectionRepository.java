@@ -24,6 +24,8 @@
 package top.dcenter.ums.security.core.oauth.repository.jdbc;
 
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
 import org.springframework.cache.annotation.CacheConfig;
 import org.springframework.cache.annotation.CacheEvict;
 import org.springframework.cache.annotation.CachePut;
@@ -35,6 +37,7 @@ import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
 import org.springframework.security.crypto.encrypt.TextEncryptor;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
@@ -51,12 +54,16 @@ import top.dcenter.ums.security.core.oauth.repository.UsersConnectionRepository;
 import top.dcenter.ums.security.core.oauth.repository.exception.DuplicateConnectionException;
 import top.dcenter.ums.security.core.oauth.repository.exception.NoSuchConnectionException;
 import top.dcenter.ums.security.core.oauth.repository.exception.NotConnectedException;
+import top.dcenter.ums.security.core.oauth.repository.filter.ConnectionBloomFilter;
+import top.dcenter.ums.security.core.oauth.repository.jdbc.cache.RedisHashCacheBatchInterceptor;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -64,6 +71,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import static java.util.Objects.nonNull;
 import static top.dcenter.ums.security.core.oauth.config.RedisCacheAutoConfiguration.USER_CONNECTION_HASH_CACHE_NAME;
 
 /**
@@ -99,6 +107,18 @@ public class Auth2JdbcUsersConnectionRepository implements UsersConnectionReposi
 
     private final RepositoryProperties repositoryProperties;
 
+    /**
+     * 第三方登录记录的布隆过滤器, 为 null 时不使用
+     */
+    @Nullable
+    private ConnectionBloomFilter connectionBloomFilter;
+
+    /**
+     * 批量更新时编程式失效缓存, 为 null 时不失效
+     */
+    @Nullable
+    private CacheManager cacheManager;
+
     public Auth2JdbcUsersConnectionRepository(JdbcTemplate auth2UserConnectionJdbcTemplate,
                                               TextEncryptor textEncryptor,
                                               RepositoryProperties repositoryProperties) {
@@ -107,8 +127,22 @@ public class Auth2JdbcUsersConnectionRepository implements UsersConnectionReposi
         this.repositoryProperties = repositoryProperties;
     }
 
+    /**
+     * @param connectionBloomFilter addConnection 时写入新的第三方登录记录
+     */
+    public void setConnectionBloomFilter(@Nullable ConnectionBloomFilter connectionBloomFilter) {
+        this.connectionBloomFilter = connectionBloomFilter;
+    }
+
+    /**
+     * @param cacheManager  auth2RedisHashCacheManager, 批量更新时失效缓存
+     */
+    public void setCacheManager(@Nullable CacheManager cacheManager) {
+        this.cacheManager = cacheManager;
+    }
+
     @Cacheable(cacheNames = USER_CONNECTION_HASH_CACHE_NAME,
-            key = "'hs:' + #providerId + '__' + #providerUserId")
+            keyGenerator = "hsParamsKeyGenerator", sync = true)
     @Override
     public List<ConnectionData> findConnectionByProviderIdAndProviderUserId(String providerId, String providerUserId) {
         try
@@ -131,7 +165,7 @@ public class Auth2JdbcUsersConnectionRepository implements UsersConnectionReposi
     }
 
     @Cacheable(cacheNames = RedisCacheAutoConfiguration.USER_CONNECTION_HASH_ALL_CLEAR_CACHE_NAME,
-            key = "'hm:' + #providerId + '__' + #providerUserIds")
+            keyGenerator = "hmDigestKeyGenerator")
     @Override
     public Set<String> findUserIdsConnectedTo(String providerId, Set<String> providerUserIds) {
         MapSqlParameterSource parameters = new MapSqlParameterSource();
@@ -161,21 +195,22 @@ public class Auth2JdbcUsersConnectionRepository implements UsersConnectionReposi
     }
 
     @Override
-    @Cacheable(cacheNames = RedisCacheAutoConfiguration.USER_CONNECTION_HASH_ALL_CLEAR_CACHE_NAME, key = "'hm:' + #userId + '__' + #root.methodName")
+    @Cacheable(cacheNames = RedisCacheAutoConfiguration.USER_CONNECTION_HASH_ALL_CLEAR_CACHE_NAME,
+            keyGenerator = "hmMethodNameKeyGenerator")
     public MultiValueMap<String, ConnectionData> findAllConnections(String userId) {
         return getConnectionMap(findAllListConnections(userId));
     }
 
     @Override
     @Cacheable(cacheNames = USER_CONNECTION_HASH_CACHE_NAME,
-            key = "'hs:' + #userId + '__' + #providerId")
+            keyGenerator = "hsParamsKeyGenerator")
     public List<ConnectionData> findConnections(String userId, String providerId) {
         return getConnectionDataList(userId, providerId);
     }
 
     @Override
     @Cacheable(cacheNames = RedisCacheAutoConfiguration.USER_CONNECTION_HASH_ALL_CLEAR_CACHE_NAME,
-            key = "'hm:' + #userId + '__' + #providerUsers")
+            keyGenerator = "hmDigestKeyGenerator")
     public MultiValueMap<String, ConnectionData> findConnectionsToUsers(String userId, MultiValueMap<String, String> providerUsers) {
         if (providerUsers == null || providerUsers.isEmpty())
         {
@@ -196,7 +231,7 @@ public class Auth2JdbcUsersConnectionRepository implements UsersConnectionReposi
 
     @Override
     @Cacheable(cacheNames = USER_CONNECTION_HASH_CACHE_NAME,
-            key = "'h:' + #userId + ':' + #connectionKey.providerId + '__' + #connectionKey.providerUserId")
+            keyGenerator = "removeConnectionsByConnectionKeyWithUserIdKeyGenerator")
     public ConnectionData getConnection(String userId, ConnectionKey connectionKey) throws NoSuchConnectionException {
 
         try
@@ -219,7 +254,8 @@ public class Auth2JdbcUsersConnectionRepository implements UsersConnectionReposi
     }
 
     @Override
-    @Cacheable(cacheNames = USER_CONNECTION_HASH_CACHE_NAME, key = "'h:' + #userId + '__' + #providerId")
+    @Cacheable(cacheNames = USER_CONNECTION_HASH_CACHE_NAME,
+            keyGenerator = "hParamsKeyGenerator")
     public ConnectionData findPrimaryConnection(String userId, String providerId) {
         List<ConnectionData> connectionDataList = getConnectionDataList(userId, providerId);
         if (connectionDataList != null && connectionDataList.size() > 0)
@@ -233,7 +269,8 @@ public class Auth2JdbcUsersConnectionRepository implements UsersConnectionReposi
     }
 
     @Override
-    @Cacheable(cacheNames = USER_CONNECTION_HASH_CACHE_NAME, key = "'h:' + #userId + '__' + #providerId")
+    @Cacheable(cacheNames = USER_CONNECTION_HASH_CACHE_NAME,
+            keyGenerator = "hParamsKeyGenerator")
     public ConnectionData getPrimaryConnection(String userId, String providerId) throws NotConnectedException {
         ConnectionData connection = findPrimaryConnection(userId, providerId);
         if (connection == null)
@@ -293,6 +330,10 @@ public class Auth2JdbcUsersConnectionRepository implements UsersConnectionReposi
     @Transactional(rollbackFor = {Exception.class}, propagation = Propagation.REQUIRED)
     public ConnectionData addConnection(ConnectionData connection) {
         addConnectionData(connection);
+        if (connectionBloomFilter != null)
+        {
+            connectionBloomFilter.put(connection.getProviderId(), connection.getProviderUserId());
+        }
         return connection;
     }
 
@@ -345,15 +386,95 @@ public class Auth2JdbcUsersConnectionRepository implements UsersConnectionReposi
     @Override
     @Transactional(rollbackFor = {Exception.class}, propagation = Propagation.REQUIRED)
     public ConnectionData updateConnection(ConnectionData connection) {
-        jdbcTemplate.update(repositoryProperties.getUpdateConnectionSql(),
-                            connection.getDisplayName(), connection.getProfileUrl(),
-                            connection.getImageUrl(), encrypt(connection.getAccessToken()),
-                            connection.getTokenId(), encrypt(connection.getRefreshToken()),
-                            connection.getExpireTime(), connection.getUserId(), connection.getProviderId(),
-                            connection.getProviderUserId());
+        jdbcTemplate.update(repositoryProperties.getUpdateConnectionSql(), updateConnectionArgs(connection));
         return connection;
     }
 
+    @Override
+    @Transactional(rollbackFor = {Exception.class}, propagation = Propagation.REQUIRED)
+    public void updateConnections(List<ConnectionData> connections) {
+        if (connections.isEmpty())
+        {
+            return;
+        }
+        List<Object[]> batchArgs = new ArrayList<>(connections.size());
+        for (ConnectionData connection : connections)
+        {
+            batchArgs.add(updateConnectionArgs(connection));
+        }
+        jdbcTemplate.batchUpdate(repositoryProperties.getUpdateConnectionSql(), batchArgs);
+        evictConnections(connections);
+    }
+
+    @Override
+    @Transactional(rollbackFor = {Exception.class}, propagation = Propagation.REQUIRED)
+    public void updateConnectionsIfNotStale(List<ConnectionData> connections) {
+        if (connections.isEmpty())
+        {
+            return;
+        }
+        List<Object[]> batchArgs = new ArrayList<>(connections.size());
+        for (ConnectionData connection : connections)
+        {
+            Object[] args = updateConnectionArgs(connection);
+            Object[] conditionalArgs = Arrays.copyOf(args, args.length + 1);
+            // 记录没有 expireTime 时不做过期判断
+            conditionalArgs[args.length] = nonNull(connection.getExpireTime()) ? connection.getExpireTime() : Long.MAX_VALUE;
+            batchArgs.add(conditionalArgs);
+        }
+        jdbcTemplate.batchUpdate(repositoryProperties.getUpdateConnectionIfNotStaleSql(), batchArgs);
+        evictConnections(connections);
+    }
+
+    private Object[] updateConnectionArgs(ConnectionData connection) {
+        return new Object[]{
+                connection.getDisplayName(), connection.getProfileUrl(),
+                connection.getImageUrl(), encrypt(connection.getAccessToken()),
+                connection.getTokenId(), encrypt(connection.getRefreshToken()),
+                connection.getExpireTime(), connection.getUserId(), connection.getProviderId(),
+                connection.getProviderUserId()
+        };
+    }
+
+    /**
+     * 失效批量更新的第三方登录记录的缓存, 与 {@link #updateConnection(ConnectionData)} 的缓存注解对应, 只失效不回填;
+     * 存在事务时在事务提交后执行
+     */
+    private void evictConnections(List<ConnectionData> connections) {
+        if (cacheManager == null)
+        {
+            return;
+        }
+        final Cache allClearCache = cacheManager.getCache(RedisCacheAutoConfiguration.USER_CONNECTION_HASH_ALL_CLEAR_CACHE_NAME);
+        final Cache hashCache = cacheManager.getCache(USER_CONNECTION_HASH_CACHE_NAME);
+        RedisHashCacheBatchInterceptor.runInBatch(() -> {
+            Set<String> evictedHashKeys = new HashSet<>();
+            for (ConnectionData connection : connections)
+            {
+                final String userId = connection.getUserId();
+                final String providerId = connection.getProviderId();
+                final String providerUserId = connection.getProviderUserId();
+                if (allClearCache != null)
+                {
+                    for (String key : new String[]{"hm:" + userId, "hm:" + providerId})
+                    {
+                        if (evictedHashKeys.add(key))
+                        {
+                            allClearCache.evict(key);
+                        }
+                    }
+                }
+                if (hashCache != null)
+                {
+                    hashCache.evict("h:" + userId + ":" + providerId + "__" + providerUserId);
+                    hashCache.evict("h:" + userId + "__" + providerId);
+                    hashCache.evict("hs:" + userId + "__" + providerId);
+                    hashCache.evict("hs:" + providerId + "__" + providerUserId);
+                }
+            }
+        });
+    }
+
     @Caching(
             evict = {@CacheEvict(cacheNames = RedisCacheAutoConfiguration.USER_CONNECTION_HASH_ALL_CLEAR_CACHE_NAME,
                     key = "'hm:' + #result.userId"),
@@ -383,6 +504,40 @@ public class Auth2JdbcUsersConnectionRepository implements UsersConnectionReposi
         return connection;
     }
 
+    @Override
+    @Transactional(rollbackFor = {Exception.class}, propagation = Propagation.REQUIRED)
+    public void updateConnectionsByTokenIds(List<AuthTokenPo> tokens) {
+        if (tokens.isEmpty())
+        {
+            return;
+        }
+        // 一次查询获取批次内所有的第三方登录记录, 代替逐条 findConnectionByTokenId
+        final Map<Long, AuthTokenPo> tokenMap = new HashMap<>(tokens.size() * 4 / 3 + 1);
+        final StringBuilder placeholders = new StringBuilder(tokens.size() * 3);
+        for (AuthTokenPo token : tokens)
+        {
+            tokenMap.put(token.getId(), token);
+            placeholders.append(placeholders.length() == 0 ? "?" : ", ?");
+        }
+        final List<ConnectionData> connections =
+                jdbcTemplate.query(String.format("%s where %s in (%s)",
+                                                 repositoryProperties.getSelectFromUserConnectionSql(),
+                                                 repositoryProperties.getTokenIdColumnName(),
+                                                 placeholders),
+                                   connectionDataMapper, tokenMap.keySet().toArray());
+        for (ConnectionData connection : connections)
+        {
+            final AuthTokenPo token = tokenMap.get(connection.getTokenId());
+            if (token != null)
+            {
+                connection.setAccessToken(token.getAccessToken());
+                connection.setRefreshToken(token.getRefreshToken());
+                connection.setExpireTime(token.getExpireTime());
+            }
+        }
+        updateConnections(connections);
+    }
+
 
     @Override
     public ConnectionData findConnectionByTokenId(Long tokenId) {
@@ -420,7 +575,6 @@ public class Auth2JdbcUsersConnectionRepository implements UsersConnectionReposi
                     @CacheEvict(cacheNames = RedisCacheAutoConfiguration.USER_CONNECTION_HASH_ALL_CLEAR_CACHE_NAME,
                             key = "'hm:' + #connectionKey.providerId", beforeInvocation = true),
                     @CacheEvict(cacheNames = USER_CONNECTION_HASH_CACHE_NAME,
-                            // key = "'h:' + #userId + ':' + #connectionKey.providerId + '__' + #connectionKey.providerUserId"
                             keyGenerator = "removeConnectionsByConnectionKeyWithUserIdKeyGenerator",
                             beforeInvocation = true),
                     @CacheEvict(cacheNames = USER_CONNECTION_HASH_CACHE_NAME,
@@ -437,12 +591,14 @@ public class Auth2JdbcUsersConnectionRepository implements UsersConnectionReposi
     @Override
     @Transactional(rollbackFor = {Exception.class}, propagation = Propagation.REQUIRED)
     public void removeConnection(String userId, ConnectionKey connectionKey) {
+        // 布隆过滤器不支持删除, 已删除的记录只是多一次缓存与数据库查询
         jdbcTemplate.update(repositoryProperties.getRemoveConnectionSql(),
                             userId, connectionKey.getProviderId(), connectionKey.getProviderUserId());
     }
 
     @Override
-    @Cacheable(cacheNames = RedisCacheAutoConfiguration.USER_CONNECTION_HASH_ALL_CLEAR_CACHE_NAME, key = "'hm:' + #userId + '__' + #root.methodName")
+    @Cacheable(cacheNames = RedisCacheAutoConfiguration.USER_CONNECTION_HASH_ALL_CLEAR_CACHE_NAME,
+            keyGenerator = "hmMethodNameKeyGenerator")
     public List<ConnectionData> findAllListConnections(String userId) {
         try
         {
@@ -463,7 +619,8 @@ public class Auth2JdbcUsersConnectionRepository implements UsersConnectionReposi
     }
 
     @Override
-    @Cacheable(cacheNames = RedisCacheAutoConfiguration.USER_CONNECTION_HASH_ALL_CLEAR_CACHE_NAME, key = "'hm:' + #userId + '__' + #parameters")
+    @Cacheable(cacheNames = RedisCacheAutoConfiguration.USER_CONNECTION_HASH_ALL_CLEAR_CACHE_NAME,
+            keyGenerator = "hmDigestWithUserIdKeyGenerator")
     public List<ConnectionData> findConnectionsToUsers(MapSqlParameterSource parameters, String providerUsersCriteriaSql, String userId) {
         try
         {
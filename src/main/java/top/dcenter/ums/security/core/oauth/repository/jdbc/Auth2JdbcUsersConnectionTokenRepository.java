@@ -23,27 +23,42 @@
 
 package top.dcenter.ums.security.core.oauth.repository.jdbc;
 
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
 import org.springframework.cache.annotation.CacheConfig;
 import org.springframework.cache.annotation.CacheEvict;
 import org.springframework.cache.annotation.CachePut;
 import org.springframework.cache.annotation.Cacheable;
 import org.springframework.dao.DataAccessException;
 import org.springframework.dao.IncorrectResultSizeDataAccessException;
+import org.springframework.jdbc.BadSqlGrammarException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.lang.NonNull;
 import org.springframework.lang.Nullable;
 import org.springframework.security.crypto.encrypt.TextEncryptor;
+import org.springframework.transaction.annotation.Isolation;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 import top.dcenter.ums.security.core.oauth.config.RedisCacheAutoConfiguration;
 import top.dcenter.ums.security.core.oauth.enums.EnableRefresh;
+import top.dcenter.ums.security.core.oauth.enums.RefreshTokenClaimMode;
+import top.dcenter.ums.security.core.oauth.job.RefreshTokenDueQueue;
+import top.dcenter.ums.security.core.oauth.justauth.Auth2RequestHolder;
 import top.dcenter.ums.security.core.oauth.repository.UsersConnectionTokenRepository;
+import top.dcenter.ums.security.core.oauth.repository.jdbc.cache.RedisHashCacheBatchInterceptor;
 import top.dcenter.ums.security.core.oauth.entity.AuthTokenPo;
 
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 
 import static java.util.Objects.isNull;
 import static top.dcenter.ums.security.core.oauth.enums.EnableRefresh.NO;
@@ -54,21 +69,112 @@ import static top.dcenter.ums.security.core.oauth.enums.EnableRefresh.YES;
  * @author YongWu zheng
  * @version V2.0  Created by 2020/10/10 15:32
  */
+@Slf4j
 @CacheConfig(cacheManager = "auth2RedisHashCacheManager")
 public class Auth2JdbcUsersConnectionTokenRepository implements UsersConnectionTokenRepository {
 
+    private static final String AUTH_TOKEN_COLUMNS = "`id`, `enableRefresh`, `providerId`, `accessToken`, `expireIn`, " +
+            "`refreshTokenExpireIn`, " +
+            "`refreshToken`, `uid`, `openId`, `accessCode`, `unionId`, `scope`, " +
+            "`tokenType`, `idToken`, `macAlgorithm`, `macKey`, `code`, " +
+            "`oauthToken`, `oauthTokenSecret`, `userId`, `screenName`, " +
+            "`oauthCallbackConfirmed`, `expireTime` ";
+
+    /**
+     * 按第三方批量更新 enableRefresh 时每条 update 语句更新的记录数
+     */
+    private static final int UPDATE_ENABLE_REFRESH_BATCH_SIZE = 1000;
+
     private final JdbcTemplate jdbcTemplate;
 
     private final TextEncryptor textEncryptor;
 
     private final String authTokenTableName;
 
+    private final String updateAuthTokenSql;
+
+    /**
+     * 更新 token 并释放租约(claimedBy, claimedUntil), 刷新后的 token 不再被领取到, 下一次定时任务与按需刷新不需要等待租约过期
+     */
+    private final String updateAuthTokenAndReleaseClaimSql;
+
+    /**
+     * 只更新 expireTime 不晚于记录的行, 用于重放日志时避免旧记录覆盖已刷新的 token
+     */
+    private final String updateAuthTokenIfNotStaleSql;
+
+    /**
+     * auth_token 表是否有租约字段(claimedBy, claimedUntil), 为 null 时未检测
+     */
+    private volatile Boolean claimColumnsPresent;
+
+    /**
+     * 定时刷新 token 任务分页查询时的 fetchSize, 默认: 1000
+     */
+    private int fetchSize = 1000;
+
+    /**
+     * 批量更新时编程式失效缓存, 为 null 时不失效
+     */
+    @Nullable
+    private CacheManager cacheManager;
+
+    /**
+     * 保存与更新 token 时放入到期 token 队列, 为 null 时不放入
+     */
+    @Nullable
+    private RefreshTokenDueQueue refreshTokenDueQueue;
 
     public Auth2JdbcUsersConnectionTokenRepository(JdbcTemplate auth2UserConnectionJdbcTemplate,
                                                    TextEncryptor textEncryptor, String authTokenTableName) {
         this.jdbcTemplate = auth2UserConnectionJdbcTemplate;
         this.textEncryptor = textEncryptor;
         this.authTokenTableName = authTokenTableName;
+        final String setColumns = "`enableRefresh` = ?, " +
+                                  "`providerId` = ?, " +
+                                  "`accessToken` = ?, " +
+                                  "`expireIn` = ?, " +
+                                  "`refreshTokenExpireIn` = ?, " +
+                                  "`refreshToken` = ?, " +
+                                  "`uid` = ?, " +
+                                  "`openId` = ?, " +
+                                  "`accessCode` = ?, " +
+                                  "`unionId` = ?, " +
+                                  "`scope` = ?, " +
+                                  "`tokenType` = ?, " +
+                                  "`idToken` = ?, " +
+                                  "`macAlgorithm` = ?, " +
+                                  "`macKey` = ?, " +
+                                  "`code` = ?, " +
+                                  "`oauthToken` = ?, " +
+                                  "`oauthTokenSecret` = ?, " +
+                                  "`userId` = ?, " +
+                                  "`screenName` = ?, " +
+                                  "`oauthCallbackConfirmed` = ?, " +
+                                  "`expireTime` = ? ";
+        this.updateAuthTokenSql = "UPDATE `" + authTokenTableName + "` SET " + setColumns + "WHERE `id` = ?";
+        this.updateAuthTokenAndReleaseClaimSql = "UPDATE `" + authTokenTableName + "` SET " + setColumns +
+                ", `claimedBy` = NULL, `claimedUntil` = -1 WHERE `id` = ?";
+        this.updateAuthTokenIfNotStaleSql = updateAuthTokenSql + " AND (`expireTime` IS NULL OR `expireTime` <= ?)";
+    }
+
+    /**
+     * @param cacheManager  auth2RedisHashCacheManager, 批量更新时失效缓存
+     */
+    public void setCacheManager(@Nullable CacheManager cacheManager) {
+        this.cacheManager = cacheManager;
+    }
+
+    /**
+     * @param fetchSize 定时刷新 token 任务分页查询时的 fetchSize. mysql 需要配合 useCursorFetch=true,
+     *                  或设置为 -2147483648(Integer.MIN_VALUE) 才会流式读取
+     */
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
+    public void setRefreshTokenDueQueue(@Nullable RefreshTokenDueQueue refreshTokenDueQueue) {
+        this.refreshTokenDueQueue = refreshTokenDueQueue;
     }
 
     @Cacheable(cacheNames = RedisCacheAutoConfiguration.USER_CONNECTION_CACHE_NAME, key = "'s:token:' + #tokenId")
@@ -127,6 +233,7 @@ public class Auth2JdbcUsersConnectionTokenRepository implements UsersConnectionT
         // 获取 id
         Long id = jdbcTemplate.queryForObject("SELECT LAST_INSERT_ID();", null, Long.class);
         authToken.setId(id);
+        scheduleRefresh(Collections.singletonList(authToken));
         return authToken;
     }
 
@@ -139,67 +246,172 @@ public class Auth2JdbcUsersConnectionTokenRepository implements UsersConnectionT
         {
             throw new RuntimeException("authToken id cannot be null");
         }
-        jdbcTemplate.update("UPDATE `" + authTokenTableName + "` SET " +
-                                    "`enableRefresh` = ?, " +
-                                    "`providerId` = ?, " +
-                                    "`accessToken` = ?, " +
-                                    "`expireIn` = ?, " +
-                                    "`refreshTokenExpireIn` = ?, " +
-                                    "`refreshToken` = ?, " +
-                                    "`uid` = ?, " +
-                                    "`openId` = ?, " +
-                                    "`accessCode` = ?, " +
-                                    "`unionId` = ?, " +
-                                    "`scope` = ?, " +
-                                    "`tokenType` = ?, " +
-                                    "`idToken` = ?, " +
-                                    "`macAlgorithm` = ?, " +
-                                    "`macKey` = ?, " +
-                                    "`code` = ?, " +
-                                    "`oauthToken` = ?, " +
-                                    "`oauthTokenSecret` = ?, " +
-                                    "`userId` = ?, " +
-                                    "`screenName` = ?, " +
-                                    "`oauthCallbackConfirmed` = ?, " +
-                                    "`expireTime` = ? " +
-                                    "WHERE `id` = ?;",
-                            authToken.getEnableRefresh().getCode(),
-                            authToken.getProviderId(),
-                            encrypt(authToken.getAccessToken()),
-                            authToken.getExpireIn(),
-                            authToken.getRefreshTokenExpireIn(),
-                            encrypt(authToken.getRefreshToken()),
-                            authToken.getUid(),
-                            authToken.getOpenId(),
-                            encrypt(authToken.getAccessCode()),
-                            authToken.getUnionId(),
-                            // Google附带属性
-                            authToken.getScope(),
-                            authToken.getTokenType(),
-                            encrypt(authToken.getIdToken()),
-                            // 小米附带属性
-                            authToken.getMacAlgorithm(),
-                            encrypt(authToken.getMacKey()),
-                            // 企业微信附带属性
-                            encrypt(authToken.getCode()),
-                            // Twitter附带属性
-                            encrypt(authToken.getOauthToken()),
-                            encrypt(authToken.getOauthTokenSecret()),
-                            authToken.getUserId(),
-                            authToken.getScreenName(),
-                            authToken.getOauthCallbackConfirmed(),
-                            // 过期时间, 基于 1970-01-01T00:00:00Z, 无过期时间默认为 -1
-                            authToken.getExpireTime(),
-                            authToken.getId());
+        jdbcTemplate.update(updateAuthTokenSql(), updateAuthTokenArgs(authToken));
+        scheduleRefresh(Collections.singletonList(authToken));
         return authToken;
     }
 
+    @Transactional(rollbackFor = {Exception.class}, propagation = Propagation.REQUIRED)
+    @Override
+    public void updateAuthTokens(@NonNull List<AuthTokenPo> authTokens) throws DataAccessException {
+        if (authTokens.isEmpty())
+        {
+            return;
+        }
+        List<Object[]> batchArgs = new ArrayList<>(authTokens.size());
+        for (AuthTokenPo authToken : authTokens)
+        {
+            if (authToken.getId() == null)
+            {
+                throw new RuntimeException("authToken id cannot be null");
+            }
+            batchArgs.add(updateAuthTokenArgs(authToken));
+        }
+        jdbcTemplate.batchUpdate(updateAuthTokenSql(), batchArgs);
+        evictAuthTokens(authTokens);
+        scheduleRefresh(authTokens);
+    }
+
+    @Transactional(rollbackFor = {Exception.class}, propagation = Propagation.REQUIRED)
+    @Override
+    public void updateAuthTokensIfNotStale(@NonNull List<AuthTokenPo> authTokens) throws DataAccessException {
+        if (authTokens.isEmpty())
+        {
+            return;
+        }
+        List<Object[]> batchArgs = new ArrayList<>(authTokens.size());
+        for (AuthTokenPo authToken : authTokens)
+        {
+            if (authToken.getId() == null)
+            {
+                throw new RuntimeException("authToken id cannot be null");
+            }
+            Object[] args = updateAuthTokenArgs(authToken);
+            Object[] conditionalArgs = Arrays.copyOf(args, args.length + 1);
+            // 记录没有 expireTime 时不做过期判断
+            conditionalArgs[args.length] = isNull(authToken.getExpireTime()) ? Long.MAX_VALUE : authToken.getExpireTime();
+            batchArgs.add(conditionalArgs);
+        }
+        int[] counts = jdbcTemplate.batchUpdate(updateAuthTokenIfNotStaleSql, batchArgs);
+        evictAuthTokens(authTokens);
+        // 跳过的过期记录不放入到期 token 队列, 驱动返回 SUCCESS_NO_INFO 时按已更新处理
+        List<AuthTokenPo> updated = new ArrayList<>(authTokens.size());
+        for (int i = 0; i < authTokens.size(); i++)
+        {
+            if (i >= counts.length || counts[i] != 0)
+            {
+                updated.add(authTokens.get(i));
+            }
+        }
+        if (!updated.isEmpty())
+        {
+            scheduleRefresh(updated);
+        }
+    }
+
+    /**
+     * 按新的过期时间放入到期 token 队列, 队列异常不影响数据库更新; 事务回滚时队列中的到期时间由刷新线程按数据库记录校正
+     */
+    private void scheduleRefresh(List<AuthTokenPo> authTokens) {
+        if (refreshTokenDueQueue == null)
+        {
+            return;
+        }
+        try
+        {
+            refreshTokenDueQueue.schedule(authTokens);
+        }
+        catch (Exception e)
+        {
+            log.warn("放入到期 token 队列失败: size={}, error={}", authTokens.size(), e.getMessage());
+        }
+    }
+
+    private void unscheduleRefresh(@NonNull Long tokenId) {
+        if (refreshTokenDueQueue == null)
+        {
+            return;
+        }
+        try
+        {
+            refreshTokenDueQueue.remove(tokenId);
+        }
+        catch (Exception e)
+        {
+            log.warn("从到期 token 队列删除失败: tokenId={}, error={}", tokenId, e.getMessage());
+        }
+    }
+
+    private Object[] updateAuthTokenArgs(AuthTokenPo authToken) {
+        return new Object[]{
+                authToken.getEnableRefresh().getCode(),
+                authToken.getProviderId(),
+                encrypt(authToken.getAccessToken()),
+                authToken.getExpireIn(),
+                authToken.getRefreshTokenExpireIn(),
+                encrypt(authToken.getRefreshToken()),
+                authToken.getUid(),
+                authToken.getOpenId(),
+                encrypt(authToken.getAccessCode()),
+                authToken.getUnionId(),
+                // Google附带属性
+                authToken.getScope(),
+                authToken.getTokenType(),
+                encrypt(authToken.getIdToken()),
+                // 小米附带属性
+                authToken.getMacAlgorithm(),
+                encrypt(authToken.getMacKey()),
+                // 企业微信附带属性
+                encrypt(authToken.getCode()),
+                // Twitter附带属性
+                encrypt(authToken.getOauthToken()),
+                encrypt(authToken.getOauthTokenSecret()),
+                authToken.getUserId(),
+                authToken.getScreenName(),
+                authToken.getOauthCallbackConfirmed(),
+                // 过期时间, 基于 1970-01-01T00:00:00Z, 无过期时间默认为 -1
+                authToken.getExpireTime(),
+                authToken.getId()
+        };
+    }
+
+    /**
+     * 失效批量更新的 token 缓存, 与 {@link #updateAuthToken(AuthTokenPo)} 的 @CachePut 对应; 存在事务时在事务提交后执行
+     */
+    private void evictAuthTokens(List<AuthTokenPo> authTokens) {
+        final List<Long> tokenIds = new ArrayList<>(authTokens.size());
+        authTokens.forEach(authToken -> tokenIds.add(authToken.getId()));
+        evictAuthTokenIds(tokenIds);
+    }
+
+    /**
+     * 失效 tokenIds 对应的 token 缓存
+     */
+    private void evictAuthTokenIds(List<Long> tokenIds) {
+        if (cacheManager == null)
+        {
+            return;
+        }
+        final Cache cache = cacheManager.getCache(RedisCacheAutoConfiguration.USER_CONNECTION_CACHE_NAME);
+        if (cache == null)
+        {
+            return;
+        }
+        RedisHashCacheBatchInterceptor.runInBatch(() -> {
+            for (Long tokenId : tokenIds)
+            {
+                cache.evict("s:token:" + tokenId);
+            }
+        });
+    }
+
     @CacheEvict(cacheNames = RedisCacheAutoConfiguration.USER_CONNECTION_CACHE_NAME,
             key = "'s:token:' + #tokenId", beforeInvocation = true)
     @Transactional(rollbackFor = {Exception.class}, propagation = Propagation.REQUIRED)
     @Override
     public void delAuthTokenById(@NonNull String tokenId) throws DataAccessException {
         jdbcTemplate.update("DELETE FROM `" + authTokenTableName + "` WHERE id = ?;", tokenId);
+        unscheduleRefresh(Long.valueOf(tokenId));
     }
 
     @Override
@@ -216,16 +428,267 @@ public class Auth2JdbcUsersConnectionTokenRepository implements UsersConnectionT
     @NonNull
     public List<AuthTokenPo> findAuthTokenByExpireTimeAndBetweenId(@NonNull Long expiredTime, @NonNull Long startId,
                                                                    @NonNull Long endId) throws DataAccessException {
-        return jdbcTemplate.query("SELECT `id`, `enableRefresh`, `providerId`, `accessToken`, `expireIn`, " +
-                                           "`refreshTokenExpireIn`, " +
-                                           "`refreshToken`, `uid`, `openId`, `accessCode`, `unionId`, `scope`, " +
-                                           "`tokenType`, `idToken`, `macAlgorithm`, `macKey`, `code`, " +
-                                           "`oauthToken`, `oauthTokenSecret`, `userId`, `screenName`, " +
-                                           "`oauthCallbackConfirmed`, `expireTime` " +
+        final Set<String> notSupportProviderIds = Auth2RequestHolder.getNotSupportRefreshTokenProviderIds();
+        final List<Object> args = new ArrayList<>(notSupportProviderIds.size() + 3);
+        args.add(startId);
+        args.add(endId);
+        args.add(expiredTime);
+        args.addAll(notSupportProviderIds);
+        return jdbcTemplate.query("SELECT " + AUTH_TOKEN_COLUMNS +
                                            "FROM `" + authTokenTableName + "` " +
                                            "WHERE id BETWEEN ? AND ? AND `expireTime` <= ? " +
-                                                  "AND enableRefresh = " + YES.getCode() + ";",
-                           authTokenPoMapper, startId, endId, expiredTime);
+                                                  "AND enableRefresh = " + YES.getCode() + " " +
+                                                  notSupportRefreshCondition(notSupportProviderIds) + ";",
+                           authTokenPoMapper, args.toArray());
+    }
+
+    @Override
+    public boolean supportsDueScan() {
+        return true;
+    }
+
+    /**
+     * 第一次调用时检测 auth_token 表是否有租约字段(claimedBy, claimedUntil), 旧版本的表没有这两个字段时不支持租约
+     */
+    @Override
+    public boolean supportsClaim() {
+        Boolean present = claimColumnsPresent;
+        if (present == null)
+        {
+            try
+            {
+                jdbcTemplate.queryForList("SELECT `claimedBy`, `claimedUntil` FROM `" + authTokenTableName +
+                                                  "` WHERE 1 = 0");
+                present = true;
+            }
+            catch (BadSqlGrammarException e)
+            {
+                log.warn("auth_token 表没有租约字段(claimedBy, claimedUntil), 不支持租约: {}", e.getMessage());
+                present = false;
+            }
+            claimColumnsPresent = present;
+        }
+        return present;
+    }
+
+    @Override
+    @NonNull
+    public List<AuthTokenPo> findDueAuthTokens(@NonNull Long expiredTime, @NonNull Long maxId,
+                                               @NonNull Long lastExpireTime, @NonNull Long lastId,
+                                               int pageSize) throws DataAccessException {
+        final boolean bounded = maxId != Long.MAX_VALUE;
+        final Set<String> notSupportProviderIds = Auth2RequestHolder.getNotSupportRefreshTokenProviderIds();
+        // 走 (enableRefresh, expireTime, id) 索引的范围扫描, 扫描的记录数只与范围内到期的记录数相关
+        final String sql = "SELECT " + AUTH_TOKEN_COLUMNS +
+                "FROM `" + authTokenTableName + "` " +
+                "WHERE `enableRefresh` = " + YES.getCode() + " AND `expireTime` <= ? " +
+                (bounded ? "AND (`expireTime` < ? OR `id` <= ?) " : "") +
+                "AND (`expireTime` > ? OR (`expireTime` = ? AND `id` > ?)) " +
+                notSupportRefreshCondition(notSupportProviderIds) +
+                "ORDER BY `expireTime`, `id` LIMIT ?";
+        return jdbcTemplate.query(con -> {
+            PreparedStatement ps = con.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            ps.setFetchSize(fetchSize);
+            int index = 1;
+            ps.setLong(index++, expiredTime);
+            if (bounded)
+            {
+                ps.setLong(index++, expiredTime);
+                ps.setLong(index++, maxId);
+            }
+            ps.setLong(index++, lastExpireTime);
+            ps.setLong(index++, lastExpireTime);
+            ps.setLong(index++, lastId);
+            for (String providerId : notSupportProviderIds)
+            {
+                ps.setString(index++, providerId);
+            }
+            ps.setInt(index, pageSize);
+            return ps;
+        }, authTokenPoMapper);
+    }
+
+    @Override
+    @NonNull
+    public List<long[]> findDueAuthTokenBoundaries(@NonNull Long expiredTime,
+                                                   int partitionCount) throws DataAccessException {
+        final List<long[]> boundaries = new ArrayList<>();
+        if (partitionCount <= 1)
+        {
+            return boundaries;
+        }
+        final Set<String> notSupportProviderIds = Auth2RequestHolder.getNotSupportRefreshTokenProviderIds();
+        final String dueCondition = "FROM `" + authTokenTableName + "` " +
+                "WHERE `enableRefresh` = " + YES.getCode() + " AND `expireTime` <= ? " +
+                notSupportRefreshCondition(notSupportProviderIds);
+        final Long count = jdbcTemplate.queryForObject("SELECT COUNT(*) " + dueCondition, Long.class,
+                                                       prepend(expiredTime, notSupportProviderIds));
+        if (count == null || count <= 1L)
+        {
+            return boundaries;
+        }
+        final long step = (count + partitionCount - 1) / partitionCount;
+        final String sql = "SELECT `expireTime`, `id` " + dueCondition +
+                "AND (`expireTime` > ? OR (`expireTime` = ? AND `id` > ?)) " +
+                "ORDER BY `expireTime`, `id` LIMIT 1 OFFSET ?";
+        long lastExpireTime = Long.MIN_VALUE;
+        long lastId = 0L;
+        // 每次从上一个上界开始跳过 step - 1 条记录, 总共只扫描一遍到期记录的索引
+        for (int i = 1; i < partitionCount; i++)
+        {
+            final List<Object> args = new ArrayList<>(notSupportProviderIds.size() + 5);
+            args.add(expiredTime);
+            args.addAll(notSupportProviderIds);
+            args.add(lastExpireTime);
+            args.add(lastExpireTime);
+            args.add(lastId);
+            args.add(step - 1);
+            final List<long[]> boundary = jdbcTemplate.query(sql, (rs, rowNum) -> new long[]{rs.getLong(1), rs.getLong(2)},
+                                                             args.toArray());
+            if (boundary.isEmpty())
+            {
+                break;
+            }
+            lastExpireTime = boundary.get(0)[0];
+            lastId = boundary.get(0)[1];
+            boundaries.add(boundary.get(0));
+        }
+        return boundaries;
+    }
+
+    @Override
+    @NonNull
+    public List<AuthTokenPo> findAuthTokensByIds(@NonNull List<Long> tokenIds) throws DataAccessException {
+        if (tokenIds.isEmpty())
+        {
+            return new ArrayList<>();
+        }
+        return jdbcTemplate.query("SELECT " + AUTH_TOKEN_COLUMNS + "FROM `" + authTokenTableName + "` " +
+                                          "WHERE `id` IN (" + placeholders(tokenIds.size()) + ")",
+                                  authTokenPoMapper, tokenIds.toArray());
+    }
+
+    /**
+     * 在独立的事务(REQUIRES_NEW)中领取, 调用方已有事务时 READ_COMMITTED 隔离级别也生效, 租约领取后立即提交
+     */
+    @Transactional(rollbackFor = {Exception.class}, propagation = Propagation.REQUIRES_NEW,
+            isolation = Isolation.READ_COMMITTED)
+    @Override
+    @NonNull
+    public List<AuthTokenPo> claimDueAuthTokens(@NonNull Long expiredTime, @NonNull String claimedBy,
+                                                @NonNull Long now, @NonNull Long claimedUntil, int limit,
+                                                @NonNull RefreshTokenClaimMode mode) throws DataAccessException {
+        final Set<String> notSupportProviderIds = Auth2RequestHolder.getNotSupportRefreshTokenProviderIds();
+        final String dueCondition = "FROM `" + authTokenTableName + "` " +
+                "WHERE `enableRefresh` = " + YES.getCode() + " AND `expireTime` <= ? AND `claimedUntil` < ? " +
+                notSupportRefreshCondition(notSupportProviderIds) +
+                "ORDER BY `expireTime`, `id` LIMIT ?";
+        final List<Object> dueArgs = new ArrayList<>(notSupportProviderIds.size() + 3);
+        dueArgs.add(expiredTime);
+        dueArgs.add(now);
+        dueArgs.addAll(notSupportProviderIds);
+        dueArgs.add(limit);
+        if (RefreshTokenClaimMode.SKIP_LOCKED.equals(mode))
+        {
+            // 已被其他服务器(事务)锁定的记录直接跳过, 在同一事务中写入租约后提交
+            final List<AuthTokenPo> claimed = jdbcTemplate.query("SELECT " + AUTH_TOKEN_COLUMNS + dueCondition +
+                                                                         " FOR UPDATE SKIP LOCKED",
+                                                                 authTokenPoMapper, dueArgs.toArray());
+            if (!claimed.isEmpty())
+            {
+                final List<Long> ids = new ArrayList<>(claimed.size());
+                claimed.forEach(token -> ids.add(token.getId()));
+                updateClaim(ids, claimedBy, claimedUntil, null);
+            }
+            return claimed;
+        }
+
+        // 不加锁获取候选记录, 通过带条件的 update 写入租约, 多台服务器同时领取时只有一台会成功;
+        // 候选记录都被其他服务器领取时重新获取候选记录(READ_COMMITTED 下可以读取到其他服务器已提交的租约)
+        List<Long> ids;
+        while (!(ids = jdbcTemplate.queryForList("SELECT `id` " + dueCondition, Long.class,
+                                                 dueArgs.toArray())).isEmpty())
+        {
+            if (updateClaim(ids, claimedBy, claimedUntil, now) > 0)
+            {
+                return jdbcTemplate.query("SELECT " + AUTH_TOKEN_COLUMNS + "FROM `" + authTokenTableName + "` " +
+                                                  "WHERE `id` IN (" + placeholders(ids.size()) + ") AND `claimedBy` = ?",
+                                          authTokenPoMapper, append(ids, claimedBy));
+            }
+        }
+        return new ArrayList<>();
+    }
+
+    @Override
+    public boolean claimAuthToken(@NonNull Long tokenId, @NonNull String claimedBy,
+                                  @NonNull Long now, @NonNull Long claimedUntil) throws DataAccessException {
+        return updateClaim(Collections.singletonList(tokenId), claimedBy, claimedUntil, now) > 0;
+    }
+
+    @Override
+    public void releaseAuthTokenClaim(@NonNull Long tokenId, @NonNull String claimedBy) throws DataAccessException {
+        jdbcTemplate.update("UPDATE `" + authTokenTableName + "` SET `claimedBy` = NULL, `claimedUntil` = -1 " +
+                                    "WHERE `id` = ? AND `claimedBy` = ?",
+                            tokenId, claimedBy);
+    }
+
+    /**
+     * @return  auth_token 表有租约字段时返回更新 token 并释放租约的 sql, 否则返回只更新 token 的 sql
+     */
+    private String updateAuthTokenSql() {
+        return supportsClaim() ? updateAuthTokenAndReleaseClaimSql : updateAuthTokenSql;
+    }
+
+    /**
+     * 写入租约
+     * @param ids           token id
+     * @param claimedBy     租约标识
+     * @param claimedUntil  租约过期时间戳
+     * @param now           不为 null 时只更新租约已过期(claimedUntil &lt; now)的记录
+     * @return  更新的记录数
+     */
+    private int updateClaim(@NonNull List<Long> ids, @NonNull String claimedBy, @NonNull Long claimedUntil,
+                            @Nullable Long now) {
+        final List<Object> args = new ArrayList<>(ids.size() + 3);
+        args.add(claimedBy);
+        args.add(claimedUntil);
+        args.addAll(ids);
+        if (now != null)
+        {
+            args.add(now);
+        }
+        return jdbcTemplate.update("UPDATE `" + authTokenTableName + "` SET `claimedBy` = ?, `claimedUntil` = ? " +
+                                           "WHERE `id` IN (" + placeholders(ids.size()) + ")" +
+                                           (now != null ? " AND `claimedUntil` < ?" : ""),
+                                   args.toArray());
+    }
+
+    /**
+     * 排除不支持 refresh token 的第三方的查询条件
+     * @param notSupportProviderIds 不支持 refresh token 的 providerIds, 与查询条件中的占位符一一对应
+     * @return  查询条件, notSupportProviderIds 为空时返回空字符串
+     */
+    private static String notSupportRefreshCondition(@NonNull Set<String> notSupportProviderIds) {
+        if (notSupportProviderIds.isEmpty())
+        {
+            return "";
+        }
+        return "AND `providerId` NOT IN (" + placeholders(notSupportProviderIds.size()) + ") ";
+    }
+
+    private static String placeholders(int size) {
+        final StringBuilder sb = new StringBuilder(size * 3);
+        for (int i = 0; i < size; i++)
+        {
+            sb.append(i == 0 ? "?" : ", ?");
+        }
+        return sb.toString();
+    }
+
+    private static Object[] append(@NonNull List<Long> ids, @NonNull Object last) {
+        final Object[] args = ids.toArray(new Object[ids.size() + 1]);
+        args[ids.size()] = last;
+        return args;
     }
 
     @CacheEvict(cacheNames = RedisCacheAutoConfiguration.USER_CONNECTION_CACHE_NAME,
@@ -235,6 +698,45 @@ public class Auth2JdbcUsersConnectionTokenRepository implements UsersConnectionT
     public void updateEnableRefreshByTokenId(@NonNull EnableRefresh enableRefresh, @NonNull Long tokenId) throws DataAccessException {
         jdbcTemplate.update("update `" + authTokenTableName + "` set `enableRefresh` = ? where id = ?",
                             enableRefresh.getCode(), tokenId);
+        if (NO.equals(enableRefresh))
+        {
+            unscheduleRefresh(tokenId);
+        }
+    }
+
+    @Override
+    public int updateEnableRefreshByProviderIds(@NonNull EnableRefresh enableRefresh,
+                                                @NonNull Collection<String> providerIds) throws DataAccessException {
+        if (providerIds.isEmpty())
+        {
+            return 0;
+        }
+        // 先查询需要更新的 id, 再按 id 分批更新, 避免一条语句长时间锁定大量记录, 同时用于失效缓存
+        final List<Long> ids = jdbcTemplate.queryForList("SELECT `id` FROM `" + authTokenTableName + "` " +
+                                                                 "WHERE `enableRefresh` <> ? AND `providerId` IN (" +
+                                                                 placeholders(providerIds.size()) + ")",
+                                                         Long.class, prepend(enableRefresh.getCode(), providerIds));
+        int count = 0;
+        for (int from = 0; from < ids.size(); from += UPDATE_ENABLE_REFRESH_BATCH_SIZE)
+        {
+            final List<Long> batch = ids.subList(from, Math.min(ids.size(), from + UPDATE_ENABLE_REFRESH_BATCH_SIZE));
+            count += jdbcTemplate.update("UPDATE `" + authTokenTableName + "` SET `enableRefresh` = ? " +
+                                                 "WHERE `id` IN (" + placeholders(batch.size()) + ")",
+                                         prepend(enableRefresh.getCode(), batch));
+            evictAuthTokenIds(batch);
+        }
+        return count;
+    }
+
+    private static Object[] prepend(@NonNull Object first, @NonNull Collection<?> others) {
+        final Object[] args = new Object[others.size() + 1];
+        args[0] = first;
+        int index = 1;
+        for (Object other : others)
+        {
+            args[index++] = other;
+        }
+        return args;
     }
 
     private String encrypt(String text) {
@@ -24,5 +24,8 @@ CREATE TABLE `auth_token` (
   `screenName` varchar(64) DEFAULT NULL COMMENT 'Twitter附带属性',
   `oauthCallbackConfirmed` varchar(64) DEFAULT NULL COMMENT 'Twitter附带属性',
   `expireTime` bigint(20) DEFAULT '-1' COMMENT '过期时间, 基于 1970-01-01T00:00:00Z, 无过期时间默认为 -1',
-  PRIMARY KEY (`id`)
+  `claimedBy` varchar(64) DEFAULT NULL COMMENT '定时刷新 token 任务领取此记录的租约标识',
+  `claimedUntil` bigint(20) NOT NULL DEFAULT '-1' COMMENT '定时刷新 token 任务领取此记录的租约过期时间, 基于 1970-01-01T00:00:00Z',
+  PRIMARY KEY (`id`),
+  KEY `idx_enableRefresh_expireTime_id` (`enableRefresh`, `expireTime`, `id`)
 ) ENGINE=InnoDB AUTO_INCREMENT=4 DEFAULT CHARSET=utf8mb4
\ No newline at end of file
@@ -0,0 +1,458 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.repository.jdbc.cache;
+
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+import org.springframework.util.Assert;
+import org.springframework.util.LinkedMultiValueMap;
+import top.dcenter.ums.security.core.oauth.entity.AuthTokenPo;
+import top.dcenter.ums.security.core.oauth.entity.ConnectionData;
+import top.dcenter.ums.security.core.oauth.enums.EnableRefresh;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 对缓存的 {@link ConnectionData}, {@link AuthTokenPo} 及其集合使用紧凑的二进制格式序列化, 其他类型使用 delegate(JSON) 序列化. <br>
+ * 1. 格式: MAGIC(1 byte) + VERSION(1 byte) + 类型标签(1 byte) + 数据. 字段按固定顺序写入, 不写字段名与类名;
+ * 可为 null 的字段通过位图标识, 整数使用 zigzag 变长编码, 字符串使用 变长长度 + UTF-8.<br>
+ * 2. 反序列化时首字节不是 MAGIC 的数据交给 delegate, 兼容已缓存的 JSON 数据.<br>
+ * 3. 新增字段时必须升级 VERSION, 并保留旧版本的读取逻辑.
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/4 9:42
+ */
+public class CompactRedisSerializer implements RedisSerializer<Object> {
+
+    /**
+     * 不是合法的 UTF-8 首字节, 不会与 JSON 数据冲突
+     */
+    static final byte MAGIC = (byte) 0xC1;
+    static final byte VERSION_1 = 1;
+
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_CONNECTION_DATA = 1;
+    private static final byte TAG_AUTH_TOKEN_PO = 2;
+    private static final byte TAG_ARRAY_LIST = 3;
+    private static final byte TAG_LINKED_MULTI_VALUE_MAP = 4;
+    private static final byte TAG_HASH_SET = 5;
+    private static final byte TAG_STRING = 6;
+
+    private final RedisSerializer<Object> delegate;
+
+    /**
+     * @param delegate  不支持的类型与非紧凑格式数据的序列化器, 一般为 JSON 序列化器
+     */
+    public CompactRedisSerializer(@NonNull RedisSerializer<Object> delegate) {
+        Assert.notNull(delegate, "Delegate must not be null!");
+        this.delegate = delegate;
+    }
+
+    @Override
+    public byte[] serialize(@Nullable Object value) throws SerializationException {
+        if (value == null || !isSupported(value))
+        {
+            return delegate.serialize(value);
+        }
+        Output out = new Output();
+        out.write(MAGIC);
+        out.write(VERSION_1);
+        writeValue(out, value);
+        return out.toByteArray();
+    }
+
+    @Override
+    public Object deserialize(@Nullable byte[] bytes) throws SerializationException {
+        if (bytes == null || bytes.length == 0 || bytes[0] != MAGIC)
+        {
+            return delegate.deserialize(bytes);
+        }
+        try
+        {
+            Input in = new Input(bytes, 1);
+            byte version = in.readByte();
+            if (version != VERSION_1)
+            {
+                throw new SerializationException("Unsupported compact serializer version: " + version);
+            }
+            return readValue(in);
+        }
+        catch (IndexOutOfBoundsException e)
+        {
+            throw new SerializationException("Corrupted compact serializer data", e);
+        }
+    }
+
+    // ============================ 是否支持 ============================
+
+    private static boolean isSupported(@Nullable Object value) {
+        if (value == null || value instanceof String)
+        {
+            return true;
+        }
+        Class<?> type = value.getClass();
+        if (type == ConnectionData.class || type == AuthTokenPo.class)
+        {
+            return true;
+        }
+        if (type == ArrayList.class || type == HashSet.class)
+        {
+            return isAllSupported((Collection<?>) value);
+        }
+        if (type == LinkedMultiValueMap.class)
+        {
+            for (Map.Entry<?, ?> entry : ((LinkedMultiValueMap<?, ?>) value).entrySet())
+            {
+                if (!(entry.getKey() instanceof String) || entry.getValue().getClass() != ArrayList.class
+                        || !isAllSupported((Collection<?>) entry.getValue()))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean isAllSupported(Collection<?> values) {
+        for (Object element : values)
+        {
+            if (!isSupported(element))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // ============================ 写 ============================
+
+    @SuppressWarnings("unchecked")
+    private static void writeValue(Output out, @Nullable Object value) {
+        if (value == null)
+        {
+            out.write(TAG_NULL);
+        }
+        else if (value instanceof String)
+        {
+            out.write(TAG_STRING);
+            out.writeString((String) value);
+        }
+        else if (value instanceof ConnectionData)
+        {
+            out.write(TAG_CONNECTION_DATA);
+            writeConnectionData(out, (ConnectionData) value);
+        }
+        else if (value instanceof AuthTokenPo)
+        {
+            out.write(TAG_AUTH_TOKEN_PO);
+            writeAuthTokenPo(out, (AuthTokenPo) value);
+        }
+        else if (value instanceof LinkedMultiValueMap)
+        {
+            out.write(TAG_LINKED_MULTI_VALUE_MAP);
+            LinkedMultiValueMap<String, Object> map = (LinkedMultiValueMap<String, Object>) value;
+            out.writeVarLong(map.size());
+            for (Map.Entry<String, List<Object>> entry : map.entrySet())
+            {
+                out.writeString(entry.getKey());
+                writeElements(out, entry.getValue());
+            }
+        }
+        else
+        {
+            out.write(value instanceof HashSet ? TAG_HASH_SET : TAG_ARRAY_LIST);
+            writeElements(out, (Collection<?>) value);
+        }
+    }
+
+    private static void writeElements(Output out, Collection<?> values) {
+        out.writeVarLong(values.size());
+        for (Object element : values)
+        {
+            writeValue(out, element);
+        }
+    }
+
+    private static void writeConnectionData(Output out, ConnectionData data) {
+        Object[] fields = {data.getUserId(), data.getProviderId(), data.getProviderUserId(), data.getRank(),
+                data.getDisplayName(), data.getProfileUrl(), data.getImageUrl(), data.getAccessToken(),
+                data.getTokenId(), data.getRefreshToken(), data.getExpireTime()};
+        writeFields(out, fields);
+    }
+
+    private static void writeAuthTokenPo(Output out, AuthTokenPo token) {
+        Object[] fields = {token.getId(), token.getProviderId(), token.getExpireTime(),
+                token.getEnableRefresh() == null ? null : token.getEnableRefresh().getCode(),
+                token.getAccessToken(), token.getExpireIn(), token.getRefreshToken(), token.getRefreshTokenExpireIn(),
+                token.getUid(), token.getOpenId(), token.getAccessCode(), token.getUnionId(),
+                token.getScope(), token.getTokenType(), token.getIdToken(),
+                token.getMacAlgorithm(), token.getMacKey(), token.getCode(),
+                token.getOauthToken(), token.getOauthTokenSecret(), token.getUserId(), token.getScreenName(),
+                token.getOauthCallbackConfirmed()};
+        writeFields(out, fields);
+    }
+
+    /**
+     * 先写 null 位图, 再按顺序写非 null 字段, 支持 String, Integer, Long, Boolean
+     */
+    private static void writeFields(Output out, Object[] fields) {
+        long nullBitmap = 0L;
+        for (int i = 0; i < fields.length; i++)
+        {
+            if (fields[i] == null)
+            {
+                nullBitmap |= 1L << i;
+            }
+        }
+        out.writeVarLong(nullBitmap);
+        for (Object field : fields)
+        {
+            if (field instanceof String)
+            {
+                out.writeString((String) field);
+            }
+            else if (field instanceof Integer || field instanceof Long)
+            {
+                out.writeZigZagLong(((Number) field).longValue());
+            }
+            else if (field instanceof Boolean)
+            {
+                out.write((byte) ((Boolean) field ? 1 : 0));
+            }
+        }
+    }
+
+    // ============================ 读 ============================
+
+    private static Object readValue(Input in) {
+        byte tag = in.readByte();
+        switch (tag)
+        {
+            case TAG_NULL:
+                return null;
+            case TAG_STRING:
+                return in.readString();
+            case TAG_CONNECTION_DATA:
+                return readConnectionData(in);
+            case TAG_AUTH_TOKEN_PO:
+                return readAuthTokenPo(in);
+            case TAG_ARRAY_LIST:
+                return readElements(in, new ArrayList<>());
+            case TAG_HASH_SET:
+                return readElements(in, new HashSet<>());
+            case TAG_LINKED_MULTI_VALUE_MAP:
+                int size = (int) in.readVarLong();
+                LinkedMultiValueMap<String, Object> map = new LinkedMultiValueMap<>(size);
+                for (int i = 0; i < size; i++)
+                {
+                    String key = in.readString();
+                    map.put(key, readElements(in, new ArrayList<>()));
+                }
+                return map;
+            default:
+                throw new SerializationException("Unknown compact serializer tag: " + tag);
+        }
+    }
+
+    private static <C extends Collection<Object>> C readElements(Input in, C collection) {
+        int size = (int) in.readVarLong();
+        for (int i = 0; i < size; i++)
+        {
+            collection.add(readValue(in));
+        }
+        return collection;
+    }
+
+    private static ConnectionData readConnectionData(Input in) {
+        FieldReader reader = new FieldReader(in);
+        ConnectionData data = new ConnectionData();
+        data.setUserId(reader.string());
+        data.setProviderId(reader.string());
+        data.setProviderUserId(reader.string());
+        data.setRank(reader.integer());
+        data.setDisplayName(reader.string());
+        data.setProfileUrl(reader.string());
+        data.setImageUrl(reader.string());
+        data.setAccessToken(reader.string());
+        data.setTokenId(reader.longValue());
+        data.setRefreshToken(reader.string());
+        data.setExpireTime(reader.longValue());
+        return data;
+    }
+
+    private static AuthTokenPo readAuthTokenPo(Input in) {
+        FieldReader reader = new FieldReader(in);
+        AuthTokenPo token = new AuthTokenPo();
+        token.setId(reader.longValue());
+        token.setProviderId(reader.string());
+        token.setExpireTime(reader.longValue());
+        Integer enableRefresh = reader.integer();
+        token.setEnableRefresh(enableRefresh == null ? null :
+                                       EnableRefresh.YES.getCode().equals(enableRefresh) ? EnableRefresh.YES : EnableRefresh.NO);
+        token.setAccessToken(reader.string());
+        Integer expireIn = reader.integer();
+        token.setExpireIn(expireIn == null ? 0 : expireIn);
+        token.setRefreshToken(reader.string());
+        Integer refreshTokenExpireIn = reader.integer();
+        token.setRefreshTokenExpireIn(refreshTokenExpireIn == null ? 0 : refreshTokenExpireIn);
+        token.setUid(reader.string());
+        token.setOpenId(reader.string());
+        token.setAccessCode(reader.string());
+        token.setUnionId(reader.string());
+        token.setScope(reader.string());
+        token.setTokenType(reader.string());
+        token.setIdToken(reader.string());
+        token.setMacAlgorithm(reader.string());
+        token.setMacKey(reader.string());
+        token.setCode(reader.string());
+        token.setOauthToken(reader.string());
+        token.setOauthTokenSecret(reader.string());
+        token.setUserId(reader.string());
+        token.setScreenName(reader.string());
+        token.setOauthCallbackConfirmed(reader.bool());
+        return token;
+    }
+
+    /**
+     * 按 null 位图读取字段
+     */
+    private static final class FieldReader {
+        private final Input in;
+        private final long nullBitmap;
+        private int index;
+
+        private FieldReader(Input in) {
+            this.in = in;
+            this.nullBitmap = in.readVarLong();
+        }
+
+        private boolean isNull() {
+            return (nullBitmap & (1L << index++)) != 0;
+        }
+
+        private String string() {
+            return isNull() ? null : in.readString();
+        }
+
+        private Integer integer() {
+            return isNull() ? null : (int) in.readZigZagLong();
+        }
+
+        private Long longValue() {
+            return isNull() ? null : in.readZigZagLong();
+        }
+
+        private Boolean bool() {
+            return isNull() ? null : in.readByte() != 0;
+        }
+    }
+
+    // ============================ 编码 ============================
+
+    private static final class Output extends ByteArrayOutputStream {
+
+        private Output() {
+            super(128);
+        }
+
+        private void write(byte b) {
+            super.write(b);
+        }
+
+        private void writeVarLong(long value) {
+            while ((value & ~0x7FL) != 0L)
+            {
+                super.write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            super.write((int) value);
+        }
+
+        private void writeZigZagLong(long value) {
+            writeVarLong((value << 1) ^ (value >> 63));
+        }
+
+        private void writeString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            super.write(bytes, 0, bytes.length);
+        }
+    }
+
+    private static final class Input {
+        private final byte[] bytes;
+        private int position;
+
+        private Input(byte[] bytes, int position) {
+            this.bytes = bytes;
+            this.position = position;
+        }
+
+        private byte readByte() {
+            if (position >= bytes.length)
+            {
+                throw new IndexOutOfBoundsException("position: " + position);
+            }
+            return bytes[position++];
+        }
+
+        private long readVarLong() {
+            long result = 0L;
+            for (int shift = 0; shift < 64; shift += 7)
+            {
+                byte b = readByte();
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                {
+                    return result;
+                }
+            }
+            throw new SerializationException("Malformed varint");
+        }
+
+        private long readZigZagLong() {
+            long value = readVarLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        private String readString() {
+            int length = (int) readVarLong();
+            if (length < 0 || position + length > bytes.length)
+            {
+                throw new IndexOutOfBoundsException("length: " + length);
+            }
+            String value = new String(bytes, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+    }
+}
@@ -61,6 +61,28 @@ public interface IRedisHashCacheWriter extends RedisCacheWriter {
 	@Nullable
 	byte[] hGet(String name, byte[] key, byte[] field);
 
+	/**
+	 * Get the binary value representation and the remaining time to live of the given key in one round trip.
+	 *
+	 * @param name must not be {@literal null}.
+	 * @param key must not be {@literal null}.
+	 * @return {@literal null} if key does not exist.
+	 */
+	@Nullable
+	TtlValue getWithTtl(String name, byte[] key);
+
+	/**
+	 * Get the binary value representation stored for the given key and field and the remaining time to live of the
+	 * key in one round trip.
+	 *
+	 * @param name must not be {@literal null}.
+	 * @param key must not be {@literal null}.
+	 * @param field The field for the cache entry. Must not be {@literal null}.
+	 * @return {@literal null} if key or field does not exist.
+	 */
+	@Nullable
+	TtlValue hGetWithTtl(String name, byte[] key, byte[] field);
+
 	/**
 	 * Write the given value to Redis if the key does not already exist.
 	 *
@@ -83,4 +105,50 @@ public interface IRedisHashCacheWriter extends RedisCacheWriter {
 	 */
 	void hRemove(String name, byte[] key, byte[] field);
 
-}
\ No newline at end of file
+	/**
+	 * Try to acquire a short lease ({@code SET leaseKey owner NX PX ttl}) used to elect the single loader of a cache
+	 * entry across the cluster.
+	 *
+	 * @param name The cache name must not be {@literal null}.
+	 * @param leaseKey The key of the lease. Must not be {@literal null}.
+	 * @param owner The owner token of the lease. Must not be {@literal null}.
+	 * @param ttl The expiration time of the lease. Must not be {@literal null}.
+	 * @return {@literal true} if the lease has been acquired.
+	 */
+	boolean tryLease(String name, byte[] leaseKey, byte[] owner, Duration ttl);
+
+	/**
+	 * Release the lease if it is still held by the given owner.
+	 *
+	 * @param name The cache name must not be {@literal null}.
+	 * @param leaseKey The key of the lease. Must not be {@literal null}.
+	 * @param owner The owner token of the lease. Must not be {@literal null}.
+	 */
+	void releaseLease(String name, byte[] leaseKey, byte[] owner);
+
+	/**
+	 * 缓存值与 key 的剩余过期时间
+	 */
+	final class TtlValue {
+
+		private final byte[] value;
+		/**
+		 * 剩余过期时间, 单位: 毫秒, 小于 0 表示没有设置过期时间
+		 */
+		private final long ttlMillis;
+
+		public TtlValue(byte[] value, long ttlMillis) {
+			this.value = value;
+			this.ttlMillis = ttlMillis;
+		}
+
+		public byte[] getValue() {
+			return value;
+		}
+
+		public long getTtlMillis() {
+			return ttlMillis;
+		}
+	}
+
+}
@@ -23,15 +23,18 @@
 
 package top.dcenter.ums.security.core.oauth.repository.jdbc.cache;
 
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.cache.support.NullValue;
 import org.springframework.cache.support.SimpleValueWrapper;
 import org.springframework.core.convert.ConversionFailedException;
 import org.springframework.core.convert.ConversionService;
 import org.springframework.core.convert.TypeDescriptor;
+import org.springframework.dao.PessimisticLockingFailureException;
 import org.springframework.data.redis.cache.RedisCache;
 import org.springframework.data.redis.cache.RedisCacheConfiguration;
 import org.springframework.data.redis.cache.RedisCacheManager;
 import org.springframework.data.redis.cache.RedisCacheWriter;
+import org.springframework.data.redis.connection.RedisConnection;
 import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.data.redis.util.ByteUtils;
 import org.springframework.lang.NonNull;
@@ -40,9 +43,12 @@ import org.springframework.util.Assert;
 import org.springframework.util.ObjectUtils;
 import org.springframework.util.ReflectionUtils;
 import org.springframework.util.StringUtils;
+import top.dcenter.ums.security.core.oauth.repository.jdbc.cache.RedisHashCacheStatistics.Operation;
+import top.dcenter.ums.security.core.oauth.repository.jdbc.key.HashCacheKey;
 
 import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.Arrays;
 import java.util.Collection;
@@ -50,8 +56,16 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Optional;
 import java.util.StringJoiner;
+import java.util.UUID;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 import static top.dcenter.ums.security.core.oauth.config.RedisCacheAutoConfiguration.REDIS_CACHE_HASH_KEY_SEPARATE;
 
@@ -71,17 +85,79 @@ import static top.dcenter.ums.security.core.oauth.config.RedisCacheAutoConfigura
  * @see RedisHashCacheWriter
  * @since 2.0
  */
+@Slf4j
 public class RedisHashCache extends RedisCache {
 
     private static final byte[] BINARY_NULL_VALUE = RedisSerializer.java().serialize(NullValue.INSTANCE);
 
     private static final int HASH_KEY_ARRAY_LENGTH = 2;
 
+    /**
+     * 分布式加载租约 key 的后缀
+     */
+    private static final String LEASE_KEY_SUFFIX = "~lease";
+    /**
+     * 检测 key 序列化器是否为 UTF-8 字符串序列化器
+     */
+    private static final String UTF8_PROBE = "ums\u7f13\u5b58";
+
     private final String name;
     private final RedisHashCacheWriter cacheWriter;
     private final RedisCacheConfiguration cacheConfig;
     private final ConversionService conversionService;
 
+    /**
+     * 正在执行 valueLoader 的 key 与其加载结果, 用于同一个 key 的并发加载只执行一次.
+     */
+    private final ConcurrentMap<Object, CompletableFuture<Object>> inFlightLoads = new ConcurrentHashMap<>();
+
+    /**
+     * 分布式加载租约配置, 为 null 时不使用分布式加载租约
+     */
+    private final RedisHashCacheLoadLease loadLease;
+
+    /**
+     * 进程内一级缓存, 为 null 时不使用一级缓存
+     */
+    private final RedisHashNearCache nearCache;
+    /**
+     * 一级缓存失效消息广播, 为 null 时不广播(单节点)
+     */
+    private final RedisHashNearCacheBroadcaster nearCacheBroadcaster;
+
+    /**
+     * 缓存 value 压缩, 为 null 时不压缩
+     */
+    private final RedisHashCacheCompressor compressor;
+
+    /**
+     * 缓存统计
+     */
+    private final RedisHashCacheStatistics statistics;
+
+    /**
+     * 提前刷新配置, 为 null 时不提前刷新
+     */
+    private final RedisHashCacheRefreshAhead refreshAhead;
+    /**
+     * 正在提前刷新的 key 与其刷新任务的标识, 同一个 key 同时只有一个刷新任务; evict/clear 时删除,
+     * 刷新任务只在标识未变化时回填(与 evict/clear 互斥), 防止旧数据覆盖
+     */
+    private final ConcurrentMap<Object, Object> refreshingKeys = new ConcurrentHashMap<>();
+
+    /**
+     * 是否对 redis key 添加 hash tag, 如: {@code UCHC::{hs:github}}, 使 hash key 与其加载租约 key 落在同一个 slot(Redis Cluster)
+     */
+    private final boolean hashTag;
+    /**
+     * key 序列化器是否为 UTF-8 字符串序列化器, 是则 {@link HashCacheKey} 直接使用预编码的字节
+     */
+    private final boolean utf8KeySerializer;
+    /**
+     * 缓存 key 前缀的 UTF-8 字节
+     */
+    private final byte[] prefixBytes;
+
     /**
      * Create new {@link RedisHashCache}.
      *
@@ -90,6 +166,42 @@ public class RedisHashCache extends RedisCache {
      * @param cacheConfig must not be {@literal null}.
      */
     protected RedisHashCache(String name, RedisHashCacheWriter cacheWriter, RedisCacheConfiguration cacheConfig) {
+        this(name, cacheWriter, cacheConfig, null);
+    }
+
+    /**
+     * Create new {@link RedisHashCache}.
+     *
+     * @param name        must not be {@literal null}.
+     * @param cacheWriter must not be {@literal null}.
+     * @param cacheConfig must not be {@literal null}.
+     * @param loadLease   分布式加载租约配置, 为 {@literal null} 时不使用分布式加载租约.
+     */
+    protected RedisHashCache(String name, RedisHashCacheWriter cacheWriter, RedisCacheConfiguration cacheConfig,
+                             @Nullable RedisHashCacheLoadLease loadLease) {
+        this(name, cacheWriter, cacheConfig, loadLease, null, null, null, null, false);
+    }
+
+    /**
+     * Create new {@link RedisHashCache}.
+     *
+     * @param name                  must not be {@literal null}.
+     * @param cacheWriter           must not be {@literal null}.
+     * @param cacheConfig           must not be {@literal null}.
+     * @param loadLease             分布式加载租约配置, 为 {@literal null} 时不使用分布式加载租约.
+     * @param nearCache             进程内一级缓存, 为 {@literal null} 时不使用一级缓存.
+     * @param nearCacheBroadcaster  一级缓存失效消息广播, 为 {@literal null} 时不广播.
+     * @param compressor            缓存 value 压缩, 为 {@literal null} 时不压缩(仍可读取压缩的数据).
+     * @param refreshAhead          提前刷新配置, 为 {@literal null} 时不提前刷新.
+     * @param hashTag               是否对 redis key 添加 hash tag(Redis Cluster).
+     */
+    protected RedisHashCache(String name, RedisHashCacheWriter cacheWriter, RedisCacheConfiguration cacheConfig,
+                             @Nullable RedisHashCacheLoadLease loadLease,
+                             @Nullable RedisHashNearCache nearCache,
+                             @Nullable RedisHashNearCacheBroadcaster nearCacheBroadcaster,
+                             @Nullable RedisHashCacheCompressor compressor,
+                             @Nullable RedisHashCacheRefreshAhead refreshAhead,
+                             boolean hashTag) {
 
         super(name, cacheWriter, cacheConfig);
 
@@ -101,28 +213,85 @@ public class RedisHashCache extends RedisCache {
         this.cacheWriter = cacheWriter;
         this.cacheConfig = cacheConfig;
         this.conversionService = cacheConfig.getConversionService();
+        this.loadLease = loadLease;
+        this.nearCache = nearCache;
+        this.nearCacheBroadcaster = nearCacheBroadcaster;
+        this.compressor = compressor;
+        this.statistics = new RedisHashCacheStatistics(name, compressor);
+        this.refreshAhead = refreshAhead;
+        this.hashTag = hashTag;
+        this.utf8KeySerializer = Arrays.equals(serializeCacheKey(UTF8_PROBE),
+                                               UTF8_PROBE.getBytes(StandardCharsets.UTF_8));
+        this.prefixBytes = cacheConfig.usePrefix() ? cacheConfig.getKeyPrefixFor(name).getBytes(StandardCharsets.UTF_8)
+                : new byte[0];
     }
 
     @Override
     protected Object lookup(@NonNull Object key) {
+        return lookup(key, null);
+    }
+
+    /**
+     * @param refreshLoader 不为 null 时同时读取 key 的剩余过期时间, 需要时提前刷新; 命中一级缓存时不检查.
+     */
+    @Nullable
+    private Object lookup(Object key, @Nullable Callable<?> refreshLoader) {
+        if (nearCache != null)
+        {
+            Object localValue = nearCache.get(toNearCacheKey(key));
+            if (localValue != null)
+            {
+                statistics.recordNearHit();
+                return localValue;
+            }
+        }
+
         Object[] keyPair = parsingKey(key);
         byte[] value;
-        if (keyPair.length == HASH_KEY_ARRAY_LENGTH)
+        long ttlMillis = -1L;
+        if (refreshLoader != null)
         {
-            value = cacheWriter.hGet(name, createAndConvertCacheKey(keyPair[0]),
-                                     createAndConvertCacheField(keyPair[1]));
+            IRedisHashCacheWriter.TtlValue ttlValue;
+            if (keyPair.length == HASH_KEY_ARRAY_LENGTH)
+            {
+                ttlValue = timed(Operation.HGET, () -> cacheWriter.hGetWithTtl(name,
+                                                                               createAndConvertCacheKey(keyPair[0]),
+                                                                               createAndConvertCacheField(keyPair[1])));
+            }
+            else
+            {
+                ttlValue = timed(Operation.GET, () -> cacheWriter.getWithTtl(name, createAndConvertCacheKey(key)));
+            }
+            value = ttlValue == null ? null : ttlValue.getValue();
+            ttlMillis = ttlValue == null ? -1L : ttlValue.getTtlMillis();
+        }
+        else if (keyPair.length == HASH_KEY_ARRAY_LENGTH)
+        {
+            value = timed(Operation.HGET, () -> cacheWriter.hGet(name, createAndConvertCacheKey(keyPair[0]),
+                                                                 createAndConvertCacheField(keyPair[1])));
         }
         else
         {
-            value = cacheWriter.get(name, createAndConvertCacheKey(key));
+            value = timed(Operation.GET, () -> cacheWriter.get(name, createAndConvertCacheKey(key)));
         }
 
         if (value == null)
         {
+            statistics.recordMiss();
             return null;
         }
+        statistics.recordHit();
 
-        return deserializeCacheValue(value);
+        Object storeValue = deserializeCacheValue(value);
+        if (nearCache != null && storeValue != null)
+        {
+            nearCache.put(toNearCacheKey(key), storeValue);
+        }
+        if (refreshLoader != null)
+        {
+            refreshAheadIfNecessary(key, refreshLoader, ttlMillis);
+        }
+        return storeValue;
     }
 
     @NonNull
@@ -137,20 +306,131 @@ public class RedisHashCache extends RedisCache {
         return this.cacheWriter;
     }
 
+    /**
+     * 同一个 key 的并发加载只会执行一次 valueLoader (single-flight), 其他调用者共享同一个 {@link CompletableFuture} 的结果;
+     * 不同 key 之间的加载互不阻塞. 配置了 {@link RedisHashCacheLoadLease} 时, 集群中只有获取到租约的节点执行 valueLoader.<br>
+     * 注意: {@code @Cacheable(sync = true)} 时 {@link org.springframework.cache.interceptor.CacheErrorHandler} 不生效,
+     * 所以这里 redis 操作异常时只打印日志并直接执行 valueLoader, 保证 redis 出现问题时不影响程序的正常运行.<br>
+     * 配置了 {@link RedisHashCacheRefreshAhead} 时, 命中缓存且剩余过期时间低于阈值时, 使用
+     * {@link RedisHashCacheRefreshAheadInterceptor} 记录的 loader 异步刷新缓存; 没有经过该拦截器的调用不提前刷新.
+     */
     @Override
     @SuppressWarnings("unchecked")
-    public synchronized <T> T get(@NonNull Object key, @NonNull Callable<T> valueLoader) {
+    public <T> T get(@NonNull Object key, @NonNull Callable<T> valueLoader) {
 
-        ValueWrapper result = get(key);
+        Callable<Object> refreshLoader = refreshAhead == null ? null
+                : RedisHashCacheRefreshAheadInterceptor.takeCurrentLoader();
+        ValueWrapper result = refreshLoader == null ? getQuietly(key) : getQuietly(key, refreshLoader);
 
         if (result != null)
         {
             return (T) result.get();
         }
 
-        T value = valueFromLoader(key, valueLoader);
-        put(key, value);
-        return value;
+        CompletableFuture<Object> newLoad = new CompletableFuture<>();
+        CompletableFuture<Object> inFlightLoad = inFlightLoads.putIfAbsent(key, newLoad);
+        if (inFlightLoad != null)
+        {
+            return (T) awaitInFlightLoad(key, valueLoader, inFlightLoad);
+        }
+
+        final long start = System.nanoTime();
+        try
+        {
+            // 再次检查: 上一个加载者可能在本次注册 newLoad 之前刚好完成加载并移除了它的 future
+            result = getQuietly(key);
+            T value;
+            if (result != null)
+            {
+                value = (T) result.get();
+            }
+            else
+            {
+                value = loadValue(key, valueLoader);
+            }
+            newLoad.complete(value);
+            return value;
+        }
+        catch (RuntimeException | Error e)
+        {
+            newLoad.completeExceptionally(e);
+            throw e;
+        }
+        finally
+        {
+            inFlightLoads.remove(key, newLoad);
+            statistics.recordLoad(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @return 执行 valueLoader 加载的次数
+     */
+    public long getLoadCount() {
+        return statistics.getLoads();
+    }
+
+    /**
+     * @return 执行 valueLoader 加载的总耗时, 单位: 纳秒
+     */
+    public long getLoadTimeNanos() {
+        return statistics.getLoadTimeNanos();
+    }
+
+    /**
+     * @return 等待其他线程加载同一个 key 的次数
+     */
+    public long getWaitCount() {
+        return statistics.getLoadWaits();
+    }
+
+    /**
+     * @return 等待其他线程加载同一个 key 的总耗时, 单位: 纳秒
+     */
+    public long getWaitTimeNanos() {
+        return statistics.getLoadWaitTimeNanos();
+    }
+
+    /**
+     * @return 提前刷新成功的次数
+     */
+    public long getRefreshCount() {
+        return statistics.getRefreshes();
+    }
+
+    /**
+     * @return 提前刷新任务被线程池拒绝的次数
+     */
+    public long getRefreshRejectedCount() {
+        return statistics.getRefreshRejected();
+    }
+
+    /**
+     * @return 提前刷新失败(valueLoader 或 redis 异常)的次数
+     */
+    public long getRefreshFailureCount() {
+        return statistics.getRefreshFailures();
+    }
+
+    /**
+     * @return 获取到分布式加载租约的次数
+     */
+    public long getLeaseAcquiredCount() {
+        return statistics.getLeaseAcquired();
+    }
+
+    /**
+     * @return 分布式加载租约被其他节点持有(竞争)的次数
+     */
+    public long getLeaseContendedCount() {
+        return statistics.getLeaseContended();
+    }
+
+    /**
+     * @return 等待租约持有者回填缓存超时, 改为自行加载的次数
+     */
+    public long getLeaseWaitTimeoutCount() {
+        return statistics.getLeaseWaitTimeouts();
     }
 
     @Override
@@ -167,18 +447,49 @@ public class RedisHashCache extends RedisCache {
         }
 
         Object[] keyPair = parsingKey(key);
+        RedisHashCacheBatch batch = RedisHashCacheBatch.current();
+        if (batch != null)
+        {
+            // 批量模式: 只记录命令, 方法调用结束时统一发送
+            Consumer<RedisConnection> command;
+            if (keyPair.length == HASH_KEY_ARRAY_LENGTH)
+            {
+                command = cacheWriter.hPutCommand(createAndConvertCacheKey(keyPair[0]),
+                                                  createAndConvertCacheField(keyPair[1]),
+                                                  serializeCacheValue(cacheValue),
+                                                  getRandomTtl(cacheConfig.getTtl()));
+            }
+            else
+            {
+                command = cacheWriter.putCommand(createAndConvertCacheKey(key), serializeCacheValue(cacheValue),
+                                                 getRandomTtl(cacheConfig.getTtl()));
+            }
+            batch.add(cacheWriter, name, command, nearCache == null ? null : () -> putNearCache(key, cacheValue));
+            statistics.recordPut();
+            return;
+        }
+
         if (keyPair.length == HASH_KEY_ARRAY_LENGTH)
         {
-            cacheWriter.hPut(name,
-                             createAndConvertCacheKey(keyPair[0]),
-                             createAndConvertCacheField(keyPair[1]),
-                             serializeCacheValue(cacheValue),
-                             getRandomTtl(cacheConfig.getTtl()));
+            timed(Operation.HPUT, () -> {
+                cacheWriter.hPut(name,
+                                 createAndConvertCacheKey(keyPair[0]),
+                                 createAndConvertCacheField(keyPair[1]),
+                                 serializeCacheValue(cacheValue),
+                                 getRandomTtl(cacheConfig.getTtl()));
+                return null;
+            });
         }
         else
         {
-            cacheWriter.put(name, createAndConvertCacheKey(key), serializeCacheValue(cacheValue), getRandomTtl(cacheConfig.getTtl()));
+            timed(Operation.PUT, () -> {
+                cacheWriter.put(name, createAndConvertCacheKey(key), serializeCacheValue(cacheValue), getRandomTtl(cacheConfig.getTtl()));
+                return null;
+            });
         }
+        statistics.recordPut();
+
+        putNearCache(key, cacheValue);
     }
 
     @Override
@@ -195,20 +506,23 @@ public class RedisHashCache extends RedisCache {
         byte[] result;
         if (keyPair.length == HASH_KEY_ARRAY_LENGTH)
         {
-            result = cacheWriter.hPutIfAbsent(name,
+            result = timed(Operation.HPUT_IF_ABSENT, () -> cacheWriter.hPutIfAbsent(name,
                              createAndConvertCacheKey(keyPair[0]),
                              createAndConvertCacheField(keyPair[1]),
                              serializeCacheValue(cacheValue),
-                             getRandomTtl(cacheConfig.getTtl()));
+                             getRandomTtl(cacheConfig.getTtl())));
         }
         else
         {
-            result = cacheWriter.putIfAbsent(name, createAndConvertCacheKey(key), serializeCacheValue(cacheValue),
-                                                    getRandomTtl(cacheConfig.getTtl()));
+            result = timed(Operation.PUT_IF_ABSENT, () -> cacheWriter.putIfAbsent(name, createAndConvertCacheKey(key),
+                                                                                  serializeCacheValue(cacheValue),
+                                                                                  getRandomTtl(cacheConfig.getTtl())));
         }
 
         if (result == null)
         {
+            statistics.recordPut();
+            invalidateNearCache(key);
             return null;
         }
 
@@ -217,20 +531,91 @@ public class RedisHashCache extends RedisCache {
 
     @Override
     public void evict(@NonNull Object key) {
+        // 放弃正在进行的提前刷新, 在删除命令之前执行, 已回填的旧数据会被删除命令删除
+        refreshingKeys.remove(key);
         Object[] keyPair = parsingKey(key);
-        if (keyPair.length == HASH_KEY_ARRAY_LENGTH)
+        RedisHashCacheBatch batch = RedisHashCacheBatch.current();
+        if (batch != null)
         {
-            cacheWriter.hRemove(name, createAndConvertCacheKey(keyPair[0]),createAndConvertCacheField(keyPair[1]));
+            // 批量模式: 只记录命令, 方法调用结束时统一发送
+            Consumer<RedisConnection> command;
+            if (keyPair.length == HASH_KEY_ARRAY_LENGTH)
+            {
+                command = cacheWriter.hRemoveCommand(createAndConvertCacheKey(keyPair[0]),
+                                                     createAndConvertCacheField(keyPair[1]));
+            }
+            else
+            {
+                command = cacheWriter.removeCommand(createAndConvertCacheKey(key));
+            }
+            // 批次发送前开始的提前刷新可能读取到未提交的旧数据, 发送后再次放弃
+            batch.add(cacheWriter, name, command, () -> {
+                refreshingKeys.remove(key);
+                invalidateNearCache(key);
+            });
+            statistics.recordEviction();
             return;
         }
-        cacheWriter.remove(name, createAndConvertCacheKey(key));
+
+        if (keyPair.length == HASH_KEY_ARRAY_LENGTH)
+        {
+            timed(Operation.HREMOVE, () -> {
+                cacheWriter.hRemove(name, createAndConvertCacheKey(keyPair[0]),createAndConvertCacheField(keyPair[1]));
+                return null;
+            });
+        }
+        else
+        {
+            timed(Operation.REMOVE, () -> {
+                cacheWriter.remove(name, createAndConvertCacheKey(key));
+                return null;
+            });
+        }
+        statistics.recordEviction();
+        invalidateNearCache(key);
     }
 
     @Override
     public void clear() {
+        refreshingKeys.clear();
         byte[] pattern = conversionService.convert(createCacheKey("*"), byte[].class);
-        //noinspection ConstantConditions
-        cacheWriter.clean(name, pattern);
+        timed(Operation.CLEAN, () -> {
+            //noinspection ConstantConditions
+            cacheWriter.clean(name, pattern);
+            return null;
+        });
+        if (nearCache != null)
+        {
+            nearCache.clear();
+            if (nearCacheBroadcaster != null)
+            {
+                nearCacheBroadcaster.publishClear(name);
+            }
+        }
+    }
+
+    /**
+     * @return 缓存统计: 命中/未命中/put/evict/异常次数, 以及每种 redis 操作的次数与耗时
+     */
+    @NonNull
+    public RedisHashCacheStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * @return 缓存 value 压缩, 未开启时返回 null
+     */
+    @Nullable
+    public RedisHashCacheCompressor getCompressor() {
+        return compressor;
+    }
+
+    /**
+     * @return 进程内一级缓存, 未开启时返回 null
+     */
+    @Nullable
+    public RedisHashNearCache getNearCache() {
+        return nearCache;
     }
 
     /**
@@ -291,7 +676,8 @@ public class RedisHashCache extends RedisCache {
         }
 
         //noinspection ConstantConditions
-        return ByteUtils.getBytes(cacheConfig.getValueSerializationPair().write(value));
+        byte[] bytes = ByteUtils.getBytes(cacheConfig.getValueSerializationPair().write(value));
+        return compressor == null ? bytes : compressor.compress(bytes);
     }
 
     /**
@@ -309,6 +695,11 @@ public class RedisHashCache extends RedisCache {
             return NullValue.INSTANCE;
         }
 
+        if (RedisHashCacheCompressor.isCompressed(value))
+        {
+            value = compressor == null ? RedisHashCacheCompressor.inflate(value) : compressor.decompress(value);
+        }
+
         return cacheConfig.getValueSerializationPair().read(ByteBuffer.wrap(value));
     }
 
@@ -348,6 +739,11 @@ public class RedisHashCache extends RedisCache {
             return (String) key;
         }
 
+        if (key instanceof HashCacheKey)
+        {
+            return key.toString();
+        }
+
         TypeDescriptor source = TypeDescriptor.forObject(key);
 
         TypeDescriptor target = TypeDescriptor.valueOf(String.class);
@@ -410,6 +806,11 @@ public class RedisHashCache extends RedisCache {
     }
 
     private Object[] parsingKey(Object key) {
+        if (key instanceof HashCacheKey)
+        {
+            // 已结构化的 key 不需要拆分, hash key 与 field 分别从 HashCacheKey 中读取
+            return ((HashCacheKey) key).hasField() ? new Object[]{key, key} : new Object[]{key};
+        }
         if (key instanceof String)
         {
             return Optional.ofNullable((Object[]) StringUtils.split((String) key, REDIS_CACHE_HASH_KEY_SEPARATE))
@@ -456,11 +857,60 @@ public class RedisHashCache extends RedisCache {
     }
 
     private byte[] createAndConvertCacheKey(Object key) {
-        return serializeCacheKey(createCacheKey(key));
+        if (utf8KeySerializer && key instanceof HashCacheKey)
+        {
+            byte[] keyBytes = ((HashCacheKey) key).getKeyBytes();
+            int tagLength = hashTag ? 2 : 0;
+            byte[] result = new byte[prefixBytes.length + keyBytes.length + tagLength];
+            System.arraycopy(prefixBytes, 0, result, 0, prefixBytes.length);
+            int pos = prefixBytes.length;
+            if (hashTag)
+            {
+                result[pos++] = '{';
+                result[result.length - 1] = '}';
+            }
+            System.arraycopy(keyBytes, 0, result, pos, keyBytes.length);
+            return result;
+        }
+        return serializeCacheKey(createEntryKey(key));
+    }
+
+    /**
+     * 创建缓存项(hash 缓存时为 hash key)的 redis key, 开启 hash tag 时对 key 添加 hash tag, 如: {@code UCHC::{hs:github}}
+     */
+    private String createEntryKey(Object key) {
+        if (key instanceof HashCacheKey)
+        {
+            key = ((HashCacheKey) key).getKey();
+        }
+        if (!hashTag)
+        {
+            return createCacheKey(key);
+        }
+        return createCacheKey("{" + convertKey(key) + "}");
     }
 
     private byte[] createAndConvertCacheField(Object field) {
-        return serializeCacheKey(convertKey(field));
+        if (utf8KeySerializer && field instanceof HashCacheKey)
+        {
+            return ((HashCacheKey) field).getFieldBytes();
+        }
+        return serializeCacheKey(convertField(field));
+    }
+
+    private String convertField(Object field) {
+        if (field instanceof HashCacheKey)
+        {
+            return ((HashCacheKey) field).getField();
+        }
+        return convertKey(field);
+    }
+
+    /**
+     * 一级缓存使用字符串 key, 使 {@link HashCacheKey} 与 SpEL 字符串 key 的更新/失效作用于同一个缓存项
+     */
+    private Object toNearCacheKey(Object key) {
+        return key instanceof HashCacheKey ? key.toString() : key;
     }
 
     private String prefixCacheKey(String key) {
@@ -469,6 +919,283 @@ public class RedisHashCache extends RedisCache {
         return cacheConfig.getKeyPrefixFor(name) + key;
     }
 
+    /**
+     * 执行 redis 操作并统计耗时与异常
+     */
+    private <T> T timed(Operation operation, Supplier<T> action) {
+        final long start = System.nanoTime();
+        try
+        {
+            return action.get();
+        }
+        catch (RuntimeException e)
+        {
+            statistics.recordError();
+            throw e;
+        }
+        finally
+        {
+            statistics.recordLatency(operation, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * 更新本地一级缓存并通知其他节点失效
+     */
+    private void putNearCache(Object key, @Nullable Object cacheValue) {
+        if (nearCache != null && cacheValue != null)
+        {
+            nearCache.put(toNearCacheKey(key), cacheValue);
+            publishNearCacheEvict(key);
+        }
+    }
+
+    /**
+     * 失效本地一级缓存并通知其他节点
+     */
+    private void invalidateNearCache(Object key) {
+        if (nearCache != null)
+        {
+            nearCache.invalidate(toNearCacheKey(key));
+            publishNearCacheEvict(key);
+        }
+    }
+
+    private void publishNearCacheEvict(Object key) {
+        if (nearCacheBroadcaster != null)
+        {
+            nearCacheBroadcaster.publishEvict(name, convertKey(key));
+        }
+    }
+
+    /**
+     * 执行 valueLoader 并回填缓存, 配置了 {@link RedisHashCacheLoadLease} 时, 先获取分布式加载租约, 获取不到租约时等待租约持有者回填缓存.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T loadValue(Object key, Callable<T> valueLoader) {
+
+        if (loadLease == null)
+        {
+            return loadAndPut(key, valueLoader);
+        }
+
+        final byte[] leaseKey = createLeaseKey(key);
+        final byte[] owner = UUID.randomUUID().toString().getBytes(StandardCharsets.UTF_8);
+        boolean leased;
+        try
+        {
+            leased = cacheWriter.tryLease(name, leaseKey, owner, loadLease.getTtl());
+        }
+        catch (RuntimeException e)
+        {
+            log.error("redis异常: 获取加载租约失败, 直接加载, cacheName=[{}], key=[{}]", name, key, e);
+            return loadAndPut(key, valueLoader);
+        }
+
+        if (leased)
+        {
+            statistics.recordLeaseAcquired();
+            try
+            {
+                return loadAndPut(key, valueLoader);
+            }
+            finally
+            {
+                try
+                {
+                    cacheWriter.releaseLease(name, leaseKey, owner);
+                }
+                catch (RuntimeException e)
+                {
+                    log.error("redis异常: 释放加载租约失败, cacheName=[{}], key=[{}]", name, key, e);
+                }
+            }
+        }
+
+        statistics.recordLeaseContended();
+        ValueWrapper result = awaitLeaseHolderFill(key);
+        if (result != null)
+        {
+            return (T) result.get();
+        }
+
+        statistics.recordLeaseWaitTimeout();
+        return loadAndPut(key, valueLoader);
+    }
+
+    /**
+     * 租约 key 与缓存项(hash 缓存时为 hash key)使用相同的 hash tag, 如: {@code UCHC::{hs:github}__12345~lease}
+     */
+    private byte[] createLeaseKey(Object key) {
+        Object[] keyPair = parsingKey(key);
+        if (keyPair.length == HASH_KEY_ARRAY_LENGTH)
+        {
+            return serializeCacheKey(createEntryKey(keyPair[0]) + REDIS_CACHE_HASH_KEY_SEPARATE
+                                             + convertField(keyPair[1]) + LEASE_KEY_SUFFIX);
+        }
+        return serializeCacheKey(createEntryKey(key) + LEASE_KEY_SUFFIX);
+    }
+
+    /**
+     * 在 {@link RedisHashCacheLoadLease#getWaitTimeout()} 内轮询缓存, 等待租约持有者回填缓存.
+     * @return 超时返回 null
+     */
+    @Nullable
+    private ValueWrapper awaitLeaseHolderFill(Object key) {
+
+        final long deadline = System.nanoTime() + loadLease.getWaitTimeout().toNanos();
+        final long pollMillis = Math.max(1L, loadLease.getPollInterval().toMillis());
+        try
+        {
+            while (System.nanoTime() - deadline < 0)
+            {
+                //noinspection BusyWait
+                Thread.sleep(pollMillis);
+                ValueWrapper result = getQuietly(key);
+                if (result != null)
+                {
+                    return result;
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            // Re-interrupt current thread, to allow other participants to react.
+            Thread.currentThread().interrupt();
+            throw new PessimisticLockingFailureException(
+                    String.format("Interrupted while waiting for load lease of cache %s", name), e);
+        }
+        return null;
+    }
+
+    private <T> T loadAndPut(Object key, Callable<T> valueLoader) {
+        T value = valueFromLoader(key, valueLoader);
+        try
+        {
+            put(key, value);
+        }
+        catch (RuntimeException e)
+        {
+            log.error("redis异常：cacheName=[{}], key=[{}]", name, key, e);
+        }
+        return value;
+    }
+
+    /**
+     * 读取缓存并在需要时提前刷新, redis 操作异常时只打印日志
+     */
+    @Nullable
+    private ValueWrapper getQuietly(Object key, Callable<?> valueLoader) {
+        try
+        {
+            return toValueWrapper(lookup(key, valueLoader));
+        }
+        catch (RuntimeException e)
+        {
+            log.error("redis异常：cacheName=[{}], key=[{}]", name, key, e);
+            return null;
+        }
+    }
+
+    /**
+     * 剩余过期时间低于阈值时, 提交异步刷新任务, 同一个 key 同时只有一个刷新任务, 任务被拒绝时放弃本次刷新.
+     */
+    private void refreshAheadIfNecessary(Object key, Callable<?> valueLoader, long ttlMillis) {
+        if (!refreshAhead.shouldRefresh(ttlMillis, cacheConfig.getTtl()))
+        {
+            return;
+        }
+        final Object refreshId = new Object();
+        if (refreshingKeys.putIfAbsent(key, refreshId) != null)
+        {
+            return;
+        }
+        try
+        {
+            refreshAhead.getExecutor().execute(() -> refresh(key, valueLoader, refreshId));
+        }
+        catch (RejectedExecutionException e)
+        {
+            refreshingKeys.remove(key, refreshId);
+            statistics.recordRefreshRejected();
+            log.debug("提前刷新任务被拒绝: cacheName=[{}], key=[{}]", name, key);
+        }
+    }
+
+    /**
+     * 加载并回填; 刷新期间此 key 发生了 evict/clear(标识已删除或已变化)时放弃回填. 回填在 refreshingKeys 的
+     * computeIfPresent 中执行, 与 evict/clear 删除标识互斥, evict/clear 要么在回填之后执行, 要么使回填放弃.
+     */
+    private void refresh(Object key, Callable<?> valueLoader, Object refreshId) {
+        try
+        {
+            final Object value = valueLoader.call();
+            refreshingKeys.computeIfPresent(key, (k, current) -> {
+                if (current != refreshId)
+                {
+                    return current;
+                }
+                put(key, value);
+                statistics.recordRefresh();
+                return null;
+            });
+        }
+        catch (Exception e)
+        {
+            statistics.recordRefreshFailure();
+            log.warn("提前刷新缓存失败: cacheName=[{}], key=[{}]", name, key, e);
+        }
+        finally
+        {
+            refreshingKeys.remove(key, refreshId);
+        }
+    }
+
+    @Nullable
+    private ValueWrapper getQuietly(Object key) {
+        try
+        {
+            return get(key);
+        }
+        catch (RuntimeException e)
+        {
+            log.error("redis异常：cacheName=[{}], key=[{}]", name, key, e);
+            return null;
+        }
+    }
+
+    private Object awaitInFlightLoad(Object key, Callable<?> valueLoader, CompletableFuture<Object> inFlightLoad) {
+
+        final long start = System.nanoTime();
+        try
+        {
+            return inFlightLoad.get();
+        }
+        catch (InterruptedException e)
+        {
+            // Re-interrupt current thread, to allow other participants to react.
+            Thread.currentThread().interrupt();
+            throw new ValueRetrievalException(key, valueLoader, e);
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error)
+            {
+                throw (Error) cause;
+            }
+            throw new ValueRetrievalException(key, valueLoader, cause);
+        }
+        finally
+        {
+            statistics.recordLoadWait(System.nanoTime() - start);
+        }
+    }
+
     private static <T> T valueFromLoader(Object key, Callable<T> valueLoader) {
 
         try
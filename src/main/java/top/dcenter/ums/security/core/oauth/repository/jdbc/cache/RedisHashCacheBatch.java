@@ -0,0 +1,167 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.repository.jdbc.cache;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.lang.Nullable;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * 一次方法调用内 {@link RedisHashCache} 的 put/evict 批量操作. <br>
+ * 1. 由 {@link RedisHashCacheBatchInterceptor} 在方法调用前开启, 期间 {@link RedisHashCache#put(Object, Object)} 与
+ * {@link RedisHashCache#evict(Object)} 只记录 redis 命令, 不立即执行.<br>
+ * 2. 方法调用结束时按记录顺序通过一个 pipeline(MULTI/EXEC) 一次发送给 redis; 存在事务同步时在事务提交后发送,
+ * 事务回滚时丢弃.<br>
+ * 3. 与 {@link org.springframework.cache.interceptor.CacheErrorHandler} 的处理方式一致, redis 异常时只打印日志.
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/3 10:05
+ */
+@Slf4j
+final class RedisHashCacheBatch {
+
+    private static final ThreadLocal<RedisHashCacheBatch> CURRENT = new ThreadLocal<>();
+
+    /**
+     * cacheWriter 与其需要批量执行的命令
+     */
+    private final Map<RedisHashCacheWriter, List<Consumer<RedisConnection>>> commands = new IdentityHashMap<>();
+    /**
+     * cacheWriter 与涉及的缓存名称, 用于检查缓存锁
+     */
+    private final Map<RedisHashCacheWriter, Set<String>> cacheNames = new IdentityHashMap<>();
+    /**
+     * redis 命令执行后的操作, 如: 一级缓存的更新与失效
+     */
+    private final List<Runnable> afterFlushActions = new ArrayList<>();
+    private int depth;
+
+    private RedisHashCacheBatch() {}
+
+    /**
+     * 开启批量操作, 支持嵌套, 只有最外层结束时才发送.
+     */
+    static void begin() {
+        RedisHashCacheBatch batch = CURRENT.get();
+        if (batch == null)
+        {
+            batch = new RedisHashCacheBatch();
+            CURRENT.set(batch);
+        }
+        batch.depth++;
+    }
+
+    /**
+     * 结束批量操作, 最外层结束时发送记录的命令.
+     */
+    static void end() {
+        RedisHashCacheBatch batch = CURRENT.get();
+        if (batch == null || --batch.depth > 0)
+        {
+            return;
+        }
+        CURRENT.remove();
+
+        if (batch.isEmpty())
+        {
+            return;
+        }
+
+        if (TransactionSynchronizationManager.isSynchronizationActive())
+        {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    batch.flush();
+                }
+            });
+            return;
+        }
+        batch.flush();
+    }
+
+    /**
+     * @return 当前线程的批量操作, 未开启时返回 null
+     */
+    @Nullable
+    static RedisHashCacheBatch current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * 记录 redis 命令
+     * @param cacheWriter       执行命令的 cacheWriter
+     * @param cacheName         缓存名称
+     * @param command           redis 命令
+     * @param afterFlushAction  命令发送后的操作, 可以为 null
+     */
+    void add(RedisHashCacheWriter cacheWriter, String cacheName, Consumer<RedisConnection> command,
+             @Nullable Runnable afterFlushAction) {
+        commands.computeIfAbsent(cacheWriter, k -> new ArrayList<>()).add(command);
+        cacheNames.computeIfAbsent(cacheWriter, k -> new LinkedHashSet<>()).add(cacheName);
+        if (afterFlushAction != null)
+        {
+            afterFlushActions.add(afterFlushAction);
+        }
+    }
+
+    private boolean isEmpty() {
+        return commands.isEmpty() && afterFlushActions.isEmpty();
+    }
+
+    private void flush() {
+        commands.forEach((cacheWriter, cmds) -> {
+            try
+            {
+                cacheWriter.executeBatch(cacheNames.get(cacheWriter), cmds);
+            }
+            catch (RuntimeException e)
+            {
+                log.error("redis异常: 批量执行缓存操作失败, cacheNames=[{}], commands=[{}]",
+                          cacheNames.get(cacheWriter), cmds.size(), e);
+            }
+        });
+
+        for (Runnable action : afterFlushActions)
+        {
+            try
+            {
+                action.run();
+            }
+            catch (RuntimeException e)
+            {
+                log.error("批量缓存操作的后续处理失败: {}", e.getMessage(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.repository.jdbc.cache;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.springframework.lang.NonNull;
+
+/**
+ * 在缓存拦截器外层开启 {@link RedisHashCacheBatch}, 把一次方法调用中 {@code @CacheEvict/@CachePut}
+ * 产生的所有 redis 命令合并为一次 pipeline 发送, 减少连接获取与网络往返次数.
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/3 10:32
+ */
+public class RedisHashCacheBatchInterceptor implements MethodInterceptor {
+
+    @Override
+    public Object invoke(@NonNull MethodInvocation invocation) throws Throwable {
+        RedisHashCacheBatch.begin();
+        try
+        {
+            return invocation.proceed();
+        }
+        finally
+        {
+            RedisHashCacheBatch.end();
+        }
+    }
+
+    /**
+     * 在 {@link RedisHashCacheBatch} 中执行 action, 用于不能使用缓存注解的批量方法中编程式的 put/evict.
+     * @param action    执行缓存 put/evict 的操作
+     */
+    public static void runInBatch(@NonNull Runnable action) {
+        RedisHashCacheBatch.begin();
+        try
+        {
+            action.run();
+        }
+        finally
+        {
+            RedisHashCacheBatch.end();
+        }
+    }
+}
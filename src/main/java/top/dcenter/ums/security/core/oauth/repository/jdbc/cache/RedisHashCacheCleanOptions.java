@@ -0,0 +1,140 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.repository.jdbc.cache;
+
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+import org.springframework.util.Assert;
+
+import java.time.Duration;
+
+/**
+ * {@link RedisHashCacheWriter#clean(String, byte[])} 的增量清理配置. <br>
+ * 使用 SCAN 游标每次扫描 {@link #getScanCount()} 个 key, 每累计 {@link #getBatchSize()} 个 key 通过 pipeline
+ * 分块执行 UNLINK(或 DEL), 每批之间暂停 {@link #getPause()}, 避免一次性 KEYS + DEL 长时间阻塞 redis.
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/2 15:36
+ */
+public final class RedisHashCacheCleanOptions {
+
+    /**
+     * pipeline 中每条 UNLINK 命令包含的 key 的数量
+     */
+    private static final int UNLINK_CHUNK_SIZE = 100;
+
+    /**
+     * 默认配置: scanCount=1000, batchSize=1000, 不暂停, 使用 UNLINK
+     */
+    public static final RedisHashCacheCleanOptions DEFAULT =
+            new RedisHashCacheCleanOptions(1000, 1000, Duration.ZERO, true, null);
+
+    /**
+     * SCAN 命令的 COUNT 参数
+     */
+    private final int scanCount;
+    /**
+     * 每批删除的 key 的数量
+     */
+    private final int batchSize;
+    /**
+     * 每批删除之间的暂停时间, {@link Duration#ZERO} 表示不暂停
+     */
+    private final Duration pause;
+    /**
+     * 是否使用 UNLINK(redis 4.0+, 异步释放内存), false 时使用 DEL
+     */
+    private final boolean unlink;
+    /**
+     * 清理进度回调, 为 null 时只打印日志
+     */
+    private final ProgressListener progressListener;
+
+    private RedisHashCacheCleanOptions(int scanCount, int batchSize, Duration pause, boolean unlink,
+                                       @Nullable ProgressListener progressListener) {
+        this.scanCount = scanCount;
+        this.batchSize = batchSize;
+        this.pause = pause;
+        this.unlink = unlink;
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * 创建 {@link RedisHashCacheCleanOptions}
+     * @param scanCount         SCAN 命令的 COUNT 参数, 必须大于 0
+     * @param batchSize         每批删除的 key 的数量, 必须大于 0
+     * @param pause             每批删除之间的暂停时间, 不能为负数, {@link Duration#ZERO} 表示不暂停
+     * @param unlink            是否使用 UNLINK, false 时使用 DEL
+     * @param progressListener  清理进度回调, 可以为 null
+     * @return  {@link RedisHashCacheCleanOptions}
+     */
+    @NonNull
+    public static RedisHashCacheCleanOptions of(int scanCount, int batchSize, @NonNull Duration pause, boolean unlink,
+                                                @Nullable ProgressListener progressListener) {
+        Assert.isTrue(scanCount > 0, "ScanCount must be positive!");
+        Assert.isTrue(batchSize > 0, "BatchSize must be positive!");
+        Assert.notNull(pause, "Pause must not be null!");
+        Assert.isTrue(!pause.isNegative(), "Pause must not be negative!");
+        return new RedisHashCacheCleanOptions(scanCount, batchSize, pause, unlink, progressListener);
+    }
+
+    public int getScanCount() {
+        return scanCount;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public int getUnlinkChunkSize() {
+        return UNLINK_CHUNK_SIZE;
+    }
+
+    @NonNull
+    public Duration getPause() {
+        return pause;
+    }
+
+    public boolean isUnlink() {
+        return unlink;
+    }
+
+    @Nullable
+    public ProgressListener getProgressListener() {
+        return progressListener;
+    }
+
+    /**
+     * 缓存清理进度回调, 每批删除后及清理结束时调用
+     */
+    @FunctionalInterface
+    public interface ProgressListener {
+        /**
+         * 清理进度
+         * @param cacheName     缓存名称
+         * @param deletedKeys   已删除的 key 的数量
+         * @param finished      是否已清理结束
+         */
+        void onProgress(@NonNull String cacheName, long deletedKeys, boolean finished);
+    }
+}
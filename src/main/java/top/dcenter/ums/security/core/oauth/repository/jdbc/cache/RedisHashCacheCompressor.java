@@ -0,0 +1,258 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.repository.jdbc.cache;
+
+import org.springframework.data.redis.serializer.SerializationException;
+import org.springframework.lang.NonNull;
+import org.springframework.util.Assert;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * {@link RedisHashCache} 缓存 value 的压缩: 序列化后的 value 大于等于 threshold 字节时使用 JDK Deflate 压缩,
+ * 压缩后不小于原数据时不压缩. <br>
+ * 格式: HEADER(1 byte) + 原数据长度(4 bytes, big-endian) + deflate 数据. HEADER 不是 JSON/紧凑格式/JDK 序列化数据的首字节,
+ * 所以未压缩的旧数据可以正常读取.
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/4 15:10
+ */
+public final class RedisHashCacheCompressor {
+
+    /**
+     * deflate 压缩数据的首字节
+     */
+    static final byte DEFLATE_HEADER = (byte) 0xC2;
+    private static final int HEADER_LENGTH = 5;
+    private static final int BUFFER_SIZE = 4096;
+
+    private final int threshold;
+    private final int level;
+
+    private final LongAdder compressedCount = new LongAdder();
+    private final LongAdder skippedCount = new LongAdder();
+    private final LongAdder bytesBeforeCompression = new LongAdder();
+    private final LongAdder bytesAfterCompression = new LongAdder();
+    private final LongAdder compressTimeNanos = new LongAdder();
+    private final LongAdder decompressedCount = new LongAdder();
+    private final LongAdder decompressTimeNanos = new LongAdder();
+
+    /**
+     * @param threshold 序列化后的 value 大于等于 threshold 字节时压缩, 必须大于 0
+     * @param level     压缩级别, 取值范围: [0, 9], 参考 {@link Deflater#BEST_SPEED}, {@link Deflater#BEST_COMPRESSION}
+     */
+    public RedisHashCacheCompressor(int threshold, int level) {
+        Assert.isTrue(threshold > 0, "Threshold must be positive!");
+        Assert.isTrue(level >= Deflater.NO_COMPRESSION && level <= Deflater.BEST_COMPRESSION,
+                      "Level must be between 0 and 9!");
+        this.threshold = threshold;
+        this.level = level;
+    }
+
+    /**
+     * @param value 序列化后的 value
+     * @return  value 大于等于 threshold 且压缩有效时返回压缩后的数据, 否则返回 value
+     */
+    @NonNull
+    byte[] compress(@NonNull byte[] value) {
+        if (value.length < threshold)
+        {
+            return value;
+        }
+
+        final long start = System.nanoTime();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(value.length / 2 + HEADER_LENGTH);
+        out.write(DEFLATE_HEADER);
+        out.write(value.length >>> 24);
+        out.write(value.length >>> 16);
+        out.write(value.length >>> 8);
+        out.write(value.length);
+
+        Deflater deflater = new Deflater(level);
+        try
+        {
+            deflater.setInput(value);
+            deflater.finish();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!deflater.finished())
+            {
+                int count = deflater.deflate(buffer);
+                out.write(buffer, 0, count);
+            }
+        }
+        finally
+        {
+            deflater.end();
+        }
+        compressTimeNanos.add(System.nanoTime() - start);
+
+        if (out.size() >= value.length)
+        {
+            skippedCount.increment();
+            return value;
+        }
+
+        byte[] compressed = out.toByteArray();
+        compressedCount.increment();
+        bytesBeforeCompression.add(value.length);
+        bytesAfterCompression.add(compressed.length);
+        return compressed;
+    }
+
+    /**
+     * 解压并统计耗时
+     * @param value 压缩后的数据
+     * @return  原数据
+     */
+    @NonNull
+    byte[] decompress(@NonNull byte[] value) {
+        final long start = System.nanoTime();
+        try
+        {
+            return inflate(value);
+        }
+        finally
+        {
+            decompressedCount.increment();
+            decompressTimeNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @param value 缓存数据
+     * @return  是否为压缩后的数据
+     */
+    static boolean isCompressed(@NonNull byte[] value) {
+        return value.length > HEADER_LENGTH && value[0] == DEFLATE_HEADER;
+    }
+
+    /**
+     * 解压, 没有开启压缩的缓存也需要能读取开启压缩时写入的数据
+     * @param value 压缩后的数据
+     * @return  原数据
+     */
+    @NonNull
+    static byte[] inflate(@NonNull byte[] value) {
+        int length = ((value[1] & 0xFF) << 24) | ((value[2] & 0xFF) << 16) | ((value[3] & 0xFF) << 8) | (value[4] & 0xFF);
+        if (length < 0)
+        {
+            throw new SerializationException("Corrupted compressed cache value, length: " + length);
+        }
+
+        byte[] result = new byte[length];
+        Inflater inflater = new Inflater();
+        try
+        {
+            inflater.setInput(value, HEADER_LENGTH, value.length - HEADER_LENGTH);
+            int offset = 0;
+            while (offset < length)
+            {
+                int count = inflater.inflate(result, offset, length - offset);
+                if (count == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+                {
+                    break;
+                }
+                offset += count;
+            }
+            if (offset != length)
+            {
+                throw new SerializationException("Corrupted compressed cache value, expected " + length
+                                                         + " bytes but was " + offset);
+            }
+            return result;
+        }
+        catch (DataFormatException e)
+        {
+            throw new SerializationException("Corrupted compressed cache value", e);
+        }
+        finally
+        {
+            inflater.end();
+        }
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * @return 压缩的次数
+     */
+    public long getCompressedCount() {
+        return compressedCount.sum();
+    }
+
+    /**
+     * @return 达到阈值但压缩后不小于原数据而不压缩的次数
+     */
+    public long getSkippedCount() {
+        return skippedCount.sum();
+    }
+
+    /**
+     * @return 已压缩数据压缩前的总字节数
+     */
+    public long getBytesBeforeCompression() {
+        return bytesBeforeCompression.sum();
+    }
+
+    /**
+     * @return 已压缩数据压缩后的总字节数
+     */
+    public long getBytesAfterCompression() {
+        return bytesAfterCompression.sum();
+    }
+
+    /**
+     * @return 压缩率(压缩后字节数 / 压缩前字节数), 未压缩过时返回 1.0
+     */
+    public double getCompressionRatio() {
+        long before = bytesBeforeCompression.sum();
+        return before == 0L ? 1.0D : (double) bytesAfterCompression.sum() / before;
+    }
+
+    /**
+     * @return 压缩(包括未采用压缩结果)的总耗时, 单位: 纳秒
+     */
+    public long getCompressTimeNanos() {
+        return compressTimeNanos.sum();
+    }
+
+    /**
+     * @return 解压的次数
+     */
+    public long getDecompressedCount() {
+        return decompressedCount.sum();
+    }
+
+    /**
+     * @return 解压的总耗时, 单位: 纳秒
+     */
+    public long getDecompressTimeNanos() {
+        return decompressTimeNanos.sum();
+    }
+}
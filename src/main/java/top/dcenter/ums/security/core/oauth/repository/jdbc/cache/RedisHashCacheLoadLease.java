@@ -0,0 +1,92 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.repository.jdbc.cache;
+
+import org.springframework.lang.NonNull;
+import org.springframework.util.Assert;
+
+import java.time.Duration;
+
+/**
+ * {@link RedisHashCache} 分布式加载租约(lease)配置. <br>
+ * 缓存未命中时, 只有获取到租约(SET NX PX)的节点执行 valueLoader 查询数据库并回填缓存,
+ * 其他节点在 {@link #getWaitTimeout()} 内每隔 {@link #getPollInterval()} 轮询缓存, 超时后自行加载.
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/1 10:12
+ */
+public final class RedisHashCacheLoadLease {
+
+    /**
+     * 租约的过期时间, 防止持有租约的节点宕机后租约无法释放
+     */
+    private final Duration ttl;
+    /**
+     * 未获取到租约的节点等待缓存回填的最长时间
+     */
+    private final Duration waitTimeout;
+    /**
+     * 未获取到租约的节点轮询缓存的间隔
+     */
+    private final Duration pollInterval;
+
+    private RedisHashCacheLoadLease(Duration ttl, Duration waitTimeout, Duration pollInterval) {
+        this.ttl = ttl;
+        this.waitTimeout = waitTimeout;
+        this.pollInterval = pollInterval;
+    }
+
+    /**
+     * 创建 {@link RedisHashCacheLoadLease}
+     * @param ttl           租约的过期时间, 必须大于 0
+     * @param waitTimeout   未获取到租约的节点等待缓存回填的最长时间, 不能为负数
+     * @param pollInterval  未获取到租约的节点轮询缓存的间隔, 必须大于 0
+     * @return  {@link RedisHashCacheLoadLease}
+     */
+    @NonNull
+    public static RedisHashCacheLoadLease of(@NonNull Duration ttl, @NonNull Duration waitTimeout,
+                                             @NonNull Duration pollInterval) {
+        Assert.notNull(ttl, "Ttl must not be null!");
+        Assert.notNull(waitTimeout, "WaitTimeout must not be null!");
+        Assert.notNull(pollInterval, "PollInterval must not be null!");
+        Assert.isTrue(!ttl.isZero() && !ttl.isNegative(), "Ttl must be positive!");
+        Assert.isTrue(!waitTimeout.isNegative(), "WaitTimeout must not be negative!");
+        Assert.isTrue(!pollInterval.isZero() && !pollInterval.isNegative(), "PollInterval must be positive!");
+        return new RedisHashCacheLoadLease(ttl, waitTimeout, pollInterval);
+    }
+
+    @NonNull
+    public Duration getTtl() {
+        return ttl;
+    }
+
+    @NonNull
+    public Duration getWaitTimeout() {
+        return waitTimeout;
+    }
+
+    @NonNull
+    public Duration getPollInterval() {
+        return pollInterval;
+    }
+}
@@ -16,6 +16,7 @@
 
 package top.dcenter.ums.security.core.oauth.repository.jdbc.cache;
 
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.cache.transaction.AbstractTransactionSupportingCacheManager;
 import org.springframework.data.redis.cache.RedisCache;
 import org.springframework.data.redis.cache.RedisCacheConfiguration;
@@ -23,7 +24,9 @@ import org.springframework.data.redis.connection.RedisConnectionFactory;
 import org.springframework.lang.NonNull;
 import org.springframework.lang.Nullable;
 import org.springframework.util.Assert;
+import top.dcenter.ums.security.core.oauth.enums.CacheWriterMode;
 
+import java.time.Duration;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -55,12 +58,36 @@ import java.util.Set;
  * @see RedisHashCacheWriter
  */
 @SuppressWarnings({"AlibabaCommentsMustBeJavadocFormat", "unused"})
-public class RedisHashCacheManager extends AbstractTransactionSupportingCacheManager {
+public class RedisHashCacheManager extends AbstractTransactionSupportingCacheManager implements DisposableBean {
 
 	private final RedisHashCacheWriter cacheWriter;
 	private final RedisCacheConfiguration defaultCacheConfig;
 	private final Map<String, RedisCacheConfiguration> initialCacheConfiguration;
 	private final boolean allowInFlightCacheCreation;
+	/**
+	 * 缓存名称与分布式加载租约配置
+	 */
+	private final Map<String, RedisHashCacheLoadLease> loadLeases = new HashMap<>();
+	/**
+	 * 缓存名称与进程内一级缓存
+	 */
+	private final Map<String, RedisHashNearCache> nearCaches = new HashMap<>();
+	/**
+	 * 一级缓存失效消息广播, 为 null 时不广播
+	 */
+	private RedisHashNearCacheBroadcaster nearCacheBroadcaster;
+	/**
+	 * 缓存名称与缓存 value 压缩
+	 */
+	private final Map<String, RedisHashCacheCompressor> compressors = new HashMap<>();
+	/**
+	 * 缓存名称与提前刷新配置
+	 */
+	private final Map<String, RedisHashCacheRefreshAhead> refreshAheads = new HashMap<>();
+	/**
+	 * 是否对 redis key 添加 hash tag(Redis Cluster)
+	 */
+	private boolean hashTag;
 
 	/**
 	 * Creates new {@link RedisHashCacheManager} using given {@link RedisHashCacheWriter} and default
@@ -236,6 +263,22 @@ public class RedisHashCacheManager extends AbstractTransactionSupportingCacheMan
 		return RedisHashCacheManagerBuilder.fromCacheWriter(cacheWriter);
 	}
 
+	@Override
+	public void afterPropertiesSet() {
+		super.afterPropertiesSet();
+		cacheWriter.loadScripts();
+		if (nearCacheBroadcaster != null) {
+			nearCacheBroadcaster.start();
+		}
+	}
+
+	@Override
+	public void destroy() {
+		if (nearCacheBroadcaster != null) {
+			nearCacheBroadcaster.stop();
+		}
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * @see org.springframework.cache.support.AbstractCacheManager#loadCaches()
@@ -287,7 +330,9 @@ public class RedisHashCacheManager extends AbstractTransactionSupportingCacheMan
 	 * @return never {@literal null}.
 	 */
 	protected RedisCache createRedisCache(String name, @Nullable RedisCacheConfiguration cacheConfig) {
-		return new RedisHashCache(name, cacheWriter, cacheConfig != null ? cacheConfig : defaultCacheConfig);
+		return new RedisHashCache(name, cacheWriter, cacheConfig != null ? cacheConfig : defaultCacheConfig,
+		                          loadLeases.get(name), nearCaches.get(name), nearCacheBroadcaster,
+		                          compressors.get(name), refreshAheads.get(name), hashTag);
 	}
 
 	/**
@@ -303,6 +348,15 @@ public class RedisHashCacheManager extends AbstractTransactionSupportingCacheMan
 		private RedisHashCacheWriter cacheWriter;
 		private RedisCacheConfiguration defaultCacheConfiguration = RedisCacheConfiguration.defaultCacheConfig();
 		private final Map<String, RedisCacheConfiguration> initialCaches = new LinkedHashMap<>();
+		private final Map<String, RedisHashCacheLoadLease> loadLeases = new HashMap<>();
+		private final Map<String, RedisHashNearCache> nearCaches = new HashMap<>();
+		private RedisHashNearCacheBroadcaster nearCacheBroadcaster;
+		private RedisHashCacheCleanOptions cleanOptions;
+		private Double scriptTtlRefreshRatio;
+		private CacheWriterMode writerMode;
+		private final Map<String, RedisHashCacheCompressor> compressors = new HashMap<>();
+		private final Map<String, RedisHashCacheRefreshAhead> refreshAheads = new HashMap<>();
+		private boolean hashTag;
 		private boolean enableTransactions;
 		boolean allowInFlightCacheCreation = true;
 
@@ -431,6 +485,141 @@ public class RedisHashCacheManager extends AbstractTransactionSupportingCacheMan
 			return this;
 		}
 
+		/**
+		 * 对 cacheNames 的缓存开启分布式加载租约: 缓存未命中时, 集群中只有获取到租约的节点执行 valueLoader 并回填缓存,
+		 * 其他节点等待回填, 防止热点缓存同时失效时所有节点同时查询数据库. 只对 {@code @Cacheable(sync = true)} 生效.
+		 *
+		 * @param cacheNames must not be {@literal null}.
+		 * @param loadLease must not be {@literal null}.
+		 * @return this {@link RedisHashCacheManagerBuilder}.
+		 */
+		public RedisHashCacheManagerBuilder withLoadLease(Set<String> cacheNames, RedisHashCacheLoadLease loadLease) {
+
+			Assert.notNull(cacheNames, "CacheNames must not be null!");
+			Assert.notNull(loadLease, "LoadLease must not be null!");
+
+			cacheNames.forEach(it -> this.loadLeases.put(it, loadLease));
+			return this;
+		}
+
+		/**
+		 * 对 cacheNames 的缓存开启进程内一级缓存(L1), Redis 作为二级缓存(L2): 每个缓存使用独立的一级缓存,
+		 * 命中一级缓存时不访问 Redis. 多节点部署时需要同时配置 {@link #nearCacheBroadcaster(RedisHashNearCacheBroadcaster)}.
+		 *
+		 * @param cacheNames must not be {@literal null}.
+		 * @param maximumSize 每个缓存的最大缓存项数量.
+		 * @param ttl 缓存项写入后的过期时间.
+		 * @return this {@link RedisHashCacheManagerBuilder}.
+		 */
+		public RedisHashCacheManagerBuilder withNearCache(Set<String> cacheNames, long maximumSize, Duration ttl) {
+
+			Assert.notNull(cacheNames, "CacheNames must not be null!");
+
+			cacheNames.forEach(it -> this.nearCaches.put(it, new RedisHashNearCache(maximumSize, ttl)));
+			return this;
+		}
+
+		/**
+		 * 一级缓存的失效消息广播, 缓存执行 put/evict/clear 时通知其他节点失效对应的一级缓存项.
+		 *
+		 * @param nearCacheBroadcaster can be {@literal null}.
+		 * @return this {@link RedisHashCacheManagerBuilder}.
+		 */
+		public RedisHashCacheManagerBuilder nearCacheBroadcaster(@Nullable RedisHashNearCacheBroadcaster nearCacheBroadcaster) {
+
+			this.nearCacheBroadcaster = nearCacheBroadcaster;
+			return this;
+		}
+
+		/**
+		 * 缓存 clear 时的增量清理配置: SCAN 分批扫描 key, pipeline 分块 UNLINK, 每批之间可暂停.
+		 *
+		 * @param cleanOptions must not be {@literal null}.
+		 * @return this {@link RedisHashCacheManagerBuilder}.
+		 */
+		public RedisHashCacheManagerBuilder cleanOptions(RedisHashCacheCleanOptions cleanOptions) {
+
+			Assert.notNull(cleanOptions, "CleanOptions must not be null!");
+
+			this.cleanOptions = cleanOptions;
+			return this;
+		}
+
+		/**
+		 * 使用启动时预加载的 lua 脚本(EVALSHA)执行 hPut/hPutIfAbsent, 每次写入只需一次网络往返且是原子操作.
+		 *
+		 * @param ttlRefreshRatio hash 剩余过期时间大于 ttl * ttlRefreshRatio 时不重新设置过期时间, 取值范围: [0, 1],
+		 *          0 表示每次写入都重新设置过期时间.
+		 * @return this {@link RedisHashCacheManagerBuilder}.
+		 */
+		public RedisHashCacheManagerBuilder withScripts(double ttlRefreshRatio) {
+
+			Assert.isTrue(ttlRefreshRatio >= 0D && ttlRefreshRatio <= 1D, "TtlRefreshRatio must be between 0 and 1!");
+
+			this.scriptTtlRefreshRatio = ttlRefreshRatio;
+			return this;
+		}
+
+		/**
+		 * 设置缓存写入器执行命令的连接模式, {@link CacheWriterMode#SHARED} 时非事务命令直接在共享的 Lettuce 原生连接上发送.
+		 *
+		 * @param writerMode must not be {@literal null}.
+		 * @return this {@link RedisHashCacheManagerBuilder}.
+		 */
+		public RedisHashCacheManagerBuilder withWriterMode(CacheWriterMode writerMode) {
+
+			Assert.notNull(writerMode, "WriterMode must not be null!");
+
+			this.writerMode = writerMode;
+			return this;
+		}
+
+		/**
+		 * 对 cacheNames 的缓存开启 value 压缩: 序列化后大于等于 threshold 字节的 value 使用 Deflate 压缩, 每个缓存单独统计压缩率与耗时.
+		 *
+		 * @param cacheNames must not be {@literal null}.
+		 * @param threshold 压缩阈值, 单位: 字节.
+		 * @param level 压缩级别, 取值范围: [0, 9].
+		 * @return this {@link RedisHashCacheManagerBuilder}.
+		 */
+		public RedisHashCacheManagerBuilder withCompression(Set<String> cacheNames, int threshold, int level) {
+
+			Assert.notNull(cacheNames, "CacheNames must not be null!");
+
+			cacheNames.forEach(it -> this.compressors.put(it, new RedisHashCacheCompressor(threshold, level)));
+			return this;
+		}
+
+		/**
+		 * 对 cacheNames 的缓存开启提前刷新: {@code @Cacheable(sync = true)} 命中缓存且 key 的剩余过期时间低于阈值时,
+		 * 异步执行 valueLoader 重写缓存, 刷新期间继续返回旧值. 开启了 {@link #withScripts(double)} 时,
+		 * refreshAhead 的 ratio 应小于 ttlRefreshRatio * 0.8(TTL 随机浮动 20%), 否则刷新时不会重新设置 hash 的过期时间.
+		 *
+		 * @param cacheNames must not be {@literal null}.
+		 * @param refreshAhead must not be {@literal null}.
+		 * @return this {@link RedisHashCacheManagerBuilder}.
+		 */
+		public RedisHashCacheManagerBuilder withRefreshAhead(Set<String> cacheNames, RedisHashCacheRefreshAhead refreshAhead) {
+
+			Assert.notNull(cacheNames, "CacheNames must not be null!");
+			Assert.notNull(refreshAhead, "RefreshAhead must not be null!");
+
+			cacheNames.forEach(it -> this.refreshAheads.put(it, refreshAhead));
+			return this;
+		}
+
+		/**
+		 * 对缓存的 redis key 添加 hash tag, 如: {@code UCHC::{hs:github}}, 使 hash key 与其加载租约 key 落在同一个 slot.
+		 * Redis Cluster 时使用, 开启后不能读取未添加 hash tag 的旧缓存数据.
+		 *
+		 * @return this {@link RedisHashCacheManagerBuilder}.
+		 */
+		public RedisHashCacheManagerBuilder withHashTag() {
+
+			this.hashTag = true;
+			return this;
+		}
+
 		/**
 		 * Disable in-flight {@link org.springframework.cache.Cache} creation for unconfigured caches.
 		 * <p />
@@ -478,10 +667,29 @@ public class RedisHashCacheManager extends AbstractTransactionSupportingCacheMan
 
 			Assert.state(cacheWriter != null, "CacheWriter must not be null! You can provide one via 'RedisCacheManagerBuilder#cacheWriter(RedisHashCacheWriter)'.");
 
+			if (cleanOptions != null) {
+				cacheWriter = cacheWriter.withCleanOptions(cleanOptions);
+			}
+			if (scriptTtlRefreshRatio != null) {
+				cacheWriter = cacheWriter.withScripts(scriptTtlRefreshRatio);
+			}
+			if (writerMode != null) {
+				cacheWriter = cacheWriter.withWriterMode(writerMode);
+			}
+
 			RedisHashCacheManager cm = new RedisHashCacheManager(cacheWriter, defaultCacheConfiguration, initialCaches,
 			                                                     allowInFlightCacheCreation);
 
 			cm.setTransactionAware(enableTransactions);
+			cm.loadLeases.putAll(loadLeases);
+			cm.nearCaches.putAll(nearCaches);
+			cm.compressors.putAll(compressors);
+			cm.refreshAheads.putAll(refreshAheads);
+			cm.hashTag = hashTag;
+			if (nearCacheBroadcaster != null && !nearCaches.isEmpty()) {
+				nearCaches.forEach(nearCacheBroadcaster::register);
+				cm.nearCacheBroadcaster = nearCacheBroadcaster;
+			}
 
 			return cm;
 		}
@@ -0,0 +1,163 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.repository.jdbc.cache;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.lang.NonNull;
+import top.dcenter.ums.security.core.oauth.repository.jdbc.cache.RedisHashCacheStatistics.Operation;
+
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * 把 {@link RedisHashCacheStatistics} 注册到 micrometer: <br>
+ * 1. cache.gets(result=hit/miss), cache.puts, cache.evictions: 与 micrometer 的 CacheMeterBinder 命名一致.<br>
+ * 2. cache.near.hits: 一级缓存命中次数; cache.errors: redis 操作异常次数.<br>
+ * 3. cache.redis.operations(operation=GET/HGET/PUT/HPUT/...): 每种 redis 操作的耗时直方图.<br>
+ * 4. cache.loads: valueLoader 加载的次数与耗时; cache.load.waits: 等待其他线程加载同一个 key 的次数与耗时;
+ * cache.load.leases(result=acquired/contended/wait_timeout): 分布式加载租约的获取/竞争/等待超时次数.<br>
+ * 5. cache.refreshes(result=success/rejected/failure): 提前刷新成功/被线程池拒绝/失败的次数.<br>
+ * 6. 开启压缩时: cache.compression.ratio: 压缩率; cache.compression.skipped: 压缩无效而不压缩的次数;
+ * cache.compression(operation=compress/decompress): 压缩与解压的次数与耗时.<br>
+ * 只有 classpath 中有 micrometer 时才会加载此类.
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/5 11:02
+ */
+public class RedisHashCacheMeterBinder implements MeterBinder {
+
+    private final Collection<RedisHashCache> caches;
+    private final String cacheManagerName;
+
+    /**
+     * @param caches            需要注册的缓存
+     * @param cacheManagerName  缓存管理器的 beanName
+     */
+    public RedisHashCacheMeterBinder(@NonNull Collection<RedisHashCache> caches, @NonNull String cacheManagerName) {
+        this.caches = caches;
+        this.cacheManagerName = cacheManagerName;
+    }
+
+    @Override
+    public void bindTo(@NonNull MeterRegistry registry) {
+        for (RedisHashCache cache : caches)
+        {
+            RedisHashCacheStatistics statistics = cache.getStatistics();
+            Tags tags = Tags.of("cache", cache.getName(), "cacheManager", cacheManagerName);
+
+            counter(registry, "cache.gets", tags.and("result", "hit"), statistics,
+                    RedisHashCacheStatistics::getHits, "The number of times cache lookup methods have returned a cached value.");
+            counter(registry, "cache.gets", tags.and("result", "miss"), statistics,
+                    RedisHashCacheStatistics::getMisses, "The number of times cache lookup methods have returned an uncached value.");
+            counter(registry, "cache.near.hits", tags, statistics,
+                    RedisHashCacheStatistics::getNearHits, "The number of lookups served by the local near cache.");
+            counter(registry, "cache.puts", tags, statistics,
+                    RedisHashCacheStatistics::getPuts, "The number of entries added to the cache.");
+            counter(registry, "cache.evictions", tags, statistics,
+                    RedisHashCacheStatistics::getEvictions, "The number of cache evictions.");
+            counter(registry, "cache.errors", tags, statistics,
+                    RedisHashCacheStatistics::getErrors, "The number of failed redis operations.");
+
+            Map<Operation, Timer> timers = new EnumMap<>(Operation.class);
+            for (Operation operation : Operation.values())
+            {
+                timers.put(operation, Timer.builder("cache.redis.operations")
+                                           .tags(tags.and("operation", operation.name()))
+                                           .description("Latency of redis operations issued by the cache.")
+                                           .publishPercentileHistogram()
+                                           .register(registry));
+            }
+            statistics.setLatencyListener((operation, nanos) -> timers.get(operation)
+                                                                      .record(nanos, TimeUnit.NANOSECONDS));
+
+            FunctionTimer.builder("cache.loads", statistics, RedisHashCacheStatistics::getLoads,
+                                  RedisHashCacheStatistics::getLoadTimeNanos, TimeUnit.NANOSECONDS)
+                         .tags(tags)
+                         .description("Value loader executions; concurrent loads of the same key count once.")
+                         .register(registry);
+            FunctionTimer.builder("cache.load.waits", statistics, RedisHashCacheStatistics::getLoadWaits,
+                                  RedisHashCacheStatistics::getLoadWaitTimeNanos, TimeUnit.NANOSECONDS)
+                         .tags(tags)
+                         .description("Callers that waited for an in-flight load of the same key.")
+                         .register(registry);
+            counter(registry, "cache.load.leases", tags.and("result", "acquired"), statistics,
+                    RedisHashCacheStatistics::getLeaseAcquired, "The number of distributed load leases acquired.");
+            counter(registry, "cache.load.leases", tags.and("result", "contended"), statistics,
+                    RedisHashCacheStatistics::getLeaseContended, "The number of loads that found the lease held by another node.");
+            counter(registry, "cache.load.leases", tags.and("result", "wait_timeout"), statistics,
+                    RedisHashCacheStatistics::getLeaseWaitTimeouts, "The number of lease waits that timed out and loaded locally.");
+            counter(registry, "cache.refreshes", tags.and("result", "success"), statistics,
+                    RedisHashCacheStatistics::getRefreshes, "The number of entries refreshed ahead of expiry.");
+            counter(registry, "cache.refreshes", tags.and("result", "rejected"), statistics,
+                    RedisHashCacheStatistics::getRefreshRejected, "The number of refresh-ahead tasks rejected by the executor.");
+            counter(registry, "cache.refreshes", tags.and("result", "failure"), statistics,
+                    RedisHashCacheStatistics::getRefreshFailures, "The number of failed refresh-ahead tasks.");
+
+            RedisHashCacheCompressor compressor = statistics.getCompressor();
+            if (compressor != null)
+            {
+                bindCompressor(registry, tags, compressor);
+            }
+        }
+    }
+
+    private static void bindCompressor(MeterRegistry registry, Tags tags, RedisHashCacheCompressor compressor) {
+        Gauge.builder("cache.compression.ratio", compressor, RedisHashCacheCompressor::getCompressionRatio)
+             .tags(tags)
+             .description("Compressed size divided by original size of compressed cache values.")
+             .register(registry);
+        FunctionCounter.builder("cache.compression.skipped", compressor, RedisHashCacheCompressor::getSkippedCount)
+                       .tags(tags)
+                       .description("The number of values above the threshold that were stored uncompressed.")
+                       .register(registry);
+        FunctionTimer.builder("cache.compression", compressor,
+                              c -> c.getCompressedCount() + c.getSkippedCount(),
+                              RedisHashCacheCompressor::getCompressTimeNanos, TimeUnit.NANOSECONDS)
+                     .tags(tags.and("operation", "compress"))
+                     .description("CPU time spent compressing cache values.")
+                     .register(registry);
+        FunctionTimer.builder("cache.compression", compressor,
+                              RedisHashCacheCompressor::getDecompressedCount,
+                              RedisHashCacheCompressor::getDecompressTimeNanos, TimeUnit.NANOSECONDS)
+                     .tags(tags.and("operation", "decompress"))
+                     .description("CPU time spent decompressing cache values.")
+                     .register(registry);
+    }
+
+    private static void counter(MeterRegistry registry, String name, Tags tags, RedisHashCacheStatistics statistics,
+                                ToDoubleFunction<RedisHashCacheStatistics> function, String description) {
+        FunctionCounter.builder(name, statistics, function)
+                       .tags(tags)
+                       .description(description)
+                       .register(registry);
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.repository.jdbc.cache;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.ListableBeanFactory;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.lang.NonNull;
+import org.springframework.util.ClassUtils;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 在所有单例 bean 初始化后注册 {@link RedisHashCache} 的统计: 有 micrometer 且 IOC 容器中有唯一(或 primary)的 MeterRegistry 时
+ * 注册到 micrometer, 否则注册为 JMX MBean({@code top.dcenter.ums.security:type=RedisHashCache,name=缓存名称}). <br>
+ * 注意: 只注册此时已创建的缓存, 即 ums.cache.redis.cache.cache-names 配置的缓存.
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/5 11:36
+ */
+@Slf4j
+public class RedisHashCacheMetricsRegistrar implements SmartInitializingSingleton, DisposableBean {
+
+    private static final String MICROMETER_CLASS = "io.micrometer.core.instrument.MeterRegistry";
+    private static final String JMX_DOMAIN = "top.dcenter.ums.security";
+
+    private final CacheManager cacheManager;
+    private final String cacheManagerName;
+    private final ListableBeanFactory beanFactory;
+    private final List<ObjectName> registeredMBeans = new ArrayList<>();
+
+    /**
+     * @param cacheManager      缓存管理器
+     * @param cacheManagerName  缓存管理器的 beanName
+     * @param beanFactory       用于查找 MeterRegistry
+     */
+    public RedisHashCacheMetricsRegistrar(@NonNull CacheManager cacheManager, @NonNull String cacheManagerName,
+                                          @NonNull ListableBeanFactory beanFactory) {
+        this.cacheManager = cacheManager;
+        this.cacheManagerName = cacheManagerName;
+        this.beanFactory = beanFactory;
+    }
+
+    @Override
+    public void afterSingletonsInstantiated() {
+        List<RedisHashCache> caches = new ArrayList<>();
+        for (String cacheName : cacheManager.getCacheNames())
+        {
+            Cache cache = cacheManager.getCache(cacheName);
+            if (cache instanceof RedisHashCache)
+            {
+                caches.add((RedisHashCache) cache);
+            }
+        }
+        if (caches.isEmpty())
+        {
+            return;
+        }
+
+        if (ClassUtils.isPresent(MICROMETER_CLASS, getClass().getClassLoader())
+                && MicrometerBinder.bind(beanFactory, caches, cacheManagerName))
+        {
+            return;
+        }
+        registerMBeans(caches);
+    }
+
+    @Override
+    public void destroy() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName objectName : registeredMBeans)
+        {
+            try
+            {
+                server.unregisterMBean(objectName);
+            }
+            catch (Exception e)
+            {
+                log.warn("注销缓存统计 MBean 失败: {}", objectName, e);
+            }
+        }
+        registeredMBeans.clear();
+    }
+
+    private void registerMBeans(List<RedisHashCache> caches) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (RedisHashCache cache : caches)
+        {
+            try
+            {
+                ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=RedisHashCache,name="
+                                                               + ObjectName.quote(cache.getName()));
+                if (server.isRegistered(objectName))
+                {
+                    continue;
+                }
+                server.registerMBean(cache.getStatistics(), objectName);
+                registeredMBeans.add(objectName);
+            }
+            catch (Exception e)
+            {
+                log.warn("注册缓存统计 MBean 失败: cacheName=[{}]", cache.getName(), e);
+            }
+        }
+    }
+
+    /**
+     * 隔离 micrometer 类型的引用, 没有 micrometer 时不会加载此类
+     */
+    private static final class MicrometerBinder {
+
+        private static boolean bind(ListableBeanFactory beanFactory, List<RedisHashCache> caches,
+                                    String cacheManagerName) {
+            MeterRegistry registry = beanFactory.getBeanProvider(MeterRegistry.class).getIfUnique();
+            if (registry == null)
+            {
+                return false;
+            }
+            new RedisHashCacheMeterBinder(caches, cacheManagerName).bindTo(registry);
+            return true;
+        }
+    }
+}
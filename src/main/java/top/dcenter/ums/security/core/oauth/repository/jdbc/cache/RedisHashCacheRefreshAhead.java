@@ -0,0 +1,92 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.repository.jdbc.cache;
+
+import org.springframework.lang.NonNull;
+import org.springframework.util.Assert;
+
+import java.time.Duration;
+import java.util.concurrent.Executor;
+
+/**
+ * {@link RedisHashCache} 提前刷新(refresh-ahead)配置. <br>
+ * {@code @Cacheable(sync = true)} 读取命中时, 若缓存 key 的剩余过期时间小于等于 ttl * {@link #getRatio()},
+ * 则在 {@link #getExecutor()} 中异步执行 {@link RedisHashCacheRefreshAheadInterceptor} 记录的 loader(重新调用目标方法)并重写缓存,
+ * 同一个 key 同时只有一个刷新任务, 刷新期间继续返回旧值.
+ * executor 应为有界线程池, 任务被拒绝时放弃本次刷新.
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/6 10:25
+ */
+public final class RedisHashCacheRefreshAhead {
+
+    /**
+     * 剩余过期时间小于等于 ttl * ratio 时提前刷新
+     */
+    private final double ratio;
+    /**
+     * 执行刷新任务的线程池
+     */
+    private final Executor executor;
+
+    private RedisHashCacheRefreshAhead(double ratio, Executor executor) {
+        this.ratio = ratio;
+        this.executor = executor;
+    }
+
+    /**
+     * 创建 {@link RedisHashCacheRefreshAhead}
+     * @param ratio     剩余过期时间小于等于 ttl * ratio 时提前刷新, 取值范围: (0, 1)
+     * @param executor  执行刷新任务的线程池, 应为有界线程池
+     * @return  {@link RedisHashCacheRefreshAhead}
+     */
+    @NonNull
+    public static RedisHashCacheRefreshAhead of(double ratio, @NonNull Executor executor) {
+        Assert.isTrue(ratio > 0D && ratio < 1D, "Ratio must be between 0 and 1!");
+        Assert.notNull(executor, "Executor must not be null!");
+        return new RedisHashCacheRefreshAhead(ratio, executor);
+    }
+
+    /**
+     * 判断是否需要提前刷新
+     * @param ttlMillis key 的剩余过期时间, 单位: 毫秒, 小于 0 表示没有过期时间
+     * @param ttl       缓存配置的过期时间
+     * @return 是否需要提前刷新
+     */
+    public boolean shouldRefresh(long ttlMillis, @NonNull Duration ttl) {
+        if (ttlMillis < 0 || ttl.isZero() || ttl.isNegative())
+        {
+            return false;
+        }
+        return ttlMillis <= (long) (ttl.toMillis() * ratio);
+    }
+
+    public double getRatio() {
+        return ratio;
+    }
+
+    @NonNull
+    public Executor getExecutor() {
+        return executor;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.repository.jdbc.cache;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.springframework.aop.support.AopUtils;
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.concurrent.Callable;
+
+/**
+ * 在缓存拦截器外层记录 {@code @Cacheable} 方法的目标对象, 方法与参数, 作为 {@link RedisHashCache} 提前刷新的 loader. <br>
+ * 提前刷新在 {@link RedisHashCacheRefreshAhead#getExecutor()} 中重新调用目标方法(不经过缓存代理), 不使用缓存拦截器传入的
+ * valueLoader: valueLoader 绑定的 {@link MethodInvocation} 在方法调用返回后已经结束, 不能在其他线程中再次执行.<br>
+ * loader 只能被当前方法的第一次缓存读取取出一次, 方法体中其他缓存读取不会误用外层方法的 loader.
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/22 9:40
+ */
+public class RedisHashCacheRefreshAheadInterceptor implements MethodInterceptor {
+
+    private static final ThreadLocal<Callable<Object>> CURRENT_LOADER = new ThreadLocal<>();
+
+    @Override
+    public Object invoke(@NonNull MethodInvocation invocation) throws Throwable {
+        Callable<Object> previous = CURRENT_LOADER.get();
+        Object target = invocation.getThis();
+        if (target != null)
+        {
+            CURRENT_LOADER.set(new MethodLoader(target, invocation.getMethod(), invocation.getArguments().clone()));
+        }
+        try
+        {
+            return invocation.proceed();
+        }
+        finally
+        {
+            if (previous == null)
+            {
+                CURRENT_LOADER.remove();
+            }
+            else
+            {
+                CURRENT_LOADER.set(previous);
+            }
+        }
+    }
+
+    /**
+     * 取出当前 {@code @Cacheable} 方法的 loader, 取出后清除, 同一次方法调用只能取出一次
+     * @return  当前方法的 loader, 不是通过此拦截器调用时返回 null
+     */
+    @Nullable
+    static Callable<Object> takeCurrentLoader() {
+        Callable<Object> loader = CURRENT_LOADER.get();
+        if (loader != null)
+        {
+            CURRENT_LOADER.remove();
+        }
+        return loader;
+    }
+
+    /**
+     * 通过反射直接调用目标对象的方法
+     */
+    private static final class MethodLoader implements Callable<Object> {
+
+        private final Object target;
+        private final Method method;
+        private final Object[] args;
+
+        private MethodLoader(Object target, Method method, Object[] args) {
+            this.target = target;
+            this.method = method;
+            this.args = args;
+        }
+
+        @Override
+        public Object call() throws Exception {
+            try
+            {
+                return AopUtils.invokeJoinpointUsingReflection(target, method, args);
+            }
+            catch (Exception | Error e)
+            {
+                throw e;
+            }
+            catch (Throwable e)
+            {
+                throw new UndeclaredThrowableException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.repository.jdbc.cache;
+
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.lang.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * {@link RedisHashCacheWriter} 使用的 lua 脚本: 启动时通过 SCRIPT LOAD 预加载, 执行时使用 EVALSHA,
+ * redis 返回 NOSCRIPT(如 redis 重启或执行了 SCRIPT FLUSH)时使用 EVAL 执行, EVAL 同时会缓存脚本.
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/3 14:21
+ */
+final class RedisHashCacheScript {
+
+    /**
+     * 设置 hash 的过期时间, 剩余过期时间大于 ARGV[4] 毫秒时不重新设置. KEYS[1]=key, ARGV[3]=ttl 毫秒(0 表示不过期)
+     */
+    private static final String EXPIRE_IF_NEEDED =
+            "local ttl = tonumber(ARGV[3]) " +
+            "if ttl > 0 then " +
+            "  local pttl = redis.call('pttl', KEYS[1]) " +
+            "  if pttl < 0 or pttl <= tonumber(ARGV[4]) then redis.call('pexpire', KEYS[1], ttl) end " +
+            "end ";
+
+    /**
+     * hSet + pExpire. KEYS[1]=key, ARGV[1]=field, ARGV[2]=value, ARGV[3]=ttl 毫秒, ARGV[4]=不重新设置过期时间的剩余过期时间阈值
+     */
+    static final RedisHashCacheScript H_PUT = new RedisHashCacheScript(
+            "redis.call('hset', KEYS[1], ARGV[1], ARGV[2]) " +
+            EXPIRE_IF_NEEDED +
+            "return 1");
+
+    /**
+     * hSetNX + pExpire, field 已存在时返回已存在的值. 参数同 {@link #H_PUT}
+     */
+    static final RedisHashCacheScript H_PUT_IF_ABSENT = new RedisHashCacheScript(
+            "if redis.call('hsetnx', KEYS[1], ARGV[1], ARGV[2]) == 1 then " +
+            EXPIRE_IF_NEEDED +
+            "  return false " +
+            "end " +
+            "return redis.call('hget', KEYS[1], ARGV[1])");
+
+    private static final String NO_SCRIPT_ERROR = "NOSCRIPT";
+
+    private final byte[] script;
+    private final byte[] sha1;
+
+    private RedisHashCacheScript(String script) {
+        this.script = script.getBytes(StandardCharsets.UTF_8);
+        this.sha1 = sha1Hex(this.script).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 预加载脚本
+     * @param connection    redis connection
+     */
+    void load(RedisConnection connection) {
+        connection.scriptLoad(script);
+    }
+
+    /**
+     * 使用 EVALSHA 执行脚本, NOSCRIPT 时使用 EVAL 执行
+     */
+    @Nullable
+    <T> T execute(RedisConnection connection, ReturnType returnType, int numKeys, byte[]... keysAndArgs) {
+        try
+        {
+            return connection.evalSha(sha1, returnType, numKeys, keysAndArgs);
+        }
+        catch (RuntimeException e)
+        {
+            if (!isNoScriptError(e))
+            {
+                throw e;
+            }
+            return connection.eval(script, returnType, numKeys, keysAndArgs);
+        }
+    }
+
+    /**
+     * 使用 EVAL 执行脚本, 用于 pipeline/事务中: 其中 EVALSHA 的 NOSCRIPT 错误要到 EXEC/关闭 pipeline 时才返回, 无法再回退到 EVAL.
+     */
+    void eval(RedisConnection connection, ReturnType returnType, int numKeys, byte[]... keysAndArgs) {
+        connection.eval(script, returnType, numKeys, keysAndArgs);
+    }
+
+    private static boolean isNoScriptError(Throwable e) {
+        Throwable current = e;
+        while (current != null)
+        {
+            String message = current.getMessage();
+            if (message != null && message.contains(NO_SCRIPT_ERROR))
+            {
+                return true;
+            }
+            current = current.getCause() == current ? null : current.getCause();
+        }
+        return false;
+    }
+
+    private static String sha1Hex(byte[] bytes) {
+        try
+        {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(bytes);
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest)
+            {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+}
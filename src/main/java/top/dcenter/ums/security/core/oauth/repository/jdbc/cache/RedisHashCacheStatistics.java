@@ -0,0 +1,400 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.repository.jdbc.cache;
+
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link RedisHashCache} 的统计: 命中/未命中/put/evict/异常次数, 每种 redis 操作的次数与耗时, 加载(single-flight)与分布式加载租约的次数,
+ * 提前刷新的次数, 以及 value 压缩的压缩率与耗时. <br>
+ * 有 micrometer 时通过 {@link #setLatencyListener(LatencyListener)} 把每次操作的耗时记录到 Timer(直方图).
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/5 10:12
+ */
+public class RedisHashCacheStatistics implements RedisHashCacheStatisticsMXBean {
+
+    /**
+     * redis 操作类型
+     */
+    public enum Operation {
+        /** kv get */
+        GET,
+        /** hash get */
+        HGET,
+        /** kv put */
+        PUT,
+        /** hash put */
+        HPUT,
+        /** kv putIfAbsent */
+        PUT_IF_ABSENT,
+        /** hash putIfAbsent */
+        HPUT_IF_ABSENT,
+        /** kv remove */
+        REMOVE,
+        /** hash remove */
+        HREMOVE,
+        /** clear */
+        CLEAN
+    }
+
+    /**
+     * 操作耗时回调
+     */
+    @FunctionalInterface
+    public interface LatencyListener {
+        /**
+         * @param operation     redis 操作类型
+         * @param nanos         耗时, 单位: 纳秒
+         */
+        void onLatency(@NonNull Operation operation, long nanos);
+    }
+
+    private final String cacheName;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder nearHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder puts = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder loadTimeNanos = new LongAdder();
+    private final LongAdder loadWaits = new LongAdder();
+    private final LongAdder loadWaitTimeNanos = new LongAdder();
+    private final LongAdder leaseAcquired = new LongAdder();
+    private final LongAdder leaseContended = new LongAdder();
+    private final LongAdder leaseWaitTimeouts = new LongAdder();
+    private final LongAdder refreshes = new LongAdder();
+    private final LongAdder refreshRejected = new LongAdder();
+    private final LongAdder refreshFailures = new LongAdder();
+    private final Map<Operation, OperationStats> operations = new EnumMap<>(Operation.class);
+    /**
+     * 缓存 value 压缩, 为 null 时不压缩
+     */
+    private final RedisHashCacheCompressor compressor;
+
+    private volatile LatencyListener latencyListener;
+
+    public RedisHashCacheStatistics(@NonNull String cacheName) {
+        this(cacheName, null);
+    }
+
+    /**
+     * @param cacheName     缓存名称
+     * @param compressor    缓存 value 压缩, 为 null 时压缩统计都为 0(压缩率为 1.0)
+     */
+    public RedisHashCacheStatistics(@NonNull String cacheName, @Nullable RedisHashCacheCompressor compressor) {
+        this.cacheName = cacheName;
+        this.compressor = compressor;
+        for (Operation operation : Operation.values())
+        {
+            operations.put(operation, new OperationStats());
+        }
+    }
+
+    void recordHit() {
+        hits.increment();
+    }
+
+    void recordNearHit() {
+        hits.increment();
+        nearHits.increment();
+    }
+
+    void recordMiss() {
+        misses.increment();
+    }
+
+    void recordPut() {
+        puts.increment();
+    }
+
+    void recordEviction() {
+        evictions.increment();
+    }
+
+    void recordError() {
+        errors.increment();
+    }
+
+    void recordLoad(long nanos) {
+        loads.increment();
+        loadTimeNanos.add(nanos);
+    }
+
+    void recordLoadWait(long nanos) {
+        loadWaits.increment();
+        loadWaitTimeNanos.add(nanos);
+    }
+
+    void recordLeaseAcquired() {
+        leaseAcquired.increment();
+    }
+
+    void recordLeaseContended() {
+        leaseContended.increment();
+    }
+
+    void recordLeaseWaitTimeout() {
+        leaseWaitTimeouts.increment();
+    }
+
+    void recordRefresh() {
+        refreshes.increment();
+    }
+
+    void recordRefreshRejected() {
+        refreshRejected.increment();
+    }
+
+    void recordRefreshFailure() {
+        refreshFailures.increment();
+    }
+
+    void recordLatency(@NonNull Operation operation, long nanos) {
+        operations.get(operation).record(nanos);
+        LatencyListener listener = this.latencyListener;
+        if (listener != null)
+        {
+            listener.onLatency(operation, nanos);
+        }
+    }
+
+    /**
+     * @param latencyListener   操作耗时回调, 为 null 时取消回调
+     */
+    public void setLatencyListener(@Nullable LatencyListener latencyListener) {
+        this.latencyListener = latencyListener;
+    }
+
+    /**
+     * @param operation redis 操作类型
+     * @return 操作的执行次数
+     */
+    public long getOperationCount(@NonNull Operation operation) {
+        return operations.get(operation).count.sum();
+    }
+
+    /**
+     * @param operation redis 操作类型
+     * @return 操作的总耗时, 单位: 纳秒
+     */
+    public long getOperationTotalNanos(@NonNull Operation operation) {
+        return operations.get(operation).totalNanos.sum();
+    }
+
+    @Override
+    public String getCacheName() {
+        return cacheName;
+    }
+
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getNearHits() {
+        return nearHits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public double getHitRatio() {
+        long hit = hits.sum();
+        long total = hit + misses.sum();
+        return total == 0L ? 0D : (double) hit / total;
+    }
+
+    @Override
+    public long getPuts() {
+        return puts.sum();
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    @Override
+    public long getLoads() {
+        return loads.sum();
+    }
+
+    /**
+     * @return 执行 valueLoader 加载的总耗时, 单位: 纳秒
+     */
+    public long getLoadTimeNanos() {
+        return loadTimeNanos.sum();
+    }
+
+    @Override
+    public long getLoadTimeMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(loadTimeNanos.sum());
+    }
+
+    @Override
+    public long getLoadWaits() {
+        return loadWaits.sum();
+    }
+
+    /**
+     * @return 等待其他线程加载同一个 key 的总耗时, 单位: 纳秒
+     */
+    public long getLoadWaitTimeNanos() {
+        return loadWaitTimeNanos.sum();
+    }
+
+    @Override
+    public long getLoadWaitTimeMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(loadWaitTimeNanos.sum());
+    }
+
+    @Override
+    public long getLeaseAcquired() {
+        return leaseAcquired.sum();
+    }
+
+    @Override
+    public long getLeaseContended() {
+        return leaseContended.sum();
+    }
+
+    @Override
+    public long getLeaseWaitTimeouts() {
+        return leaseWaitTimeouts.sum();
+    }
+
+    @Override
+    public long getRefreshes() {
+        return refreshes.sum();
+    }
+
+    @Override
+    public long getRefreshRejected() {
+        return refreshRejected.sum();
+    }
+
+    @Override
+    public long getRefreshFailures() {
+        return refreshFailures.sum();
+    }
+
+    /**
+     * @return 缓存 value 压缩, 为 null 时没有开启压缩
+     */
+    @Nullable
+    public RedisHashCacheCompressor getCompressor() {
+        return compressor;
+    }
+
+    @Override
+    public long getCompressedCount() {
+        return compressor == null ? 0L : compressor.getCompressedCount();
+    }
+
+    @Override
+    public long getCompressSkippedCount() {
+        return compressor == null ? 0L : compressor.getSkippedCount();
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        return compressor == null ? 1.0D : compressor.getCompressionRatio();
+    }
+
+    @Override
+    public long getCompressTimeMicros() {
+        return compressor == null ? 0L : TimeUnit.NANOSECONDS.toMicros(compressor.getCompressTimeNanos());
+    }
+
+    @Override
+    public long getDecompressedCount() {
+        return compressor == null ? 0L : compressor.getDecompressedCount();
+    }
+
+    @Override
+    public long getDecompressTimeMicros() {
+        return compressor == null ? 0L : TimeUnit.NANOSECONDS.toMicros(compressor.getDecompressTimeNanos());
+    }
+
+    @Override
+    public Map<String, Long> getOperationCounts() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        operations.forEach((operation, stats) -> result.put(operation.name(), stats.count.sum()));
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getOperationMeanMicros() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        operations.forEach((operation, stats) -> {
+            long count = stats.count.sum();
+            result.put(operation.name(), count == 0L ? 0L :
+                    TimeUnit.NANOSECONDS.toMicros(stats.totalNanos.sum() / count));
+        });
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getOperationMaxMicros() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        operations.forEach((operation, stats) -> result.put(operation.name(),
+                                                            TimeUnit.NANOSECONDS.toMicros(stats.maxNanos.get())));
+        return result;
+    }
+
+    @Override
+    public void resetOperationMax() {
+        operations.values().forEach(stats -> stats.maxNanos.set(0L));
+    }
+
+    private static final class OperationStats {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        private void record(long nanos) {
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+    }
+}
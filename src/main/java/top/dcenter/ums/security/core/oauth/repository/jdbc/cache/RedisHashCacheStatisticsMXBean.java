@@ -0,0 +1,174 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.repository.jdbc.cache;
+
+import java.util.Map;
+
+/**
+ * {@link RedisHashCacheStatistics} 的 JMX 接口, 没有 micrometer 时注册到 platform MBeanServer.
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/5 10:05
+ */
+public interface RedisHashCacheStatisticsMXBean {
+
+    /**
+     * @return 缓存名称
+     */
+    String getCacheName();
+
+    /**
+     * @return 命中次数(包括一级缓存命中)
+     */
+    long getHits();
+
+    /**
+     * @return 一级缓存命中次数
+     */
+    long getNearHits();
+
+    /**
+     * @return 未命中次数
+     */
+    long getMisses();
+
+    /**
+     * @return 命中率, 没有查询时返回 0
+     */
+    double getHitRatio();
+
+    /**
+     * @return put 次数
+     */
+    long getPuts();
+
+    /**
+     * @return evict 次数
+     */
+    long getEvictions();
+
+    /**
+     * @return redis 操作异常次数
+     */
+    long getErrors();
+
+    /**
+     * @return 执行 valueLoader 加载的次数(同一个 key 的并发加载只计一次)
+     */
+    long getLoads();
+
+    /**
+     * @return 执行 valueLoader 加载的总耗时, 单位: 微秒
+     */
+    long getLoadTimeMicros();
+
+    /**
+     * @return 等待其他线程加载同一个 key 的次数
+     */
+    long getLoadWaits();
+
+    /**
+     * @return 等待其他线程加载同一个 key 的总耗时, 单位: 微秒
+     */
+    long getLoadWaitTimeMicros();
+
+    /**
+     * @return 获取到分布式加载租约的次数
+     */
+    long getLeaseAcquired();
+
+    /**
+     * @return 分布式加载租约被其他节点持有(竞争)的次数
+     */
+    long getLeaseContended();
+
+    /**
+     * @return 等待租约持有者回填缓存超时, 改为自行加载的次数
+     */
+    long getLeaseWaitTimeouts();
+
+    /**
+     * @return 提前刷新成功的次数
+     */
+    long getRefreshes();
+
+    /**
+     * @return 提前刷新任务被线程池拒绝的次数
+     */
+    long getRefreshRejected();
+
+    /**
+     * @return 提前刷新失败(loader 或 redis 异常)的次数
+     */
+    long getRefreshFailures();
+
+    /**
+     * @return value 压缩的次数
+     */
+    long getCompressedCount();
+
+    /**
+     * @return 达到阈值但压缩后不小于原数据而不压缩的次数
+     */
+    long getCompressSkippedCount();
+
+    /**
+     * @return 压缩率(压缩后字节数 / 压缩前字节数), 未开启压缩或未压缩过时返回 1.0
+     */
+    double getCompressionRatio();
+
+    /**
+     * @return 压缩(包括未采用压缩结果)的总耗时, 单位: 微秒
+     */
+    long getCompressTimeMicros();
+
+    /**
+     * @return 解压的次数
+     */
+    long getDecompressedCount();
+
+    /**
+     * @return 解压的总耗时, 单位: 微秒
+     */
+    long getDecompressTimeMicros();
+
+    /**
+     * @return 每种 redis 操作的执行次数
+     */
+    Map<String, Long> getOperationCounts();
+
+    /**
+     * @return 每种 redis 操作的平均耗时, 单位: 微秒
+     */
+    Map<String, Long> getOperationMeanMicros();
+
+    /**
+     * @return 每种 redis 操作的最大耗时, 单位: 微秒
+     */
+    Map<String, Long> getOperationMaxMicros();
+
+    /**
+     * 重置每种 redis 操作的最大耗时
+     */
+    void resetOperationMax();
+}
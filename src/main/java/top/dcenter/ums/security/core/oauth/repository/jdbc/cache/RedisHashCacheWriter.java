@@ -23,20 +23,41 @@
 
 package top.dcenter.ums.security.core.oauth.repository.jdbc.cache;
 
+import io.lettuce.core.LettuceFutures;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.SetArgs;
+import io.lettuce.core.cluster.api.async.RedisClusterAsyncCommands;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DataAccessException;
 import org.springframework.dao.PessimisticLockingFailureException;
 import org.springframework.data.redis.cache.RedisCacheWriter;
+import org.springframework.data.redis.connection.ClusterSlotHashUtil;
+import org.springframework.data.redis.connection.RedisClusterConnection;
+import org.springframework.data.redis.connection.RedisClusterNode;
 import org.springframework.data.redis.connection.RedisConnection;
 import org.springframework.data.redis.connection.RedisConnectionFactory;
 import org.springframework.data.redis.connection.RedisStringCommands.SetOption;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.connection.lettuce.LettuceExceptionConverter;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.ScanOptions;
 import org.springframework.data.redis.core.types.Expiration;
 import org.springframework.lang.NonNull;
 import org.springframework.lang.Nullable;
 import org.springframework.util.Assert;
+import top.dcenter.ums.security.core.oauth.enums.CacheWriterMode;
 
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
@@ -61,10 +82,45 @@ import static java.util.Optional.ofNullable;
  * @author Mark Paluch
  * @since 2.0
  */
+@Slf4j
 class RedisHashCacheWriter implements IRedisHashCacheWriter {
 
+	/**
+	 * 只有租约持有者才能释放租约
+	 */
+	private static final byte[] RELEASE_LEASE_SCRIPT =
+			("if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('del', KEYS[1]) else return 0 end")
+					.getBytes(StandardCharsets.UTF_8);
+
+	private static final LettuceExceptionConverter EXCEPTION_CONVERTER = new LettuceExceptionConverter();
+
 	private final RedisConnectionFactory connectionFactory;
 	private final Duration sleepTime;
+	private final RedisHashCacheCleanOptions cleanOptions;
+	/**
+	 * 是否使用预加载的 lua 脚本执行 hPut/hPutIfAbsent
+	 */
+	private final boolean scriptEnabled;
+	/**
+	 * 使用 lua 脚本时, hash 剩余过期时间大于 ttl * ttlRefreshRatio 时不重新设置过期时间
+	 */
+	private final double ttlRefreshRatio;
+	/**
+	 * 是否共享 Lettuce 原生连接, 共享时 getWithTtl/hGetWithTtl 直接在共享连接上发送命令, 不使用 pipeline 占用连接池的连接
+	 */
+	private final boolean sharedNativeConnection;
+	/**
+	 * 共享连接上等待命令结果的超时时间(毫秒)
+	 */
+	private final long commandTimeoutMillis;
+	/**
+	 * 执行命令的连接模式, 不共享 Lettuce 原生连接时为 {@link CacheWriterMode#DEDICATED}
+	 */
+	private final CacheWriterMode writerMode;
+	/**
+	 * {@link CacheWriterMode#SHARED} 时复用的共享原生连接的异步命令, 第一次使用时获取, 连接关闭(如: 连接工厂重置)后重新获取
+	 */
+	private volatile RedisClusterAsyncCommands<byte[], byte[]> sharedCommands;
 
 	/**
 	 * @param connectionFactory must not be {@literal null}.
@@ -79,12 +135,124 @@ class RedisHashCacheWriter implements IRedisHashCacheWriter {
 	 *          to disable locking.
 	 */
 	RedisHashCacheWriter(RedisConnectionFactory connectionFactory, Duration sleepTime) {
+		this(connectionFactory, sleepTime, RedisHashCacheCleanOptions.DEFAULT);
+	}
+
+	/**
+	 * @param connectionFactory must not be {@literal null}.
+	 * @param sleepTime sleep time between lock request attempts. Must not be {@literal null}. Use {@link Duration#ZERO}
+	 *          to disable locking.
+	 * @param cleanOptions {@link #clean(String, byte[])} 的增量清理配置. Must not be {@literal null}.
+	 */
+	RedisHashCacheWriter(RedisConnectionFactory connectionFactory, Duration sleepTime,
+	                     RedisHashCacheCleanOptions cleanOptions) {
+		this(connectionFactory, sleepTime, cleanOptions, false, 0D);
+	}
+
+	/**
+	 * @param connectionFactory must not be {@literal null}.
+	 * @param sleepTime sleep time between lock request attempts. Must not be {@literal null}. Use {@link Duration#ZERO}
+	 *          to disable locking.
+	 * @param cleanOptions {@link #clean(String, byte[])} 的增量清理配置. Must not be {@literal null}.
+	 * @param scriptEnabled 是否使用预加载的 lua 脚本执行 hPut/hPutIfAbsent.
+	 * @param ttlRefreshRatio hash 剩余过期时间大于 ttl * ttlRefreshRatio 时不重新设置过期时间, 取值范围: [0, 1], 0 表示每次都重新设置.
+	 */
+	RedisHashCacheWriter(RedisConnectionFactory connectionFactory, Duration sleepTime,
+	                     RedisHashCacheCleanOptions cleanOptions, boolean scriptEnabled, double ttlRefreshRatio) {
+		this(connectionFactory, sleepTime, cleanOptions, scriptEnabled, ttlRefreshRatio, CacheWriterMode.DEDICATED);
+	}
+
+	/**
+	 * @param connectionFactory must not be {@literal null}.
+	 * @param sleepTime sleep time between lock request attempts. Must not be {@literal null}. Use {@link Duration#ZERO}
+	 *          to disable locking.
+	 * @param cleanOptions {@link #clean(String, byte[])} 的增量清理配置. Must not be {@literal null}.
+	 * @param scriptEnabled 是否使用预加载的 lua 脚本执行 hPut/hPutIfAbsent.
+	 * @param ttlRefreshRatio hash 剩余过期时间大于 ttl * ttlRefreshRatio 时不重新设置过期时间, 取值范围: [0, 1], 0 表示每次都重新设置.
+	 * @param writerMode 执行命令的连接模式. Must not be {@literal null}.
+	 */
+	RedisHashCacheWriter(RedisConnectionFactory connectionFactory, Duration sleepTime,
+	                     RedisHashCacheCleanOptions cleanOptions, boolean scriptEnabled, double ttlRefreshRatio,
+	                     CacheWriterMode writerMode) {
 
 		Assert.notNull(connectionFactory, "ConnectionFactory must not be null!");
 		Assert.notNull(sleepTime, "SleepTime must not be null!");
+		Assert.notNull(cleanOptions, "CleanOptions must not be null!");
+		Assert.isTrue(ttlRefreshRatio >= 0D && ttlRefreshRatio <= 1D, "TtlRefreshRatio must be between 0 and 1!");
+		Assert.notNull(writerMode, "WriterMode must not be null!");
 
 		this.connectionFactory = connectionFactory;
 		this.sleepTime = sleepTime;
+		this.cleanOptions = cleanOptions;
+		this.scriptEnabled = scriptEnabled;
+		this.ttlRefreshRatio = ttlRefreshRatio;
+		if (connectionFactory instanceof LettuceConnectionFactory) {
+			LettuceConnectionFactory lettuceConnectionFactory = (LettuceConnectionFactory) connectionFactory;
+			this.sharedNativeConnection = lettuceConnectionFactory.getShareNativeConnection();
+			this.commandTimeoutMillis = lettuceConnectionFactory.getTimeout();
+		} else {
+			this.sharedNativeConnection = false;
+			this.commandTimeoutMillis = 0L;
+		}
+		if (writerMode == CacheWriterMode.SHARED && !this.sharedNativeConnection) {
+			log.warn("redis 缓存写入器: 连接工厂不是共享原生连接的 LettuceConnectionFactory, writerMode=SHARED 不生效, 使用 DEDICATED");
+			this.writerMode = CacheWriterMode.DEDICATED;
+		} else {
+			this.writerMode = writerMode;
+		}
+	}
+
+	/**
+	 * @param cleanOptions must not be {@literal null}.
+	 * @return 使用 cleanOptions 的新 {@link RedisHashCacheWriter}
+	 */
+	RedisHashCacheWriter withCleanOptions(RedisHashCacheCleanOptions cleanOptions) {
+		return new RedisHashCacheWriter(connectionFactory, sleepTime, cleanOptions, scriptEnabled, ttlRefreshRatio,
+		                                writerMode);
+	}
+
+	/**
+	 * @param ttlRefreshRatio hash 剩余过期时间大于 ttl * ttlRefreshRatio 时不重新设置过期时间, 取值范围: [0, 1].
+	 * @return 使用预加载的 lua 脚本执行 hPut/hPutIfAbsent 的新 {@link RedisHashCacheWriter}
+	 */
+	RedisHashCacheWriter withScripts(double ttlRefreshRatio) {
+		return new RedisHashCacheWriter(connectionFactory, sleepTime, cleanOptions, true, ttlRefreshRatio, writerMode);
+	}
+
+	/**
+	 * @param writerMode must not be {@literal null}.
+	 * @return 使用 writerMode 执行命令的新 {@link RedisHashCacheWriter}
+	 */
+	RedisHashCacheWriter withWriterMode(CacheWriterMode writerMode) {
+		return new RedisHashCacheWriter(connectionFactory, sleepTime, cleanOptions, scriptEnabled, ttlRefreshRatio,
+		                                writerMode);
+	}
+
+	/**
+	 * @return 执行命令的连接模式
+	 */
+	CacheWriterMode getWriterMode() {
+		return writerMode;
+	}
+
+	/**
+	 * 预加载 lua 脚本, 失败时只打印日志, 执行时会通过 EVAL 重新加载.
+	 */
+	void loadScripts() {
+
+		if (!scriptEnabled) {
+			return;
+		}
+
+		try {
+			executeLockFree(connection -> {
+				RedisHashCacheScript.H_PUT.load(connection);
+				RedisHashCacheScript.H_PUT_IF_ABSENT.load(connection);
+				return "OK";
+			});
+		} catch (RuntimeException e) {
+			log.warn("redis异常: 预加载 lua 脚本失败: {}", e.getMessage(), e);
+		}
 	}
 
 	@Override
@@ -94,7 +262,7 @@ class RedisHashCacheWriter implements IRedisHashCacheWriter {
 		Assert.notNull(key, "Key must not be null!");
 		Assert.notNull(value, "Value must not be null!");
 
-		execute(name, connection -> {
+		executeShared(name, connection -> {
 
 			if (shouldExpireWithin(ttl)) {
 				connection.set(key, value, Expiration.from(ttl.toMillis(), TimeUnit.MILLISECONDS), SetOption.upsert());
@@ -103,7 +271,8 @@ class RedisHashCacheWriter implements IRedisHashCacheWriter {
 			}
 
 			return "OK";
-		});
+		}, commands -> shouldExpireWithin(ttl) ? commands.set(key, value, SetArgs.Builder.px(ttl.toMillis()))
+		                                        : commands.set(key, value));
 	}
 
 	@Override
@@ -115,7 +284,10 @@ class RedisHashCacheWriter implements IRedisHashCacheWriter {
 
 		execute(name, connection -> {
 
-			if (shouldExpireWithin(ttl)) {
+			if (scriptEnabled) {
+				RedisHashCacheScript.H_PUT.execute(connection, ReturnType.INTEGER, 1,
+				                                   scriptKeysAndArgs(key, field, value, ttl));
+			} else if (shouldExpireWithin(ttl)) {
 				connection.multi();
 				connection.hSet(key, field, value);
 				connection.pExpire(key, ttl.toMillis());
@@ -135,7 +307,7 @@ class RedisHashCacheWriter implements IRedisHashCacheWriter {
 		Assert.notNull(name, "Name must not be null!");
 		Assert.notNull(key, "Key must not be null!");
 
-		return execute(name, connection -> connection.get(key));
+		return executeShared(name, connection -> connection.get(key), commands -> commands.get(key));
 	}
 
 	@Override
@@ -144,7 +316,33 @@ class RedisHashCacheWriter implements IRedisHashCacheWriter {
 		Assert.notNull(field, "field must not be null!");
 		Assert.notNull(key, "Key must not be null!");
 
-		return execute(name, connection -> connection.hGet(key,field));
+		return executeShared(name, connection -> connection.hGet(key,field), commands -> commands.hget(key, field));
+	}
+
+	@Override
+	public TtlValue getWithTtl(String name, byte[] key) {
+		Assert.notNull(name, "Name must not be null!");
+		Assert.notNull(key, "Key must not be null!");
+
+		RedisClusterAsyncCommands<byte[], byte[]> shared = sharedCommands();
+		if (shared != null) {
+			return executeShared(name, shared, commands -> readWithTtl(commands, key, c -> c.get(key)));
+		}
+		return execute(name, connection -> readWithTtl(connection, key, c -> c.get(key), commands -> commands.get(key)));
+	}
+
+	@Override
+	public TtlValue hGetWithTtl(String name, byte[] key, byte[] field) {
+		Assert.notNull(name, "Name must not be null!");
+		Assert.notNull(field, "field must not be null!");
+		Assert.notNull(key, "Key must not be null!");
+
+		RedisClusterAsyncCommands<byte[], byte[]> shared = sharedCommands();
+		if (shared != null) {
+			return executeShared(name, shared, commands -> readWithTtl(commands, key, c -> c.hget(key, field)));
+		}
+		return execute(name, connection -> readWithTtl(connection, key, c -> c.hGet(key, field),
+		                                               commands -> commands.hget(key, field)));
 	}
 
 	@Override
@@ -196,6 +394,11 @@ class RedisHashCacheWriter implements IRedisHashCacheWriter {
 			}
 
 			try {
+				if (scriptEnabled) {
+					return RedisHashCacheScript.H_PUT_IF_ABSENT.execute(connection, ReturnType.VALUE, 1,
+					                                                    scriptKeysAndArgs(key, field, value, ttl));
+				}
+
 				if (ofNullable(connection.hSetNX(key, field, value)).orElse(Boolean.FALSE))
 				{
 
@@ -222,7 +425,7 @@ class RedisHashCacheWriter implements IRedisHashCacheWriter {
 		Assert.notNull(name, "Name must not be null!");
 		Assert.notNull(key, "Key must not be null!");
 
-		execute(name, connection -> connection.del(key));
+		executeShared(name, connection -> connection.del(key), commands -> commands.del(key));
 	}
 
 
@@ -232,10 +435,35 @@ class RedisHashCacheWriter implements IRedisHashCacheWriter {
 		Assert.notNull(field, "field must not be null!");
 		Assert.notNull(key, "Key must not be null!");
 
-		execute(name, connection -> connection.hDel(key, field));
+		executeShared(name, connection -> connection.hDel(key, field), commands -> commands.hdel(key, field));
+
+	}
+
+	@Override
+	public boolean tryLease(String name, byte[] leaseKey, byte[] owner, Duration ttl) {
+		Assert.notNull(name, "Name must not be null!");
+		Assert.notNull(leaseKey, "LeaseKey must not be null!");
+		Assert.notNull(owner, "Owner must not be null!");
+		Assert.isTrue(shouldExpireWithin(ttl), "Ttl must be positive!");
+
+		return executeLockFree(connection -> ofNullable(connection.set(leaseKey, owner,
+		                                                                Expiration.from(ttl.toMillis(), TimeUnit.MILLISECONDS),
+		                                                                SetOption.ifAbsent())).orElse(Boolean.FALSE));
+	}
+
+	@Override
+	public void releaseLease(String name, byte[] leaseKey, byte[] owner) {
+		Assert.notNull(name, "Name must not be null!");
+		Assert.notNull(leaseKey, "LeaseKey must not be null!");
+		Assert.notNull(owner, "Owner must not be null!");
 
+		executeLockFree(connection -> connection.eval(RELEASE_LEASE_SCRIPT, ReturnType.INTEGER, 1, leaseKey, owner));
 	}
 
+	/**
+	 * 使用 SCAN 游标增量扫描匹配 pattern 的 key, 按 {@link RedisHashCacheCleanOptions} 分批通过 pipeline 执行 UNLINK(或 DEL),
+	 * 不使用 KEYS 命令, 避免 key 数量巨大时长时间阻塞 redis. 锁定模式下清理期间持有 {@code name~lock}.
+	 */
 	@Override
 	public void clean(@NonNull String name, @NonNull byte[] pattern) {
 
@@ -253,12 +481,7 @@ class RedisHashCacheWriter implements IRedisHashCacheWriter {
 					wasLocked = true;
 				}
 
-				byte[][] keys = ofNullable(connection.keys(pattern)).orElse(Collections.emptySet())
-				                                                    .toArray(new byte[0][]);
-
-				if (keys.length > 0) {
-					connection.del(keys);
-				}
+				scanAndDelete(name, pattern, connection);
 			} finally {
 
 				if (wasLocked && isLockingCacheWriter()) {
@@ -270,6 +493,215 @@ class RedisHashCacheWriter implements IRedisHashCacheWriter {
 		});
 	}
 
+	/**
+	 * 使用一个连接, 通过 pipeline(MULTI/EXEC) 按顺序执行 {@link RedisHashCacheBatch} 记录的命令.
+	 * Redis Cluster 不支持跨 slot 的 MULTI/EXEC, 集群模式下只使用 pipeline.
+	 *
+	 * @param names 涉及的缓存名称, 锁定模式下执行前等待这些缓存解锁.
+	 * @param commands 由 {@link #putCommand}, {@link #hPutCommand}, {@link #removeCommand}, {@link #hRemoveCommand} 创建的命令.
+	 */
+	void executeBatch(Collection<String> names, Collection<Consumer<RedisConnection>> commands) {
+
+		executeLockFree(connection -> {
+
+			names.forEach(name -> checkAndPotentiallyWaitUntilUnlocked(name, () -> doCheckLock(name, connection)));
+
+			final boolean transactional = !(connection instanceof RedisClusterConnection);
+			connection.openPipeline();
+			boolean pipelineClosed = false;
+			try {
+				if (transactional) {
+					connection.multi();
+				}
+				commands.forEach(command -> command.accept(connection));
+				if (transactional) {
+					connection.exec();
+				}
+				connection.closePipeline();
+				pipelineClosed = true;
+			} finally {
+				if (!pipelineClosed && connection.isPipelined()) {
+					connection.closePipeline();
+				}
+			}
+			return "OK";
+		});
+	}
+
+	/**
+	 * @return 与 {@link #put(String, byte[], byte[], Duration)} 相同的批量命令
+	 */
+	Consumer<RedisConnection> putCommand(byte[] key, byte[] value, @Nullable Duration ttl) {
+		return connection -> {
+			if (shouldExpireWithin(ttl)) {
+				connection.set(key, value, Expiration.from(ttl.toMillis(), TimeUnit.MILLISECONDS), SetOption.upsert());
+			} else {
+				connection.set(key, value);
+			}
+		};
+	}
+
+	/**
+	 * @return 与 {@link #hPut(String, byte[], byte[], byte[], Duration)} 相同的批量命令, 开启脚本时同样使用 {@link RedisHashCacheScript#H_PUT}
+	 * 与 ttlRefreshRatio.
+	 */
+	Consumer<RedisConnection> hPutCommand(byte[] key, byte[] field, byte[] value, @Nullable Duration ttl) {
+		return connection -> {
+			if (scriptEnabled) {
+				RedisHashCacheScript.H_PUT.eval(connection, ReturnType.INTEGER, 1,
+				                                scriptKeysAndArgs(key, field, value, ttl));
+				return;
+			}
+			connection.hSet(key, field, value);
+			if (shouldExpireWithin(ttl)) {
+				connection.pExpire(key, ttl.toMillis());
+			}
+		};
+	}
+
+	/**
+	 * @return 与 {@link #remove(String, byte[])} 相同的批量命令
+	 */
+	Consumer<RedisConnection> removeCommand(byte[] key) {
+		return connection -> connection.del(key);
+	}
+
+	/**
+	 * @return 与 {@link #hRemove(String, byte[], byte[])} 相同的批量命令
+	 */
+	Consumer<RedisConnection> hRemoveCommand(byte[] key, byte[] field) {
+		return connection -> connection.hDel(key, field);
+	}
+
+	/**
+	 * SCAN 游标所在的连接不能开启 pipeline, 删除操作使用另外的连接执行. Redis Cluster 模式下依次扫描每个 master 节点.
+	 */
+	private void scanAndDelete(String name, byte[] pattern, RedisConnection scanConnection) {
+
+		final ScanOptions scanOptions = ScanOptions.scanOptions()
+		                                           .match(new String(pattern, StandardCharsets.UTF_8))
+		                                           .count(cleanOptions.getScanCount())
+		                                           .build();
+		long deleted = 0L;
+
+		if (scanConnection instanceof RedisClusterConnection) {
+			RedisClusterConnection clusterConnection = (RedisClusterConnection) scanConnection;
+			for (RedisClusterNode node : clusterConnection.clusterGetNodes()) {
+				if (node.isMaster()) {
+					deleted = scanAndDelete(name, clusterConnection.scan(node, scanOptions), deleted);
+				}
+			}
+		} else {
+			deleted = scanAndDelete(name, scanConnection.scan(scanOptions), deleted);
+		}
+		reportCleanProgress(name, deleted, true);
+	}
+
+	/**
+	 * 删除游标扫描到的 key
+	 * @return 累计删除的 key 数量
+	 */
+	private long scanAndDelete(String name, Cursor<byte[]> cursor, long deleted) {
+
+		final int batchSize = cleanOptions.getBatchSize();
+		List<byte[]> batch = new ArrayList<>(batchSize);
+		try {
+			while (cursor.hasNext()) {
+				batch.add(cursor.next());
+				if (batch.size() >= batchSize) {
+					deleted += deleteBatch(batch);
+					batch.clear();
+					reportCleanProgress(name, deleted, false);
+					pauseBetweenBatches(name);
+				}
+			}
+		} finally {
+			try {
+				cursor.close();
+			} catch (Exception e) {
+				log.warn("关闭 SCAN 游标失败: cacheName=[{}], {}", name, e.getMessage(), e);
+			}
+		}
+
+		if (!batch.isEmpty()) {
+			deleted += deleteBatch(batch);
+		}
+		return deleted;
+	}
+
+	private long deleteBatch(List<byte[]> keys) {
+
+		final int chunkSize = cleanOptions.getUnlinkChunkSize();
+		final boolean unlink = cleanOptions.isUnlink();
+
+		return executeLockFree(connection -> {
+			// Redis Cluster 不支持跨 slot 的多 key 命令, 按 slot 分组删除
+			final Collection<List<byte[]>> groups = connection instanceof RedisClusterConnection
+					? groupBySlot(keys) : Collections.singletonList(keys);
+			connection.openPipeline();
+			boolean pipelineClosed = false;
+			try {
+				for (List<byte[]> group : groups) {
+					for (int i = 0; i < group.size(); i += chunkSize) {
+						byte[][] chunk = group.subList(i, Math.min(i + chunkSize, group.size())).toArray(new byte[0][]);
+						if (unlink) {
+							connection.unlink(chunk);
+						} else {
+							connection.del(chunk);
+						}
+					}
+				}
+				List<Object> results = connection.closePipeline();
+				pipelineClosed = true;
+				return results.stream().filter(Long.class::isInstance).mapToLong(Long.class::cast).sum();
+			} finally {
+				if (!pipelineClosed && connection.isPipelined()) {
+					connection.closePipeline();
+				}
+			}
+		});
+	}
+
+	private static Collection<List<byte[]>> groupBySlot(List<byte[]> keys) {
+		Map<Integer, List<byte[]>> groups = new HashMap<>(16);
+		for (byte[] key : keys) {
+			groups.computeIfAbsent(ClusterSlotHashUtil.calculateSlot(key), slot -> new ArrayList<>()).add(key);
+		}
+		return groups.values();
+	}
+
+	private void reportCleanProgress(String name, long deleted, boolean finished) {
+
+		RedisHashCacheCleanOptions.ProgressListener listener = cleanOptions.getProgressListener();
+		if (listener != null) {
+			listener.onProgress(name, deleted, finished);
+		}
+
+		if (finished) {
+			log.info("缓存清理完成: cacheName=[{}], deletedKeys=[{}]", name, deleted);
+		} else if (log.isDebugEnabled()) {
+			log.debug("缓存清理中: cacheName=[{}], deletedKeys=[{}]", name, deleted);
+		}
+	}
+
+	private void pauseBetweenBatches(String name) {
+
+		if (cleanOptions.getPause().isZero()) {
+			return;
+		}
+
+		try {
+			Thread.sleep(cleanOptions.getPause().toMillis());
+		} catch (InterruptedException e) {
+
+			// Re-interrupt current thread, to allow other participants to react.
+			Thread.currentThread().interrupt();
+
+			throw new PessimisticLockingFailureException(String.format("Interrupted while cleaning cache %s", name),
+			                                             e);
+		}
+	}
+
 	/**
 	 * Explicitly set a write lock on a cache.
 	 *
@@ -303,6 +735,10 @@ class RedisHashCacheWriter implements IRedisHashCacheWriter {
 		return ofNullable(connection.exists(createCacheLockKey(name))).orElse(Boolean.FALSE);
 	}
 
+	private boolean doCheckLock(String name, RedisClusterAsyncCommands<byte[], byte[]> commands) {
+		return ofNullable(await(commands.exists(createCacheLockKey(name)))).orElse(0L) > 0L;
+	}
+
 	/**
 	 * @return {@literal true} if {@link RedisCacheWriter} uses locks.
 	 */
@@ -316,26 +752,80 @@ class RedisHashCacheWriter implements IRedisHashCacheWriter {
 		//noinspection TryFinallyCanBeTryWithResources
 		try {
 
-			checkAndPotentiallyWaitUntilUnlocked(name, connection);
+			checkAndPotentiallyWaitUntilUnlocked(name, () -> doCheckLock(name, connection));
 			return callback.apply(connection);
 		} finally {
 			connection.close();
 		}
 	}
 
-	private void executeLockFree(Consumer<RedisConnection> callback) {
+	private <T> T executeLockFree(Function<RedisConnection, T> callback) {
 
 		RedisConnection connection = connectionFactory.getConnection();
 
 		//noinspection TryFinallyCanBeTryWithResources
 		try {
-			callback.accept(connection);
+			return callback.apply(connection);
 		} finally {
 			connection.close();
 		}
 	}
 
-	private void checkAndPotentiallyWaitUntilUnlocked(String name, RedisConnection connection) {
+	/**
+	 * {@link CacheWriterMode#SHARED} 时在共享原生连接上执行 command, 不获取与关闭 {@link RedisConnection};
+	 * {@link CacheWriterMode#DEDICATED} 时通过 {@link #execute(String, Function)} 执行 callback.
+	 */
+	private <T> T executeShared(String name, Function<RedisConnection, T> callback,
+	                            Function<RedisClusterAsyncCommands<byte[], byte[]>, RedisFuture<T>> command) {
+
+		RedisClusterAsyncCommands<byte[], byte[]> shared = sharedCommands();
+		if (shared == null) {
+			return execute(name, callback);
+		}
+		return executeShared(name, shared, commands -> await(command.apply(commands)));
+	}
+
+	private <T> T executeShared(String name, RedisClusterAsyncCommands<byte[], byte[]> commands,
+	                            Function<RedisClusterAsyncCommands<byte[], byte[]>, T> callback) {
+
+		try {
+			checkAndPotentiallyWaitUntilUnlocked(name, () -> doCheckLock(name, commands));
+			return callback.apply(commands);
+		} catch (RuntimeException e) {
+			if (!commands.isOpen()) {
+				sharedCommands = null;
+			}
+			DataAccessException exception = e instanceof DataAccessException ? (DataAccessException) e
+			                                                                  : EXCEPTION_CONVERTER.convert(e);
+			throw exception != null ? exception : e;
+		}
+	}
+
+	/**
+	 * @return {@link CacheWriterMode#SHARED} 时返回共享原生连接的异步命令, 否则返回 null
+	 */
+	@Nullable
+	private RedisClusterAsyncCommands<byte[], byte[]> sharedCommands() {
+
+		if (writerMode != CacheWriterMode.SHARED) {
+			return null;
+		}
+		RedisClusterAsyncCommands<byte[], byte[]> commands = this.sharedCommands;
+		if (commands != null && commands.isOpen()) {
+			return commands;
+		}
+		// 共享原生连接不随 RedisConnection 关闭
+		commands = executeLockFree(RedisHashCacheWriter::nativeCommands);
+		this.sharedCommands = commands;
+		return commands;
+	}
+
+	@Nullable
+	private <T> T await(RedisFuture<T> future) {
+		return LettuceFutures.awaitOrCancel(future, commandTimeoutMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private void checkAndPotentiallyWaitUntilUnlocked(String name, BooleanSupplier locked) {
 
 		if (!isLockingCacheWriter()) {
 			return;
@@ -343,7 +833,7 @@ class RedisHashCacheWriter implements IRedisHashCacheWriter {
 
 		try {
 
-			while (doCheckLock(name, connection)) {
+			while (locked.getAsBoolean()) {
 				//noinspection BusyWait
 				Thread.sleep(sleepTime.toMillis());
 			}
@@ -357,6 +847,75 @@ class RedisHashCacheWriter implements IRedisHashCacheWriter {
 		}
 	}
 
+	/**
+	 * @return KEYS[1]=key, ARGV[1]=field, ARGV[2]=value, ARGV[3]=ttl 毫秒(0 表示不过期), ARGV[4]=不重新设置过期时间的剩余过期时间阈值(毫秒)
+	 */
+	private byte[][] scriptKeysAndArgs(byte[] key, byte[] field, byte[] value, @Nullable Duration ttl) {
+		long ttlMillis = shouldExpireWithin(ttl) ? ttl.toMillis() : 0L;
+		long threshold = (long) (ttlMillis * ttlRefreshRatio);
+		return new byte[][]{key, field, value,
+				String.valueOf(ttlMillis).getBytes(StandardCharsets.UTF_8),
+				String.valueOf(threshold).getBytes(StandardCharsets.UTF_8)};
+	}
+
+	/**
+	 * 读取缓存值与 key 的剩余过期时间(PTTL): 共享原生连接时两条命令由 Lettuce 连续写入共享连接, 否则使用 pipeline.
+	 */
+	@Nullable
+	private TtlValue readWithTtl(RedisConnection connection, byte[] key, Consumer<RedisConnection> read,
+	                             Function<RedisClusterAsyncCommands<byte[], byte[]>, RedisFuture<byte[]>> asyncRead) {
+
+		if (sharedNativeConnection) {
+			RedisClusterAsyncCommands<byte[], byte[]> commands = nativeCommands(connection);
+			if (commands != null) {
+				return readWithTtl(commands, key, asyncRead);
+			}
+		}
+		return readWithTtl(connection, key, read);
+	}
+
+	@Nullable
+	@SuppressWarnings("unchecked")
+	private static RedisClusterAsyncCommands<byte[], byte[]> nativeCommands(RedisConnection connection) {
+		Object nativeConnection = connection.getNativeConnection();
+		return nativeConnection instanceof RedisClusterAsyncCommands ?
+				(RedisClusterAsyncCommands<byte[], byte[]>) nativeConnection : null;
+	}
+
+	@Nullable
+	private TtlValue readWithTtl(RedisClusterAsyncCommands<byte[], byte[]> commands, byte[] key,
+	                             Function<RedisClusterAsyncCommands<byte[], byte[]>, RedisFuture<byte[]>> asyncRead) {
+
+		RedisFuture<byte[]> valueFuture = asyncRead.apply(commands);
+		RedisFuture<Long> ttlFuture = commands.pttl(key);
+		try {
+			byte[] value = LettuceFutures.awaitOrCancel(valueFuture, commandTimeoutMillis, TimeUnit.MILLISECONDS);
+			if (value == null) {
+				return null;
+			}
+			Long ttl = LettuceFutures.awaitOrCancel(ttlFuture, commandTimeoutMillis, TimeUnit.MILLISECONDS);
+			return new TtlValue(value, ttl == null ? -1L : ttl);
+		} catch (RuntimeException e) {
+			DataAccessException exception = EXCEPTION_CONVERTER.convert(e);
+			throw exception != null ? exception : e;
+		}
+	}
+
+	@Nullable
+	private static TtlValue readWithTtl(RedisConnection connection, byte[] key, Consumer<RedisConnection> read) {
+		connection.openPipeline();
+		read.accept(connection);
+		connection.pTtl(key);
+		List<Object> results = connection.closePipeline();
+
+		byte[] value = results.isEmpty() ? null : (byte[]) results.get(0);
+		if (value == null) {
+			return null;
+		}
+		Object ttl = results.size() > 1 ? results.get(1) : null;
+		return new TtlValue(value, ttl instanceof Long ? (Long) ttl : -1L);
+	}
+
 	private static boolean shouldExpireWithin(@Nullable Duration ttl) {
 		return ttl != null && !ttl.isZero() && !ttl.isNegative();
 	}
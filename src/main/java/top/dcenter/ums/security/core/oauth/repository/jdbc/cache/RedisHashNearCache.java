@@ -0,0 +1,362 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.repository.jdbc.cache;
+
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+import org.springframework.util.Assert;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static top.dcenter.ums.security.core.oauth.config.RedisCacheAutoConfiguration.REDIS_CACHE_HASH_KEY_SEPARATE;
+
+/**
+ * {@link RedisHashCache} 的进程内一级缓存(L1), Redis 为二级缓存(L2). <br>
+ * 1. 容量限制: 超过 maximumSize 时按写入顺序选出候选淘汰项.<br>
+ * 2. 过期: 每个缓存项写入 ttl 后过期.<br>
+ * 3. 基于访问频率的准入(TinyLFU): 缓存已满时, 只有新缓存项的访问频率大于候选淘汰项的访问频率才会被写入, 防止一次性访问的数据冲刷热点数据.<br>
+ * 4. 失效: key 不含 hash 分隔符时, 除了精确失效外, 同时失效以 key + "__" 为前缀的缓存项, 与 Redis 中按 hash key 删除整个 hash 的语义一致.<br>
+ * 5. 存储结构: 按 hash key 分组的两级 map(hash key -> (key -> 缓存项)), 失效整个 hash 时直接移除该组, 时间复杂度 O(1).<br>
+ * 注意: 返回的是缓存的对象本身, 调用方不应修改返回的对象.
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/2 9:46
+ */
+public class RedisHashNearCache {
+
+    /**
+     * 频率统计的行数
+     */
+    private static final int SKETCH_DEPTH = 4;
+    /**
+     * 频率计数的最大值
+     */
+    private static final int MAX_FREQUENCY = 15;
+    /**
+     * 访问次数达到 maximumSize 的倍数时, 所有频率计数减半, 使旧的热点数据逐渐退出
+     */
+    private static final int SAMPLE_SIZE_FACTOR = 10;
+
+    /**
+     * hash key -> (key -> 缓存项); 组内 map 的修改都在外层 map 对应 hash key 的 compute 中执行, 与移除整组互斥.
+     */
+    private final ConcurrentHashMap<Object, ConcurrentHashMap<Object, Entry>> store = new ConcurrentHashMap<>();
+    /**
+     * 当前缓存项数量
+     */
+    private final AtomicLong size = new AtomicLong();
+    /**
+     * 写入顺序, 用于选出候选淘汰项; 队列中可能存在已被失效或替换的缓存项, 在出队时跳过.
+     */
+    private final ConcurrentLinkedQueue<Entry> writeOrder = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger writeOrderSize = new AtomicInteger();
+
+    private final long maximumSize;
+    private final long ttlNanos;
+
+    private final int[][] sketch;
+    private final int sketchMask;
+    private final int[] seeds;
+    private final int sampleSize;
+    private final AtomicInteger samples = new AtomicInteger();
+
+    /**
+     * @param maximumSize   最大缓存项数量, 必须大于 0
+     * @param ttl           缓存项写入后的过期时间, 必须大于 0
+     */
+    public RedisHashNearCache(long maximumSize, @NonNull Duration ttl) {
+        Assert.isTrue(maximumSize > 0, "MaximumSize must be positive!");
+        Assert.notNull(ttl, "Ttl must not be null!");
+        Assert.isTrue(!ttl.isZero() && !ttl.isNegative(), "Ttl must be positive!");
+
+        this.maximumSize = maximumSize;
+        this.ttlNanos = ttl.toNanos();
+
+        int width = tableSizeFor((int) Math.min(maximumSize, 1 << 24));
+        this.sketch = new int[SKETCH_DEPTH][width];
+        this.sketchMask = width - 1;
+        this.seeds = new int[]{0x97cb3127, 0x2c9ff0a5, 0xb7a19f3b, 0x61c88647};
+        this.sampleSize = (int) Math.min(Integer.MAX_VALUE, maximumSize * SAMPLE_SIZE_FACTOR);
+    }
+
+    /**
+     * 获取缓存的值(可能是 {@link org.springframework.cache.support.NullValue}), 不存在或已过期返回 null.
+     * @param key   key
+     * @return  缓存的值
+     */
+    @Nullable
+    public Object get(@NonNull Object key) {
+        recordAccess(key);
+        Entry entry = getEntry(key);
+        if (entry == null)
+        {
+            return null;
+        }
+        if (entry.isExpired(System.nanoTime()))
+        {
+            remove(entry);
+            return null;
+        }
+        return entry.value;
+    }
+
+    /**
+     * 写入缓存, 缓存已满且新缓存项的访问频率不大于候选淘汰项时不写入.
+     * @param key       key
+     * @param value     value, 不能为 null, 空值使用 {@link org.springframework.cache.support.NullValue}
+     */
+    public void put(@NonNull Object key, @NonNull Object value) {
+        recordAccess(key);
+        Entry entry = new Entry(hashKeyOf(key), key, value, System.nanoTime() + ttlNanos);
+        if (getEntry(key) == null && size.get() >= maximumSize && !evictFor(key))
+        {
+            return;
+        }
+
+        store.compute(entry.hashKey, (hashKey, entries) -> {
+            if (entries == null)
+            {
+                entries = new ConcurrentHashMap<>(4);
+            }
+            if (entries.put(key, entry) == null)
+            {
+                size.incrementAndGet();
+            }
+            return entries;
+        });
+        enqueue(entry);
+    }
+
+    /**
+     * 失效 key, key 不含 hash 分隔符时同时失效以 key + "__" 为前缀的缓存项.
+     * @param key   key
+     */
+    public void invalidate(@NonNull Object key) {
+        Object hashKey = hashKeyOf(key);
+        if (hashKey != key)
+        {
+            store.computeIfPresent(hashKey, (k, entries) -> {
+                if (entries.remove(key) != null)
+                {
+                    size.decrementAndGet();
+                }
+                return entries.isEmpty() ? null : entries;
+            });
+            return;
+        }
+        // key 不含 hash 分隔符: 移除整个 hash 组(包括 key 本身)
+        ConcurrentHashMap<Object, Entry> removed = store.remove(hashKey);
+        if (removed != null)
+        {
+            size.addAndGet(-removed.size());
+        }
+    }
+
+    /**
+     * 清空缓存
+     */
+    public void clear() {
+        store.clear();
+        size.set(0);
+        writeOrder.clear();
+        writeOrderSize.set(0);
+    }
+
+    /**
+     * @return  当前缓存项数量
+     */
+    public long size() {
+        return size.get();
+    }
+
+    @Nullable
+    private Entry getEntry(Object key) {
+        ConcurrentHashMap<Object, Entry> entries = store.get(hashKeyOf(key));
+        return entries == null ? null : entries.get(key);
+    }
+
+    /**
+     * 移除缓存项, 缓存项已被替换时不移除
+     */
+    private void remove(Entry entry) {
+        store.computeIfPresent(entry.hashKey, (k, entries) -> {
+            if (entries.remove(entry.key, entry))
+            {
+                size.decrementAndGet();
+            }
+            return entries.isEmpty() ? null : entries;
+        });
+    }
+
+    /**
+     * @return  key 所属的 hash key: 含 hash 分隔符的字符串 key 取分隔符前的部分, 否则为 key 本身
+     */
+    private static Object hashKeyOf(Object key) {
+        if (key instanceof String)
+        {
+            String k = (String) key;
+            int index = k.indexOf(REDIS_CACHE_HASH_KEY_SEPARATE);
+            if (index >= 0)
+            {
+                return k.substring(0, index);
+            }
+        }
+        return key;
+    }
+
+    /**
+     * 按写入顺序选出候选淘汰项(过期的直接淘汰), 新缓存项的访问频率大于候选淘汰项时淘汰候选项.
+     * @return  是否为新缓存项腾出了空间
+     */
+    private boolean evictFor(Object candidateKey) {
+        final long now = System.nanoTime();
+        Entry victim;
+        while ((victim = writeOrder.poll()) != null)
+        {
+            writeOrderSize.decrementAndGet();
+            if (getEntry(victim.key) != victim)
+            {
+                // 已被失效或替换
+                continue;
+            }
+            if (victim.isExpired(now) || frequency(candidateKey) > frequency(victim.key))
+            {
+                remove(victim);
+                return true;
+            }
+            // 不准入, 候选淘汰项重新排到队尾
+            enqueue(victim);
+            return false;
+        }
+        return size.get() < maximumSize;
+    }
+
+    private void enqueue(Entry entry) {
+        writeOrder.offer(entry);
+        if (writeOrderSize.incrementAndGet() > maximumSize * 2)
+        {
+            purgeStaleWriteOrder();
+        }
+    }
+
+    /**
+     * 清除写入顺序队列中已被失效或替换的缓存项, 防止队列无限增长
+     */
+    private void purgeStaleWriteOrder() {
+        Iterator<Entry> iterator = writeOrder.iterator();
+        while (iterator.hasNext())
+        {
+            Entry entry = iterator.next();
+            if (getEntry(entry.key) != entry)
+            {
+                iterator.remove();
+                writeOrderSize.decrementAndGet();
+            }
+        }
+    }
+
+    // ============================ 访问频率统计(Count-Min Sketch) ============================
+
+    private void recordAccess(Object key) {
+        int hash = spread(key.hashCode());
+        for (int i = 0; i < SKETCH_DEPTH; i++)
+        {
+            int[] row = sketch[i];
+            int index = indexOf(hash, i);
+            // 允许并发下的少量计数丢失
+            if (row[index] < MAX_FREQUENCY)
+            {
+                row[index]++;
+            }
+        }
+        if (samples.incrementAndGet() >= sampleSize)
+        {
+            reset();
+        }
+    }
+
+    private int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int frequency = MAX_FREQUENCY;
+        for (int i = 0; i < SKETCH_DEPTH; i++)
+        {
+            frequency = Math.min(frequency, sketch[i][indexOf(hash, i)]);
+        }
+        return frequency;
+    }
+
+    private synchronized void reset() {
+        if (samples.get() < sampleSize)
+        {
+            return;
+        }
+        for (int[] row : sketch)
+        {
+            for (int i = 0; i < row.length; i++)
+            {
+                row[i] >>>= 1;
+            }
+        }
+        samples.set(0);
+    }
+
+    private int indexOf(int hash, int row) {
+        int h = (hash ^ seeds[row]) * 0x9e3779b9;
+        h ^= h >>> 16;
+        return h & sketchMask;
+    }
+
+    private static int spread(int hash) {
+        int h = hash * 0x85ebca6b;
+        return h ^ (h >>> 13);
+    }
+
+    private static int tableSizeFor(int capacity) {
+        int n = -1 >>> Integer.numberOfLeadingZeros(Math.max(capacity, 16) - 1);
+        return n + 1;
+    }
+
+    private static final class Entry {
+        private final Object hashKey;
+        private final Object key;
+        private final Object value;
+        private final long expireAtNanos;
+
+        private Entry(Object hashKey, Object key, Object value, long expireAtNanos) {
+            this.hashKey = hashKey;
+            this.key = key;
+            this.value = value;
+            this.expireAtNanos = expireAtNanos;
+        }
+
+        private boolean isExpired(long now) {
+            return now - expireAtNanos >= 0;
+        }
+    }
+
+}
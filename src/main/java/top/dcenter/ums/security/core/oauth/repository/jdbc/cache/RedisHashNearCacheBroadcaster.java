@@ -0,0 +1,190 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.repository.jdbc.cache;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+import org.springframework.util.Assert;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 通过 Redis pub/sub 在集群节点之间广播 {@link RedisHashNearCache} 的失效消息. <br>
+ * 1. 本节点对缓存执行 put/evict/clear 时, 发布失效消息, 其他节点收到消息后失效本地对应的缓存项.<br>
+ * 2. 消息格式: nodeId\nop\ncacheName\nkey, op: e(evict), c(clear); 本节点发布的消息会被忽略.<br>
+ * 3. pub/sub 不保证送达(如订阅连接断开期间的消息会丢失), 所以 {@link RedisHashNearCache} 的 ttl 不宜过长, 作为最终一致的兜底.
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/2 11:20
+ */
+@Slf4j
+public class RedisHashNearCacheBroadcaster implements MessageListener {
+
+    private static final char SEPARATOR = '\n';
+    private static final char OP_EVICT = 'e';
+    private static final char OP_CLEAR = 'c';
+
+    private final RedisConnectionFactory connectionFactory;
+    private final byte[] channel;
+    private final ChannelTopic topic;
+    private final String nodeId = UUID.randomUUID().toString();
+    private final Map<String, RedisHashNearCache> nearCaches = new ConcurrentHashMap<>();
+
+    private volatile RedisMessageListenerContainer container;
+
+    /**
+     * @param connectionFactory     redis 连接工厂
+     * @param channel               失效消息的 pub/sub 频道
+     */
+    public RedisHashNearCacheBroadcaster(@NonNull RedisConnectionFactory connectionFactory, @NonNull String channel) {
+        Assert.notNull(connectionFactory, "ConnectionFactory must not be null!");
+        Assert.hasText(channel, "Channel must not be empty!");
+        this.connectionFactory = connectionFactory;
+        this.channel = channel.getBytes(StandardCharsets.UTF_8);
+        this.topic = new ChannelTopic(channel);
+    }
+
+    /**
+     * 注册需要接收失效消息的本地缓存
+     * @param cacheName     缓存名称
+     * @param nearCache     本地缓存
+     */
+    public void register(@NonNull String cacheName, @NonNull RedisHashNearCache nearCache) {
+        nearCaches.put(cacheName, nearCache);
+    }
+
+    /**
+     * 订阅失效消息频道
+     */
+    public synchronized void start() {
+        if (container != null)
+        {
+            return;
+        }
+        RedisMessageListenerContainer listenerContainer = new RedisMessageListenerContainer();
+        listenerContainer.setConnectionFactory(connectionFactory);
+        listenerContainer.addMessageListener(this, topic);
+        listenerContainer.afterPropertiesSet();
+        listenerContainer.start();
+        container = listenerContainer;
+    }
+
+    /**
+     * 取消订阅
+     */
+    public synchronized void stop() {
+        if (container == null)
+        {
+            return;
+        }
+        try
+        {
+            container.destroy();
+        }
+        catch (Exception e)
+        {
+            log.warn("关闭本地缓存失效消息订阅失败: {}", e.getMessage(), e);
+        }
+        container = null;
+    }
+
+    /**
+     * 发布缓存项失效消息, redis 异常时只打印日志.
+     * @param cacheName     缓存名称
+     * @param key           缓存 key 的字符串形式
+     */
+    public void publishEvict(@NonNull String cacheName, @NonNull String key) {
+        publish(OP_EVICT, cacheName, key);
+    }
+
+    /**
+     * 发布清空缓存消息, redis 异常时只打印日志.
+     * @param cacheName     缓存名称
+     */
+    public void publishClear(@NonNull String cacheName) {
+        publish(OP_CLEAR, cacheName, "");
+    }
+
+    @Override
+    public void onMessage(@NonNull Message message, @Nullable byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        // nodeId\nop\ncacheName\nkey
+        int first = body.indexOf(SEPARATOR);
+        int second = body.indexOf(SEPARATOR, first + 1);
+        int third = body.indexOf(SEPARATOR, second + 1);
+        if (first < 0 || second != first + 2 || third < 0)
+        {
+            log.warn("无效的本地缓存失效消息: {}", body);
+            return;
+        }
+        if (nodeId.equals(body.substring(0, first)))
+        {
+            return;
+        }
+
+        RedisHashNearCache nearCache = nearCaches.get(body.substring(second + 1, third));
+        if (nearCache == null)
+        {
+            return;
+        }
+        if (body.charAt(first + 1) == OP_CLEAR)
+        {
+            nearCache.clear();
+        }
+        else
+        {
+            nearCache.invalidate(body.substring(third + 1));
+        }
+    }
+
+    private void publish(char op, String cacheName, String key) {
+        String body = nodeId + SEPARATOR + op + SEPARATOR + cacheName + SEPARATOR + key;
+        RedisConnection connection = null;
+        try
+        {
+            connection = connectionFactory.getConnection();
+            connection.publish(channel, body.getBytes(StandardCharsets.UTF_8));
+        }
+        catch (RuntimeException e)
+        {
+            log.error("redis异常: 发布本地缓存失效消息失败, cacheName=[{}], key=[{}]", cacheName, key, e);
+        }
+        finally
+        {
+            if (connection != null)
+            {
+                connection.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.repository.jdbc.key;
+
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+import org.springframework.util.Assert;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringJoiner;
+
+import static top.dcenter.ums.security.core.oauth.config.RedisCacheAutoConfiguration.REDIS_CACHE_HASH_KEY_SEPARATE;
+
+/**
+ * {@link top.dcenter.ums.security.core.oauth.repository.jdbc.cache.RedisHashCache} 的结构化缓存 key: hash key 与 field,
+ * 创建时一次性编码为 UTF-8 字节, 缓存读写时不需要再拼接与拆分字符串. <br>
+ * {@link #toString()} 与 SpEL 字符串 key({@code key + "__" + field}) 相同, 与字符串 key 指向同一个 redis hash field.
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/7 10:16
+ */
+public final class HashCacheKey {
+
+    /**
+     * field 的最大长度, 超过时使用摘要代替
+     */
+    public static final int MAX_FIELD_LENGTH = 128;
+    /**
+     * 摘要 field 的前缀
+     */
+    private static final String DIGEST_PREFIX = "#";
+
+    private final String key;
+    private final String field;
+    private final byte[] keyBytes;
+    private final byte[] fieldBytes;
+    /**
+     * 与 SpEL 字符串 key 相同的字符串形式
+     */
+    private final String value;
+
+    private HashCacheKey(String key, @Nullable String field) {
+        this.key = key;
+        this.field = field;
+        this.keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        this.fieldBytes = field == null ? null : field.getBytes(StandardCharsets.UTF_8);
+        this.value = field == null ? key : key + REDIS_CACHE_HASH_KEY_SEPARATE + field;
+    }
+
+    /**
+     * 普通(非 hash)缓存 key, 或者整个 hash(evict 时删除整个 hash)
+     * @param key   key
+     * @return  {@link HashCacheKey}
+     */
+    @NonNull
+    public static HashCacheKey of(@NonNull String key) {
+        Assert.hasText(key, "Key must not be empty!");
+        return new HashCacheKey(key, null);
+    }
+
+    /**
+     * hash 缓存 key
+     * @param key   hash key
+     * @param field hash field
+     * @return  {@link HashCacheKey}
+     */
+    @NonNull
+    public static HashCacheKey of(@NonNull String key, @NonNull String field) {
+        Assert.hasText(key, "Key must not be empty!");
+        Assert.notNull(field, "Field must not be null!");
+        return new HashCacheKey(key, field);
+    }
+
+    /**
+     * hash 缓存 key, field 为集合/Map 等参数的规范化字符串, 长度超过 {@link #MAX_FIELD_LENGTH} 时使用 SHA-256 摘要代替.
+     * Set 的元素排序后拼接, 相同元素的不同 Set 实现得到相同的 field.
+     * @param key           hash key
+     * @param fieldSource   生成 field 的参数
+     * @return  {@link HashCacheKey}
+     */
+    @NonNull
+    public static HashCacheKey ofDigest(@NonNull String key, @Nullable Object fieldSource) {
+        String field = canonical(fieldSource);
+        if (field.length() > MAX_FIELD_LENGTH)
+        {
+            field = DIGEST_PREFIX + digest(field);
+        }
+        return of(key, field);
+    }
+
+    @NonNull
+    public String getKey() {
+        return key;
+    }
+
+    @Nullable
+    public String getField() {
+        return field;
+    }
+
+    public boolean hasField() {
+        return field != null;
+    }
+
+    /**
+     * @return key 的 UTF-8 字节, 不要修改返回的数组
+     */
+    @NonNull
+    public byte[] getKeyBytes() {
+        return keyBytes;
+    }
+
+    /**
+     * @return field 的 UTF-8 字节, 不要修改返回的数组
+     */
+    @Nullable
+    public byte[] getFieldBytes() {
+        return fieldBytes;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+        {
+            return true;
+        }
+        if (!(o instanceof HashCacheKey))
+        {
+            return false;
+        }
+        return value.equals(((HashCacheKey) o).value);
+    }
+
+    @Override
+    public int hashCode() {
+        return value.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return value;
+    }
+
+    private static String canonical(@Nullable Object source) {
+        if (source == null)
+        {
+            return "null";
+        }
+        if (source instanceof Map)
+        {
+            StringJoiner sj = new StringJoiner(",", "{", "}");
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) source).entrySet())
+            {
+                sj.add(canonical(entry.getKey()) + "=" + canonical(entry.getValue()));
+            }
+            return sj.toString();
+        }
+        if (source instanceof Collection)
+        {
+            List<String> elements = new ArrayList<>(((Collection<?>) source).size());
+            for (Object element : (Collection<?>) source)
+            {
+                elements.add(canonical(element));
+            }
+            if (source instanceof Set)
+            {
+                elements.sort(null);
+            }
+            return "[" + String.join(",", elements) + "]";
+        }
+        if (source instanceof Object[])
+        {
+            return canonical(Arrays.asList((Object[]) source));
+        }
+        return source.toString();
+    }
+
+    private static String digest(String text) {
+        try
+        {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(digest);
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("SHA-256 is not supported", e);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.repository.jdbc.key.generator;
+
+import org.springframework.cache.interceptor.KeyGenerator;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.lang.NonNull;
+import top.dcenter.ums.security.core.oauth.repository.jdbc.key.HashCacheKey;
+
+import java.lang.reflect.Method;
+
+/**
+ * 集合/Map 参数的 key 生成器: {@code HashCacheKey.ofDigest(prefix + params[keyIndex], params[fieldIndex])},
+ * field 过长时使用固定长度的摘要, 代替 {@code key = "'hm:' + #providerId + '__' + #providerUserIds"}.
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/7 10:51
+ */
+public class DigestHashCacheKeyGenerator implements KeyGenerator {
+
+    private final String prefix;
+    private final int keyIndex;
+    private final int fieldIndex;
+
+    /**
+     * @param prefix        hash key 的前缀, 如: hm:
+     * @param keyIndex      作为 hash key 的参数索引
+     * @param fieldIndex    作为 field 的参数(集合/Map/{@link MapSqlParameterSource})索引
+     */
+    public DigestHashCacheKeyGenerator(@NonNull String prefix, int keyIndex, int fieldIndex) {
+        this.prefix = prefix;
+        this.keyIndex = keyIndex;
+        this.fieldIndex = fieldIndex;
+    }
+
+    @NonNull
+    @Override
+    public Object generate(@NonNull Object target, @NonNull Method method, Object... params) {
+        Object fieldSource = params[fieldIndex];
+        if (fieldSource instanceof MapSqlParameterSource)
+        {
+            fieldSource = ((MapSqlParameterSource) fieldSource).getValues();
+        }
+        return HashCacheKey.ofDigest(prefix + params[keyIndex], fieldSource);
+    }
+}
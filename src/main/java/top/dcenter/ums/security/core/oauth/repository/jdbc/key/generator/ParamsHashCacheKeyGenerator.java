@@ -0,0 +1,54 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.repository.jdbc.key.generator;
+
+import org.springframework.cache.interceptor.KeyGenerator;
+import org.springframework.lang.NonNull;
+import top.dcenter.ums.security.core.oauth.repository.jdbc.key.HashCacheKey;
+
+import java.lang.reflect.Method;
+
+/**
+ * 前两个参数的 key 生成器: {@code HashCacheKey(prefix + params[0], params[1])}, 代替
+ * {@code key = "'hs:' + #providerId + '__' + #providerUserId"} 之类的 SpEL.
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/7 10:42
+ */
+public class ParamsHashCacheKeyGenerator implements KeyGenerator {
+
+    private final String prefix;
+
+    /**
+     * @param prefix    hash key 的前缀, 如: hs:
+     */
+    public ParamsHashCacheKeyGenerator(@NonNull String prefix) {
+        this.prefix = prefix;
+    }
+
+    @NonNull
+    @Override
+    public Object generate(@NonNull Object target, @NonNull Method method, Object... params) {
+        return HashCacheKey.of(prefix + params[0], String.valueOf(params[1]));
+    }
+}
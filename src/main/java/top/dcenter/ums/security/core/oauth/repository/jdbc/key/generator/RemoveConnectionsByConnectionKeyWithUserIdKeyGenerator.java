@@ -28,10 +28,12 @@ import org.springframework.cache.interceptor.KeyGenerator;
 import org.springframework.lang.NonNull;
 import top.dcenter.ums.security.core.oauth.entity.ConnectionKey;
 import top.dcenter.ums.security.core.oauth.config.RedisCacheAutoConfiguration;
+import top.dcenter.ums.security.core.oauth.repository.jdbc.key.HashCacheKey;
 
 import java.lang.reflect.Method;
 
 /**
+ * (userId, {@link ConnectionKey}) 参数的 key 生成器: {@code HashCacheKey("h:" + userId + ":" + providerId, providerUserId)}
  * @author YongWu zheng
  * @version V2.0  Created by 2020/6/14 21:07
  */
@@ -42,7 +44,7 @@ public class RemoveConnectionsByConnectionKeyWithUserIdKeyGenerator implements K
     public Object generate(@NonNull Object target, @NonNull Method method, Object... params) {
         String userId = (String) params[0];
         ConnectionKey key = (ConnectionKey) params[1];
-        return "h:" + userId + RedisCacheAutoConfiguration.REDIS_CACHE_KEY_SEPARATE +
-                key.getProviderId() + RedisCacheAutoConfiguration.REDIS_CACHE_HASH_KEY_SEPARATE + key.getProviderUserId();
+        return HashCacheKey.of("h:" + userId + RedisCacheAutoConfiguration.REDIS_CACHE_KEY_SEPARATE + key.getProviderId(),
+                               key.getProviderUserId());
     }
 }
\ No newline at end of file
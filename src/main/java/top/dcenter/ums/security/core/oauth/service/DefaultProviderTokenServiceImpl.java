@@ -0,0 +1,388 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.service;
+
+import lombok.extern.slf4j.Slf4j;
+import me.zhyd.oauth.exception.AuthException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.Assert;
+import top.dcenter.ums.security.core.oauth.entity.AuthTokenPo;
+import top.dcenter.ums.security.core.oauth.entity.ConnectionData;
+import top.dcenter.ums.security.core.oauth.enums.ErrorCodeEnum;
+import top.dcenter.ums.security.core.oauth.exception.RefreshTokenFailureException;
+import top.dcenter.ums.security.core.oauth.justauth.Auth2RequestHolder;
+import top.dcenter.ums.security.core.oauth.justauth.request.Auth2DefaultRequest;
+import top.dcenter.ums.security.core.oauth.properties.Auth2Properties;
+import top.dcenter.ums.security.core.oauth.repository.UsersConnectionRepository;
+import top.dcenter.ums.security.core.oauth.repository.UsersConnectionTokenRepository;
+import top.dcenter.ums.security.core.oauth.repository.exception.NotConnectedException;
+
+import java.lang.reflect.UndeclaredThrowableException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static top.dcenter.ums.security.core.oauth.enums.EnableRefresh.NO;
+import static top.dcenter.ums.security.core.oauth.enums.EnableRefresh.YES;
+
+/**
+ * {@link ProviderTokenService} 的默认实现:<br>
+ * 1. accessToken 剩余有效期大于 safetyMargin 时直接返回 auth_token 中的 token(有缓存时从缓存获取);<br>
+ * 2. 否则同步刷新: 本机同一 token 的并发请求共享一次刷新; 多台服务器之间以及与定时刷新任务之间通过 {@link ProviderTokenLease}
+ * (有 RedisConnectionFactory 时为 redis 租约, 否则为 auth_token 表的 claimedBy/claimedUntil 租约字段)保证只有一处刷新,
+ * 其他服务器轮询数据库等待刷新结果, 最长等待 waitTimeout + 第三方 HTTP 超时时间.
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/20 10:26
+ */
+@Slf4j
+public class DefaultProviderTokenServiceImpl implements ProviderTokenService {
+
+    /**
+     * 等待其他服务器刷新时轮询数据库的间隔, 单位: 毫秒
+     */
+    private static final long WAIT_INTERVAL_MILLIS = 100L;
+
+    private final UsersConnectionRepository usersConnectionRepository;
+    private final UsersConnectionTokenRepository usersConnectionTokenRepository;
+    @Nullable
+    private final TransactionTemplate transactionTemplate;
+    private final Auth2Properties.ProviderToken providerToken;
+    private final ProviderTokenLease providerTokenLease;
+    /**
+     * 等待其他服务器刷新结果的最长时间(waitTimeout + 第三方 HTTP 超时时间), 单位: 毫秒
+     */
+    private final long followerTimeout;
+    /**
+     * 第三方 HTTP 超时时间, 单位: 毫秒
+     */
+    private final long httpTimeout;
+    /**
+     * 本机正在刷新的 token, key 为 tokenId
+     */
+    private final ConcurrentHashMap<Long, CompletableFuture<AuthTokenPo>> refreshing = new ConcurrentHashMap<>();
+    @SuppressWarnings("SpringJavaAutowiredFieldsWarningInspection")
+    @Autowired(required = false)
+    private RedisConnectionFactory redisConnectionFactory;
+
+    /**
+     * @param usersConnectionRepository         usersConnectionRepository
+     * @param usersConnectionTokenRepository    usersConnectionTokenRepository
+     * @param transactionTemplate               更新 user_connection 与 auth_token 的事务, 为 null 时不使用事务
+     * @param providerToken                     按需刷新属性
+     * @param providerTokenLease                与定时刷新任务共用的刷新租约
+     * @param httpTimeout                       第三方 HTTP 超时时间, ums.oauth.proxy.timeout 与 ums.oauth.proxy.foreignTimeout
+     *                                          中较大的值, leaseTtl 必须大于此值
+     */
+    public DefaultProviderTokenServiceImpl(@NonNull UsersConnectionRepository usersConnectionRepository,
+                                           @NonNull UsersConnectionTokenRepository usersConnectionTokenRepository,
+                                           @Nullable TransactionTemplate transactionTemplate,
+                                           @NonNull Auth2Properties.ProviderToken providerToken,
+                                           @NonNull ProviderTokenLease providerTokenLease,
+                                           @NonNull Duration httpTimeout) {
+        // 租约在刷新(第三方 HTTP 请求)完成前过期时, 其他服务器会重复刷新
+        Assert.isTrue(providerTokenLease.getLeaseTtl().compareTo(httpTimeout) > 0,
+                      String.format("ums.oauth.providerToken.leaseTtl(%s) 必须大于第三方 HTTP 超时时间(%s)",
+                                    providerTokenLease.getLeaseTtl(), httpTimeout));
+        this.usersConnectionRepository = usersConnectionRepository;
+        this.usersConnectionTokenRepository = usersConnectionTokenRepository;
+        this.transactionTemplate = transactionTemplate;
+        this.providerToken = providerToken;
+        this.providerTokenLease = providerTokenLease;
+        this.httpTimeout = httpTimeout.toMillis();
+        this.followerTimeout = providerToken.getWaitTimeout().toMillis() + this.httpTimeout;
+    }
+
+    @NonNull
+    @Override
+    public AuthTokenPo getValidAuthToken(@NonNull String userId, @NonNull String providerId)
+            throws NotConnectedException, RefreshTokenFailureException {
+        final ConnectionData connection = usersConnectionRepository.getPrimaryConnection(userId, providerId);
+        final Long tokenId = connection.getTokenId();
+        if (tokenId == null)
+        {
+            // 没有 auth_token 记录, 不能刷新, 只能返回 user_connection 中的 accessToken
+            final AuthTokenPo token = new AuthTokenPo();
+            token.setProviderId(providerId);
+            token.setAccessToken(connection.getAccessToken());
+            token.setRefreshToken(connection.getRefreshToken());
+            token.setExpireTime(connection.getExpireTime());
+            if (isValid(token))
+            {
+                return token;
+            }
+            throw new RefreshTokenFailureException(ErrorCodeEnum.REFRESH_TOKEN_FAILURE, providerId, userId);
+        }
+
+        final AuthTokenPo token;
+        try
+        {
+            token = usersConnectionTokenRepository.findAuthTokenById(tokenId.toString());
+        }
+        catch (Exception e)
+        {
+            throw new RefreshTokenFailureException(ErrorCodeEnum.REFRESH_TOKEN_FAILURE, e, tokenId, userId);
+        }
+        if (isValid(token))
+        {
+            return token;
+        }
+        return singleFlightRefresh(token, userId);
+    }
+
+    /**
+     * 本机同一 token 的并发刷新请求只有一个执行刷新, 其他请求等待刷新结果
+     * @param token     需要刷新的 token
+     * @param userId    本地账户用户 Id
+     * @return  刷新后的 token
+     * @throws RefreshTokenFailureException 刷新失败或等待超时
+     */
+    @NonNull
+    private AuthTokenPo singleFlightRefresh(@NonNull AuthTokenPo token, @NonNull String userId) throws RefreshTokenFailureException {
+        final Long tokenId = token.getId();
+        final CompletableFuture<AuthTokenPo> future = new CompletableFuture<>();
+        final CompletableFuture<AuthTokenPo> inFlight = refreshing.putIfAbsent(tokenId, future);
+        if (inFlight == null)
+        {
+            try
+            {
+                future.complete(refreshWithLease(token, userId));
+            }
+            catch (Throwable e)
+            {
+                future.completeExceptionally(e);
+            }
+            finally
+            {
+                refreshing.remove(tokenId, future);
+            }
+        }
+
+        try
+        {
+            // 本机的刷新请求最长等待 followerTimeout 后获取到租约, 再加上一次第三方 HTTP 请求
+            return (inFlight == null ? future : inFlight).get(followerTimeout + httpTimeout, TimeUnit.MILLISECONDS);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof RefreshTokenFailureException)
+            {
+                throw (RefreshTokenFailureException) e.getCause();
+            }
+            throw new RefreshTokenFailureException(ErrorCodeEnum.REFRESH_TOKEN_FAILURE, e.getCause(), tokenId, userId);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new RefreshTokenFailureException(ErrorCodeEnum.REFRESH_TOKEN_FAILURE, e, tokenId, userId);
+        }
+        catch (TimeoutException e)
+        {
+            throw new RefreshTokenFailureException(ErrorCodeEnum.REFRESH_TOKEN_FAILURE, e, tokenId, userId);
+        }
+    }
+
+    /**
+     * 获取租约后刷新 token; 租约被其他服务器或定时刷新任务持有时轮询数据库, 直到其刷新完成, 租约过期(重新获取租约)
+     * 或等待超时(waitTimeout + 第三方 HTTP 超时时间)
+     * @param token     需要刷新的 token
+     * @param userId    本地账户用户 Id
+     * @return  刷新后的 token
+     * @throws RefreshTokenFailureException 刷新失败或等待超时
+     */
+    @NonNull
+    private AuthTokenPo refreshWithLease(@NonNull AuthTokenPo token, @NonNull String userId) throws RefreshTokenFailureException {
+        final Long tokenId = token.getId();
+        final long deadline = Instant.now().toEpochMilli() + followerTimeout;
+        final String leaseOwner = providerTokenLease.newOwner();
+        try
+        {
+            AuthTokenPo latest = token;
+            while (true)
+            {
+                if (providerTokenLease.tryAcquire(redisConnectionFactory, tokenId, leaseOwner))
+                {
+                    try
+                    {
+                        // 获取租约前其他服务器可能已刷新
+                        latest = reload(tokenId, userId);
+                        if (isValid(latest))
+                        {
+                            return latest;
+                        }
+                        return refresh(latest, userId);
+                    }
+                    finally
+                    {
+                        providerTokenLease.release(redisConnectionFactory, tokenId, leaseOwner);
+                    }
+                }
+
+                TimeUnit.MILLISECONDS.sleep(WAIT_INTERVAL_MILLIS);
+                latest = reload(tokenId, userId);
+                if (isValid(latest))
+                {
+                    return latest;
+                }
+                final long now = Instant.now().toEpochMilli();
+                if (now >= deadline)
+                {
+                    // 等待超时, accessToken 还未过期时返回
+                    if (latest.getExpireTime() > now)
+                    {
+                        return latest;
+                    }
+                    throw new RefreshTokenFailureException(ErrorCodeEnum.REFRESH_TOKEN_FAILURE,
+                                                           new TimeoutException("等待其他服务器刷新 token 超时"),
+                                                           tokenId, userId);
+                }
+            }
+        }
+        catch (RefreshTokenFailureException e)
+        {
+            throw e;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new RefreshTokenFailureException(ErrorCodeEnum.REFRESH_TOKEN_FAILURE, e, tokenId, userId);
+        }
+        catch (Exception e)
+        {
+            throw new RefreshTokenFailureException(ErrorCodeEnum.REFRESH_TOKEN_FAILURE, e, tokenId, userId);
+        }
+    }
+
+    /**
+     * 从第三方刷新 token, 并对 user_connection 与 auth_token 表进行更新
+     * @param token     需要刷新的 token
+     * @param userId    本地账户用户 Id
+     * @return  刷新后的 token
+     * @throws Exception    刷新或更新失败
+     */
+    @NonNull
+    private AuthTokenPo refresh(@NonNull AuthTokenPo token, @NonNull String userId) throws Exception {
+        final String providerId = token.getProviderId();
+        final Auth2DefaultRequest auth2DefaultRequest = Auth2RequestHolder.getAuth2DefaultRequest(providerId);
+        if (auth2DefaultRequest == null || !YES.equals(token.getEnableRefresh())
+                || !Auth2RequestHolder.isSupportRefreshToken(providerId))
+        {
+            throw new RefreshTokenFailureException(ErrorCodeEnum.AUTH2_PROVIDER_NOT_SUPPORT, token.getId(), userId);
+        }
+
+        final AuthTokenPo authTokenPo;
+        try
+        {
+            authTokenPo = auth2DefaultRequest.refreshToken(token);
+        }
+        catch (AuthException e)
+        {
+            // 更新为第三方不支持 refresh token
+            usersConnectionTokenRepository.updateEnableRefreshByTokenId(NO, token.getId());
+            throw new RefreshTokenFailureException(ErrorCodeEnum.AUTH2_PROVIDER_NOT_SUPPORT, e, token.getId(), userId);
+        }
+        authTokenPo.setProviderId(providerId);
+        // 部分第三方刷新时不返回新的 refreshToken
+        if (authTokenPo.getRefreshToken() == null)
+        {
+            authTokenPo.setRefreshToken(token.getRefreshToken());
+        }
+
+        executeInTransaction(() -> {
+            usersConnectionTokenRepository.updateAuthToken(authTokenPo);
+            usersConnectionRepository.updateConnectionByTokenId(authTokenPo);
+        });
+        log.info("RefreshToken 按需刷新成功: tokenId={}, providerId={}", token.getId(), providerId);
+        return authTokenPo;
+    }
+
+    /**
+     * 从数据库重新获取 token(不经过缓存), 用于获取其他服务器的刷新结果
+     */
+    @NonNull
+    private AuthTokenPo reload(@NonNull Long tokenId, @NonNull String userId) throws Exception {
+        final List<AuthTokenPo> tokens = usersConnectionTokenRepository.findAuthTokensByIds(Collections.singletonList(tokenId));
+        if (tokens.isEmpty())
+        {
+            throw new RefreshTokenFailureException(ErrorCodeEnum.REFRESH_TOKEN_FAILURE, tokenId, userId);
+        }
+        return tokens.get(0);
+    }
+
+    /**
+     * accessToken 剩余有效期是否大于 safetyMargin, 没有过期时间(expireTime &lt;= 0)的 token 总是有效
+     */
+    private boolean isValid(@NonNull AuthTokenPo token) {
+        final Long expireTime = token.getExpireTime();
+        if (expireTime == null || expireTime <= 0L)
+        {
+            return true;
+        }
+        return expireTime - providerToken.getSafetyMargin().toMillis() > Instant.now().toEpochMilli();
+    }
+
+    private void executeInTransaction(UpdateAction action) throws Exception {
+        if (transactionTemplate == null)
+        {
+            action.run();
+            return;
+        }
+        try
+        {
+            transactionTemplate.executeWithoutResult(status -> {
+                try
+                {
+                    action.run();
+                }
+                catch (RuntimeException e)
+                {
+                    throw e;
+                }
+                catch (Exception e)
+                {
+                    throw new UndeclaredThrowableException(e);
+                }
+            });
+        }
+        catch (UndeclaredThrowableException e)
+        {
+            Throwable cause = e.getUndeclaredThrowable();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+    }
+
+    private interface UpdateAction {
+        void run() throws Exception;
+    }
+
+}
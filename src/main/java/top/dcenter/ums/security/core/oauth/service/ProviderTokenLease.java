@@ -0,0 +1,333 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+import top.dcenter.ums.security.core.oauth.repository.UsersConnectionTokenRepository;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 单个 token 的刷新租约, 按需刷新({@link DefaultProviderTokenServiceImpl})与定时刷新任务使用同一租约, 同一 token 同时只有一处刷新:<br>
+ * 1. 有 RedisConnectionFactory 时为 redis 租约, key 为 {@link #LEASE_KEY_PREFIX} + tokenId;<br>
+ * 2. 否则 {@link UsersConnectionTokenRepository#supportsClaim()} 时为 auth_token 表的 claimedBy/claimedUntil 租约字段;<br>
+ * 3. 都不可用时为本机租约, 只在本机互斥, 与 redis 租约一样在 leaseTtl 后过期.<br>
+ * 按需刷新与定时刷新任务必须使用同一个实例(由 Auth2AutoConfiguration 注册为 bean), 否则本机租约不能互斥.
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/23 16:40
+ */
+@Slf4j
+public final class ProviderTokenLease {
+
+    /**
+     * 刷新租约的 redis key 前缀
+     */
+    public static final String LEASE_KEY_PREFIX = "ums:provider-token:lease:";
+    /**
+     * 租约标识与 ARGV[1] 相同时删除租约
+     */
+    private static final byte[] RELEASE_SCRIPT = ("if redis.call('GET', KEYS[1]) == ARGV[1] then " +
+            "return redis.call('DEL', KEYS[1]) end return 0").getBytes(StandardCharsets.UTF_8);
+    /**
+     * 租约标识与 ARGV[1] 相同时把租约时间重置为 ARGV[2] 毫秒
+     */
+    private static final byte[] RENEW_SCRIPT = ("if redis.call('GET', KEYS[1]) == ARGV[1] then " +
+            "return redis.call('PEXPIRE', KEYS[1], ARGV[2]) end return 0").getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * 本机租约, key 为 tokenId
+     */
+    private final ConcurrentHashMap<Long, LocalLease> localLeases = new ConcurrentHashMap<>();
+    private final UsersConnectionTokenRepository usersConnectionTokenRepository;
+    private final Duration leaseTtl;
+    private final byte[] leaseTtlMillis;
+    /**
+     * 租约标识前缀
+     */
+    private final String ownerPrefix;
+
+    /**
+     * @param usersConnectionTokenRepository    usersConnectionTokenRepository
+     * @param leaseTtl                          租约时间
+     */
+    public ProviderTokenLease(@NonNull UsersConnectionTokenRepository usersConnectionTokenRepository,
+                              @NonNull Duration leaseTtl) {
+        this.usersConnectionTokenRepository = usersConnectionTokenRepository;
+        this.leaseTtl = leaseTtl;
+        this.leaseTtlMillis = Long.toString(leaseTtl.toMillis()).getBytes(StandardCharsets.UTF_8);
+        this.ownerPrefix = ManagementFactory.getRuntimeMXBean().getName() + ":";
+    }
+
+    /**
+     * @return  租约时间
+     */
+    @NonNull
+    public Duration getLeaseTtl() {
+        return leaseTtl;
+    }
+
+    /**
+     * @return  新的租约标识, 每次获取租约唯一
+     */
+    @NonNull
+    public String newOwner() {
+        return ownerPrefix + UUID.randomUUID().toString();
+    }
+
+    /**
+     * 获取刷新租约
+     * @param redisConnectionFactory    为 null 时使用 auth_token 表的租约字段或本机租约
+     * @param tokenId                   token id
+     * @param owner                     租约标识
+     * @return  是否获取成功
+     * @throws Exception    获取租约异常
+     */
+    public boolean tryAcquire(@Nullable RedisConnectionFactory redisConnectionFactory,
+                              @NonNull Long tokenId, @NonNull String owner) throws Exception {
+        if (redisConnectionFactory != null)
+        {
+            try (final RedisConnection connection = redisConnectionFactory.getConnection())
+            {
+                return Boolean.TRUE.equals(setIfAbsent(connection, tokenId, owner));
+            }
+        }
+        if (usersConnectionTokenRepository.supportsClaim())
+        {
+            final long now = Instant.now().toEpochMilli();
+            return usersConnectionTokenRepository.claimAuthToken(tokenId, owner, now, now + leaseTtl.toMillis());
+        }
+        return tryAcquireLocal(tokenId, owner);
+    }
+
+    /**
+     * 以同一个租约标识批量获取刷新租约, 有 RedisConnectionFactory 时通过一次 pipeline 发送, 否则逐个获取
+     * @param redisConnectionFactory    为 null 时使用 auth_token 表的租约字段或本机租约
+     * @param tokenIds                  token ids
+     * @param owner                     租约标识
+     * @return  获取成功的 tokenIds
+     * @throws Exception    获取租约异常, 此时已获取的租约等待过期
+     */
+    @NonNull
+    public Set<Long> tryAcquireAll(@Nullable RedisConnectionFactory redisConnectionFactory,
+                                   @NonNull Collection<Long> tokenIds, @NonNull String owner) throws Exception {
+        final Set<Long> acquired = new HashSet<>(tokenIds.size());
+        if (tokenIds.isEmpty())
+        {
+            return acquired;
+        }
+        if (redisConnectionFactory != null)
+        {
+            final List<Object> results;
+            try (final RedisConnection connection = redisConnectionFactory.getConnection())
+            {
+                connection.openPipeline();
+                for (Long tokenId : tokenIds)
+                {
+                    setIfAbsent(connection, tokenId, owner);
+                }
+                results = connection.closePipeline();
+            }
+            final Iterator<Object> iterator = results.iterator();
+            for (Long tokenId : tokenIds)
+            {
+                if (iterator.hasNext() && Boolean.TRUE.equals(iterator.next()))
+                {
+                    acquired.add(tokenId);
+                }
+            }
+            return acquired;
+        }
+        for (Long tokenId : tokenIds)
+        {
+            if (tryAcquire(null, tokenId, owner))
+            {
+                acquired.add(tokenId);
+            }
+        }
+        return acquired;
+    }
+
+    /**
+     * 把仍由 owner 持有的租约的过期时间重置为 leaseTtl, 租约持有时间可能超过 leaseTtl 时(如: 批量获取租约后排队等待刷新)调用
+     * @param redisConnectionFactory    为 null 时使用 auth_token 表的租约字段或本机租约
+     * @param tokenId                   token id
+     * @param owner                     租约标识
+     * @return  租约已过期或已被其他标识持有时返回 false
+     * @throws Exception    续租异常
+     */
+    public boolean renew(@Nullable RedisConnectionFactory redisConnectionFactory,
+                         @NonNull Long tokenId, @NonNull String owner) throws Exception {
+        if (redisConnectionFactory != null)
+        {
+            try (final RedisConnection connection = redisConnectionFactory.getConnection())
+            {
+                final Long renewed = connection.eval(RENEW_SCRIPT, ReturnType.INTEGER, 1, leaseKey(tokenId),
+                                                     owner.getBytes(StandardCharsets.UTF_8), leaseTtlMillis);
+                return renewed != null && renewed > 0L;
+            }
+        }
+        if (usersConnectionTokenRepository.supportsClaim())
+        {
+            // 租约字段只能在过期后领取: 释放自己的租约后重新领取, 期间被其他标识领取时续租失败
+            usersConnectionTokenRepository.releaseAuthTokenClaim(tokenId, owner);
+            final long now = Instant.now().toEpochMilli();
+            return usersConnectionTokenRepository.claimAuthToken(tokenId, owner, now, now + leaseTtl.toMillis());
+        }
+        final LocalLease renewed = new LocalLease(owner, System.nanoTime() + leaseTtl.toNanos());
+        return localLeases.computeIfPresent(tokenId, (id, current) ->
+                current.owner.equals(owner) && !current.isExpired(System.nanoTime()) ? renewed : current) == renewed;
+    }
+
+    /**
+     * 释放刷新租约, 租约标识不是 owner 时什么都不做, 释放失败时等待租约过期
+     * @param redisConnectionFactory    为 null 时使用 auth_token 表的租约字段或本机租约
+     * @param tokenId                   token id
+     * @param owner                     租约标识
+     */
+    public void release(@Nullable RedisConnectionFactory redisConnectionFactory,
+                        @NonNull Long tokenId, @NonNull String owner) {
+        try
+        {
+            if (redisConnectionFactory != null)
+            {
+                try (final RedisConnection connection = redisConnectionFactory.getConnection())
+                {
+                    connection.eval(RELEASE_SCRIPT, ReturnType.INTEGER, 1, leaseKey(tokenId),
+                                    owner.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            else if (usersConnectionTokenRepository.supportsClaim())
+            {
+                usersConnectionTokenRepository.releaseAuthTokenClaim(tokenId, owner);
+            }
+            else
+            {
+                releaseLocal(tokenId, owner);
+            }
+        }
+        catch (DataAccessException e)
+        {
+            log.warn("释放 token 刷新租约失败, 等待租约过期: tokenId={}, error={}", tokenId, e.getMessage());
+        }
+        catch (Exception e)
+        {
+            log.warn(String.format("释放 token 刷新租约失败, 等待租约过期: tokenId=%s, error=%s",
+                                   tokenId, e.getMessage()), e);
+        }
+    }
+
+    /**
+     * 批量释放刷新租约, 有 RedisConnectionFactory 时通过一次 pipeline 发送, 租约标识不是对应的 owner 时什么都不做,
+     * 释放失败时等待租约过期
+     * @param redisConnectionFactory    为 null 时使用 auth_token 表的租约字段或本机租约
+     * @param leases                    key 为 tokenId, value 为租约标识
+     */
+    public void releaseAll(@Nullable RedisConnectionFactory redisConnectionFactory,
+                           @NonNull Map<Long, String> leases) {
+        if (leases.isEmpty())
+        {
+            return;
+        }
+        if (redisConnectionFactory == null)
+        {
+            leases.forEach((tokenId, owner) -> release(null, tokenId, owner));
+            return;
+        }
+        try (final RedisConnection connection = redisConnectionFactory.getConnection())
+        {
+            connection.openPipeline();
+            leases.forEach((tokenId, owner) -> connection.eval(RELEASE_SCRIPT, ReturnType.INTEGER, 1,
+                                                                leaseKey(tokenId),
+                                                                owner.getBytes(StandardCharsets.UTF_8)));
+            connection.closePipeline();
+        }
+        catch (Exception e)
+        {
+            log.warn(String.format("批量释放 token 刷新租约失败, 等待租约过期: size=%d, error=%s",
+                                   leases.size(), e.getMessage()), e);
+        }
+    }
+
+    @Nullable
+    private Boolean setIfAbsent(@NonNull RedisConnection connection, @NonNull Long tokenId, @NonNull String owner) {
+        return connection.set(leaseKey(tokenId), owner.getBytes(StandardCharsets.UTF_8),
+                              Expiration.milliseconds(leaseTtl.toMillis()),
+                              RedisStringCommands.SetOption.SET_IF_ABSENT);
+    }
+
+    private boolean tryAcquireLocal(@NonNull Long tokenId, @NonNull String owner) {
+        final LocalLease lease = new LocalLease(owner, System.nanoTime() + leaseTtl.toNanos());
+        return localLeases.compute(tokenId, (id, current) ->
+                current == null || current.isExpired(System.nanoTime()) ? lease : current) == lease;
+    }
+
+    private void releaseLocal(@NonNull Long tokenId, @NonNull String owner) {
+        localLeases.computeIfPresent(tokenId, (id, current) -> current.owner.equals(owner) ? null : current);
+    }
+
+    private static byte[] leaseKey(@NonNull Long tokenId) {
+        return (LEASE_KEY_PREFIX + tokenId).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 本机租约, 与 redis 租约一样在 leaseTtl 后过期, 持有者异常退出时不会一直占用
+     */
+    private static final class LocalLease {
+
+        private final String owner;
+        /**
+         * 过期时间, {@link System#nanoTime()}
+         */
+        private final long expireAt;
+
+        private LocalLease(@NonNull String owner, long expireAt) {
+            this.owner = owner;
+            this.expireAt = expireAt;
+        }
+
+        private boolean isExpired(long now) {
+            return now - expireAt >= 0L;
+        }
+    }
+
+}
@@ -0,0 +1,65 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.service;
+
+import org.springframework.lang.NonNull;
+import top.dcenter.ums.security.core.oauth.entity.AuthTokenPo;
+import top.dcenter.ums.security.core.oauth.exception.RefreshTokenFailureException;
+import top.dcenter.ums.security.core.oauth.repository.exception.NotConnectedException;
+
+/**
+ * 按需获取第三方的有效 accessToken: accessToken 剩余有效期足够时直接返回, 否则同步刷新;
+ * 同一 token 的并发刷新请求(包括其他服务器)只刷新一次, 其他请求等待此次刷新的结果.
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/20 10:12
+ */
+public interface ProviderTokenService {
+
+    /**
+     * 获取 userId 绑定的 providerId 第三方(rank 值最小的绑定)的有效 accessToken
+     * @param userId        本地账户用户 Id
+     * @param providerId    第三方服务商 ID, 如: qq, github
+     * @return  有效的 accessToken
+     * @throws NotConnectedException        用户未绑定此第三方
+     * @throws RefreshTokenFailureException accessToken 已过期且刷新失败(或第三方不支持 refresh token)
+     */
+    @NonNull
+    default String getValidAccessToken(@NonNull String userId, @NonNull String providerId)
+            throws NotConnectedException, RefreshTokenFailureException {
+        return getValidAuthToken(userId, providerId).getAccessToken();
+    }
+
+    /**
+     * 获取 userId 绑定的 providerId 第三方(rank 值最小的绑定)的有效 token
+     * @param userId        本地账户用户 Id
+     * @param providerId    第三方服务商 ID, 如: qq, github
+     * @return  有效的 token
+     * @throws NotConnectedException        用户未绑定此第三方
+     * @throws RefreshTokenFailureException accessToken 已过期且刷新失败(或第三方不支持 refresh token)
+     */
+    @NonNull
+    AuthTokenPo getValidAuthToken(@NonNull String userId, @NonNull String providerId)
+            throws NotConnectedException, RefreshTokenFailureException;
+
+}
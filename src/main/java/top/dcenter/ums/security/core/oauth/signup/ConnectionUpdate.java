@@ -0,0 +1,148 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.signup;
+
+import me.zhyd.oauth.model.AuthToken;
+import me.zhyd.oauth.model.AuthUser;
+import org.springframework.lang.NonNull;
+import top.dcenter.ums.security.core.oauth.entity.AuthTokenPo;
+import top.dcenter.ums.security.core.oauth.entity.ConnectionData;
+import top.dcenter.ums.security.core.oauth.justauth.request.Auth2DefaultRequest;
+import top.dcenter.ums.security.core.oauth.justauth.util.JustAuthUtil;
+
+/**
+ * 第三方授权登录成功后需要更新的 {@link ConnectionData} 与 {@link AuthTokenPo}
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/9 9:30
+ */
+public final class ConnectionUpdate {
+
+    private final ConnectionData connectionData;
+    private final AuthTokenPo authToken;
+    private final Scope scope;
+
+    private ConnectionUpdate(ConnectionData connectionData, AuthTokenPo authToken, Scope scope) {
+        this.connectionData = connectionData;
+        this.authToken = authToken;
+        this.scope = scope;
+    }
+
+    /**
+     * 根据最新的 authUser 生成需要更新的 {@link ConnectionData} 与 {@link AuthTokenPo}
+     * @param authUser  第三方用户信息
+     * @param data      数据库中已有的第三方登录记录
+     * @param timeout   {@link AuthTokenPo} 有效期转时间戳时的超时时间, 单位毫秒
+     * @return  {@link ConnectionUpdate}
+     */
+    @NonNull
+    public static ConnectionUpdate of(@NonNull AuthUser authUser, @NonNull ConnectionData data, Integer timeout) {
+        return of(authUser, data, timeout, Scope.ALL);
+    }
+
+    /**
+     * 根据最新的 authUser 生成需要更新的 {@link ConnectionData} 与 {@link AuthTokenPo}
+     * @param authUser  第三方用户信息
+     * @param data      数据库中已有的第三方登录记录
+     * @param timeout   {@link AuthTokenPo} 有效期转时间戳时的超时时间, 单位毫秒
+     * @param scope     更新范围, 由 {@link ConnectionUpdateFilter#scopeOf(AuthUser, ConnectionData)} 获取,
+     *                  为 {@link Scope#CONNECTION} 时保留数据库中 token 的过期时间
+     * @return  {@link ConnectionUpdate}
+     */
+    @NonNull
+    public static ConnectionUpdate of(@NonNull AuthUser authUser, @NonNull ConnectionData data, Integer timeout,
+                                      @NonNull Scope scope) {
+        // 获取 AuthTokenPo
+        AuthToken token = authUser.getToken();
+        AuthTokenPo authToken = JustAuthUtil.getAuthTokenPo(token, data.getProviderId(), timeout);
+        authToken.setId(data.getTokenId());
+        // 有效期转时间戳
+        Auth2DefaultRequest.expireIn2Timestamp(timeout, token.getExpireIn(), authToken);
+
+        // 获取最新的 ConnectionData
+        ConnectionData connectionData = JustAuthUtil.getConnectionData(data.getProviderId(), authUser,
+                                                                       data.getUserId(), authToken);
+        connectionData.setUserId(data.getUserId());
+        connectionData.setTokenId(data.getTokenId());
+        if (Scope.CONNECTION.equals(scope))
+        {
+            // token 未改变, 过期时间的误差不更新
+            connectionData.setExpireTime(data.getExpireTime());
+        }
+        return new ConnectionUpdate(connectionData, authToken, scope);
+    }
+
+    /**
+     * 由已生成的 {@link ConnectionData} 与 {@link AuthTokenPo} 恢复, 用于从 {@link ConnectionUpdateJournal} 回放
+     */
+    @NonNull
+    static ConnectionUpdate restore(@NonNull ConnectionData connectionData, @NonNull AuthTokenPo authToken,
+                                    @NonNull Scope scope) {
+        return new ConnectionUpdate(connectionData, authToken, scope);
+    }
+
+    /**
+     * @return 合并更新的 key: userId:providerId:providerUserId
+     */
+    @NonNull
+    public String getKey() {
+        return connectionData.getUserId() + ":" + connectionData.getProviderId() + ":"
+                + connectionData.getProviderUserId();
+    }
+
+    @NonNull
+    public ConnectionData getConnectionData() {
+        return connectionData;
+    }
+
+    @NonNull
+    public AuthTokenPo getAuthToken() {
+        return authToken;
+    }
+
+    /**
+     * @return 更新范围
+     */
+    @NonNull
+    public Scope getScope() {
+        return scope;
+    }
+
+    /**
+     * 第三方授权登录成功后的更新范围
+     */
+    public enum Scope {
+        /**
+         * 用户信息与 token 都未改变, 不需要更新
+         */
+        NONE,
+        /**
+         * 只有用户信息(displayName, profileUrl, imageUrl)改变, 只更新 user_connection
+         */
+        CONNECTION,
+        /**
+         * token 改变, 更新 user_connection 与 auth_token
+         */
+        ALL
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.signup;
+
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+import org.springframework.security.crypto.encrypt.TextEncryptor;
+import top.dcenter.ums.security.core.oauth.entity.AuthTokenPo;
+import top.dcenter.ums.security.core.oauth.entity.ConnectionData;
+import top.dcenter.ums.security.core.oauth.enums.EnableRefresh;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static top.dcenter.ums.security.core.oauth.enums.EnableRefresh.NO;
+import static top.dcenter.ums.security.core.oauth.enums.EnableRefresh.YES;
+
+/**
+ * {@link ConnectionUpdate} 的二进制编解码, 用于 {@link ConnectionUpdateJournal}. <br>
+ * 与 user_connection 及 auth_token 表一致, accessToken 等敏感字段通过 {@link TextEncryptor} 加密后写入日志文件.
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/10 10:05
+ */
+final class ConnectionUpdateCodec {
+
+    private static final byte VERSION = 1;
+
+    private final TextEncryptor textEncryptor;
+
+    ConnectionUpdateCodec(@NonNull TextEncryptor textEncryptor) {
+        this.textEncryptor = textEncryptor;
+    }
+
+    @NonNull
+    byte[] encode(@NonNull ConnectionUpdate update) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(512);
+        try (DataOutputStream out = new DataOutputStream(bos))
+        {
+            out.writeByte(VERSION);
+            out.writeByte(update.getScope().ordinal());
+
+            ConnectionData data = update.getConnectionData();
+            writeString(out, data.getUserId());
+            writeString(out, data.getProviderId());
+            writeString(out, data.getProviderUserId());
+            writeString(out, data.getDisplayName());
+            writeString(out, data.getProfileUrl());
+            writeString(out, data.getImageUrl());
+            writeString(out, encrypt(data.getAccessToken()));
+            writeLong(out, data.getTokenId());
+            writeString(out, encrypt(data.getRefreshToken()));
+            writeLong(out, data.getExpireTime());
+
+            AuthTokenPo token = update.getAuthToken();
+            writeLong(out, token.getId());
+            out.writeBoolean(NO.equals(token.getEnableRefresh()));
+            writeString(out, token.getProviderId());
+            writeString(out, encrypt(token.getAccessToken()));
+            writeInt(out, token.getExpireIn());
+            writeInt(out, token.getRefreshTokenExpireIn());
+            writeString(out, encrypt(token.getRefreshToken()));
+            writeString(out, token.getUid());
+            writeString(out, token.getOpenId());
+            writeString(out, encrypt(token.getAccessCode()));
+            writeString(out, token.getUnionId());
+            writeString(out, token.getScope());
+            writeString(out, token.getTokenType());
+            writeString(out, encrypt(token.getIdToken()));
+            writeString(out, token.getMacAlgorithm());
+            writeString(out, encrypt(token.getMacKey()));
+            writeString(out, encrypt(token.getCode()));
+            writeString(out, encrypt(token.getOauthToken()));
+            writeString(out, encrypt(token.getOauthTokenSecret()));
+            writeString(out, token.getUserId());
+            writeString(out, token.getScreenName());
+            Boolean confirmed = token.getOauthCallbackConfirmed();
+            out.writeByte(confirmed == null ? -1 : (confirmed ? 1 : 0));
+            writeLong(out, token.getExpireTime());
+        }
+        return bos.toByteArray();
+    }
+
+    @NonNull
+    ConnectionUpdate decode(@NonNull byte[] payload) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload)))
+        {
+            byte version = in.readByte();
+            if (version != VERSION)
+            {
+                throw new IOException("不支持的日志记录版本: " + version);
+            }
+            ConnectionUpdate.Scope scope = ConnectionUpdate.Scope.values()[in.readByte()];
+
+            ConnectionData data = new ConnectionData();
+            data.setUserId(readString(in));
+            data.setProviderId(readString(in));
+            data.setProviderUserId(readString(in));
+            data.setDisplayName(readString(in));
+            data.setProfileUrl(readString(in));
+            data.setImageUrl(readString(in));
+            data.setAccessToken(decrypt(readString(in)));
+            data.setTokenId(readLong(in));
+            data.setRefreshToken(decrypt(readString(in)));
+            data.setExpireTime(readLong(in));
+
+            AuthTokenPo token = new AuthTokenPo();
+            token.setId(readLong(in));
+            EnableRefresh enableRefresh = in.readBoolean() ? NO : YES;
+            token.setEnableRefresh(enableRefresh);
+            token.setProviderId(readString(in));
+            token.setAccessToken(decrypt(readString(in)));
+            Integer expireIn = readInt(in);
+            if (expireIn != null)
+            {
+                token.setExpireIn(expireIn);
+            }
+            Integer refreshTokenExpireIn = readInt(in);
+            if (refreshTokenExpireIn != null)
+            {
+                token.setRefreshTokenExpireIn(refreshTokenExpireIn);
+            }
+            token.setRefreshToken(decrypt(readString(in)));
+            token.setUid(readString(in));
+            token.setOpenId(readString(in));
+            token.setAccessCode(decrypt(readString(in)));
+            token.setUnionId(readString(in));
+            token.setScope(readString(in));
+            token.setTokenType(readString(in));
+            token.setIdToken(decrypt(readString(in)));
+            token.setMacAlgorithm(readString(in));
+            token.setMacKey(decrypt(readString(in)));
+            token.setCode(decrypt(readString(in)));
+            token.setOauthToken(decrypt(readString(in)));
+            token.setOauthTokenSecret(decrypt(readString(in)));
+            token.setUserId(readString(in));
+            token.setScreenName(readString(in));
+            byte confirmed = in.readByte();
+            token.setOauthCallbackConfirmed(confirmed < 0 ? null : confirmed == 1);
+            token.setExpireTime(readLong(in));
+
+            return ConnectionUpdate.restore(data, token, scope);
+        }
+    }
+
+    private String encrypt(String text) {
+        return text != null ? textEncryptor.encrypt(text) : null;
+    }
+
+    private String decrypt(String encryptedText) {
+        return encryptedText != null ? textEncryptor.decrypt(encryptedText) : null;
+    }
+
+    private static void writeString(DataOutputStream out, @Nullable String value) throws IOException {
+        if (value == null)
+        {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    @Nullable
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0)
+        {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeLong(DataOutputStream out, @Nullable Long value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null)
+        {
+            out.writeLong(value);
+        }
+    }
+
+    @Nullable
+    private static Long readLong(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readLong() : null;
+    }
+
+    private static void writeInt(DataOutputStream out, @Nullable Integer value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null)
+        {
+            out.writeInt(value);
+        }
+    }
+
+    @Nullable
+    private static Integer readInt(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readInt() : null;
+    }
+
+}
@@ -0,0 +1,185 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.signup;
+
+import lombok.extern.slf4j.Slf4j;
+import me.zhyd.oauth.model.AuthToken;
+import me.zhyd.oauth.model.AuthUser;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.lang.NonNull;
+import top.dcenter.ums.security.core.oauth.entity.ConnectionData;
+import top.dcenter.ums.security.core.oauth.justauth.request.Auth2DefaultRequest;
+import top.dcenter.ums.security.core.oauth.signup.ConnectionUpdate.Scope;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.Objects.isNull;
+
+/**
+ * 第三方授权登录成功后, 比较 {@link AuthUser} 与缓存(数据库)中的 {@link ConnectionData} 的可变字段, 跳过冗余的更新: <br>
+ * 1. 用户信息(displayName, profileUrl, imageUrl)与 token(accessToken, refreshToken, expireTime)都未改变时不更新, 也不失效缓存. <br>
+ * 2. 只有用户信息改变时只更新 user_connection. <br>
+ * 3. 第三方每次返回的有效期(expireIn)相对于请求时间, 过期时间在 expireTimeTolerance 误差内视为未改变. <br>
+ * 跳过与执行更新的次数注册为 JMX MBean: {@code top.dcenter.ums.security:type=ConnectionUpdateFilter}.
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/9 15:45
+ */
+@Slf4j
+public class ConnectionUpdateFilter implements ConnectionUpdateFilterMXBean, InitializingBean, DisposableBean {
+
+    private static final String OBJECT_NAME = "top.dcenter.ums.security:type=ConnectionUpdateFilter";
+
+    private final Integer timeout;
+    private final long expireTimeToleranceMillis;
+
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder performed = new LongAdder();
+    private final LongAdder connectionOnly = new LongAdder();
+    private ObjectName registeredObjectName;
+
+    /**
+     * @param timeout               AuthTokenPo 有效期转时间戳时的超时时间, 单位毫秒
+     * @param expireTimeTolerance   过期时间的误差, 误差内视为未改变
+     */
+    public ConnectionUpdateFilter(@NonNull Integer timeout, @NonNull Duration expireTimeTolerance) {
+        this.timeout = timeout;
+        this.expireTimeToleranceMillis = Math.max(0L, expireTimeTolerance.toMillis());
+    }
+
+    /**
+     * 判断是否跳过更新, 并统计跳过与执行更新的次数
+     * @param authUser  第三方用户信息
+     * @param data      缓存(数据库)中的第三方登录记录
+     * @return  用户信息与 token 都未改变时返回 true
+     */
+    public boolean skip(@NonNull AuthUser authUser, @NonNull ConnectionData data) {
+        Scope scope = scopeOf(authUser, data);
+        if (Scope.NONE.equals(scope))
+        {
+            skipped.increment();
+            return true;
+        }
+        if (Scope.CONNECTION.equals(scope))
+        {
+            connectionOnly.increment();
+        }
+        performed.increment();
+        return false;
+    }
+
+    /**
+     * 获取更新范围, 不统计
+     * @param authUser  第三方用户信息
+     * @param data      缓存(数据库)中的第三方登录记录
+     * @return  更新范围
+     */
+    @NonNull
+    public Scope scopeOf(@NonNull AuthUser authUser, @NonNull ConnectionData data) {
+        AuthToken token = authUser.getToken();
+        boolean tokenChanged = isNull(token)
+                || !Objects.equals(token.getAccessToken(), data.getAccessToken())
+                || !Objects.equals(token.getRefreshToken(), data.getRefreshToken())
+                || isExpireTimeChanged(token, data);
+        if (tokenChanged)
+        {
+            return Scope.ALL;
+        }
+        boolean connectionChanged = !Objects.equals(authUser.getUsername(), data.getDisplayName())
+                || !Objects.equals(authUser.getBlog(), data.getProfileUrl())
+                || !Objects.equals(authUser.getAvatar(), data.getImageUrl());
+        return connectionChanged ? Scope.CONNECTION : Scope.NONE;
+    }
+
+    private boolean isExpireTimeChanged(AuthToken token, ConnectionData data) {
+        Long expireTime = data.getExpireTime();
+        if (isNull(expireTime))
+        {
+            return true;
+        }
+        long newExpireTime = Auth2DefaultRequest.expireIn2Timestamp(timeout, token.getExpireIn());
+        if (newExpireTime < 0L || expireTime < 0L)
+        {
+            // 无过期时间为 -1
+            return newExpireTime != expireTime;
+        }
+        return Math.abs(newExpireTime - expireTime) > expireTimeToleranceMillis;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(objectName))
+            {
+                server.registerMBean(this, objectName);
+                registeredObjectName = objectName;
+            }
+        }
+        catch (Exception e)
+        {
+            log.warn("注册跳过冗余更新统计 MBean 失败: {}", e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (registeredObjectName == null)
+        {
+            return;
+        }
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredObjectName);
+        }
+        catch (Exception e)
+        {
+            log.warn("注销跳过冗余更新统计 MBean 失败: {}", registeredObjectName, e);
+        }
+        registeredObjectName = null;
+    }
+
+    @Override
+    public long getSkipped() {
+        return skipped.sum();
+    }
+
+    @Override
+    public long getPerformed() {
+        return performed.sum();
+    }
+
+    @Override
+    public long getConnectionOnly() {
+        return connectionOnly.sum();
+    }
+
+}
@@ -0,0 +1,49 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.signup;
+
+/**
+ * {@link ConnectionUpdateFilter} 的 JMX 接口, 注册到 platform MBeanServer:
+ * {@code top.dcenter.ums.security:type=ConnectionUpdateFilter}.
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/9 15:40
+ */
+public interface ConnectionUpdateFilterMXBean {
+
+    /**
+     * @return 用户信息与 token 都未改变, 跳过更新的次数
+     */
+    long getSkipped();
+
+    /**
+     * @return 执行更新的次数(包括只更新 user_connection 的次数)
+     */
+    long getPerformed();
+
+    /**
+     * @return token 未改变, 只更新 user_connection 的次数
+     */
+    long getConnectionOnly();
+
+}
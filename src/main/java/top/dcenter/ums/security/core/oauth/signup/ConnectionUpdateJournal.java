@@ -0,0 +1,700 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.signup;
+
+import lombok.extern.slf4j.Slf4j;
+import me.zhyd.oauth.model.AuthUser;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+import org.springframework.security.crypto.encrypt.TextEncryptor;
+import org.springframework.transaction.support.TransactionTemplate;
+import top.dcenter.ums.security.core.oauth.entity.AuthTokenPo;
+import top.dcenter.ums.security.core.oauth.entity.ConnectionData;
+import top.dcenter.ums.security.core.oauth.properties.RepositoryProperties;
+import top.dcenter.ums.security.core.oauth.repository.UsersConnectionRepository;
+import top.dcenter.ums.security.core.oauth.repository.UsersConnectionTokenRepository;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * 第三方授权登录成功后更新 user_connection 与 auth_token 的本地持久化日志: <br>
+ * 1. 登录线程只把更新追加到 mmap 映射的日志文件(只持有内存拷贝的锁, 不等待数据库), 日志文件写满时切换到消费线程
+ * 预先创建的下一个文件, 创建与映射文件不在追加的锁内; 日志文件数量达到 maxSegments 时不再写入, 由调用方降级为线程池异步更新. <br>
+ * 2. 后台消费线程按批次读取日志, 批次内按 (userId, providerId, providerUserId) 合并后通过 {@link ConnectionUpdateWriter}
+ * 批量写入数据库, 写入成功后保存消费位置(checkpoint)并删除已消费的日志文件. 数据库不可用时不推进消费位置, 间隔 retryInterval 重试. <br>
+ * 3. 启动时从 checkpoint 回放未消费的日志, 应用重启(包括宕机)不会丢失已写入日志的更新;
+ * 更新都是整行覆盖, 且只更新数据库中 expireTime 不晚于记录的行(记录中保存了 expireTime), 回放时不会用旧 token 覆盖
+ * 之后已刷新的 token, 重复回放是幂等的. <br>
+ * 4. 日志目录通过文件锁独占, 同一目录只能被一个应用实例使用. <br>
+ * 5. 统计注册为 JMX MBean: {@code top.dcenter.ums.security:type=ConnectionUpdateJournal}.
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/10 11:10
+ */
+@Slf4j
+public class ConnectionUpdateJournal implements ConnectionUpdateJournalMXBean, InitializingBean, DisposableBean {
+
+    private static final String OBJECT_NAME = "top.dcenter.ums.security:type=ConnectionUpdateJournal";
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final String LOCK_FILE = "lock";
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final int batchSize;
+    private final long pollIntervalNanos;
+    private final long retryIntervalNanos;
+    private final long shutdownTimeoutMillis;
+    private final Integer timeout;
+    private final ConnectionUpdateWriter writer;
+    private final ConnectionUpdateCodec codec;
+    /**
+     * 为 null 时每次都更新 user_connection 与 auth_token
+     */
+    @Nullable
+    private ConnectionUpdateFilter connectionUpdateFilter;
+
+    private final ConcurrentNavigableMap<Long, JournalSegment> segments = new ConcurrentSkipListMap<>();
+    private final Object appendLock = new Object();
+    private volatile JournalSegment writeSegment;
+    /**
+     * 预先创建的下一个日志文件, 由 standbyLock 保护
+     */
+    private final Object standbyLock = new Object();
+    private JournalSegment standby;
+    /**
+     * 已创建的最大日志文件序号, 由 standbyLock 保护
+     */
+    private long allocatedSequence;
+    private volatile boolean running = false;
+    private Thread drainer;
+    private FileChannel lockChannel;
+    private FileLock fileLock;
+    private ObjectName registeredObjectName;
+
+    /**
+     * 消费位置, 只在消费线程更新
+     */
+    private volatile long readSequence;
+    private volatile int readPosition;
+    private long forcedSequence = -1L;
+    private int forcedPosition = -1;
+
+    private final LongAdder appended = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder applied = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private volatile long lastApplyLatencyMillis = 0L;
+
+    /**
+     * @param usersConnectionRepository         user_connection 的 repository
+     * @param usersConnectionTokenRepository    auth_token 的 repository, 为 null 时不更新 auth_token
+     * @param transactionTemplate               批次写入的事务, 为 null 时不开启事务
+     * @param textEncryptor                     日志中敏感字段的加密器, 与 user_connection 表一致
+     * @param journal                           日志配置
+     * @param timeout                           {@link AuthTokenPo} 有效期转时间戳时的超时时间, 单位毫秒
+     */
+    public ConnectionUpdateJournal(@NonNull UsersConnectionRepository usersConnectionRepository,
+                                   @Nullable UsersConnectionTokenRepository usersConnectionTokenRepository,
+                                   @Nullable TransactionTemplate transactionTemplate,
+                                   @NonNull TextEncryptor textEncryptor,
+                                   @NonNull RepositoryProperties.Journal journal,
+                                   Integer timeout) {
+        this.directory = Paths.get(journal.getDirectory()).toAbsolutePath();
+        this.segmentSize = (int) Math.min(Integer.MAX_VALUE, Math.max(1024L * 1024L, journal.getSegmentSize().toBytes()));
+        this.maxSegments = Math.max(2, journal.getMaxSegments());
+        this.batchSize = Math.max(1, journal.getBatchSize());
+        this.pollIntervalNanos = Math.max(1L, journal.getPollInterval().toNanos());
+        this.retryIntervalNanos = Math.max(1L, journal.getRetryInterval().toNanos());
+        this.shutdownTimeoutMillis = Math.max(0L, journal.getShutdownTimeout().toMillis());
+        this.timeout = timeout;
+        this.writer = new ConnectionUpdateWriter(usersConnectionRepository, usersConnectionTokenRepository,
+                                                 transactionTemplate, true);
+        this.codec = new ConnectionUpdateCodec(textEncryptor);
+    }
+
+    /**
+     * @param connectionUpdateFilter    跳过冗余更新, token 未改变时不更新 auth_token
+     */
+    public void setConnectionUpdateFilter(@Nullable ConnectionUpdateFilter connectionUpdateFilter) {
+        this.connectionUpdateFilter = connectionUpdateFilter;
+    }
+
+    /**
+     * 把第三方授权登录成功后的更新追加到日志, 不等待数据库写入
+     * @param authUser  第三方用户信息
+     * @param data      数据库中已有的第三方登录记录
+     * @return  返回 false 时表示已关闭或日志文件数量达到上限, 没有写入日志, 调用方需要自行更新
+     */
+    public boolean append(@NonNull AuthUser authUser, @NonNull ConnectionData data) {
+        if (!running)
+        {
+            return false;
+        }
+        ConnectionUpdate.Scope scope = connectionUpdateFilter == null ? ConnectionUpdate.Scope.ALL
+                                                                       : connectionUpdateFilter.scopeOf(authUser, data);
+        if (ConnectionUpdate.Scope.NONE.equals(scope))
+        {
+            return true;
+        }
+        byte[] payload;
+        try
+        {
+            payload = codec.encode(ConnectionUpdate.of(authUser, data, this.timeout, scope));
+        }
+        catch (IOException e)
+        {
+            log.error("编码第三方登录记录更新失败: {}", e.getMessage(), e);
+            rejected.increment();
+            return false;
+        }
+        int recordSize = JournalSegment.HEADER_SIZE + payload.length;
+        if (recordSize > segmentSize)
+        {
+            rejected.increment();
+            return false;
+        }
+
+        synchronized (appendLock)
+        {
+            if (!running)
+            {
+                return false;
+            }
+            if (!writeSegment.hasRemaining(recordSize) && !roll())
+            {
+                rejected.increment();
+                return false;
+            }
+            writeSegment.append(payload);
+        }
+        appended.increment();
+        return true;
+    }
+
+    /**
+     * 切换到下一个日志文件, 调用方持有 appendLock. 优先使用预先创建的文件, 没有时才在锁内创建
+     * @return  日志文件数量达到上限或创建失败时返回 false
+     */
+    private boolean roll() {
+        if (segments.size() >= maxSegments)
+        {
+            return false;
+        }
+        JournalSegment previous = writeSegment;
+        try
+        {
+            JournalSegment segment = nextSegment();
+            // 先加入再封存, 消费线程读到封存状态时一定能找到下一个文件
+            segments.put(segment.getSequence(), segment);
+            writeSegment = segment;
+            previous.seal();
+        }
+        catch (IOException e)
+        {
+            log.error("创建第三方登录记录更新日志文件失败: {}", e.getMessage(), e);
+            return false;
+        }
+        // 唤醒消费线程预先创建下一个文件
+        Thread thread = drainer;
+        if (thread != null)
+        {
+            LockSupport.unpark(thread);
+        }
+        return true;
+    }
+
+    /**
+     * 取出预先创建的日志文件, 没有时创建
+     */
+    private JournalSegment nextSegment() throws IOException {
+        synchronized (standbyLock)
+        {
+            JournalSegment segment = standby;
+            standby = null;
+            return segment != null ? segment : createSegment();
+        }
+    }
+
+    /**
+     * 在消费线程预先创建下一个日志文件, 使写满时的切换不需要在 appendLock 内创建与映射文件
+     */
+    private void preallocate() {
+        if (segments.size() >= maxSegments)
+        {
+            return;
+        }
+        synchronized (standbyLock)
+        {
+            if (standby != null || !running)
+            {
+                return;
+            }
+            try
+            {
+                standby = createSegment();
+            }
+            catch (IOException e)
+            {
+                log.warn("预先创建第三方登录记录更新日志文件失败: {}", e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * 创建序号为 allocatedSequence + 1 的日志文件, 调用方持有 standbyLock
+     */
+    private JournalSegment createSegment() throws IOException {
+        long sequence = allocatedSequence + 1;
+        JournalSegment segment = JournalSegment.create(segmentPath(sequence), sequence, segmentSize);
+        allocatedSequence = sequence;
+        return segment;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws IOException {
+        Files.createDirectories(directory);
+        lockChannel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        fileLock = lockChannel.tryLock();
+        if (fileLock == null)
+        {
+            lockChannel.close();
+            throw new IllegalStateException("第三方登录记录更新日志目录已被其他应用实例使用: " + directory);
+        }
+
+        long[] checkpoint = readCheckpoint();
+        for (Long sequence : listSegmentSequences())
+        {
+            if (checkpoint != null && sequence < checkpoint[0])
+            {
+                Files.deleteIfExists(segmentPath(sequence));
+                continue;
+            }
+            segments.put(sequence, JournalSegment.open(segmentPath(sequence), sequence));
+        }
+
+        long nextSequence = segments.isEmpty() ? 1L : segments.lastKey() + 1;
+        if (checkpoint != null)
+        {
+            nextSequence = Math.max(nextSequence, checkpoint[0] + 1);
+        }
+        JournalSegment first = segments.isEmpty() ? null : segments.firstEntry().getValue();
+        if (checkpoint != null && segments.containsKey(checkpoint[0]))
+        {
+            readSequence = checkpoint[0];
+            readPosition = (int) Math.min(checkpoint[1], segments.get(checkpoint[0]).getCommitted());
+        }
+        else if (first != null)
+        {
+            readSequence = first.getSequence();
+            readPosition = 0;
+        }
+        else
+        {
+            readSequence = nextSequence;
+            readPosition = 0;
+        }
+
+        synchronized (standbyLock)
+        {
+            allocatedSequence = nextSequence - 1;
+            writeSegment = createSegment();
+        }
+        segments.put(nextSequence, writeSegment);
+        if (segments.size() > 1)
+        {
+            log.info("回放第三方登录记录更新日志: directory={}, segments={}, backlogBytes={}",
+                     directory, segments.size() - 1, getBacklogBytes());
+        }
+
+        running = true;
+        drainer = new Thread(this::drainLoop, "ums-connection-journal");
+        drainer.setDaemon(true);
+        drainer.start();
+        registerMBean();
+    }
+
+    @Override
+    public void destroy() {
+        synchronized (appendLock)
+        {
+            running = false;
+        }
+        try
+        {
+            if (drainer != null)
+            {
+                LockSupport.unpark(drainer);
+                drainer.join(shutdownTimeoutMillis);
+                if (drainer.isAlive())
+                {
+                    log.warn("关闭时等待第三方登录记录更新日志消费线程超时, 未消费的日志在下次启动时回放");
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            for (JournalSegment segment : segments.values())
+            {
+                try
+                {
+                    segment.force();
+                    segment.close();
+                }
+                catch (Exception e)
+                {
+                    log.warn("关闭第三方登录记录更新日志文件失败: {}", e.getMessage(), e);
+                }
+            }
+            deleteStandby();
+            releaseLock();
+            unregisterMBean();
+        }
+    }
+
+    /**
+     * 删除未使用的预先创建的日志文件
+     */
+    private void deleteStandby() {
+        synchronized (standbyLock)
+        {
+            if (standby == null)
+            {
+                return;
+            }
+            try
+            {
+                standby.delete();
+            }
+            catch (Exception e)
+            {
+                log.warn("删除预先创建的第三方登录记录更新日志文件失败: {}", e.getMessage(), e);
+            }
+            standby = null;
+        }
+    }
+
+    private void drainLoop() {
+        while (running)
+        {
+            long parkNanos;
+            try
+            {
+                preallocate();
+                parkNanos = drainOnce();
+            }
+            catch (Exception e)
+            {
+                log.error("消费第三方登录记录更新日志异常: {}", e.getMessage(), e);
+                parkNanos = retryIntervalNanos;
+            }
+            if (parkNanos > 0L && running)
+            {
+                LockSupport.parkNanos(this, parkNanos);
+            }
+        }
+    }
+
+    /**
+     * 读取一个批次并写入数据库
+     * @return  下次消费前等待的时间, 单位纳秒
+     */
+    private long drainOnce() throws IOException {
+        forceWriteSegment();
+
+        long sequence = readSequence;
+        int position = readPosition;
+        JournalSegment segment = segments.get(sequence);
+        Map<String, ConnectionUpdate> batch = new LinkedHashMap<>();
+        int records = 0;
+        while (segment != null && records < batchSize)
+        {
+            byte[] payload = segment.read(position);
+            if (payload == null)
+            {
+                Map.Entry<Long, JournalSegment> next = segments.higherEntry(sequence);
+                if (!segment.isSealed() || next == null || position < segment.getCommitted())
+                {
+                    break;
+                }
+                sequence = next.getKey();
+                segment = next.getValue();
+                position = 0;
+                continue;
+            }
+            position += JournalSegment.HEADER_SIZE + payload.length;
+            records++;
+            try
+            {
+                ConnectionUpdate update = codec.decode(payload);
+                // 批次内同一个 key 只保留最新的更新
+                batch.remove(update.getKey());
+                batch.put(update.getKey(), update);
+            }
+            catch (Exception e)
+            {
+                failed.increment();
+                log.error("解码第三方登录记录更新日志失败, 丢弃: segment={}, error={}", sequence, e.getMessage(), e);
+            }
+        }
+
+        if (sequence == readSequence && position == readPosition)
+        {
+            return pollIntervalNanos;
+        }
+
+        if (!batch.isEmpty())
+        {
+            long start = System.nanoTime();
+            ConnectionUpdateWriter.WriteResult result = writer.write(new ArrayList<>(batch.values()));
+            lastApplyLatencyMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            if (result.retryable)
+            {
+                // 数据库不可用, 不推进消费位置, 稍后重试整个批次
+                log.warn("写入第三方登录记录更新失败, {} 毫秒后重试: failed={}",
+                         TimeUnit.NANOSECONDS.toMillis(retryIntervalNanos), result.failed);
+                return retryIntervalNanos;
+            }
+            applied.add(batch.size() - result.failed);
+            failed.add(result.failed);
+        }
+
+        advance(sequence, position);
+        return 0L;
+    }
+
+    /**
+     * 推进消费位置, 保存 checkpoint 并删除已消费的日志文件
+     */
+    private void advance(long sequence, int position) throws IOException {
+        writeCheckpoint(sequence, position);
+        readSequence = sequence;
+        readPosition = position;
+        for (Long consumed : new ArrayList<>(segments.headMap(sequence).keySet()))
+        {
+            JournalSegment segment = segments.remove(consumed);
+            if (segment != null)
+            {
+                segment.delete();
+            }
+        }
+    }
+
+    private void forceWriteSegment() {
+        JournalSegment segment = writeSegment;
+        int committed = segment.getCommitted();
+        if (segment.getSequence() != forcedSequence || committed != forcedPosition)
+        {
+            segment.force();
+            forcedSequence = segment.getSequence();
+            forcedPosition = committed;
+        }
+    }
+
+    @Nullable
+    private long[] readCheckpoint() throws IOException {
+        Path path = directory.resolve(CHECKPOINT_FILE);
+        if (!Files.exists(path))
+        {
+            return null;
+        }
+        byte[] bytes = Files.readAllBytes(path);
+        if (bytes.length != 16)
+        {
+            log.warn("第三方登录记录更新日志的 checkpoint 无效, 从第一个日志文件开始回放: {}", path);
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        long sequence = buffer.getLong();
+        int position = buffer.getInt();
+        if (crc(sequence, position) != buffer.getInt())
+        {
+            log.warn("第三方登录记录更新日志的 checkpoint 校验失败, 从第一个日志文件开始回放: {}", path);
+            return null;
+        }
+        return new long[]{sequence, position};
+    }
+
+    private void writeCheckpoint(long sequence, int position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        buffer.putLong(sequence).putInt(position).putInt(crc(sequence, position));
+        Path tmp = directory.resolve(CHECKPOINT_FILE + ".tmp");
+        Files.write(tmp, buffer.array());
+        Files.move(tmp, directory.resolve(CHECKPOINT_FILE),
+                   StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static int crc(long sequence, int position) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(ByteBuffer.allocate(12).putLong(sequence).putInt(position).array());
+        return (int) crc32.getValue();
+    }
+
+    private TreeSet<Long> listSegmentSequences() throws IOException {
+        TreeSet<Long> sequences = new TreeSet<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX))
+        {
+            for (Path path : stream)
+            {
+                String name = path.getFileName().toString();
+                try
+                {
+                    sequences.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                                                                name.length() - SEGMENT_SUFFIX.length())));
+                }
+                catch (NumberFormatException e)
+                {
+                    log.warn("忽略无效的第三方登录记录更新日志文件: {}", path);
+                }
+            }
+        }
+        return sequences;
+    }
+
+    private Path segmentPath(long sequence) {
+        return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+    }
+
+    private void releaseLock() {
+        try
+        {
+            if (fileLock != null)
+            {
+                fileLock.release();
+            }
+            if (lockChannel != null)
+            {
+                lockChannel.close();
+            }
+        }
+        catch (IOException e)
+        {
+            log.warn("释放第三方登录记录更新日志目录锁失败: {}", e.getMessage(), e);
+        }
+    }
+
+    private void registerMBean() {
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(objectName))
+            {
+                server.registerMBean(this, objectName);
+                registeredObjectName = objectName;
+            }
+        }
+        catch (Exception e)
+        {
+            log.warn("注册更新日志统计 MBean 失败: {}", e.getMessage(), e);
+        }
+    }
+
+    private void unregisterMBean() {
+        if (registeredObjectName == null)
+        {
+            return;
+        }
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredObjectName);
+        }
+        catch (Exception e)
+        {
+            log.warn("注销更新日志统计 MBean 失败: {}", registeredObjectName, e);
+        }
+        registeredObjectName = null;
+    }
+
+    @Override
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    @Override
+    public long getBacklogBytes() {
+        long sequence = readSequence;
+        long backlog = -readPosition;
+        for (JournalSegment segment : segments.tailMap(sequence, true).values())
+        {
+            backlog += segment.getCommitted();
+        }
+        return Math.max(0L, backlog);
+    }
+
+    @Override
+    public long getAppended() {
+        return appended.sum();
+    }
+
+    @Override
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    @Override
+    public long getApplied() {
+        return applied.sum();
+    }
+
+    @Override
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    @Override
+    public long getLastApplyLatencyMillis() {
+        return lastApplyLatencyMillis;
+    }
+
+}
@@ -0,0 +1,69 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.signup;
+
+/**
+ * {@link ConnectionUpdateJournal} 的 JMX 接口, 注册到 platform MBeanServer:
+ * {@code top.dcenter.ums.security:type=ConnectionUpdateJournal}.
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/10 11:02
+ */
+public interface ConnectionUpdateJournalMXBean {
+
+    /**
+     * @return 日志文件数量
+     */
+    int getSegmentCount();
+
+    /**
+     * @return 未消费的日志字节数
+     */
+    long getBacklogBytes();
+
+    /**
+     * @return 写入日志的记录数
+     */
+    long getAppended();
+
+    /**
+     * @return 日志文件数量达到上限等原因未写入日志的记录数
+     */
+    long getRejected();
+
+    /**
+     * @return 成功写入数据库的记录数(合并后)
+     */
+    long getApplied();
+
+    /**
+     * @return 写入数据库失败并丢弃的记录数
+     */
+    long getFailed();
+
+    /**
+     * @return 最近一个批次写入数据库的耗时, 单位毫秒
+     */
+    long getLastApplyLatencyMillis();
+
+}
@@ -0,0 +1,346 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.signup;
+
+import lombok.extern.slf4j.Slf4j;
+import me.zhyd.oauth.model.AuthUser;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+import org.springframework.transaction.support.TransactionTemplate;
+import top.dcenter.ums.security.core.oauth.entity.AuthTokenPo;
+import top.dcenter.ums.security.core.oauth.entity.ConnectionData;
+import top.dcenter.ums.security.core.oauth.properties.RepositoryProperties;
+import top.dcenter.ums.security.core.oauth.repository.UsersConnectionRepository;
+import top.dcenter.ums.security.core.oauth.repository.UsersConnectionTokenRepository;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static java.util.Objects.nonNull;
+
+/**
+ * 第三方授权登录成功后更新 user_connection 与 auth_token 的合并延迟写(write-behind): <br>
+ * 1. 时间窗口内按 (userId, providerId, providerUserId) 合并, 只保留最新一次更新. <br>
+ * 2. 每个时间窗口(或待写入记录数达到 maxPending 时)以 batchSize 为批次通过 {@code JdbcTemplate.batchUpdate} 写入,
+ * 批次写入失败时降级为逐条更新. <br>
+ * 3. 应用关闭时写入剩余记录. <br>
+ * 4. 队列深度与写入耗时等统计注册为 JMX MBean: {@code top.dcenter.ums.security:type=ConnectionUpdateWriteBehind}.
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/9 10:20
+ */
+@Slf4j
+public class ConnectionUpdateWriteBehind implements ConnectionUpdateWriteBehindMXBean, InitializingBean, DisposableBean {
+
+    private static final String OBJECT_NAME = "top.dcenter.ums.security:type=ConnectionUpdateWriteBehind";
+
+    private final ConnectionUpdateWriter writer;
+    private final Integer timeout;
+    private final long windowMillis;
+    private final int batchSize;
+    private final int maxPending;
+    private final long shutdownTimeoutMillis;
+    /**
+     * 为 null 时每次都更新 user_connection 与 auth_token
+     */
+    @Nullable
+    private ConnectionUpdateFilter connectionUpdateFilter;
+
+    private final Map<String, ConnectionUpdate> pending = new ConcurrentHashMap<>();
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private final AtomicBoolean immediateFlushScheduled = new AtomicBoolean(false);
+    private final ScheduledExecutorService scheduler;
+    private volatile boolean closed = false;
+    private ObjectName registeredObjectName;
+
+    private final LongAdder offered = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final AtomicLong flushCount = new AtomicLong();
+    private final AtomicLong flushed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong maxFlushLatencyMillis = new AtomicLong();
+    private volatile long lastFlushLatencyMillis = 0L;
+
+    /**
+     * @param usersConnectionRepository         user_connection 的 repository
+     * @param usersConnectionTokenRepository    auth_token 的 repository, 为 null 时不更新 auth_token
+     * @param transactionTemplate               批次写入的事务, 为 null 时不开启事务
+     * @param writeBehind                       合并延迟写配置
+     * @param timeout                           {@link AuthTokenPo} 有效期转时间戳时的超时时间, 单位毫秒
+     */
+    public ConnectionUpdateWriteBehind(@NonNull UsersConnectionRepository usersConnectionRepository,
+                                       @Nullable UsersConnectionTokenRepository usersConnectionTokenRepository,
+                                       @Nullable TransactionTemplate transactionTemplate,
+                                       @NonNull RepositoryProperties.WriteBehind writeBehind,
+                                       Integer timeout) {
+        this.writer = new ConnectionUpdateWriter(usersConnectionRepository, usersConnectionTokenRepository,
+                                                 transactionTemplate);
+        this.timeout = timeout;
+        this.windowMillis = Math.max(1L, writeBehind.getWindow().toMillis());
+        this.batchSize = Math.max(1, writeBehind.getBatchSize());
+        this.maxPending = Math.max(1, writeBehind.getMaxPending());
+        this.shutdownTimeoutMillis = Math.max(0L, writeBehind.getShutdownTimeout().toMillis());
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "ums-connection-write-behind");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 提交第三方授权登录成功后的更新, 时间窗口内同一个 (userId, providerId, providerUserId) 只保留最新一次
+     * @param authUser  第三方用户信息
+     * @param data      数据库中已有的第三方登录记录
+     * @return  返回 false 时表示已关闭, 没有提交成功, 调用方需要自行更新
+     */
+    public boolean offer(@NonNull AuthUser authUser, @NonNull ConnectionData data) {
+        if (closed)
+        {
+            return false;
+        }
+        ConnectionUpdate.Scope scope = connectionUpdateFilter == null ? ConnectionUpdate.Scope.ALL
+                                                                       : connectionUpdateFilter.scopeOf(authUser, data);
+        if (ConnectionUpdate.Scope.NONE.equals(scope))
+        {
+            return true;
+        }
+        ConnectionUpdate update = ConnectionUpdate.of(authUser, data, this.timeout, scope);
+        String key = update.getKey();
+        if (nonNull(pending.put(key, update)))
+        {
+            coalesced.increment();
+        }
+        offered.increment();
+        if (closed && pending.remove(key, update))
+        {
+            // 与关闭时最后一次写入竞争, 未被写入则交由调用方更新
+            return false;
+        }
+        if (pending.size() >= maxPending && immediateFlushScheduled.compareAndSet(false, true))
+        {
+            try
+            {
+                scheduler.execute(this::flushQuietly);
+            }
+            catch (Exception e)
+            {
+                immediateFlushScheduled.set(false);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param connectionUpdateFilter    跳过冗余更新, token 未改变时不更新 auth_token
+     */
+    public void setConnectionUpdateFilter(@Nullable ConnectionUpdateFilter connectionUpdateFilter) {
+        this.connectionUpdateFilter = connectionUpdateFilter;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        scheduler.scheduleWithFixedDelay(this::flushQuietly, windowMillis, windowMillis, TimeUnit.MILLISECONDS);
+        registerMBean();
+    }
+
+    @Override
+    public void destroy() {
+        closed = true;
+        try
+        {
+            // 写入剩余记录
+            scheduler.execute(this::flushQuietly);
+            scheduler.shutdown();
+            if (!scheduler.awaitTermination(shutdownTimeoutMillis, TimeUnit.MILLISECONDS))
+            {
+                scheduler.shutdownNow();
+                log.warn("关闭时写入第三方登录记录超时, 丢弃的记录数: {}", pending.size());
+            }
+        }
+        catch (InterruptedException e)
+        {
+            scheduler.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            unregisterMBean();
+        }
+    }
+
+    /**
+     * 写入当前所有待写入的记录, 写入期间新提交的记录(超过当前记录数的部分)留到下个时间窗口
+     */
+    public void flush() {
+        flushLock.lock();
+        try
+        {
+            immediateFlushScheduled.set(false);
+            int rounds = pending.size() / batchSize + 1;
+            for (int i = 0; i < rounds && !pending.isEmpty(); i++)
+            {
+                List<ConnectionUpdate> batch = drain();
+                if (!batch.isEmpty())
+                {
+                    writeBatch(batch);
+                }
+            }
+        }
+        finally
+        {
+            flushLock.unlock();
+        }
+    }
+
+    private void flushQuietly() {
+        try
+        {
+            flush();
+        }
+        catch (Exception e)
+        {
+            log.error("批量写入第三方登录记录异常: {}", e.getMessage(), e);
+        }
+    }
+
+    private List<ConnectionUpdate> drain() {
+        List<ConnectionUpdate> batch = new ArrayList<>(Math.min(batchSize, pending.size()));
+        Iterator<Map.Entry<String, ConnectionUpdate>> iterator = pending.entrySet().iterator();
+        while (iterator.hasNext() && batch.size() < batchSize)
+        {
+            Map.Entry<String, ConnectionUpdate> entry = iterator.next();
+            // 只移除取出的值, 期间被新值覆盖时新值留到下一批次
+            if (pending.remove(entry.getKey(), entry.getValue()))
+            {
+                batch.add(entry.getValue());
+            }
+        }
+        return batch;
+    }
+
+    private void writeBatch(List<ConnectionUpdate> batch) {
+        long start = System.nanoTime();
+        try
+        {
+            ConnectionUpdateWriter.WriteResult result = writer.write(batch);
+            flushed.addAndGet(batch.size() - result.failed);
+            failed.addAndGet(result.failed);
+        }
+        finally
+        {
+            long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            lastFlushLatencyMillis = latency;
+            maxFlushLatencyMillis.accumulateAndGet(latency, Math::max);
+            flushCount.incrementAndGet();
+        }
+    }
+
+    private void registerMBean() {
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(objectName))
+            {
+                server.registerMBean(this, objectName);
+                registeredObjectName = objectName;
+            }
+        }
+        catch (Exception e)
+        {
+            log.warn("注册合并延迟写统计 MBean 失败: {}", e.getMessage(), e);
+        }
+    }
+
+    private void unregisterMBean() {
+        if (registeredObjectName == null)
+        {
+            return;
+        }
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredObjectName);
+        }
+        catch (Exception e)
+        {
+            log.warn("注销合并延迟写统计 MBean 失败: {}", registeredObjectName, e);
+        }
+        registeredObjectName = null;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return pending.size();
+    }
+
+    @Override
+    public long getOffered() {
+        return offered.sum();
+    }
+
+    @Override
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    @Override
+    public long getFlushCount() {
+        return flushCount.get();
+    }
+
+    @Override
+    public long getFlushed() {
+        return flushed.get();
+    }
+
+    @Override
+    public long getFailed() {
+        return failed.get();
+    }
+
+    @Override
+    public long getLastFlushLatencyMillis() {
+        return lastFlushLatencyMillis;
+    }
+
+    @Override
+    public long getMaxFlushLatencyMillis() {
+        return maxFlushLatencyMillis.get();
+    }
+
+}
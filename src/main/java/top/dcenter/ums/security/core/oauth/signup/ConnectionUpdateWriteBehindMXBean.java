@@ -0,0 +1,74 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.signup;
+
+/**
+ * {@link ConnectionUpdateWriteBehind} 的 JMX 接口, 注册到 platform MBeanServer:
+ * {@code top.dcenter.ums.security:type=ConnectionUpdateWriteBehind}.
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/9 10:12
+ */
+public interface ConnectionUpdateWriteBehindMXBean {
+
+    /**
+     * @return 当前待写入(合并后)的记录数
+     */
+    int getQueueDepth();
+
+    /**
+     * @return 提交的更新次数
+     */
+    long getOffered();
+
+    /**
+     * @return 被后续更新覆盖(合并)的次数
+     */
+    long getCoalesced();
+
+    /**
+     * @return 批量写入的批次数
+     */
+    long getFlushCount();
+
+    /**
+     * @return 成功写入的记录数
+     */
+    long getFlushed();
+
+    /**
+     * @return 写入失败的记录数
+     */
+    long getFailed();
+
+    /**
+     * @return 最近一个批次的写入耗时, 单位毫秒
+     */
+    long getLastFlushLatencyMillis();
+
+    /**
+     * @return 批次写入的最大耗时, 单位毫秒
+     */
+    long getMaxFlushLatencyMillis();
+
+}
@@ -0,0 +1,245 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.signup;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.RecoverableDataAccessException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+import org.springframework.transaction.CannotCreateTransactionException;
+import org.springframework.transaction.support.TransactionTemplate;
+import top.dcenter.ums.security.core.oauth.entity.AuthTokenPo;
+import top.dcenter.ums.security.core.oauth.entity.ConnectionData;
+import top.dcenter.ums.security.core.oauth.repository.UsersConnectionRepository;
+import top.dcenter.ums.security.core.oauth.repository.UsersConnectionTokenRepository;
+
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static java.util.Objects.nonNull;
+
+/**
+ * 批量写入 {@link ConnectionUpdate}: 通过 {@link UsersConnectionRepository#updateConnections(List)} 与
+ * {@link UsersConnectionTokenRepository#updateAuthTokens(List)} 批量更新, 批次写入失败时降级为逐条更新.
+ * 条件写入时改用 {@link UsersConnectionRepository#updateConnectionsIfNotStale(List)} 与
+ * {@link UsersConnectionTokenRepository#updateAuthTokensIfNotStale(List)}, 数据库中 expireTime 更晚的行不会被覆盖.
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/10 9:20
+ */
+@Slf4j
+final class ConnectionUpdateWriter {
+
+    private final UsersConnectionRepository usersConnectionRepository;
+    @Nullable
+    private final UsersConnectionTokenRepository usersConnectionTokenRepository;
+    @Nullable
+    private final TransactionTemplate transactionTemplate;
+    /**
+     * 是否只更新数据库中 expireTime 不晚于记录的行
+     */
+    private final boolean ifNotStale;
+
+    ConnectionUpdateWriter(@NonNull UsersConnectionRepository usersConnectionRepository,
+                           @Nullable UsersConnectionTokenRepository usersConnectionTokenRepository,
+                           @Nullable TransactionTemplate transactionTemplate) {
+        this(usersConnectionRepository, usersConnectionTokenRepository, transactionTemplate, false);
+    }
+
+    /**
+     * @param ifNotStale    为 true 时只更新数据库中 expireTime 不晚于记录的行, 用于重放日志
+     */
+    ConnectionUpdateWriter(@NonNull UsersConnectionRepository usersConnectionRepository,
+                           @Nullable UsersConnectionTokenRepository usersConnectionTokenRepository,
+                           @Nullable TransactionTemplate transactionTemplate,
+                           boolean ifNotStale) {
+        this.usersConnectionRepository = usersConnectionRepository;
+        this.usersConnectionTokenRepository = usersConnectionTokenRepository;
+        this.transactionTemplate = transactionTemplate;
+        this.ifNotStale = ifNotStale;
+    }
+
+    /**
+     * 批量写入, 批次写入失败时降级为逐条更新
+     * @param batch 需要写入的记录
+     * @return  写入结果
+     */
+    @NonNull
+    WriteResult write(@NonNull List<ConnectionUpdate> batch) {
+        try
+        {
+            List<ConnectionData> connections = new ArrayList<>(batch.size());
+            List<AuthTokenPo> authTokens = new ArrayList<>(batch.size());
+            for (ConnectionUpdate update : batch)
+            {
+                connections.add(update.getConnectionData());
+                if (ConnectionUpdate.Scope.ALL.equals(update.getScope()))
+                {
+                    authTokens.add(update.getAuthToken());
+                }
+            }
+            executeInTransaction(() -> {
+                updateConnections(connections);
+                if (nonNull(usersConnectionTokenRepository) && !authTokens.isEmpty())
+                {
+                    updateAuthTokens(usersConnectionTokenRepository, authTokens);
+                }
+            });
+            return new WriteResult(0, false);
+        }
+        catch (Exception e)
+        {
+            log.warn("批量写入第三方登录记录失败, 降级为逐条更新: batchSize={}, error={}", batch.size(), e.getMessage(), e);
+            return writeOneByOne(batch);
+        }
+    }
+
+    private WriteResult writeOneByOne(List<ConnectionUpdate> batch) {
+        int failed = 0;
+        boolean retryable = false;
+        for (ConnectionUpdate update : batch)
+        {
+            try
+            {
+                executeInTransaction(() -> {
+                    if (ifNotStale)
+                    {
+                        usersConnectionRepository.updateConnectionsIfNotStale(
+                                Collections.singletonList(update.getConnectionData()));
+                    }
+                    else
+                    {
+                        usersConnectionRepository.updateConnection(update.getConnectionData());
+                    }
+                    if (nonNull(usersConnectionTokenRepository)
+                            && ConnectionUpdate.Scope.ALL.equals(update.getScope()))
+                    {
+                        if (ifNotStale)
+                        {
+                            usersConnectionTokenRepository.updateAuthTokensIfNotStale(
+                                    Collections.singletonList(update.getAuthToken()));
+                        }
+                        else
+                        {
+                            usersConnectionTokenRepository.updateAuthToken(update.getAuthToken());
+                        }
+                    }
+                });
+            }
+            catch (Exception e)
+            {
+                failed++;
+                retryable = retryable || isRetryable(e);
+                log.error("更新第三方用户信息异常: key={}, error={}", update.getKey(), e.getMessage(), e);
+            }
+        }
+        return new WriteResult(failed, retryable);
+    }
+
+    private void updateConnections(List<ConnectionData> connections) {
+        if (ifNotStale)
+        {
+            usersConnectionRepository.updateConnectionsIfNotStale(connections);
+            return;
+        }
+        usersConnectionRepository.updateConnections(connections);
+    }
+
+    private void updateAuthTokens(UsersConnectionTokenRepository repository,
+                                  List<AuthTokenPo> authTokens) throws Exception {
+        if (ifNotStale)
+        {
+            repository.updateAuthTokensIfNotStale(authTokens);
+            return;
+        }
+        repository.updateAuthTokens(authTokens);
+    }
+
+    /**
+     * 数据库连接或事务不可用等可重试的异常
+     */
+    private static boolean isRetryable(Exception e) {
+        return e instanceof TransientDataAccessException
+                || e instanceof RecoverableDataAccessException
+                || e instanceof DataAccessResourceFailureException
+                || e instanceof CannotCreateTransactionException;
+    }
+
+    private void executeInTransaction(UpdateAction action) throws Exception {
+        if (transactionTemplate == null)
+        {
+            action.run();
+            return;
+        }
+        try
+        {
+            transactionTemplate.executeWithoutResult(status -> {
+                try
+                {
+                    action.run();
+                }
+                catch (RuntimeException e)
+                {
+                    throw e;
+                }
+                catch (Exception e)
+                {
+                    throw new UndeclaredThrowableException(e);
+                }
+            });
+        }
+        catch (UndeclaredThrowableException e)
+        {
+            Throwable cause = e.getUndeclaredThrowable();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+    }
+
+    /**
+     * 写入结果
+     */
+    static final class WriteResult {
+        /**
+         * 写入失败的记录数
+         */
+        final int failed;
+        /**
+         * 失败的记录中是否有可重试的异常(如: 数据库连接不可用)
+         */
+        final boolean retryable;
+
+        WriteResult(int failed, boolean retryable) {
+            this.failed = failed;
+            this.retryable = retryable;
+        }
+    }
+
+    private interface UpdateAction {
+        void run() throws Exception;
+    }
+
+}
@@ -52,14 +52,17 @@ import top.dcenter.ums.security.core.oauth.properties.HttpConfigProperties;
 import top.dcenter.ums.security.core.oauth.repository.UsersConnectionRepository;
 import top.dcenter.ums.security.core.oauth.repository.UsersConnectionTokenRepository;
 import top.dcenter.ums.security.core.oauth.repository.exception.UpdateConnectionException;
+import top.dcenter.ums.security.core.oauth.repository.filter.ConnectionBloomFilter;
 import top.dcenter.ums.security.core.oauth.service.Auth2StateCoder;
 import top.dcenter.ums.security.core.oauth.service.UmsUserDetailsService;
 
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 
+import static java.util.Objects.isNull;
 import static java.util.Objects.nonNull;
 import static top.dcenter.ums.security.core.oauth.util.MvcUtil.toJsonString;
 
@@ -86,6 +89,14 @@ public class DefaultConnectionServiceImpl implements ConnectionService {
     private final UsersConnectionRepository usersConnectionRepository;
     private final UsersConnectionTokenRepository usersConnectionTokenRepository;
     private final Auth2StateCoder auth2StateCoder;
+    /**
+     * 第三方登录记录的布隆过滤器, 为 null 时不使用
+     */
+    private ConnectionBloomFilter connectionBloomFilter;
+    /**
+     * 跳过冗余更新, 为 null 时每次都更新 user_connection 与 auth_token
+     */
+    private ConnectionUpdateFilter connectionUpdateFilter;
 
     public DefaultConnectionServiceImpl(UmsUserDetailsService userDetailsService,
                                         Auth2Properties auth2Properties,
@@ -100,6 +111,20 @@ public class DefaultConnectionServiceImpl implements ConnectionService {
         this.auth2StateCoder = auth2StateCoder;
     }
 
+    /**
+     * @param connectionBloomFilter 第三方登录记录一定不存在时跳过缓存与数据库查询
+     */
+    public void setConnectionBloomFilter(@Nullable ConnectionBloomFilter connectionBloomFilter) {
+        this.connectionBloomFilter = connectionBloomFilter;
+    }
+
+    /**
+     * @param connectionUpdateFilter    用户信息与 token 未改变时跳过更新, token 未改变时不更新 auth_token
+     */
+    public void setConnectionUpdateFilter(@Nullable ConnectionUpdateFilter connectionUpdateFilter) {
+        this.connectionUpdateFilter = connectionUpdateFilter;
+    }
+
     @Override
     @NonNull
     @Transactional(rollbackFor = {Exception.class}, propagation = Propagation.REQUIRES_NEW)
@@ -153,22 +178,21 @@ public class DefaultConnectionServiceImpl implements ConnectionService {
         ConnectionData connectionData = null;
         try
         {
-            // 获取 AuthTokenPo
-            AuthToken token = authUser.getToken();
-            AuthTokenPo authToken = JustAuthUtil.getAuthTokenPo(token, data.getProviderId(), this.timeout);
-            authToken.setId(data.getTokenId());
-            // 有效期转时间戳
-            Auth2DefaultRequest.expireIn2Timestamp(this.timeout, token.getExpireIn(), authToken);
-
-            // 获取最新的 ConnectionData
-            connectionData = JustAuthUtil.getConnectionData(data.getProviderId(), authUser, data.getUserId(), authToken);
-            connectionData.setUserId(data.getUserId());
-            connectionData.setTokenId(data.getTokenId());
+            // 获取最新的 ConnectionData 与 AuthTokenPo
+            ConnectionUpdate.Scope scope = isNull(connectionUpdateFilter) ? ConnectionUpdate.Scope.ALL
+                                                                          : connectionUpdateFilter.scopeOf(authUser, data);
+            if (ConnectionUpdate.Scope.NONE.equals(scope))
+            {
+                return;
+            }
+            ConnectionUpdate update = ConnectionUpdate.of(authUser, data, this.timeout, scope);
+            connectionData = update.getConnectionData();
+            AuthTokenPo authToken = update.getAuthToken();
 
             // 更新 connectionData
             usersConnectionRepository.updateConnection(connectionData);
             // 更新 AuthTokenPo
-            if (nonNull(usersConnectionTokenRepository)) {
+            if (nonNull(usersConnectionTokenRepository) && ConnectionUpdate.Scope.ALL.equals(scope)) {
                 usersConnectionTokenRepository.updateAuthToken(authToken);
             }
         }
@@ -207,6 +231,10 @@ public class DefaultConnectionServiceImpl implements ConnectionService {
     @Nullable
     public List<ConnectionData> findConnectionByProviderIdAndProviderUserId(@NonNull String providerId,
                                                                             @NonNull String providerUserId) {
+        if (nonNull(connectionBloomFilter) && !connectionBloomFilter.mightContain(providerId, providerUserId)) {
+            // 布隆过滤器确定没有此第三方登录记录, 跳过缓存与数据库查询
+            return Collections.emptyList();
+        }
         return usersConnectionRepository.findConnectionByProviderIdAndProviderUserId(providerId, providerUserId);
     }
 
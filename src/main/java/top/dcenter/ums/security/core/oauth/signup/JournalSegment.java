@@ -0,0 +1,231 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.signup;
+
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * {@link ConnectionUpdateJournal} 的日志文件, 固定大小并通过 mmap 映射到内存. <br>
+ * 记录格式: [int 长度][int crc32][内容], 写入时最后写长度, 启动恢复时以长度与 crc32 校验确定有效的末尾. <br>
+ * 写入由 {@link ConnectionUpdateJournal} 加锁串行, 消费只在消费线程; 两者只使用绝对位置读写, 通过 volatile 的
+ * {@link #committed} 发布写入位置.
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/10 10:40
+ */
+final class JournalSegment {
+
+    static final int HEADER_SIZE = 8;
+
+    private final long sequence;
+    private final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    /**
+     * 已写入且对消费线程可见的位置
+     */
+    private volatile int committed;
+    /**
+     * 不再写入
+     */
+    private volatile boolean sealed = false;
+
+    private JournalSegment(long sequence, Path path, FileChannel channel, MappedByteBuffer buffer, int committed) {
+        this.sequence = sequence;
+        this.path = path;
+        this.channel = channel;
+        this.buffer = buffer;
+        this.capacity = buffer.capacity();
+        this.committed = committed;
+    }
+
+    /**
+     * 创建新的日志文件
+     * @param path      文件路径
+     * @param sequence  文件序号
+     * @param size      文件大小
+     * @return  {@link JournalSegment}
+     * @throws IOException  创建或映射文件异常
+     */
+    @NonNull
+    static JournalSegment create(@NonNull Path path, long sequence, int size) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                                               StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try
+        {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            return new JournalSegment(sequence, path, channel, buffer, 0);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 打开已有的日志文件, 并恢复有效的末尾位置, 打开后不再写入
+     * @param path      文件路径
+     * @param sequence  文件序号
+     * @return  {@link JournalSegment}
+     * @throws IOException  打开或映射文件异常
+     */
+    @NonNull
+    static JournalSegment open(@NonNull Path path, long sequence) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try
+        {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            JournalSegment segment = new JournalSegment(sequence, path, channel, buffer, 0);
+            segment.committed = segment.recover();
+            segment.sealed = true;
+            return segment;
+        }
+        catch (IOException | RuntimeException e)
+        {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return 最后一条有效记录的末尾位置, 之后的内容(宕机时未写完的记录)忽略
+     */
+    private int recover() {
+        int position = 0;
+        while (position + HEADER_SIZE <= capacity)
+        {
+            int length = buffer.getInt(position);
+            if (length <= 0 || length > capacity - position - HEADER_SIZE)
+            {
+                break;
+            }
+            byte[] payload = new byte[length];
+            ByteBuffer dup = buffer.duplicate();
+            dup.position(position + HEADER_SIZE);
+            dup.get(payload);
+            if (crc(payload) != buffer.getInt(position + 4))
+            {
+                break;
+            }
+            position += HEADER_SIZE + length;
+        }
+        return position;
+    }
+
+    /**
+     * @param recordSize    记录大小(包括记录头)
+     * @return  剩余空间是否可以写入
+     */
+    boolean hasRemaining(int recordSize) {
+        return capacity - committed >= recordSize;
+    }
+
+    /**
+     * 追加记录, 调用方保证串行调用且剩余空间足够
+     * @param payload   记录内容
+     */
+    void append(@NonNull byte[] payload) {
+        int position = committed;
+        ByteBuffer dup = buffer.duplicate();
+        dup.position(position + HEADER_SIZE);
+        dup.put(payload);
+        buffer.putInt(position + 4, crc(payload));
+        // 最后写长度
+        buffer.putInt(position, payload.length);
+        committed = position + HEADER_SIZE + payload.length;
+    }
+
+    /**
+     * 读取指定位置的记录
+     * @param position  记录的开始位置
+     * @return  记录内容, 没有已写入的记录时返回 null
+     */
+    @Nullable
+    byte[] read(int position) {
+        if (position + HEADER_SIZE > committed)
+        {
+            return null;
+        }
+        int length = buffer.getInt(position);
+        byte[] payload = new byte[length];
+        ByteBuffer dup = buffer.duplicate();
+        dup.position(position + HEADER_SIZE);
+        dup.get(payload);
+        return payload;
+    }
+
+    void seal() {
+        this.sealed = true;
+    }
+
+    boolean isSealed() {
+        return sealed;
+    }
+
+    int getCommitted() {
+        return committed;
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * 把映射内存中的修改刷到磁盘
+     */
+    void force() {
+        buffer.force();
+    }
+
+    void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * 关闭并删除日志文件
+     * @throws IOException  删除文件异常
+     */
+    void delete() throws IOException {
+        close();
+        Files.deleteIfExists(path);
+    }
+
+    private static int crc(byte[] payload) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(payload, 0, payload.length);
+        return (int) crc32.getValue();
+    }
+
+}
@@ -0,0 +1,65 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.config;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.aop.Advisor;
+import org.springframework.aop.PointcutAdvisor;
+import org.springframework.aop.support.AopUtils;
+import org.springframework.cache.annotation.CacheEvict;
+import top.dcenter.ums.security.core.oauth.repository.jdbc.Auth2JdbcUsersConnectionRepository;
+import top.dcenter.ums.security.core.oauth.repository.jdbc.Auth2JdbcUsersConnectionTokenRepository;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * {@link RedisCacheAutoConfiguration#redisHashCacheBatchAdvisor()} 切入点测试
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/21 15:27
+ */
+class RedisHashCacheBatchAdvisorTest {
+
+    private final Advisor advisor = RedisCacheAutoConfiguration.redisHashCacheBatchAdvisor();
+
+    @Test
+    void matchesRepositoryClasses() {
+        assertThat(AopUtils.canApply(advisor, Auth2JdbcUsersConnectionRepository.class)).isTrue();
+        assertThat(AopUtils.canApply(advisor, Auth2JdbcUsersConnectionTokenRepository.class)).isTrue();
+    }
+
+    @Test
+    void doesNotMatchOtherCachingBeans() throws NoSuchMethodException {
+        assertThat(AopUtils.canApply(advisor, OtherCachingService.class)).isFalse();
+        assertThat(((PointcutAdvisor) advisor).getPointcut().getMethodMatcher()
+                           .matches(OtherCachingService.class.getMethod("evict"), OtherCachingService.class))
+                .isTrue();
+    }
+
+    static class OtherCachingService {
+        @CacheEvict(cacheNames = "other", allEntries = true)
+        public void evict() {
+        }
+    }
+
+}
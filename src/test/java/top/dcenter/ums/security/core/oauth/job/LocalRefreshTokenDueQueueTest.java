@@ -0,0 +1,119 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package top.dcenter.ums.security.core.oauth.job;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import top.dcenter.ums.security.core.oauth.entity.AuthTokenPo;
+import top.dcenter.ums.security.core.oauth.properties.Auth2Properties;
+
+import java.time.Duration;
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * {@link LocalRefreshTokenDueQueue} 重试退避, 放入锁与单实例部署检查测试
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/24 10:20
+ */
+class LocalRefreshTokenDueQueueTest {
+
+    private static final long NOW = 1_000_000L;
+
+    private final Auth2Properties.DueQueue properties = new Auth2Properties.DueQueue();
+
+    @BeforeEach
+    void setUp() {
+        properties.setSingleNode(true);
+        properties.setLeadTime(Duration.ZERO);
+        properties.setTick(Duration.ofMillis(1));
+        properties.setRetryDelay(Duration.ofSeconds(1));
+        properties.setMaxRetryDelay(Duration.ofSeconds(3));
+        properties.setMaxAttempts(4);
+    }
+
+    @Test
+    void requiresSingleNode() {
+        properties.setSingleNode(false);
+
+        assertThatThrownBy(() -> new LocalRefreshTokenDueQueue(properties))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("single-node");
+    }
+
+    @Test
+    void pollBacksOffExponentiallyAndDropsAfterMaxAttempts() {
+        LocalRefreshTokenDueQueue queue = new LocalRefreshTokenDueQueue(properties);
+        queue.schedule(Collections.singletonList(token(1L, NOW)));
+
+        // 第 1 次取出后延迟 1 秒, 第 2 次 2 秒, 第 3 次 min(4, 3) = 3 秒, 第 4 次取出后从队列中删除
+        long now = NOW;
+        for (long delay : new long[]{1000L, 2000L, 3000L})
+        {
+            assertThat(queue.pollDue(now, 10)).containsExactly(1L);
+            assertThat(queue.pollDue(now + delay - 1L, 10)).isEmpty();
+            now += delay;
+        }
+        assertThat(queue.pollDue(now, 10)).containsExactly(1L);
+        assertThat(queue.size()).isZero();
+        assertThat(queue.pollDue(Long.MAX_VALUE, 10)).isEmpty();
+    }
+
+    @Test
+    void scheduleResetsAttempts() {
+        LocalRefreshTokenDueQueue queue = new LocalRefreshTokenDueQueue(properties);
+        queue.schedule(Collections.singletonList(token(1L, NOW)));
+        assertThat(queue.pollDue(NOW, 10)).containsExactly(1L);
+        assertThat(queue.pollDue(NOW + 1000L, 10)).containsExactly(1L);
+
+        // 刷新成功后按新的过期时间重新放入, 重新从第 1 次开始退避
+        queue.schedule(Collections.singletonList(token(1L, NOW + 5000L)));
+        assertThat(queue.pollDue(NOW + 5000L, 10)).containsExactly(1L);
+        assertThat(queue.pollDue(NOW + 5999L, 10)).isEmpty();
+        assertThat(queue.pollDue(NOW + 6000L, 10)).containsExactly(1L);
+    }
+
+    @Test
+    void seedLockIsExclusive() {
+        LocalRefreshTokenDueQueue queue = new LocalRefreshTokenDueQueue(properties);
+
+        assertThat(queue.tryAcquireSeedLock()).isTrue();
+        assertThat(queue.tryAcquireSeedLock()).isFalse();
+        queue.releaseSeedLock();
+        assertThat(queue.tryAcquireSeedLock()).isTrue();
+
+        assertThat(queue.getSeededUntil()).isNull();
+        queue.setSeededUntil(NOW);
+        assertThat(queue.getSeededUntil()).isEqualTo(NOW);
+    }
+
+    private static AuthTokenPo token(long id, long expireTime) {
+        AuthTokenPo token = new AuthTokenPo();
+        token.setId(id);
+        token.setExpireTime(expireTime);
+        return token;
+    }
+
+}
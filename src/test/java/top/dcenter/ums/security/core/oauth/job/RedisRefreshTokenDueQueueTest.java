@@ -0,0 +1,129 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package top.dcenter.ums.security.core.oauth.job;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.types.Expiration;
+import top.dcenter.ums.security.core.oauth.entity.AuthTokenPo;
+import top.dcenter.ums.security.core.oauth.properties.Auth2Properties;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anySet;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * {@link RedisRefreshTokenDueQueue} 发送的 redis 命令测试
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/24 10:50
+ */
+class RedisRefreshTokenDueQueueTest {
+
+    private final RedisConnection connection = mock(RedisConnection.class);
+    private RedisRefreshTokenDueQueue queue;
+
+    @BeforeEach
+    void setUp() {
+        RedisConnectionFactory connectionFactory = mock(RedisConnectionFactory.class);
+        when(connectionFactory.getConnection()).thenReturn(connection);
+        Auth2Properties.DueQueue properties = new Auth2Properties.DueQueue();
+        properties.setRetryDelay(Duration.ofSeconds(30));
+        properties.setMaxRetryDelay(Duration.ofMinutes(10));
+        properties.setMaxAttempts(5);
+        queue = new RedisRefreshTokenDueQueue(connectionFactory, properties, Duration.ofHours(1));
+    }
+
+    @Test
+    void pollPassesBackoffArguments() {
+        when(connection.<List<byte[]>>eval(any(byte[].class), eq(ReturnType.MULTI), eq(2), (byte[][]) any()))
+                .thenReturn(Arrays.asList(bytes("1"), bytes("2")));
+
+        assertThat(queue.pollDue(1000L, 10)).containsExactly(1L, 2L);
+
+        ArgumentCaptor<byte[]> args = ArgumentCaptor.forClass(byte[].class);
+        verify(connection).eval(any(byte[].class), eq(ReturnType.MULTI), eq(2), args.capture(), args.capture(),
+                                args.capture(), args.capture(), args.capture(), args.capture(), args.capture());
+        // KEYS: queue, attempts; ARGV: now, max, retryDelay, maxRetryDelay, maxAttempts
+        assertThat(strings(args.getAllValues()))
+                .containsExactly("{ums:refresh-token-due}:queue", "{ums:refresh-token-due}:attempts",
+                                 "1000", "10", "30000", "600000", "5");
+    }
+
+    @Test
+    void scheduleResetsAttempts() {
+        AuthTokenPo token = new AuthTokenPo();
+        token.setId(7L);
+        token.setExpireTime(Duration.ofDays(1).toMillis());
+
+        queue.schedule(Collections.singletonList(token));
+
+        verify(connection).zAdd(eq(bytes("{ums:refresh-token-due}:queue")), anySet());
+        verify(connection).hDel(bytes("{ums:refresh-token-due}:attempts"), bytes("7"));
+    }
+
+    @Test
+    void releaseSeedLockOnlyDeletesOwnLock() {
+        ArgumentCaptor<byte[]> owner = ArgumentCaptor.forClass(byte[].class);
+        when(connection.set(eq(bytes("{ums:refresh-token-due}:seed")), owner.capture(), any(Expiration.class),
+                            eq(RedisStringCommands.SetOption.SET_IF_ABSENT))).thenReturn(true);
+
+        assertThat(queue.tryAcquireSeedLock()).isTrue();
+        queue.releaseSeedLock();
+
+        verify(connection).eval(any(byte[].class), eq(ReturnType.INTEGER), eq(1),
+                                eq(bytes("{ums:refresh-token-due}:seed")), eq(owner.getValue()));
+    }
+
+    @Test
+    void missingSeededUntilMeansQueueNotInitialized() {
+        assertThat(queue.getSeededUntil()).isNull();
+
+        when(connection.get(bytes("{ums:refresh-token-due}:seeded-until"))).thenReturn(bytes("123"));
+        assertThat(queue.getSeededUntil()).isEqualTo(123L);
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static List<String> strings(List<byte[]> values) {
+        return values.stream().map(value -> new String(value, StandardCharsets.UTF_8)).collect(Collectors.toList());
+    }
+
+}
@@ -0,0 +1,195 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package top.dcenter.ums.security.core.oauth.job;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.security.crypto.encrypt.Encryptors;
+import org.springframework.transaction.support.TransactionTemplate;
+import top.dcenter.ums.security.core.oauth.entity.AuthTokenPo;
+import top.dcenter.ums.security.core.oauth.properties.RepositoryProperties;
+import top.dcenter.ums.security.core.oauth.repository.jdbc.Auth2JdbcUsersConnectionRepository;
+import top.dcenter.ums.security.core.oauth.repository.jdbc.Auth2JdbcUsersConnectionTokenRepository;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 刷新结果写入基准测试(H2 MySQL 模式): 对比逐条更新 auth_token 与 user_connection(updateAuthToken +
+ * updateConnectionByTokenId) 与 {@link RefreshTokenBatchWriter} 按批次在一个事务中批量更新. <br>
+ * 每次迭代前重新建表并插入 rows 条记录(默认: 100 万), 通过 {@code -Drows} 可在 {@link #main(String[])} 中指定, 运行: <br>
+ * {@code mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=top.dcenter.ums.security.core.oauth.job.RefreshTokenBatchWriterBenchmark}
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/23 20:40
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+public class RefreshTokenBatchWriterBenchmark {
+
+    private static final int INSERT_BATCH_SIZE = 10_000;
+
+    @Param({"1000000"})
+    private int rows;
+
+    @Param({"500"})
+    private int batchSize;
+
+    private List<AuthTokenPo> refreshedTokens;
+    private JdbcTemplate jdbcTemplate;
+    private Auth2JdbcUsersConnectionRepository connectionRepository;
+    private Auth2JdbcUsersConnectionTokenRepository tokenRepository;
+    private RefreshTokenBatchWriter writer;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() {
+        refreshedTokens = new ArrayList<>(rows);
+        for (long id = 1L; id <= rows; id++)
+        {
+            refreshedTokens.add(refreshedToken(id));
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpIteration() {
+        DriverManagerDataSource dataSource = new DriverManagerDataSource(
+                "jdbc:h2:mem:" + UUID.randomUUID() + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE;"
+                        + "CASE_INSENSITIVE_IDENTIFIERS=TRUE;DB_CLOSE_DELAY=-1", "sa", "");
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        createTables(jdbcTemplate);
+        insertRows(jdbcTemplate, rows);
+        connectionRepository = new Auth2JdbcUsersConnectionRepository(jdbcTemplate, Encryptors.noOpText(),
+                                                                      new RepositoryProperties());
+        tokenRepository = new Auth2JdbcUsersConnectionTokenRepository(jdbcTemplate, Encryptors.noOpText(),
+                                                                      "auth_token");
+        writer = new RefreshTokenBatchWriter(connectionRepository, tokenRepository,
+                                             new TransactionTemplate(new DataSourceTransactionManager(dataSource)),
+                                             batchSize);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDownIteration() {
+        // 释放内存数据库, 避免下一次迭代的内存压力
+        jdbcTemplate.execute("shutdown");
+    }
+
+    /**
+     * 批量写入前的方式: 每个 token 一次 auth_token 更新, 一次按 tokenId 查询 user_connection 与一次 user_connection 更新
+     */
+    @Benchmark
+    public void oneByOne() {
+        for (AuthTokenPo token : refreshedTokens)
+        {
+            tokenRepository.updateAuthToken(token);
+            connectionRepository.updateConnectionByTokenId(token);
+        }
+    }
+
+    @Benchmark
+    public void batched() {
+        for (AuthTokenPo token : refreshedTokens)
+        {
+            writer.add(token);
+        }
+        writer.flush();
+    }
+
+    static void createTables(JdbcTemplate jdbcTemplate) {
+        jdbcTemplate.execute("create table user_connection (userId varchar(36) not null, "
+                                     + "providerId varchar(20) not null, providerUserId varchar(36) not null, "
+                                     + "`rank` int, displayName varchar(64), profileUrl varchar(256), "
+                                     + "imageUrl varchar(256), accessToken varchar(512), tokenId bigint, "
+                                     + "refreshToken varchar(512), expireTime bigint, "
+                                     + "primary key (userId, providerId, providerUserId))");
+        jdbcTemplate.execute("create index idx_tokenId on user_connection (tokenId)");
+        jdbcTemplate.execute("create table auth_token (id bigint primary key, enableRefresh tinyint default 1, "
+                                     + "providerId varchar(20), accessToken varchar(512), expireIn bigint, "
+                                     + "refreshTokenExpireIn bigint, refreshToken varchar(512), uid varchar(20), "
+                                     + "openId varchar(256), accessCode varchar(256), unionId varchar(256), "
+                                     + "scope varchar(256), tokenType varchar(20), idToken varchar(256), "
+                                     + "macAlgorithm varchar(20), macKey varchar(256), code varchar(256), "
+                                     + "oauthToken varchar(256), oauthTokenSecret varchar(256), userId varchar(64), "
+                                     + "screenName varchar(64), oauthCallbackConfirmed varchar(64), "
+                                     + "expireTime bigint default -1)");
+    }
+
+    static void insertRows(JdbcTemplate jdbcTemplate, int rows) {
+        final List<Object[]> connections = new ArrayList<>(Math.min(rows, INSERT_BATCH_SIZE));
+        final List<Object[]> tokens = new ArrayList<>(Math.min(rows, INSERT_BATCH_SIZE));
+        for (long id = 1L; id <= rows; id++)
+        {
+            connections.add(new Object[]{"u" + id, String.valueOf(id), "old-" + id, id, 0L});
+            tokens.add(new Object[]{id, "old-" + id, 0L});
+            if (tokens.size() >= INSERT_BATCH_SIZE || id == rows)
+            {
+                jdbcTemplate.batchUpdate("insert into user_connection (userId, providerId, providerUserId, `rank`, "
+                                                 + "accessToken, tokenId, expireTime) values (?, 'github', ?, 1, ?, ?, ?)",
+                                         connections);
+                jdbcTemplate.batchUpdate("insert into auth_token (id, enableRefresh, providerId, accessToken, "
+                                                 + "expireTime) values (?, 1, 'github', ?, ?)", tokens);
+                connections.clear();
+                tokens.clear();
+            }
+        }
+    }
+
+    static AuthTokenPo refreshedToken(long id) {
+        AuthTokenPo token = new AuthTokenPo();
+        token.setId(id);
+        token.setProviderId("github");
+        token.setAccessToken("refreshed-" + id);
+        token.setRefreshToken("refresh-" + id);
+        token.setExpireIn(7200);
+        token.setExpireTime(System.currentTimeMillis() + TimeUnit.HOURS.toMillis(2L));
+        return token;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(RefreshTokenBatchWriterBenchmark.class.getSimpleName())
+                                       .param("rows", System.getProperty("rows", "1000000"))
+                                       .build()).run();
+    }
+
+}
@@ -0,0 +1,202 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package top.dcenter.ums.security.core.oauth.job;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.security.crypto.encrypt.Encryptors;
+import org.springframework.transaction.support.TransactionTemplate;
+import top.dcenter.ums.security.core.oauth.entity.AuthTokenPo;
+import top.dcenter.ums.security.core.oauth.properties.RepositoryProperties;
+import top.dcenter.ums.security.core.oauth.repository.UsersConnectionRepository;
+import top.dcenter.ums.security.core.oauth.repository.UsersConnectionTokenRepository;
+import top.dcenter.ums.security.core.oauth.repository.jdbc.Auth2JdbcUsersConnectionRepository;
+import top.dcenter.ums.security.core.oauth.repository.jdbc.Auth2JdbcUsersConnectionTokenRepository;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * {@link RefreshTokenBatchWriter} 分批写入, 缓存批次与降级测试
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/23 20:15
+ */
+class RefreshTokenBatchWriterTest {
+
+    private final UsersConnectionRepository connectionRepository = mock(UsersConnectionRepository.class);
+    private final UsersConnectionTokenRepository tokenRepository = mock(UsersConnectionTokenRepository.class);
+    private JdbcTemplate jdbcTemplate;
+
+    @AfterEach
+    void tearDown() {
+        if (jdbcTemplate != null)
+        {
+            jdbcTemplate.execute("drop all objects");
+        }
+    }
+
+    @Test
+    void writesFullBatchesOnAddAndRemainderOnFlush() throws Exception {
+        List<Integer> sizes = new ArrayList<>();
+        doAnswer(invocation -> sizes.add(invocation.<List<?>>getArgument(0).size()))
+                .when(tokenRepository).updateAuthTokens(anyList());
+        RefreshTokenBatchWriter writer = new RefreshTokenBatchWriter(connectionRepository, tokenRepository, null, 2);
+
+        for (long id = 1L; id <= 5L; id++)
+        {
+            writer.add(token(id));
+        }
+        assertThat(sizes).containsExactly(2, 2);
+
+        writer.flush();
+        assertThat(sizes).containsExactly(2, 2, 1);
+        verify(connectionRepository, times(3)).updateConnectionsByTokenIds(anyList());
+    }
+
+    @Test
+    void chunkRunsInSingleCacheBatch() throws Exception {
+        List<Object> batches = new ArrayList<>();
+        doAnswer(invocation -> batches.add(currentCacheBatch())).when(tokenRepository).updateAuthTokens(anyList());
+        doAnswer(invocation -> batches.add(currentCacheBatch()))
+                .when(connectionRepository).updateConnectionsByTokenIds(anyList());
+        RefreshTokenBatchWriter writer = new RefreshTokenBatchWriter(connectionRepository, tokenRepository, null, 10);
+
+        writer.add(token(1L));
+        writer.add(token(2L));
+        writer.flush();
+
+        // auth_token 与 user_connection 的缓存失效在同一个批次中
+        assertThat(batches).hasSize(2).doesNotContainNull();
+        assertThat(batches.get(0)).isSameAs(batches.get(1));
+        assertThat(currentCacheBatch()).isNull();
+    }
+
+    @Test
+    void failedChunkFallsBackToOneByOne() throws Exception {
+        doThrow(new IllegalStateException("batch failed")).when(tokenRepository).updateAuthTokens(anyList());
+        RefreshTokenBatchWriter writer = new RefreshTokenBatchWriter(connectionRepository, tokenRepository, null, 10);
+
+        writer.add(token(1L));
+        writer.add(token(2L));
+        writer.flush();
+
+        verify(tokenRepository, times(2)).updateAuthToken(any(AuthTokenPo.class));
+        verify(connectionRepository, times(2)).updateConnectionByTokenId(any(AuthTokenPo.class));
+        verify(connectionRepository, never()).updateConnectionsByTokenIds(anyList());
+    }
+
+    @Test
+    void afterWriteRunsOnceChunkIsWritten() throws Exception {
+        List<Long> written = new ArrayList<>();
+        List<Long> released = new ArrayList<>();
+        doAnswer(invocation -> {
+            // 写入时还没有执行 afterWrite
+            assertThat(released).isEmpty();
+            return written.add(1L);
+        }).when(tokenRepository).updateAuthTokens(anyList());
+        RefreshTokenBatchWriter writer = new RefreshTokenBatchWriter(connectionRepository, tokenRepository, null, 10);
+
+        writer.add(token(1L), () -> released.add(1L));
+        writer.add(token(2L), null);
+        assertThat(released).isEmpty();
+
+        writer.flush();
+        assertThat(written).hasSize(1);
+        assertThat(released).containsExactly(1L);
+    }
+
+    @Test
+    void afterWriteRunsWhenWriteFails() throws Exception {
+        doThrow(new IllegalStateException("batch failed")).when(tokenRepository).updateAuthTokens(anyList());
+        doThrow(new IllegalStateException("update failed")).when(tokenRepository).updateAuthToken(any(AuthTokenPo.class));
+        List<Long> released = new ArrayList<>();
+        RefreshTokenBatchWriter writer = new RefreshTokenBatchWriter(connectionRepository, tokenRepository, null, 10);
+
+        writer.add(token(1L), () -> released.add(1L));
+        writer.add(token(2L), () -> released.add(2L));
+        writer.flush();
+
+        assertThat(released).containsExactly(1L, 2L);
+    }
+
+    @Test
+    void chunkUpdatesBothTablesInTransaction() {
+        DriverManagerDataSource dataSource = new DriverManagerDataSource(
+                "jdbc:h2:mem:" + UUID.randomUUID() + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE;"
+                        + "CASE_INSENSITIVE_IDENTIFIERS=TRUE;DB_CLOSE_DELAY=-1", "sa", "");
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        RefreshTokenBatchWriterBenchmark.createTables(jdbcTemplate);
+        RefreshTokenBatchWriterBenchmark.insertRows(jdbcTemplate, 3);
+        RefreshTokenBatchWriter writer =
+                new RefreshTokenBatchWriter(new Auth2JdbcUsersConnectionRepository(jdbcTemplate, Encryptors.noOpText(),
+                                                                                   new RepositoryProperties()),
+                                            new Auth2JdbcUsersConnectionTokenRepository(jdbcTemplate,
+                                                                                        Encryptors.noOpText(),
+                                                                                        "auth_token"),
+                                            new TransactionTemplate(new DataSourceTransactionManager(dataSource)),
+                                            2);
+
+        for (long id = 1L; id <= 3L; id++)
+        {
+            writer.add(RefreshTokenBatchWriterBenchmark.refreshedToken(id));
+        }
+        writer.flush();
+
+        assertThat(jdbcTemplate.queryForList("select accessToken from auth_token order by id", String.class))
+                .containsExactly("refreshed-1", "refreshed-2", "refreshed-3");
+        assertThat(jdbcTemplate.queryForList("select accessToken from user_connection order by tokenId", String.class))
+                .containsExactly("refreshed-1", "refreshed-2", "refreshed-3");
+    }
+
+    private static AuthTokenPo token(long id) {
+        AuthTokenPo token = new AuthTokenPo();
+        token.setId(id);
+        token.setProviderId("github");
+        token.setAccessToken("token-" + id);
+        return token;
+    }
+
+    private static Object currentCacheBatch() throws Exception {
+        Class<?> batchClass =
+                Class.forName("top.dcenter.ums.security.core.oauth.repository.jdbc.cache.RedisHashCacheBatch");
+        Method current = batchClass.getDeclaredMethod("current");
+        current.setAccessible(true);
+        return current.invoke(null);
+    }
+
+}
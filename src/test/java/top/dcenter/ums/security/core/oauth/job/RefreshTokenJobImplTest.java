@@ -0,0 +1,432 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.job;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.test.util.ReflectionTestUtils;
+import top.dcenter.ums.security.core.oauth.entity.AuthTokenPo;
+import top.dcenter.ums.security.core.oauth.enums.EnableRefresh;
+import top.dcenter.ums.security.core.oauth.enums.RefreshTokenClaimMode;
+import top.dcenter.ums.security.core.oauth.justauth.Auth2RequestHolder;
+import top.dcenter.ums.security.core.oauth.justauth.request.Auth2DefaultRequest;
+import top.dcenter.ums.security.core.oauth.properties.Auth2Properties;
+import top.dcenter.ums.security.core.oauth.repository.UsersConnectionRepository;
+import top.dcenter.ums.security.core.oauth.repository.UsersConnectionTokenRepository;
+import top.dcenter.ums.security.core.oauth.service.ProviderTokenLease;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anySet;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.longThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * {@link RefreshTokenJobImpl} 按 {@link UsersConnectionTokenRepository} 的能力选择执行方式的测试
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/23 15:10
+ */
+class RefreshTokenJobImplTest {
+
+    private static final String PROVIDER_ID = "refreshTokenJobTest";
+
+    private final UsersConnectionRepository connectionRepository = mock(UsersConnectionRepository.class);
+    private final UsersConnectionTokenRepository tokenRepository = mock(UsersConnectionTokenRepository.class);
+    private final Auth2Properties auth2Properties = new Auth2Properties();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    /**
+     * 与按需刷新共用的租约
+     */
+    private final ProviderTokenLease lease = new ProviderTokenLease(tokenRepository, Duration.ofSeconds(30));
+    private RefreshTokenJobImpl job;
+
+    @AfterEach
+    void tearDown() {
+        if (job != null)
+        {
+            job.destroy();
+        }
+        executor.shutdownNow();
+        authRequests().remove(PROVIDER_ID);
+        refreshSupport().remove(PROVIDER_ID);
+    }
+
+    @Test
+    void withoutDueScanFallsBackToIdRanges() throws Exception {
+        when(tokenRepository.getMaxTokenId()).thenReturn(1L);
+        when(tokenRepository.findAuthTokenByExpireTimeAndBetweenId(anyLong(), anyLong(), anyLong()))
+                .thenReturn(Collections.emptyList());
+
+        job().refreshTokenJob();
+
+        verify(tokenRepository).findAuthTokenByExpireTimeAndBetweenId(anyLong(), eq(1L), anyLong());
+        verify(tokenRepository, never()).findDueAuthTokens(anyLong(), anyLong(), anyLong(), anyLong(), anyInt());
+    }
+
+    @Test
+    void withDueScanPagesByKeyset() throws Exception {
+        when(tokenRepository.supportsDueScan()).thenReturn(true);
+        when(tokenRepository.findDueAuthTokens(anyLong(), anyLong(), anyLong(), anyLong(), anyInt()))
+                .thenReturn(Collections.emptyList());
+
+        job().refreshTokenJob();
+
+        verify(tokenRepository).findDueAuthTokens(anyLong(), eq(Long.MAX_VALUE), eq(Long.MIN_VALUE), eq(0L), anyInt());
+        verify(tokenRepository, never()).getMaxTokenId();
+    }
+
+    @Test
+    void claimModeWithoutClaimSupportRunsLocally() throws Exception {
+        auth2Properties.setRefreshTokenClaimMode(RefreshTokenClaimMode.LEASE);
+        when(tokenRepository.supportsDueScan()).thenReturn(true);
+        when(tokenRepository.findDueAuthTokens(anyLong(), anyLong(), anyLong(), anyLong(), anyInt()))
+                .thenReturn(Collections.emptyList());
+
+        job().refreshTokenJob();
+
+        verify(tokenRepository, never()).claimDueAuthTokens(anyLong(), anyString(), anyLong(), anyLong(), anyInt(),
+                                                            any(RefreshTokenClaimMode.class));
+        verify(tokenRepository).findDueAuthTokens(anyLong(), anyLong(), anyLong(), anyLong(), anyInt());
+    }
+
+    @Test
+    void claimModeWithClaimSupportClaimsFromDatabase() throws Exception {
+        auth2Properties.setRefreshTokenClaimMode(RefreshTokenClaimMode.LEASE);
+        when(tokenRepository.supportsClaim()).thenReturn(true);
+        when(tokenRepository.claimDueAuthTokens(anyLong(), anyString(), anyLong(), anyLong(), anyInt(),
+                                                any(RefreshTokenClaimMode.class)))
+                .thenReturn(Collections.emptyList());
+
+        job().refreshTokenJob();
+
+        verify(tokenRepository).claimDueAuthTokens(anyLong(), anyString(), anyLong(), anyLong(), anyInt(),
+                                                   eq(RefreshTokenClaimMode.LEASE));
+        verify(tokenRepository, never()).findDueAuthTokens(anyLong(), anyLong(), anyLong(), anyLong(), anyInt());
+    }
+
+    @Test
+    void distributedRunWaitsForOtherPartitionsUntilAllDone() throws Exception {
+        when(tokenRepository.supportsDueScan()).thenReturn(true);
+        RedisConnection connection = redisConnection();
+        when(connection.get(any(byte[].class))).thenReturn(run());
+        when(connection.<Long>eval(any(byte[].class), eq(ReturnType.INTEGER), eq(3), (byte[][]) any()))
+                .thenReturn(RefreshTokenPartitionQueue.NONE_PENDING, RefreshTokenPartitionQueue.ALL_DONE);
+
+        job().refreshTokenJob();
+
+        // 没有待领取的分区时继续轮询, 直到所有分区完成
+        verify(connection, times(2)).eval(any(byte[].class), eq(ReturnType.INTEGER), eq(3), (byte[][]) any());
+        verify(tokenRepository, never()).findDueAuthTokens(anyLong(), anyLong(), anyLong(), anyLong(), anyInt());
+    }
+
+    @Test
+    void distributedRunStopsWaitingWhenRunExpired() throws Exception {
+        when(tokenRepository.supportsDueScan()).thenReturn(true);
+        RedisConnection connection = redisConnection();
+        when(connection.get(any(byte[].class))).thenReturn(run(), (byte[]) null);
+        when(connection.<Long>eval(any(byte[].class), eq(ReturnType.INTEGER), eq(3), (byte[][]) any()))
+                .thenReturn(RefreshTokenPartitionQueue.NONE_PENDING);
+
+        job().refreshTokenJob();
+
+        verify(connection, times(1)).eval(any(byte[].class), eq(ReturnType.INTEGER), eq(3), (byte[][]) any());
+    }
+
+    @Test
+    void distributedRunRefreshesClaimedRange() throws Exception {
+        when(tokenRepository.supportsDueScan()).thenReturn(true);
+        when(tokenRepository.findDueAuthTokens(anyLong(), anyLong(), anyLong(), anyLong(), anyInt()))
+                .thenReturn(Collections.emptyList());
+        RedisConnection connection = redisConnection();
+        when(connection.get(any(byte[].class)))
+                .thenReturn("r1|1000|20,7;40,14".getBytes(StandardCharsets.UTF_8));
+        when(connection.<Long>eval(any(byte[].class), eq(ReturnType.INTEGER), eq(3), (byte[][]) any()))
+                .thenReturn(1L, RefreshTokenPartitionQueue.ALL_DONE);
+
+        job().refreshTokenJob();
+
+        // 第 1 分区的范围为 ((20, 7), (40, 14)]
+        verify(tokenRepository).findDueAuthTokens(eq(40L), eq(14L), eq(20L), eq(7L), anyInt());
+    }
+
+    @Test
+    void dueQueueSeedsAllTokensOnceThenIncrementally() throws Exception {
+        when(tokenRepository.supportsDueScan()).thenReturn(true);
+        when(tokenRepository.findDueAuthTokens(anyLong(), anyLong(), anyLong(), anyLong(), anyInt()))
+                .thenReturn(Collections.emptyList());
+        LocalRefreshTokenDueQueue dueQueue = dueQueue();
+
+        job.refreshTokenJob();
+
+        verify(tokenRepository).findDueAuthTokens(eq(Long.MAX_VALUE), eq(Long.MAX_VALUE), eq(Long.MIN_VALUE), eq(0L),
+                                                  anyInt());
+        assertThat(dueQueue.getSeededUntil()).isGreaterThan(System.currentTimeMillis());
+
+        // 已初始化时只扫描上次放入的上界之后的时间窗口
+        dueQueue.setSeededUntil(1000L);
+        job.refreshTokenJob();
+
+        verify(tokenRepository).findDueAuthTokens(longThat(until -> until > 1000L && until < Long.MAX_VALUE),
+                                                  eq(Long.MAX_VALUE), eq(1000L), eq(Long.MAX_VALUE), anyInt());
+        verify(tokenRepository, times(1)).findDueAuthTokens(eq(Long.MAX_VALUE), anyLong(), anyLong(), anyLong(),
+                                                            anyInt());
+        assertThat(dueQueue.getSeededUntil()).isGreaterThan(System.currentTimeMillis());
+    }
+
+    @Test
+    void dueQueueSeedSkippedWhileSeedLockHeld() throws Exception {
+        when(tokenRepository.supportsDueScan()).thenReturn(true);
+        LocalRefreshTokenDueQueue dueQueue = dueQueue();
+        assertThat(dueQueue.tryAcquireSeedLock()).isTrue();
+
+        job.refreshTokenJob();
+
+        verify(tokenRepository, never()).findDueAuthTokens(anyLong(), anyLong(), anyLong(), anyLong(), anyInt());
+        assertThat(dueQueue.getSeededUntil()).isNull();
+    }
+
+    @Test
+    void skipsTokenWhileOnDemandRefreshHoldsLease() throws Exception {
+        Auth2DefaultRequest request = dueToken(token(1000L));
+        String owner = lease.newOwner();
+        assertThat(lease.tryAcquire(null, 1L, owner)).isTrue();
+        try
+        {
+            job().refreshTokenJob();
+        }
+        finally
+        {
+            lease.release(null, 1L, owner);
+        }
+
+        verify(request, never()).refreshToken(any(AuthTokenPo.class));
+        verify(tokenRepository, never()).findAuthTokensByIds(anyList());
+    }
+
+    @Test
+    void skipsTokenAlreadyRefreshedBeforeLeaseAcquired() throws Exception {
+        Auth2DefaultRequest request = dueToken(token(1000L));
+        // 获取租约前已被按需刷新
+        when(tokenRepository.findAuthTokensByIds(anyList())).thenReturn(Collections.singletonList(token(2000L)));
+
+        job().refreshTokenJob();
+
+        verify(request, never()).refreshToken(any(AuthTokenPo.class));
+        assertLeaseReleased();
+    }
+
+    @Test
+    void refreshesReloadedTokenAndReleasesLeaseAfterWrite() throws Exception {
+        Auth2DefaultRequest request = dueToken(token(1000L));
+        AuthTokenPo reloaded = token(1000L);
+        when(tokenRepository.findAuthTokensByIds(anyList())).thenReturn(Collections.singletonList(reloaded));
+        when(request.refreshToken(reloaded)).thenReturn(token(5000L));
+
+        job().refreshTokenJob();
+
+        verify(request).refreshToken(reloaded);
+        verify(tokenRepository).updateAuthTokens(anyList());
+        assertLeaseReleased();
+    }
+
+    @Test
+    void acquiresLeasesAndReloadsOncePerPage() throws Exception {
+        Auth2DefaultRequest request = mock(Auth2DefaultRequest.class);
+        authRequests().put(PROVIDER_ID, request);
+        when(tokenRepository.supportsDueScan()).thenReturn(true);
+        when(tokenRepository.findDueAuthTokens(anyLong(), anyLong(), anyLong(), anyLong(), anyInt()))
+                .thenReturn(Arrays.asList(token(1L, 1000L), token(2L, 1000L), token(3L, 1000L)));
+        when(tokenRepository.findAuthTokensByIds(anyList()))
+                .thenReturn(Arrays.asList(token(1L, 1000L), token(3L, 1000L)));
+        when(request.refreshToken(any(AuthTokenPo.class)))
+                .thenAnswer(invocation -> token(invocation.<AuthTokenPo>getArgument(0).getId(), 5000L));
+        // token 2 正在被按需刷新
+        String onDemand = lease.newOwner();
+        assertThat(lease.tryAcquire(null, 2L, onDemand)).isTrue();
+
+        job().refreshTokenJob();
+
+        verify(tokenRepository).findAuthTokensByIds(argThat(ids -> ids.size() == 2 && !ids.contains(2L)));
+        verify(request, times(2)).refreshToken(any(AuthTokenPo.class));
+        // 刷新结果写入后释放了 token 1, 3 的租约, 没有释放按需刷新持有的 token 2 的租约
+        assertThat(lease.tryAcquire(null, 2L, lease.newOwner())).isFalse();
+        lease.release(null, 2L, onDemand);
+        assertLeaseReleased();
+        String owner = lease.newOwner();
+        assertThat(lease.tryAcquire(null, 3L, owner)).isTrue();
+        lease.release(null, 3L, owner);
+    }
+
+    @Test
+    void waitsForOutstandingRefreshesBeforeFetchingNextPage() throws Exception {
+        auth2Properties.setBatchCount(1);
+        Auth2DefaultRequest request = mock(Auth2DefaultRequest.class);
+        authRequests().put(PROVIDER_ID, request);
+        when(tokenRepository.supportsDueScan()).thenReturn(true);
+        AtomicInteger pages = new AtomicInteger();
+        when(tokenRepository.findDueAuthTokens(anyLong(), anyLong(), anyLong(), anyLong(), anyInt()))
+                .thenAnswer(invocation -> {
+                    int page = pages.incrementAndGet();
+                    return page <= 3 ? Collections.singletonList(token(page, 1000L)) : Collections.emptyList();
+                });
+        when(tokenRepository.findAuthTokensByIds(anyList())).thenAnswer(invocation -> {
+            List<Long> ids = invocation.getArgument(0);
+            return Collections.singletonList(token(ids.get(0), 1000L));
+        });
+        List<Integer> pagesWhenRefreshed = new CopyOnWriteArrayList<>();
+        when(request.refreshToken(any(AuthTokenPo.class))).thenAnswer(invocation -> {
+            Thread.sleep(100L);
+            pagesWhenRefreshed.add(pages.get());
+            return token(invocation.<AuthTokenPo>getArgument(0).getId(), 5000L);
+        });
+
+        job().refreshTokenJob();
+
+        // 每页 1 个 token, 未完成的刷新任务不超过 1 个时才获取下一页
+        assertThat(pagesWhenRefreshed).hasSize(3);
+        assertThat(pagesWhenRefreshed.get(0)).isLessThanOrEqualTo(2);
+        assertThat(pagesWhenRefreshed.get(1)).isLessThanOrEqualTo(3);
+    }
+
+    @Test
+    void enableRefreshCorrectionRetriedUntilUpdateSucceeds() throws Exception {
+        refreshSupport().put(PROVIDER_ID, false);
+        when(tokenRepository.supportsDueScan()).thenReturn(true);
+        when(tokenRepository.updateEnableRefreshByProviderIds(eq(EnableRefresh.NO), anySet()))
+                .thenThrow(new IllegalStateException("update failed"))
+                .thenReturn(1);
+
+        job().refreshTokenJob();
+        job.refreshTokenJob();
+        job.refreshTokenJob();
+
+        // 第一次更新失败后重试, 更新成功后不再执行
+        verify(tokenRepository, times(2)).updateEnableRefreshByProviderIds(eq(EnableRefresh.NO), anySet());
+    }
+
+    /**
+     * 单机定时任务获取到 token, 第三方为 mock 的 {@link Auth2DefaultRequest}
+     */
+    private Auth2DefaultRequest dueToken(AuthTokenPo token) throws Exception {
+        Auth2DefaultRequest request = mock(Auth2DefaultRequest.class);
+        authRequests().put(PROVIDER_ID, request);
+        when(tokenRepository.supportsDueScan()).thenReturn(true);
+        when(tokenRepository.findDueAuthTokens(anyLong(), anyLong(), anyLong(), anyLong(), anyInt()))
+                .thenReturn(Collections.singletonList(token));
+        return request;
+    }
+
+    private void assertLeaseReleased() throws Exception {
+        String owner = lease.newOwner();
+        assertThat(lease.tryAcquire(null, 1L, owner)).isTrue();
+        lease.release(null, 1L, owner);
+    }
+
+    private static AuthTokenPo token(long expireTime) {
+        return token(1L, expireTime);
+    }
+
+    private static AuthTokenPo token(long id, long expireTime) {
+        AuthTokenPo token = new AuthTokenPo();
+        token.setId(id);
+        token.setProviderId(PROVIDER_ID);
+        token.setExpireTime(expireTime);
+        return token;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Boolean> refreshSupport() {
+        return (Map<String, Boolean>) ReflectionTestUtils.getField(Auth2RequestHolder.class,
+                                                                   "PROVIDER_ID_REFRESH_SUPPORT_MAP");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Auth2DefaultRequest> authRequests() {
+        return (Map<String, Auth2DefaultRequest>) ReflectionTestUtils.getField(Auth2RequestHolder.class,
+                                                                               "PROVIDER_ID_AUTH_REQUEST_MAP");
+    }
+
+    /**
+     * 设置本地到期 token 队列, 不调用 afterPropertiesSet(), 不启动刷新线程
+     */
+    private LocalRefreshTokenDueQueue dueQueue() {
+        Auth2Properties.DueQueue properties = auth2Properties.getRefreshTokenDueQueue();
+        properties.setSingleNode(true);
+        LocalRefreshTokenDueQueue dueQueue = new LocalRefreshTokenDueQueue(properties);
+        job = new RefreshTokenJobImpl(connectionRepository, tokenRepository, auth2Properties, executor, null);
+        job.setRefreshTokenDueQueue(dueQueue);
+        return dueQueue;
+    }
+
+    private RedisConnection redisConnection() {
+        auth2Properties.setRefreshTokenLeaseTtl(Duration.ofSeconds(1));
+        RedisConnectionFactory connectionFactory = mock(RedisConnectionFactory.class);
+        RedisConnection connection = mock(RedisConnection.class);
+        when(connectionFactory.getConnection()).thenReturn(connection);
+        job = new RefreshTokenJobImpl(connectionRepository, tokenRepository, auth2Properties, executor, null);
+        ReflectionTestUtils.setField(job, "redisConnectionFactory", connectionFactory);
+        return connection;
+    }
+
+    private static byte[] run() {
+        return "r1|1000|".getBytes(StandardCharsets.UTF_8);
+    }
+
+    private RefreshTokenJobImpl job() {
+        if (job != null)
+        {
+            job.afterPropertiesSet();
+            return job;
+        }
+        job = new RefreshTokenJobImpl(connectionRepository, tokenRepository, auth2Properties, executor, null);
+        job.setProviderTokenLease(lease);
+        job.afterPropertiesSet();
+        return job;
+    }
+
+}
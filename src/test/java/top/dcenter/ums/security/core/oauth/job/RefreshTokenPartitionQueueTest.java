@@ -0,0 +1,101 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.job;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.ReturnType;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * {@link RefreshTokenPartitionQueue} 租约过期时间由 redis 服务器时间计算的测试
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/24 11:20
+ */
+class RefreshTokenPartitionQueueTest {
+
+    private final RedisConnection connection = mock(RedisConnection.class);
+    private final RefreshTokenPartitionQueue queue =
+            new RefreshTokenPartitionQueue(Duration.ofSeconds(30), Duration.ofHours(6));
+    private final RefreshTokenPartitionQueue.Run run =
+            new RefreshTokenPartitionQueue.Run("r1", 1000L, new long[0][]);
+
+    @Test
+    void claimPassesLeaseTtlInsteadOfLocalClock() {
+        when(connection.<Long>eval(any(byte[].class), eq(ReturnType.INTEGER), eq(3), (byte[][]) any()))
+                .thenReturn(0L);
+
+        assertThat(queue.claim(connection, run)).isZero();
+
+        List<String> args = evalArgs(3);
+        assertThat(args.get(0)).contains("redis.call('TIME')");
+        // KEYS: pending, leases, done; ARGV: owner, leaseTtlMillis, partitions, runTtlMillis
+        assertThat(args.subList(5, args.size()))
+                .containsExactly("30000", "1", Long.toString(Duration.ofHours(6).toMillis()));
+    }
+
+    @Test
+    void heartbeatPassesLeaseTtlInsteadOfLocalClock() {
+        when(connection.<Long>eval(any(byte[].class), eq(ReturnType.INTEGER), eq(1), (byte[][]) any()))
+                .thenReturn(1L);
+
+        assertThat(queue.heartbeat(connection, run, 0L)).isTrue();
+
+        List<String> args = evalArgs(1);
+        assertThat(args.get(0)).contains("redis.call('TIME')");
+        // KEYS: leases; ARGV: owner, partition, leaseTtlMillis
+        assertThat(args.subList(3, args.size())).containsExactly("0", "30000");
+    }
+
+    /**
+     * @return  脚本与 KEYS, ARGV
+     */
+    private List<String> evalArgs(int numKeys) {
+        ArgumentCaptor<byte[]> script = ArgumentCaptor.forClass(byte[].class);
+        ArgumentCaptor<byte[]> keysAndArgs = ArgumentCaptor.forClass(byte[].class);
+        verify(connection).eval(script.capture(), eq(ReturnType.INTEGER), anyInt(), keysAndArgs.capture());
+        List<String> args = new ArrayList<>();
+        args.add(new String(script.getValue(), StandardCharsets.UTF_8));
+        for (byte[] arg : keysAndArgs.getAllValues())
+        {
+            args.add(new String(arg, StandardCharsets.UTF_8));
+        }
+        assertThat(args).hasSizeGreaterThan(numKeys);
+        return args;
+    }
+
+}
@@ -0,0 +1,244 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package top.dcenter.ums.security.core.oauth.job;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import top.dcenter.ums.security.core.oauth.properties.Auth2Properties;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * {@link RefreshTokenPipeline} 按第三方服务商排队与限流的测试
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/23 18:40
+ */
+class RefreshTokenPipelineTest {
+
+    private final ThreadPoolExecutor executor =
+            new ThreadPoolExecutor(2, 2, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(16));
+    private final Auth2Properties.RefreshTokenRateLimit rateLimit = new Auth2Properties.RefreshTokenRateLimit();
+    private RefreshTokenPipeline pipeline;
+
+    @AfterEach
+    void tearDown() {
+        if (pipeline != null)
+        {
+            pipeline.destroy();
+        }
+        executor.shutdownNow();
+    }
+
+    @Test
+    void defaultsAreUnlimited() throws Exception {
+        pipeline = new RefreshTokenPipeline(executor, rateLimit);
+        final AtomicInteger count = new AtomicInteger();
+        final List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+        {
+            futures.add(pipeline.submit("github", count::incrementAndGet));
+        }
+        for (Future<?> future : futures)
+        {
+            future.get(5, TimeUnit.SECONDS);
+        }
+
+        assertThat(count.get()).isEqualTo(100);
+        awaitCompleted("github", 100L);
+        assertThat(pipeline.getRateLimitedWaits()).containsEntry("github", 0L);
+        assertThat(pipeline.getPending()).containsEntry("github", 0);
+    }
+
+    @Test
+    void saturatedProviderQueuesWithoutBlockingSubmitterOrOtherProviders() throws Exception {
+        rateLimit.getProviderMaxInFlight().put("slow", 1);
+        pipeline = new RefreshTokenPipeline(executor, rateLimit);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        final Future<?> first = pipeline.submit("slow", () -> await(release));
+        // 达到同时执行数上限, 提交不阻塞, 任务在 slow 的队列中等待
+        final Future<?> second = pipeline.submit("slow", () -> { });
+        final Future<?> other = pipeline.submit("fast", () -> { });
+
+        other.get(5, TimeUnit.SECONDS);
+        assertThat(second.isDone()).isFalse();
+        assertThat(pipeline.getPending()).containsEntry("slow", 1);
+        assertThat(pipeline.getBackpressureWaits()).containsEntry("slow", 1L).containsEntry("fast", 0L);
+
+        release.countDown();
+        first.get(5, TimeUnit.SECONDS);
+        second.get(5, TimeUnit.SECONDS);
+        awaitCompleted("slow", 2L);
+    }
+
+    @Test
+    void rateLimitedProviderDoesNotOccupyWorkers() throws Exception {
+        rateLimit.getProviderPermitsPerSecond().put("limited", 10D);
+        rateLimit.setBurst(1);
+        pipeline = new RefreshTokenPipeline(executor, rateLimit);
+
+        final long start = System.nanoTime();
+        final List<Future<?>> limited = new ArrayList<>();
+        for (int i = 0; i < 3; i++)
+        {
+            limited.add(pipeline.submit("limited", () -> { }));
+        }
+        // 等待令牌的任务不占用工作线程, 其他第三方服务商的任务立即执行
+        pipeline.submit("other", () -> { }).get(50, TimeUnit.MILLISECONDS);
+
+        for (Future<?> future : limited)
+        {
+            future.get(5, TimeUnit.SECONDS);
+        }
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isGreaterThanOrEqualTo(150L);
+        assertThat(pipeline.getRateLimitedWaits().get("limited")).isGreaterThanOrEqualTo(2L);
+        awaitCompleted("limited", 3L);
+    }
+
+    @Test
+    void destroyRejectsPendingTasks() throws Exception {
+        rateLimit.setMaxInFlight(1);
+        pipeline = new RefreshTokenPipeline(executor, rateLimit);
+        final CountDownLatch release = new CountDownLatch(1);
+        pipeline.submit("github", () -> await(release));
+        final Future<?> pending = pipeline.submit("github", () -> { });
+
+        pipeline.destroy();
+        release.countDown();
+
+        assertThatThrownBy(() -> pending.get(5, TimeUnit.SECONDS))
+                .isInstanceOf(ExecutionException.class)
+                .hasCauseInstanceOf(RejectedExecutionException.class);
+        assertThatThrownBy(() -> pipeline.submit("github", () -> { }))
+                .isInstanceOf(RejectedExecutionException.class);
+    }
+
+    @Test
+    void fullPendingQueueBlocksSubmitterUntilTaskDispatched() throws Exception {
+        rateLimit.setMaxInFlight(1);
+        rateLimit.setMaxPending(1);
+        pipeline = new RefreshTokenPipeline(executor, rateLimit);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Future<?> first = pipeline.submit("github", () -> await(release));
+        final Future<?> queued = pipeline.submit("github", () -> { });
+        final Thread releaser = new Thread(() -> {
+            sleep(100L);
+            release.countDown();
+        });
+        releaser.start();
+
+        // 等待队列已满, 阻塞到 first 完成后 queued 被派发
+        final long start = System.nanoTime();
+        final Future<?> third = pipeline.submit("github", () -> { });
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isGreaterThanOrEqualTo(50L);
+
+        first.get(5, TimeUnit.SECONDS);
+        queued.get(5, TimeUnit.SECONDS);
+        third.get(5, TimeUnit.SECONDS);
+        releaser.join();
+        assertThat(pipeline.getSubmitWaits()).containsEntry("github", 1L);
+        awaitCompleted("github", 3L);
+    }
+
+    @Test
+    void fullPendingQueueRejectsAfterSubmitTimeout() throws Exception {
+        rateLimit.setMaxInFlight(1);
+        rateLimit.setMaxPending(1);
+        rateLimit.setSubmitTimeout(Duration.ofMillis(50));
+        pipeline = new RefreshTokenPipeline(executor, rateLimit);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Future<?> first = pipeline.submit("github", () -> await(release));
+        final Future<?> queued = pipeline.submit("github", () -> { });
+
+        assertThatThrownBy(() -> pipeline.submit("github", () -> { }))
+                .isInstanceOf(RejectedExecutionException.class);
+        assertThat(pipeline.getRejected()).containsEntry("github", 1L);
+        assertThat(pipeline.getPending()).containsEntry("github", 1);
+
+        release.countDown();
+        first.get(5, TimeUnit.SECONDS);
+        queued.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void tokenBucketReturnsWaitInsteadOfSleeping() {
+        final RefreshTokenPipeline.TokenBucket bucket = new RefreshTokenPipeline.TokenBucket(1D, 2);
+
+        assertThat(bucket.tryAcquire()).isZero();
+        assertThat(bucket.tryAcquire()).isZero();
+        final long waitNanos = bucket.tryAcquire();
+        assertThat(waitNanos).isPositive().isLessThanOrEqualTo(TimeUnit.SECONDS.toNanos(1));
+        // 未获取令牌时不预支
+        assertThat(bucket.tryAcquire()).isPositive().isLessThanOrEqualTo(waitNanos);
+        assertThat(new RefreshTokenPipeline.TokenBucket(0D, 1).tryAcquire()).isZero();
+    }
+
+    /**
+     * 任务的 Future 完成后才增加完成数, 等待统计数据更新
+     */
+    private void awaitCompleted(String providerId, long expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (!Long.valueOf(expected).equals(pipeline.getCompleted().get(providerId))
+                && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(5L);
+        }
+        assertThat(pipeline.getCompleted()).containsEntry(providerId, expected);
+    }
+
+    private static void sleep(long millis) {
+        try
+        {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try
+        {
+            latch.await(5, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
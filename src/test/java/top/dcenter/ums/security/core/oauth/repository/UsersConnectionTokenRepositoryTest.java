@@ -0,0 +1,53 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.repository;
+
+import org.junit.jupiter.api.Test;
+import top.dcenter.ums.security.core.oauth.enums.RefreshTokenClaimMode;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.CALLS_REAL_METHODS;
+import static org.mockito.Mockito.mock;
+
+/**
+ * {@link UsersConnectionTokenRepository} 可选能力的默认实现的测试
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/24 10:05
+ */
+class UsersConnectionTokenRepositoryTest {
+
+    private final UsersConnectionTokenRepository repository =
+            mock(UsersConnectionTokenRepository.class, CALLS_REAL_METHODS);
+
+    @Test
+    void optionalCapabilitiesDefaultToSafeNoOps() throws Exception {
+        assertThat(repository.supportsDueScan()).isFalse();
+        assertThat(repository.supportsClaim()).isFalse();
+        assertThat(repository.findDueAuthTokens(1L, Long.MAX_VALUE, Long.MIN_VALUE, 0L, 10)).isEmpty();
+        assertThat(repository.claimDueAuthTokens(1L, "owner", 0L, 1L, 10, RefreshTokenClaimMode.LEASE)).isEmpty();
+        assertThat(repository.claimAuthToken(1L, "owner", 0L, 1L)).isFalse();
+        repository.releaseAuthTokenClaim(1L, "owner");
+    }
+
+}
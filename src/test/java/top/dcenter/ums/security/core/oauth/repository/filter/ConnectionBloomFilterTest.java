@@ -0,0 +1,157 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.repository.filter;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import top.dcenter.ums.security.core.oauth.properties.RepositoryProperties;
+
+import java.time.Duration;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * {@link ConnectionBloomFilter} 测试: 单实例声明与写入 redis 失败后的重新构建
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/22 17:05
+ */
+class ConnectionBloomFilterTest {
+
+    private final RepositoryProperties repositoryProperties = new RepositoryProperties();
+    private final RedisBloomFilter redisBloomFilter = mock(RedisBloomFilter.class);
+    private JdbcTemplate jdbcTemplate;
+    private ConnectionBloomFilter filter;
+
+    @BeforeEach
+    void setUp() {
+        DriverManagerDataSource dataSource =
+                new DriverManagerDataSource("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1", "sa", "");
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.execute("create table user_connection (providerId varchar(255), providerUserId varchar(255))");
+        jdbcTemplate.update("insert into user_connection values ('github', '1')");
+        RepositoryProperties.BloomFilter properties = repositoryProperties.getBloomFilter();
+        properties.setInitialCapacity(1000L);
+        properties.setRebuildDelay(Duration.ofMillis(10));
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (filter != null)
+        {
+            filter.destroy();
+        }
+        jdbcTemplate.execute("drop all objects");
+    }
+
+    @Test
+    void localOnlyFilterRequiresSingleNode() {
+        assertThatThrownBy(() -> new ConnectionBloomFilter(jdbcTemplate, repositoryProperties, null))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("single-node");
+    }
+
+    @Test
+    void singleNodeTrustsLocalNegatives() throws InterruptedException {
+        repositoryProperties.getBloomFilter().setSingleNode(true);
+        filter = new ConnectionBloomFilter(jdbcTemplate, repositoryProperties, null);
+        // 构建完成前总是返回 true
+        assertThat(filter.mightContain("github", "2")).isTrue();
+
+        build();
+
+        assertThat(filter.mightContain("github", "1")).isTrue();
+        assertThat(filter.mightContain("github", "2")).isFalse();
+        filter.put("github", "2");
+        assertThat(filter.mightContain("github", "2")).isTrue();
+    }
+
+    @Test
+    void failedRedisPutRebuildsRedisFilter() throws InterruptedException {
+        when(redisBloomFilter.isReady()).thenReturn(true);
+        when(redisBloomFilter.tryLockBuild(any(Duration.class))).thenReturn(true);
+        doThrow(new QueryTimeoutException("timeout")).when(redisBloomFilter).put(any(long[].class));
+        filter = new ConnectionBloomFilter(jdbcTemplate, repositoryProperties, redisBloomFilter);
+        build();
+        jdbcTemplate.update("insert into user_connection values ('github', '2')");
+
+        filter.put("github", "2");
+
+        verify(redisBloomFilter, timeout(2000).atLeast(2)).invalidate();
+        verify(redisBloomFilter, timeout(2000)).markReady();
+        verify(redisBloomFilter).putAll(anyList());
+    }
+
+    @Test
+    void rebuildRetriesWhileOtherInstanceHoldsBuildLock() throws InterruptedException {
+        when(redisBloomFilter.isReady()).thenReturn(true);
+        when(redisBloomFilter.tryLockBuild(any(Duration.class))).thenReturn(false, false, true);
+        filter = new ConnectionBloomFilter(jdbcTemplate, repositoryProperties, redisBloomFilter);
+        build();
+
+        filter.scheduleRebuild();
+
+        verify(redisBloomFilter, timeout(2000)).markReady();
+        verify(redisBloomFilter, atLeast(3)).tryLockBuild(any(Duration.class));
+    }
+
+    @Test
+    void rebuildNotScheduledWhenRedisPutSucceeds() throws InterruptedException {
+        when(redisBloomFilter.isReady()).thenReturn(true);
+        filter = new ConnectionBloomFilter(jdbcTemplate, repositoryProperties, redisBloomFilter);
+        build();
+
+        filter.put("github", "2");
+        TimeUnit.MILLISECONDS.sleep(100);
+
+        verify(redisBloomFilter, never()).invalidate();
+        verify(redisBloomFilter, never()).tryLockBuild(any(Duration.class));
+    }
+
+    private void build() throws InterruptedException {
+        filter.afterSingletonsInstantiated();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!filter.isLocalReady() && System.currentTimeMillis() < deadline)
+        {
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        assertThat(filter.isLocalReady()).isTrue();
+    }
+
+}
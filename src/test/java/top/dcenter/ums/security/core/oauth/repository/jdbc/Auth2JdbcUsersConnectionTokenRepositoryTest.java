@@ -0,0 +1,254 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.repository.jdbc;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.annotation.AnnotationUtils;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.security.crypto.encrypt.Encryptors;
+import org.springframework.transaction.annotation.Isolation;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import top.dcenter.ums.security.core.oauth.entity.AuthTokenPo;
+import top.dcenter.ums.security.core.oauth.enums.RefreshTokenClaimMode;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static top.dcenter.ums.security.core.oauth.enums.EnableRefresh.NO;
+
+/**
+ * {@link Auth2JdbcUsersConnectionTokenRepository} 到期 token 键集分页与租约 sql 测试(H2 MySQL 模式)
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/23 14:20
+ */
+class Auth2JdbcUsersConnectionTokenRepositoryTest {
+
+    private static final String AUTH_TOKEN_COLUMNS = "id bigint primary key, enableRefresh tinyint default 1, "
+            + "providerId varchar(20), accessToken varchar(512), expireIn bigint, refreshTokenExpireIn bigint, "
+            + "refreshToken varchar(512), uid varchar(20), openId varchar(256), accessCode varchar(256), "
+            + "unionId varchar(256), scope varchar(256), tokenType varchar(20), idToken varchar(256), "
+            + "macAlgorithm varchar(20), macKey varchar(256), code varchar(256), oauthToken varchar(256), "
+            + "oauthTokenSecret varchar(256), userId varchar(64), screenName varchar(64), "
+            + "oauthCallbackConfirmed varchar(64), expireTime bigint default -1";
+
+    private JdbcTemplate jdbcTemplate;
+    private Auth2JdbcUsersConnectionTokenRepository repository;
+
+    @BeforeEach
+    void setUp() {
+        DriverManagerDataSource dataSource = new DriverManagerDataSource(
+                "jdbc:h2:mem:" + UUID.randomUUID() + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE;"
+                        + "CASE_INSENSITIVE_IDENTIFIERS=TRUE;DB_CLOSE_DELAY=-1", "sa", "");
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.execute("create table auth_token (" + AUTH_TOKEN_COLUMNS
+                                     + ", claimedBy varchar(64), claimedUntil bigint not null default -1)");
+        repository = new Auth2JdbcUsersConnectionTokenRepository(jdbcTemplate, Encryptors.noOpText(), "auth_token");
+    }
+
+    @AfterEach
+    void tearDown() {
+        jdbcTemplate.execute("drop all objects");
+    }
+
+    @Test
+    void supportsClaimOnlyWithClaimColumns() {
+        assertThat(repository.supportsDueScan()).isTrue();
+        assertThat(repository.supportsClaim()).isTrue();
+
+        jdbcTemplate.execute("create table legacy_auth_token (" + AUTH_TOKEN_COLUMNS + ")");
+        Auth2JdbcUsersConnectionTokenRepository legacy =
+                new Auth2JdbcUsersConnectionTokenRepository(jdbcTemplate, Encryptors.noOpText(), "legacy_auth_token");
+        assertThat(legacy.supportsClaim()).isFalse();
+    }
+
+    @Test
+    void findDueAuthTokensPagesByExpireTimeAndId() {
+        // 相同 expireTime 的记录按 id 排序, 跨页时不重复也不遗漏
+        insert(1L, 300L);
+        insert(2L, 100L);
+        insert(3L, 100L);
+        insert(4L, 200L);
+        insert(5L, 100L);
+        insert(6L, 900L);
+        insert(7L, 100L);
+        jdbcTemplate.update("update auth_token set enableRefresh = 0 where id = 7");
+
+        List<Long> ids = new ArrayList<>();
+        long lastExpireTime = Long.MIN_VALUE;
+        long lastId = 0L;
+        List<AuthTokenPo> page;
+        do
+        {
+            page = repository.findDueAuthTokens(300L, Long.MAX_VALUE, lastExpireTime, lastId, 2);
+            if (!page.isEmpty())
+            {
+                AuthTokenPo last = page.get(page.size() - 1);
+                lastExpireTime = last.getExpireTime();
+                lastId = last.getId();
+            }
+            page.forEach(token -> ids.add(token.getId()));
+        } while (page.size() >= 2);
+
+        assertThat(ids).containsExactly(2L, 3L, 5L, 4L, 1L);
+    }
+
+    @Test
+    void boundariesSplitDueTokensIntoBalancedRanges() {
+        // 相同 expireTime 的记录可能跨分区, 按 (expireTime, id) 划分
+        for (long id = 1L; id <= 20L; id++)
+        {
+            insert(id, (id / 3) * 10L);
+        }
+        insert(21L, 5000L);
+
+        List<long[]> boundaries = repository.findDueAuthTokenBoundaries(1000L, 3);
+        assertThat(boundaries).hasSize(2);
+        assertThat(boundaries.get(0)).containsExactly(20L, 7L);
+        assertThat(boundaries.get(1)).containsExactly(40L, 14L);
+
+        List<Long> ids = new ArrayList<>();
+        long[] lower = {Long.MIN_VALUE, 0L};
+        for (int partition = 0; partition < 3; partition++)
+        {
+            long[] upper = partition < boundaries.size() ? boundaries.get(partition) : new long[]{1000L, Long.MAX_VALUE};
+            List<Long> partitionIds = repository.findDueAuthTokens(upper[0], upper[1], lower[0], lower[1], 100)
+                                                .stream().map(AuthTokenPo::getId).collect(Collectors.toList());
+            assertThat(partitionIds).hasSizeBetween(6, 7);
+            ids.addAll(partitionIds);
+            lower = upper;
+        }
+
+        assertThat(ids).hasSize(20).doesNotHaveDuplicates().doesNotContain(21L);
+        assertThat(repository.findDueAuthTokenBoundaries(1000L, 1)).isEmpty();
+        assertThat(repository.findDueAuthTokenBoundaries(-1L, 3)).isEmpty();
+    }
+
+    @Test
+    void leaseClaimsAreExclusiveUntilExpired() {
+        for (long id = 1L; id <= 5L; id++)
+        {
+            insert(id, id * 10L);
+        }
+        insert(6L, 10000L);
+
+        List<AuthTokenPo> first = repository.claimDueAuthTokens(100L, "a", 1000L, 2000L, 3,
+                                                                 RefreshTokenClaimMode.LEASE);
+        List<AuthTokenPo> second = repository.claimDueAuthTokens(100L, "b", 1000L, 2000L, 3,
+                                                                  RefreshTokenClaimMode.LEASE);
+        List<AuthTokenPo> none = repository.claimDueAuthTokens(100L, "c", 1000L, 2000L, 3,
+                                                                RefreshTokenClaimMode.LEASE);
+
+        assertThat(first).extracting(AuthTokenPo::getId).containsExactly(1L, 2L, 3L);
+        assertThat(second).extracting(AuthTokenPo::getId).containsExactly(4L, 5L);
+        assertThat(none).isEmpty();
+        assertThat(claimedBy(1L)).isEqualTo("a");
+        assertThat(claimedBy(4L)).isEqualTo("b");
+        assertThat(claimedBy(6L)).isNull();
+
+        // 租约过期后可以重新领取
+        List<AuthTokenPo> reclaimed = repository.claimDueAuthTokens(100L, "d", 2001L, 3000L, 10,
+                                                                     RefreshTokenClaimMode.LEASE);
+        assertThat(reclaimed).extracting(AuthTokenPo::getId).containsExactly(1L, 2L, 3L, 4L, 5L);
+    }
+
+    @Test
+    void refreshedTokensReleaseClaims() {
+        insert(1L, 10L);
+        insert(2L, 20L);
+        List<AuthTokenPo> claimed = repository.claimDueAuthTokens(100L, "a", 1000L, 2000L, 10,
+                                                                   RefreshTokenClaimMode.LEASE);
+        assertThat(claimed).hasSize(2);
+
+        claimed.forEach(token -> token.setExpireTime(5000L));
+        repository.updateAuthTokens(claimed.subList(0, 1));
+        repository.updateAuthToken(claimed.get(1));
+
+        // 刷新结果写入时释放租约, 不需要等待租约过期
+        assertThat(claimedBy(1L)).isNull();
+        assertThat(claimedBy(2L)).isNull();
+        assertThat(jdbcTemplate.queryForList("select claimedUntil from auth_token order by id", Long.class))
+                .containsExactly(-1L, -1L);
+        assertThat(repository.claimAuthToken(1L, "b", 1000L, 2000L)).isTrue();
+    }
+
+    @Test
+    void claimRunsInItsOwnReadCommittedTransaction() throws Exception {
+        Transactional transactional = AnnotationUtils.findAnnotation(
+                Auth2JdbcUsersConnectionTokenRepository.class.getMethod("claimDueAuthTokens", Long.class, String.class,
+                                                                        Long.class, Long.class, int.class,
+                                                                        RefreshTokenClaimMode.class),
+                Transactional.class);
+
+        assertThat(transactional).isNotNull();
+        assertThat(transactional.propagation()).isEqualTo(Propagation.REQUIRES_NEW);
+        assertThat(transactional.isolation()).isEqualTo(Isolation.READ_COMMITTED);
+    }
+
+    @Test
+    void singleTokenClaimAndRelease() {
+        insert(1L, 10L);
+
+        assertThat(repository.claimAuthToken(1L, "a", 1000L, 2000L)).isTrue();
+        assertThat(repository.claimAuthToken(1L, "b", 1500L, 2500L)).isFalse();
+
+        // 租约标识不一致时不释放
+        repository.releaseAuthTokenClaim(1L, "b");
+        assertThat(claimedBy(1L)).isEqualTo("a");
+
+        repository.releaseAuthTokenClaim(1L, "a");
+        assertThat(claimedBy(1L)).isNull();
+        assertThat(repository.claimAuthToken(1L, "b", 1500L, 2500L)).isTrue();
+    }
+
+    @Test
+    void updateEnableRefreshByProviderIds() {
+        insert(1L, 10L);
+        insert(2L, 10L);
+        jdbcTemplate.update("update auth_token set providerId = 'gitee' where id = 2");
+
+        assertThat(repository.updateEnableRefreshByProviderIds(NO, Collections.singleton("github"))).isEqualTo(1);
+        assertThat(repository.updateEnableRefreshByProviderIds(NO, Collections.singleton("github"))).isZero();
+
+        assertThat(repository.findDueAuthTokens(100L, Long.MAX_VALUE, Long.MIN_VALUE, 0L, 10))
+                .extracting(AuthTokenPo::getId).containsExactly(2L);
+    }
+
+    private void insert(long id, long expireTime) {
+        jdbcTemplate.update("insert into auth_token (id, providerId, accessToken, expireTime) values (?, 'github', ?, ?)",
+                            id, "token-" + id, expireTime);
+    }
+
+    private String claimedBy(long id) {
+        return jdbcTemplate.queryForObject("select claimedBy from auth_token where id = ?", String.class, id);
+    }
+
+}
@@ -0,0 +1,125 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.repository.jdbc.cache;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.PropertyAccessor;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.jsontype.impl.LaissezFaireSubTypeValidator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.data.redis.serializer.Jackson2JsonRedisSerializer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link CompactRedisSerializer} 与 JSON(与 RedisCacheAutoConfiguration 相同的 default typing 配置) 的序列化/反序列化耗时基准测试,
+ * 每个缓存项的字节数在 setup 时打印. 运行 {@link #main(String[])}: <br>
+ * {@code mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=top.dcenter.ums.security.core.oauth.repository.jdbc.cache.CompactRedisSerializerBenchmark}
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/21 17:32
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompactRedisSerializerBenchmark {
+
+    @Param({"json", "compact"})
+    private String codec;
+
+    @Param({"connectionDataList", "authTokenPo"})
+    private String valueType;
+
+    private RedisSerializer<Object> serializer;
+    private Object value;
+    private byte[] bytes;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        RedisSerializer<Object> json = jsonSerializer();
+        serializer = "compact".equals(codec) ? new CompactRedisSerializer(json) : json;
+        if ("authTokenPo".equals(valueType))
+        {
+            value = CompactRedisSerializerTest.authTokenPo(1L);
+        }
+        else
+        {
+            ArrayList<Object> list = new ArrayList<>();
+            for (long i = 1; i <= 3; i++)
+            {
+                list.add(CompactRedisSerializerTest.connectionData("u1", i));
+            }
+            value = list;
+        }
+        bytes = serializer.serialize(value);
+        System.out.printf("%n[bytes per entry] codec=%s, valueType=%s, bytes=%d%n", codec, valueType, bytes.length);
+    }
+
+    @Benchmark
+    public byte[] serialize() {
+        return serializer.serialize(value);
+    }
+
+    @Benchmark
+    public Object deserialize() {
+        return serializer.deserialize(bytes);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static RedisSerializer<Object> jsonSerializer() {
+        Jackson2JsonRedisSerializer<Object> serializer = new Jackson2JsonRedisSerializer<>(Object.class);
+        ObjectMapper om = new ObjectMapper();
+        om.setVisibility(PropertyAccessor.ALL, JsonAutoDetect.Visibility.ANY);
+        om.activateDefaultTyping(LaissezFaireSubTypeValidator.instance, ObjectMapper.DefaultTyping.NON_FINAL);
+        om.configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false);
+        om.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        serializer.setObjectMapper(om);
+        return serializer;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(CompactRedisSerializerBenchmark.class.getSimpleName()).build()).run();
+    }
+
+}
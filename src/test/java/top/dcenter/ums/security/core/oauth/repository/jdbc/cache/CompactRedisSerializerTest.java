@@ -0,0 +1,158 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.repository.jdbc.cache;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.serializer.GenericJackson2JsonRedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+import org.springframework.util.LinkedMultiValueMap;
+import top.dcenter.ums.security.core.oauth.entity.AuthTokenPo;
+import top.dcenter.ums.security.core.oauth.entity.ConnectionData;
+import top.dcenter.ums.security.core.oauth.enums.EnableRefresh;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * {@link CompactRedisSerializer} 序列化/反序列化往返测试
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/21 17:05
+ */
+class CompactRedisSerializerTest {
+
+    private final GenericJackson2JsonRedisSerializer json = new GenericJackson2JsonRedisSerializer();
+    private final CompactRedisSerializer serializer = new CompactRedisSerializer(json);
+
+    @Test
+    void connectionDataRoundTrip() {
+        ConnectionData data = connectionData("u1", 1L);
+        data.setDisplayName(null);
+
+        byte[] bytes = serializer.serialize(data);
+
+        assertThat(bytes[0]).isEqualTo(CompactRedisSerializer.MAGIC);
+        assertThat(serializer.deserialize(bytes)).usingRecursiveComparison().isEqualTo(data);
+    }
+
+    @Test
+    void authTokenPoRoundTrip() {
+        AuthTokenPo token = authTokenPo(1L);
+
+        Object result = serializer.deserialize(serializer.serialize(token));
+
+        assertThat(result).isInstanceOf(AuthTokenPo.class).usingRecursiveComparison().isEqualTo(token);
+    }
+
+    @Test
+    void collectionsRoundTrip() {
+        ArrayList<ConnectionData> list = new ArrayList<>(Arrays.asList(connectionData("u1", 1L),
+                                                                       connectionData("u1", 2L)));
+        LinkedMultiValueMap<String, ConnectionData> map = new LinkedMultiValueMap<>();
+        map.add("github", connectionData("u1", 1L));
+        map.add("gitee", connectionData("u1", 2L));
+        HashSet<String> set = new HashSet<>(Arrays.asList("a", "b"));
+
+        assertThat(serializer.deserialize(serializer.serialize(list))).usingRecursiveComparison().isEqualTo(list);
+        assertThat(serializer.deserialize(serializer.serialize(map))).usingRecursiveComparison().isEqualTo(map);
+        assertThat(serializer.deserialize(serializer.serialize(set))).isEqualTo(set);
+        assertThat(serializer.deserialize(serializer.serialize(new ArrayList<>()))).isEqualTo(Collections.emptyList());
+    }
+
+    @Test
+    void compactIsSmallerThanJson() {
+        ArrayList<ConnectionData> list = new ArrayList<>(Arrays.asList(connectionData("u1", 1L),
+                                                                       connectionData("u1", 2L)));
+
+        assertThat(serializer.serialize(list).length).isLessThan(json.serialize(list).length / 2);
+    }
+
+    @Test
+    void unsupportedTypeAndLegacyJsonUseDelegate() {
+        Map<String, Object> value = new HashMap<>();
+        value.put("k", "v");
+
+        byte[] bytes = serializer.serialize(value);
+
+        assertThat(bytes[0]).isNotEqualTo(CompactRedisSerializer.MAGIC);
+        assertThat(serializer.deserialize(bytes)).isEqualTo(value);
+
+        List<ConnectionData> legacy = new ArrayList<>(Collections.singletonList(connectionData("u1", 1L)));
+        assertThat(serializer.deserialize(json.serialize(legacy))).usingRecursiveComparison().isEqualTo(legacy);
+    }
+
+    @Test
+    void unknownVersionAndCorruptedDataAreRejected() {
+        byte[] bytes = serializer.serialize(connectionData("u1", 1L));
+
+        byte[] unknownVersion = bytes.clone();
+        unknownVersion[1] = 99;
+        assertThatThrownBy(() -> serializer.deserialize(unknownVersion)).isInstanceOf(SerializationException.class);
+
+        byte[] truncated = Arrays.copyOf(bytes, bytes.length / 2);
+        assertThatThrownBy(() -> serializer.deserialize(truncated)).isInstanceOf(SerializationException.class);
+    }
+
+    static ConnectionData connectionData(String userId, long tokenId) {
+        return ConnectionData.builder()
+                             .userId(userId)
+                             .providerId("github")
+                             .providerUserId("p" + tokenId)
+                             .rank(1)
+                             .displayName("用户" + tokenId)
+                             .profileUrl("https://github.com/p" + tokenId)
+                             .imageUrl("https://avatars.githubusercontent.com/u/" + tokenId)
+                             .accessToken("access-token-" + tokenId)
+                             .tokenId(tokenId)
+                             .refreshToken("refresh-token-" + tokenId)
+                             .expireTime(System.currentTimeMillis() + 7_200_000L)
+                             .build();
+    }
+
+    static AuthTokenPo authTokenPo(long id) {
+        AuthTokenPo token = new AuthTokenPo();
+        token.setId(id);
+        token.setProviderId("github");
+        token.setExpireTime(System.currentTimeMillis() + 7_200_000L);
+        token.setEnableRefresh(EnableRefresh.YES);
+        token.setAccessToken("access-token-" + id);
+        token.setExpireIn(7200);
+        token.setRefreshToken("refresh-token-" + id);
+        token.setRefreshTokenExpireIn(2_592_000);
+        token.setUid("uid-" + id);
+        token.setOpenId("open-id-" + id);
+        token.setScope("read:user");
+        token.setTokenType("bearer");
+        token.setOauthCallbackConfirmed(true);
+        return token;
+    }
+
+}
@@ -0,0 +1,271 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.repository.jdbc.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 基准测试用的内嵌 RESP 服务器: 只支持 PING/GET/SET(PX)/DEL/EXISTS/PTTL/HGET/HSET/HDEL 与单线程的内存数据,
+ * 每个连接一个线程, 支持 pipeline(输入缓冲区读空后才刷新输出). 只用于没有 redis 时比较客户端开销, 不代表 redis 的性能
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/24 11:10
+ */
+final class EmbeddedRespServer implements Closeable {
+
+    private static final byte[] OK = "+OK\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PONG = "+PONG\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NIL = "$-1\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final ServerSocket serverSocket;
+    private final Map<String, byte[]> strings = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, byte[]>> hashes = new ConcurrentHashMap<>();
+    private final Map<String, Long> expireAt = new ConcurrentHashMap<>();
+    private volatile boolean closed = false;
+
+    EmbeddedRespServer() throws IOException {
+        this.serverSocket = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(this::accept, "embedded-resp-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+    }
+
+    private void accept() {
+        while (!closed)
+        {
+            try
+            {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                Thread worker = new Thread(() -> serve(socket), "embedded-resp-connection");
+                worker.setDaemon(true);
+                worker.start();
+            }
+            catch (IOException e)
+            {
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket;
+             InputStream in = new BufferedInputStream(s.getInputStream(), 64 * 1024);
+             OutputStream out = new BufferedOutputStream(s.getOutputStream(), 64 * 1024))
+        {
+            while (!closed)
+            {
+                byte[][] command = readCommand(in);
+                execute(command, out);
+                if (in.available() == 0)
+                {
+                    out.flush();
+                }
+            }
+        }
+        catch (IOException ignored)
+        {
+            // 客户端关闭连接
+        }
+    }
+
+    private void execute(byte[][] command, OutputStream out) throws IOException {
+        String name = new String(command[0], StandardCharsets.US_ASCII).toUpperCase();
+        String key = command.length > 1 ? key(command[1]) : null;
+        switch (name)
+        {
+            case "PING":
+                out.write(PONG);
+                return;
+            case "GET":
+                bulk(out, live(key) ? strings.get(key) : null);
+                return;
+            case "SET":
+                strings.put(key, command[2]);
+                expireAt.remove(key);
+                if (command.length > 4 && "PX".equalsIgnoreCase(new String(command[3], StandardCharsets.US_ASCII)))
+                {
+                    expireAt.put(key, System.currentTimeMillis() + Long.parseLong(ascii(command[4])));
+                }
+                out.write(OK);
+                return;
+            case "DEL":
+                long deleted = 0L;
+                for (int i = 1; i < command.length; i++)
+                {
+                    String k = key(command[i]);
+                    deleted += (strings.remove(k) != null | hashes.remove(k) != null) ? 1 : 0;
+                    expireAt.remove(k);
+                }
+                integer(out, deleted);
+                return;
+            case "EXISTS":
+                integer(out, live(key) && (strings.containsKey(key) || hashes.containsKey(key)) ? 1L : 0L);
+                return;
+            case "PTTL":
+                Long at = expireAt.get(key);
+                boolean exists = live(key) && (strings.containsKey(key) || hashes.containsKey(key));
+                integer(out, !exists ? -2L : at == null ? -1L : Math.max(0L, at - System.currentTimeMillis()));
+                return;
+            case "HGET":
+                Map<String, byte[]> hash = live(key) ? hashes.get(key) : null;
+                bulk(out, hash == null ? null : hash.get(key(command[2])));
+                return;
+            case "HSET":
+                Map<String, byte[]> target = hashes.computeIfAbsent(key, k -> new ConcurrentHashMap<>());
+                integer(out, target.put(key(command[2]), command[3]) == null ? 1L : 0L);
+                return;
+            case "HDEL":
+                Map<String, byte[]> fields = hashes.get(key);
+                integer(out, fields != null && fields.remove(key(command[2])) != null ? 1L : 0L);
+                return;
+            default:
+                out.write(("-ERR unknown command '" + name + "'\r\n").getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    /**
+     * 过期的 key 在读取时删除
+     */
+    private boolean live(String key) {
+        Long at = expireAt.get(key);
+        if (at != null && at <= System.currentTimeMillis())
+        {
+            strings.remove(key);
+            hashes.remove(key);
+            expireAt.remove(key);
+            return false;
+        }
+        return true;
+    }
+
+    private static byte[][] readCommand(InputStream in) throws IOException {
+        expect(in, '*');
+        int count = (int) readLong(in);
+        byte[][] command = new byte[count][];
+        for (int i = 0; i < count; i++)
+        {
+            expect(in, '$');
+            int length = (int) readLong(in);
+            byte[] value = new byte[length];
+            int read = 0;
+            while (read < length)
+            {
+                int n = in.read(value, read, length - read);
+                if (n < 0)
+                {
+                    throw new EOFException();
+                }
+                read += n;
+            }
+            // \r\n
+            in.read();
+            in.read();
+            command[i] = value;
+        }
+        return command;
+    }
+
+    private static void expect(InputStream in, char type) throws IOException {
+        int b = in.read();
+        if (b < 0)
+        {
+            throw new EOFException();
+        }
+        if (b != type)
+        {
+            throw new IOException("unexpected RESP type: " + (char) b);
+        }
+    }
+
+    private static long readLong(InputStream in) throws IOException {
+        long value = 0L;
+        boolean negative = false;
+        int b;
+        while ((b = in.read()) != '\r')
+        {
+            if (b < 0)
+            {
+                throw new EOFException();
+            }
+            if (b == '-')
+            {
+                negative = true;
+            }
+            else
+            {
+                value = value * 10 + (b - '0');
+            }
+        }
+        // \n
+        in.read();
+        return negative ? -value : value;
+    }
+
+    private static void bulk(OutputStream out, byte[] value) throws IOException {
+        if (value == null)
+        {
+            out.write(NIL);
+            return;
+        }
+        out.write(('$' + Integer.toString(value.length) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.write(value);
+        out.write('\r');
+        out.write('\n');
+    }
+
+    private static void integer(OutputStream out, long value) throws IOException {
+        out.write((':' + Long.toString(value) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static String key(byte[] bytes) {
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    private static String ascii(byte[] bytes) {
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+}
@@ -0,0 +1,84 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.repository.jdbc.cache;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * 用 map 存储数据的 {@link RedisHashCacheWriter} mock, 用于不依赖 redis 的单元测试
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/21 9:30
+ */
+final class MapBackedCacheWriter {
+
+    /**
+     * key 为 redis key(hash 缓存时为 redis key + '#' + field), value 为缓存值
+     */
+    final Map<String, byte[]> store = new ConcurrentHashMap<>();
+    /**
+     * key 为租约 key, value 为租约持有者
+     */
+    final Map<String, String> leases = new ConcurrentHashMap<>();
+    final RedisHashCacheWriter writer = mock(RedisHashCacheWriter.class);
+
+    MapBackedCacheWriter() {
+        when(writer.get(anyString(), any(byte[].class)))
+                .thenAnswer(invocation -> store.get(key(invocation.getArgument(1))));
+        when(writer.hGet(anyString(), any(byte[].class), any(byte[].class)))
+                .thenAnswer(invocation -> store.get(key(invocation.getArgument(1), invocation.getArgument(2))));
+        doAnswer(invocation -> store.put(key(invocation.getArgument(1)), invocation.getArgument(2)))
+                .when(writer).put(anyString(), any(byte[].class), any(byte[].class), any(Duration.class));
+        doAnswer(invocation -> store.put(key(invocation.getArgument(1), invocation.getArgument(2)),
+                                         invocation.getArgument(3)))
+                .when(writer).hPut(anyString(), any(byte[].class), any(byte[].class), any(byte[].class),
+                                   any(Duration.class));
+        doAnswer(invocation -> store.remove(key(invocation.getArgument(1))))
+                .when(writer).remove(anyString(), any(byte[].class));
+        doAnswer(invocation -> store.remove(key(invocation.getArgument(1), invocation.getArgument(2))))
+                .when(writer).hRemove(anyString(), any(byte[].class), any(byte[].class));
+        when(writer.tryLease(anyString(), any(byte[].class), any(byte[].class), any(Duration.class)))
+                .thenAnswer(invocation -> leases.putIfAbsent(key(invocation.getArgument(1)),
+                                                             key(invocation.getArgument(2))) == null);
+        doAnswer(invocation -> leases.remove(key(invocation.getArgument(1)), key(invocation.getArgument(2))))
+                .when(writer).releaseLease(anyString(), any(byte[].class), any(byte[].class));
+    }
+
+    static String key(byte[] key) {
+        return new String(key, StandardCharsets.UTF_8);
+    }
+
+    static String key(byte[] key, byte[] field) {
+        return key(key) + "#" + key(field);
+    }
+
+}
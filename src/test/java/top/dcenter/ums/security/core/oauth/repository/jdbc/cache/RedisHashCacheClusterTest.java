@@ -0,0 +1,179 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.repository.jdbc.cache;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.cache.RedisCacheConfiguration;
+import org.springframework.data.redis.connection.ClusterSlotHashUtil;
+import org.springframework.data.redis.connection.RedisClusterConnection;
+import org.springframework.data.redis.connection.RedisClusterNode;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.RedisNode;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.ScanOptions;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Redis Cluster 兼容测试: hash tag, 批量命令不使用 MULTI/EXEC, 按 master 节点扫描与按 slot 分组删除
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/22 14:20
+ */
+class RedisHashCacheClusterTest {
+
+    private final RedisConnectionFactory connectionFactory = mock(RedisConnectionFactory.class);
+
+    @Test
+    void hashTagKeepsHashKeyAndLeaseKeyInSameSlot() {
+        MapBackedCacheWriter cacheWriter = new MapBackedCacheWriter();
+        List<String> leaseKeys = new ArrayList<>();
+        when(cacheWriter.writer.tryLease(anyString(), any(byte[].class), any(byte[].class), any(Duration.class)))
+                .thenAnswer(invocation -> leaseKeys.add(MapBackedCacheWriter.key(invocation.getArgument(1))));
+        RedisHashCache cache = new RedisHashCache("test", cacheWriter.writer, RedisCacheConfiguration.defaultCacheConfig(),
+                                                  RedisHashCacheLoadLease.of(Duration.ofSeconds(10), Duration.ofMillis(500),
+                                                                             Duration.ofMillis(20)),
+                                                  null, null, null, null, true);
+
+        assertThat(cache.get("hs:github__12345", () -> "v1")).isEqualTo("v1");
+
+        assertThat(cacheWriter.store).containsOnlyKeys("test::{hs:github}#12345");
+        assertThat(leaseKeys).containsExactly("test::{hs:github}__12345~lease");
+        assertThat(ClusterSlotHashUtil.calculateSlot(leaseKeys.get(0)))
+                .isEqualTo(ClusterSlotHashUtil.calculateSlot("test::{hs:github}"));
+    }
+
+    @Test
+    void keysWithoutHashTagWhenDisabled() {
+        MapBackedCacheWriter cacheWriter = new MapBackedCacheWriter();
+        RedisHashCache cache = new RedisHashCache("test", cacheWriter.writer, RedisCacheConfiguration.defaultCacheConfig(),
+                                                  null);
+
+        cache.put("hs:github__12345", "v1");
+
+        assertThat(cacheWriter.store).containsOnlyKeys("test::hs:github#12345");
+    }
+
+    @Test
+    void batchSkipsMultiExecOnClusterConnection() {
+        RedisClusterConnection connection = mock(RedisClusterConnection.class);
+        when(connectionFactory.getConnection()).thenReturn(connection);
+        RedisHashCacheWriter writer = new RedisHashCacheWriter(connectionFactory, Duration.ZERO);
+
+        writer.executeBatch(Collections.singletonList("c"),
+                            Collections.singletonList(writer.hPutCommand(bytes("c::h1"), bytes("f1"), bytes("v1"),
+                                                                         Duration.ofSeconds(10))));
+
+        verify(connection).openPipeline();
+        verify(connection).hSet(bytes("c::h1"), bytes("f1"), bytes("v1"));
+        verify(connection, never()).multi();
+        verify(connection, never()).exec();
+        verify(connection).closePipeline();
+    }
+
+    @Test
+    void batchUsesMultiExecOnStandaloneConnection() {
+        RedisConnection connection = mock(RedisConnection.class);
+        when(connectionFactory.getConnection()).thenReturn(connection);
+        RedisHashCacheWriter writer = new RedisHashCacheWriter(connectionFactory, Duration.ZERO);
+
+        writer.executeBatch(Collections.singletonList("c"),
+                            Collections.singletonList(writer.hPutCommand(bytes("c::h1"), bytes("f1"), bytes("v1"),
+                                                                         Duration.ofSeconds(10))));
+
+        verify(connection).multi();
+        verify(connection).exec();
+    }
+
+    @Test
+    void cleanScansEveryMasterAndUnlinksBySlot() {
+        RedisClusterConnection connection = mock(RedisClusterConnection.class);
+        when(connectionFactory.getConnection()).thenReturn(connection);
+        RedisClusterNode master1 = node(7000, RedisNode.NodeType.MASTER);
+        RedisClusterNode master2 = node(7001, RedisNode.NodeType.MASTER);
+        RedisClusterNode replica = node(7002, RedisNode.NodeType.SLAVE);
+        when(connection.clusterGetNodes()).thenReturn(Arrays.asList(master1, master2, replica));
+        Cursor<byte[]> cursor1 = cursorOf("c::{h1}", "c::{h2}");
+        Cursor<byte[]> cursor2 = cursorOf("c::{h1}__k1");
+        when(connection.scan(any(RedisClusterNode.class), any(ScanOptions.class)))
+                .thenAnswer(invocation -> master1.equals(invocation.getArgument(0)) ? cursor1 : cursor2);
+        List<List<String>> unlinked = new ArrayList<>();
+        doAnswer(invocation -> {
+            List<String> keys = new ArrayList<>();
+            for (Object key : invocation.getArguments())
+            {
+                keys.add(MapBackedCacheWriter.key((byte[]) key));
+            }
+            unlinked.add(keys);
+            return null;
+        }).when(connection).unlink((byte[][]) any());
+        when(connection.closePipeline()).thenReturn(Arrays.asList(1L, 1L)).thenReturn(Collections.singletonList(1L));
+
+        RedisHashCacheWriter writer = new RedisHashCacheWriter(connectionFactory, Duration.ZERO,
+                                                               RedisHashCacheCleanOptions.of(10, 100, Duration.ZERO,
+                                                                                             true, null));
+        writer.clean("c", bytes("c::*"));
+
+        verify(connection, never()).scan(eq(replica), any(ScanOptions.class));
+        verify(connection, never()).scan(any(ScanOptions.class));
+        // 同一批次中不同 slot 的 key 分开删除
+        assertThat(unlinked).containsExactlyInAnyOrder(Collections.singletonList("c::{h1}"),
+                                                      Collections.singletonList("c::{h2}"),
+                                                      Collections.singletonList("c::{h1}__k1"));
+    }
+
+    private static RedisClusterNode node(int port, RedisNode.NodeType type) {
+        return RedisClusterNode.newRedisClusterNode().listeningAt("127.0.0.1", port).promotedAs(type).build();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Cursor<byte[]> cursorOf(String... keys) {
+        Iterator<String> iterator = Arrays.asList(keys).iterator();
+        Cursor<byte[]> cursor = mock(Cursor.class);
+        when(cursor.hasNext()).thenAnswer(invocation -> iterator.hasNext());
+        when(cursor.next()).thenAnswer(invocation -> bytes(iterator.next()));
+        return cursor;
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+}
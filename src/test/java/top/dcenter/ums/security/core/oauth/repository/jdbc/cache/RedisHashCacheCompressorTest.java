@@ -0,0 +1,92 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.repository.jdbc.cache;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.serializer.SerializationException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * {@link RedisHashCacheCompressor} 测试
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/21 18:25
+ */
+class RedisHashCacheCompressorTest {
+
+    private final RedisHashCacheCompressor compressor = new RedisHashCacheCompressor(64, 6);
+
+    @Test
+    void compressAndDecompressRoundTrip() {
+        byte[] value = String.join(",", Collections.nCopies(100, "{\"providerId\":\"github\"}"))
+                             .getBytes(StandardCharsets.UTF_8);
+
+        byte[] compressed = compressor.compress(value);
+
+        assertThat(RedisHashCacheCompressor.isCompressed(compressed)).isTrue();
+        assertThat(compressed.length).isLessThan(value.length);
+        assertThat(compressor.decompress(compressed)).isEqualTo(value);
+        assertThat(RedisHashCacheCompressor.inflate(compressed)).isEqualTo(value);
+        assertThat(compressor.getCompressedCount()).isEqualTo(1L);
+        assertThat(compressor.getBytesBeforeCompression()).isEqualTo(value.length);
+        assertThat(compressor.getBytesAfterCompression()).isEqualTo(compressed.length);
+    }
+
+    @Test
+    void valueBelowThresholdIsNotCompressed() {
+        byte[] value = "{\"k\":\"v\"}".getBytes(StandardCharsets.UTF_8);
+
+        assertThat(compressor.compress(value)).isSameAs(value);
+        assertThat(RedisHashCacheCompressor.isCompressed(value)).isFalse();
+        assertThat(compressor.getCompressedCount()).isZero();
+    }
+
+    @Test
+    void incompressibleValueIsStoredUncompressed() {
+        byte[] value = new byte[256];
+        new Random(1L).nextBytes(value);
+        value[0] = '{';
+
+        assertThat(compressor.compress(value)).isSameAs(value);
+        assertThat(compressor.getSkippedCount()).isEqualTo(1L);
+        assertThat(compressor.getCompressionRatio()).isEqualTo(1.0D);
+    }
+
+    @Test
+    void corruptedValueIsRejected() {
+        byte[] value = String.join("", Collections.nCopies(100, "abc")).getBytes(StandardCharsets.UTF_8);
+        byte[] compressed = compressor.compress(value);
+
+        byte[] truncated = Arrays.copyOf(compressed, 8);
+        assertThatThrownBy(() -> RedisHashCacheCompressor.inflate(truncated))
+                .isInstanceOf(SerializationException.class);
+    }
+
+}
@@ -0,0 +1,69 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.repository.jdbc.cache;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.cache.RedisCacheConfiguration;
+import top.dcenter.ums.security.core.oauth.repository.jdbc.key.HashCacheKey;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * {@link RedisHashCache} 使用 {@link HashCacheKey} 与字符串 key 指向同一个 redis hash field 的测试
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/22 15:50
+ */
+class RedisHashCacheKeyTest {
+
+    private final MapBackedCacheWriter cacheWriter = new MapBackedCacheWriter();
+
+    @Test
+    void typedKeyAndStringKeyShareEntry() {
+        RedisHashCache cache = cache(false);
+
+        cache.put(HashCacheKey.of("hs:github", "12345"), "v1");
+
+        assertThat(cacheWriter.store).containsOnlyKeys("test::hs:github#12345");
+        assertThat(cache.get("hs:github__12345").get()).isEqualTo("v1");
+
+        cache.evict("hs:github__12345");
+        assertThat(cache.get(HashCacheKey.of("hs:github", "12345"))).isNull();
+    }
+
+    @Test
+    void typedKeyWithHashTag() {
+        RedisHashCache cache = cache(true);
+
+        cache.put(HashCacheKey.of("hs:github", "12345"), "v1");
+
+        assertThat(cacheWriter.store).containsOnlyKeys("test::{hs:github}#12345");
+        assertThat(cache.get("hs:github__12345").get()).isEqualTo("v1");
+    }
+
+    private RedisHashCache cache(boolean hashTag) {
+        return new RedisHashCache("test", cacheWriter.writer, RedisCacheConfiguration.defaultCacheConfig(),
+                                  null, null, null, null, null, hashTag);
+    }
+
+}
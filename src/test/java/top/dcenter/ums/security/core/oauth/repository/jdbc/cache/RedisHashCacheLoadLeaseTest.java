@@ -0,0 +1,115 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.repository.jdbc.cache;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.RedisConnectionFailureException;
+import org.springframework.data.redis.cache.RedisCacheConfiguration;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+/**
+ * {@link RedisHashCache} 分布式加载租约({@link RedisHashCacheLoadLease})测试
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/21 10:05
+ */
+class RedisHashCacheLoadLeaseTest {
+
+    private final MapBackedCacheWriter cacheWriter = new MapBackedCacheWriter();
+    private final RedisHashCache cache =
+            new RedisHashCache("test", cacheWriter.writer, RedisCacheConfiguration.defaultCacheConfig(),
+                               RedisHashCacheLoadLease.of(Duration.ofSeconds(10), Duration.ofMillis(500),
+                                                          Duration.ofMillis(20)));
+
+    @Test
+    void leaseHolderLoadsAndReleasesLease() {
+        assertThat(cache.get("k1", () -> "v1")).isEqualTo("v1");
+
+        assertThat(cache.getLeaseAcquiredCount()).isEqualTo(1L);
+        assertThat(cacheWriter.leases).isEmpty();
+        assertThat(cache.get("k1", () -> "v2")).isEqualTo("v1");
+    }
+
+    @Test
+    void contendedNodeWaitsForLeaseHolderFill() throws Exception {
+        leaseHeldByOtherNode();
+        final AtomicInteger loads = new AtomicInteger();
+        // 模拟租约持有者在等待期间回填缓存
+        final CompletableFuture<Void> fill = CompletableFuture.runAsync(() -> {
+            try
+            {
+                TimeUnit.MILLISECONDS.sleep(100);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            cache.put("k1", "remote");
+        });
+
+        assertThat(cache.get("k1", () -> {
+            loads.incrementAndGet();
+            return "local";
+        })).isEqualTo("remote");
+        fill.get(1, TimeUnit.SECONDS);
+
+        assertThat(loads).hasValue(0);
+        assertThat(cache.getLeaseContendedCount()).isEqualTo(1L);
+        assertThat(cache.getLeaseWaitTimeoutCount()).isZero();
+    }
+
+    @Test
+    void contendedNodeLoadsItselfAfterWaitTimeout() {
+        leaseHeldByOtherNode();
+        final long start = System.nanoTime();
+
+        assertThat(cache.get("k1", () -> "local")).isEqualTo("local");
+
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isGreaterThanOrEqualTo(500L);
+        assertThat(cache.getLeaseWaitTimeoutCount()).isEqualTo(1L);
+    }
+
+    @Test
+    void redisErrorOnLeaseFallsBackToDirectLoad() {
+        when(cacheWriter.writer.tryLease(anyString(), any(byte[].class), any(byte[].class), any(Duration.class)))
+                .thenThrow(new RedisConnectionFailureException("down"));
+
+        assertThat(cache.get("k1", () -> "v1")).isEqualTo("v1");
+        assertThat(cache.getLeaseAcquiredCount()).isZero();
+    }
+
+    private void leaseHeldByOtherNode() {
+        when(cacheWriter.writer.tryLease(anyString(), any(byte[].class), any(byte[].class), any(Duration.class)))
+                .thenReturn(false);
+    }
+
+}
@@ -0,0 +1,172 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.repository.jdbc.cache;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.data.redis.cache.RedisCacheConfiguration;
+
+import java.time.Duration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+/**
+ * {@link RedisHashCache} 提前刷新与 {@link RedisHashCacheRefreshAheadInterceptor} 测试
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/22 10:45
+ */
+class RedisHashCacheRefreshAheadTest {
+
+    private final MapBackedCacheWriter cacheWriter = new MapBackedCacheWriter();
+    private final RedisHashCache cache =
+            new RedisHashCache("test", cacheWriter.writer,
+                               RedisCacheConfiguration.defaultCacheConfig().entryTtl(Duration.ofMinutes(10)),
+                               null, null, null, null, RedisHashCacheRefreshAhead.of(0.2D, Runnable::run), false);
+    private final Repository target = new Repository();
+
+    @BeforeEach
+    void remainingTtlBelowThreshold() {
+        when(cacheWriter.writer.getWithTtl(anyString(), any(byte[].class)))
+                .thenAnswer(invocation -> {
+                    byte[] value = cacheWriter.store.get(MapBackedCacheWriter.key(invocation.getArgument(1)));
+                    return value == null ? null : new IRedisHashCacheWriter.TtlValue(value, 1000L);
+                });
+    }
+
+    @Test
+    void refreshReinvokesTargetMethodThroughInterceptor() {
+        Repository proxy = proxy(true);
+
+        assertThat(proxy.find("k1")).isEqualTo("k1-1");
+        // 命中缓存, 剩余过期时间低于阈值: 返回旧值, 同时重新调用目标方法刷新缓存
+        assertThat(proxy.find("k1")).isEqualTo("k1-1");
+
+        assertThat(target.invocations.get()).isEqualTo(2);
+        assertThat(cache.get("k1").get()).isEqualTo("k1-2");
+        assertThat(cache.getStatistics().getRefreshes()).isEqualTo(1L);
+    }
+
+    @Test
+    void evictDuringRefreshDropsLoadedValue() {
+        Repository proxy = proxy(true);
+        assertThat(proxy.find("k1")).isEqualTo("k1-1");
+
+        // 刷新加载期间 k1 被 evict, 加载的值可能已过期, 不回填
+        target.onReload = () -> cache.evict("k1");
+        assertThat(proxy.find("k1")).isEqualTo("k1-1");
+
+        assertThat(target.invocations.get()).isEqualTo(2);
+        assertThat(cache.get("k1")).isNull();
+        assertThat(cache.getStatistics().getRefreshes()).isZero();
+    }
+
+    @Test
+    void evictOfOtherKeyDoesNotCancelRefresh() {
+        Repository proxy = proxy(true);
+        assertThat(proxy.find("k1")).isEqualTo("k1-1");
+
+        target.onReload = () -> cache.evict("k2");
+        assertThat(proxy.find("k1")).isEqualTo("k1-1");
+
+        assertThat(cache.get("k1").get()).isEqualTo("k1-2");
+        assertThat(cache.getStatistics().getRefreshes()).isEqualTo(1L);
+    }
+
+    @Test
+    void valueLoaderIsNotReusedWithoutInterceptor() {
+        Repository proxy = proxy(false);
+
+        assertThat(proxy.find("k1")).isEqualTo("k1-1");
+        assertThat(proxy.find("k1")).isEqualTo("k1-1");
+
+        assertThat(target.invocations.get()).isEqualTo(1);
+        assertThat(cache.getStatistics().getRefreshes()).isZero();
+    }
+
+    @Test
+    void loaderIsTakenOnlyOnce() {
+        MethodInterceptor interceptor = new RedisHashCacheRefreshAheadInterceptor();
+        ProxyFactory factory = new ProxyFactory(target);
+        factory.addAdvice(interceptor);
+        factory.addAdvice((MethodInterceptor) invocation -> {
+            Callable<Object> first = RedisHashCacheRefreshAheadInterceptor.takeCurrentLoader();
+            assertThat(first).isNotNull();
+            assertThat(RedisHashCacheRefreshAheadInterceptor.takeCurrentLoader()).isNull();
+            return first.call();
+        });
+
+        assertThat(((Repository) factory.getProxy()).find("k1")).isEqualTo("k1-1");
+        assertThat(RedisHashCacheRefreshAheadInterceptor.takeCurrentLoader()).isNull();
+    }
+
+    /**
+     * @param refreshAheadInterceptor 是否在缓存拦截器外层添加 {@link RedisHashCacheRefreshAheadInterceptor}
+     * @return 模拟 {@code @Cacheable(sync = true)} 的代理
+     */
+    private Repository proxy(boolean refreshAheadInterceptor) {
+        ProxyFactory factory = new ProxyFactory(target);
+        factory.setProxyTargetClass(true);
+        if (refreshAheadInterceptor)
+        {
+            factory.addAdvice(new RedisHashCacheRefreshAheadInterceptor());
+        }
+        factory.addAdvice((MethodInterceptor) invocation -> cache.get(invocation.getArguments()[0], () -> {
+            try
+            {
+                return invocation.proceed();
+            }
+            catch (Throwable e)
+            {
+                throw new IllegalStateException(e);
+            }
+        }));
+        return (Repository) factory.getProxy();
+    }
+
+    public static class Repository {
+
+        private final AtomicInteger invocations = new AtomicInteger();
+        /**
+         * 第二次及以后调用(提前刷新)时执行, 模拟加载期间的并发操作
+         */
+        private volatile Runnable onReload;
+
+        public String find(String id) {
+            final int invocation = invocations.incrementAndGet();
+            if (invocation > 1 && onReload != null)
+            {
+                onReload.run();
+            }
+            return id + "-" + invocation;
+        }
+    }
+
+}
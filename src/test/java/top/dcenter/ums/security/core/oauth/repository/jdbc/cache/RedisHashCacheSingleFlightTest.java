@@ -0,0 +1,153 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.repository.jdbc.cache;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.cache.Cache;
+import org.springframework.data.redis.cache.RedisCacheConfiguration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * {@link RedisHashCache#get(Object, java.util.concurrent.Callable)} single-flight 加载测试
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/21 9:40
+ */
+class RedisHashCacheSingleFlightTest {
+
+    private static final int CALLERS = 16;
+
+    private MapBackedCacheWriter cacheWriter;
+    private RedisHashCache cache;
+    private ExecutorService executor;
+
+    @BeforeEach
+    void setUp() {
+        cacheWriter = new MapBackedCacheWriter();
+        cache = new RedisHashCache("test", cacheWriter.writer, RedisCacheConfiguration.defaultCacheConfig());
+        executor = Executors.newFixedThreadPool(CALLERS);
+    }
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void concurrentCallersOfSameKeyShareOneLoad() throws Exception {
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        final List<Future<String>> futures = new ArrayList<>(CALLERS);
+        futures.add(executor.submit(() -> cache.get("k1", () -> {
+            loads.incrementAndGet();
+            entered.countDown();
+            assertThat(release.await(5, TimeUnit.SECONDS)).isTrue();
+            return "v1";
+        })));
+        assertThat(entered.await(5, TimeUnit.SECONDS)).isTrue();
+        for (int i = 1; i < CALLERS; i++)
+        {
+            futures.add(executor.submit(() -> cache.get("k1", () -> {
+                loads.incrementAndGet();
+                return "other";
+            })));
+        }
+        TimeUnit.MILLISECONDS.sleep(200);
+        release.countDown();
+
+        for (Future<String> future : futures)
+        {
+            assertThat(future.get(5, TimeUnit.SECONDS)).isEqualTo("v1");
+        }
+        assertThat(loads).hasValue(1);
+        assertThat(cache.getLoadCount()).isEqualTo(1L);
+        assertThat(cache.getWaitCount()).isGreaterThan(0L);
+    }
+
+    @Test
+    void loaderExceptionIsPropagatedToAllWaiters() throws Exception {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        final Future<String> leader = executor.submit(() -> cache.get("k1", () -> {
+            entered.countDown();
+            assertThat(release.await(5, TimeUnit.SECONDS)).isTrue();
+            throw new IllegalStateException("boom");
+        }));
+        assertThat(entered.await(5, TimeUnit.SECONDS)).isTrue();
+        final Future<String> follower = executor.submit(() -> cache.get("k1", () -> "unused"));
+        TimeUnit.MILLISECONDS.sleep(200);
+        release.countDown();
+
+        assertThatThrownBy(() -> leader.get(5, TimeUnit.SECONDS))
+                .hasRootCauseInstanceOf(IllegalStateException.class);
+        assertThatThrownBy(() -> follower.get(5, TimeUnit.SECONDS))
+                .hasRootCauseInstanceOf(IllegalStateException.class);
+        // 加载失败后不缓存, 下一次调用重新加载
+        assertThat(cache.get("k1", () -> "v2")).isEqualTo("v2");
+    }
+
+    @Test
+    void loadOfOneKeyDoesNotBlockOtherKeys() throws Exception {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        final Future<String> slow = executor.submit(() -> cache.get("slow", () -> {
+            entered.countDown();
+            assertThat(release.await(5, TimeUnit.SECONDS)).isTrue();
+            return "slow";
+        }));
+        assertThat(entered.await(5, TimeUnit.SECONDS)).isTrue();
+
+        assertThat(executor.submit(() -> cache.get("fast", () -> "fast")).get(1, TimeUnit.SECONDS))
+                .isEqualTo("fast");
+        release.countDown();
+        assertThat(slow.get(5, TimeUnit.SECONDS)).isEqualTo("slow");
+    }
+
+    @Test
+    void cachedValueIsReturnedWithoutLoading() {
+        cache.put("k1", "cached");
+        final Cache.ValueWrapper wrapper = cache.get("k1");
+
+        assertThat(wrapper).isNotNull();
+        assertThat(cache.get("k1", () -> "loaded")).isEqualTo("cached");
+        assertThat(cache.getLoadCount()).isZero();
+    }
+
+}
@@ -0,0 +1,115 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.repository.jdbc.cache;
+
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.cache.RedisCacheConfiguration;
+
+import java.time.Duration;
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+/**
+ * {@link RedisHashCacheStatistics} 与 {@link RedisHashCacheMeterBinder} 测试
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/21 18:02
+ */
+class RedisHashCacheStatisticsTest {
+
+    private final MapBackedCacheWriter cacheWriter = new MapBackedCacheWriter();
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    @Test
+    void compressionStatisticsAreExported() {
+        RedisHashCache cache = new RedisHashCache("test", cacheWriter.writer,
+                                                  RedisCacheConfiguration.defaultCacheConfig(),
+                                                  null, null, null, new RedisHashCacheCompressor(64, 6), null,
+                                                  false);
+        new RedisHashCacheMeterBinder(Collections.singletonList(cache), "cacheManager").bindTo(registry);
+        String value = String.join("", Collections.nCopies(200, "connection-data"));
+
+        cache.put("k1", value);
+        assertThat(cache.get("k1").get()).isEqualTo(value);
+
+        RedisHashCacheStatistics statistics = cache.getStatistics();
+        assertThat(statistics.getCompressedCount()).isEqualTo(1L);
+        assertThat(statistics.getDecompressedCount()).isEqualTo(1L);
+        assertThat(statistics.getCompressionRatio()).isLessThan(0.5D);
+        assertThat(registry.get("cache.compression.ratio").tag("cache", "test").gauge().value())
+                .isEqualTo(statistics.getCompressionRatio());
+        FunctionTimer compress = registry.get("cache.compression").tags("cache", "test", "operation", "compress")
+                                         .functionTimer();
+        assertThat(compress.count()).isEqualTo(1D);
+        assertThat(registry.get("cache.compression").tags("cache", "test", "operation", "decompress")
+                           .functionTimer().count()).isEqualTo(1D);
+    }
+
+    @Test
+    void loadAndLeaseStatisticsAreExported() {
+        RedisHashCache cache = new RedisHashCache("test", cacheWriter.writer,
+                                                  RedisCacheConfiguration.defaultCacheConfig(),
+                                                  RedisHashCacheLoadLease.of(Duration.ofSeconds(10),
+                                                                             Duration.ofMillis(50),
+                                                                             Duration.ofMillis(10)));
+        new RedisHashCacheMeterBinder(Collections.singletonList(cache), "cacheManager").bindTo(registry);
+
+        assertThat(cache.get("k1", () -> "v1")).isEqualTo("v1");
+        when(cacheWriter.writer.tryLease(anyString(), any(byte[].class), any(byte[].class), any(Duration.class)))
+                .thenReturn(false);
+        assertThat(cache.get("k2", () -> "v2")).isEqualTo("v2");
+
+        RedisHashCacheStatistics statistics = cache.getStatistics();
+        assertThat(statistics.getLoads()).isEqualTo(2L);
+        assertThat(statistics.getLeaseAcquired()).isEqualTo(1L);
+        assertThat(statistics.getLeaseContended()).isEqualTo(1L);
+        assertThat(statistics.getLeaseWaitTimeouts()).isEqualTo(1L);
+        assertThat(registry.get("cache.loads").tag("cache", "test").functionTimer().count()).isEqualTo(2D);
+        assertThat(registry.get("cache.load.waits").tag("cache", "test").functionTimer().count()).isZero();
+        assertThat(registry.get("cache.load.leases").tags("cache", "test", "result", "acquired")
+                           .functionCounter().count()).isEqualTo(1D);
+        assertThat(registry.get("cache.load.leases").tags("cache", "test", "result", "contended")
+                           .functionCounter().count()).isEqualTo(1D);
+        assertThat(registry.get("cache.load.leases").tags("cache", "test", "result", "wait_timeout")
+                           .functionCounter().count()).isEqualTo(1D);
+    }
+
+    @Test
+    void compressionStatisticsAreNeutralWithoutCompressor() {
+        RedisHashCache cache = new RedisHashCache("test", cacheWriter.writer,
+                                                  RedisCacheConfiguration.defaultCacheConfig());
+        new RedisHashCacheMeterBinder(Collections.singletonList(cache), "cacheManager").bindTo(registry);
+
+        RedisHashCacheStatistics statistics = cache.getStatistics();
+        assertThat(statistics.getCompressedCount()).isZero();
+        assertThat(statistics.getCompressionRatio()).isEqualTo(1.0D);
+        assertThat(registry.find("cache.compression.ratio").gauge()).isNull();
+    }
+
+}
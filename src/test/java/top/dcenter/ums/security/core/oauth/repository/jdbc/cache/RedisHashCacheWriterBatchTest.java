@@ -0,0 +1,98 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.repository.jdbc.cache;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.ReturnType;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+/**
+ * {@link RedisHashCacheWriter} 批量命令测试: 批量写入与单条写入使用相同的脚本与 ttlRefreshRatio
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/21 15:03
+ */
+class RedisHashCacheWriterBatchTest {
+
+    private static final byte[] KEY = bytes("c::h1");
+    private static final byte[] FIELD = bytes("f1");
+    private static final byte[] VALUE = bytes("v1");
+
+    private final RedisConnectionFactory connectionFactory = mock(RedisConnectionFactory.class);
+    private final RedisConnection connection = mock(RedisConnection.class);
+
+    @Test
+    void hPutCommandUsesPutScriptWhenScriptEnabled() {
+        List<Object[]> evalArgs = new ArrayList<>();
+        doAnswer(invocation -> evalArgs.add(invocation.getArguments()))
+                .when(connection).eval(any(), any(ReturnType.class), anyInt(), (byte[][]) any());
+        RedisHashCacheWriter writer = new RedisHashCacheWriter(connectionFactory, Duration.ZERO,
+                                                               RedisHashCacheCleanOptions.DEFAULT, true, 0.5D);
+
+        writer.hPutCommand(KEY, FIELD, VALUE, Duration.ofSeconds(10)).accept(connection);
+
+        verify(connection, never()).hSet(any(), any(), any());
+        verify(connection, never()).pExpire(any(), any(Long.class));
+        assertThat(evalArgs).hasSize(1);
+        Object[] args = evalArgs.get(0);
+        assertThat(new String((byte[]) args[0], StandardCharsets.UTF_8)).contains("hset").contains("pexpire");
+        assertThat(args[1]).isEqualTo(ReturnType.INTEGER);
+        assertThat(args[2]).isEqualTo(1);
+        assertThat(args).hasSize(8);
+        assertThat(args[3]).isEqualTo(KEY);
+        assertThat(args[4]).isEqualTo(FIELD);
+        assertThat(args[5]).isEqualTo(VALUE);
+        assertThat(args[6]).isEqualTo(bytes("10000"));
+        assertThat(args[7]).isEqualTo(bytes("5000"));
+    }
+
+    @Test
+    void hPutCommandUsesHSetAndPExpireWhenScriptDisabled() {
+        RedisHashCacheWriter writer = new RedisHashCacheWriter(connectionFactory, Duration.ZERO);
+
+        writer.hPutCommand(KEY, FIELD, VALUE, Duration.ofSeconds(10)).accept(connection);
+
+        verify(connection).hSet(KEY, FIELD, VALUE);
+        verify(connection).pExpire(KEY, 10000L);
+        verify(connection, never()).eval(any(), any(ReturnType.class), anyInt(), (byte[][]) any());
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,120 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.repository.jdbc.cache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link RedisHashCacheWriter} hPut/hPutIfAbsent 延迟基准测试: 对比 MULTI/EXEC(及 hSetNX + pExpire/hGet) 与 lua 脚本(EVALSHA). <br>
+ * 往返次数见 {@link RedisHashCacheWriterScriptTest}. 需要可访问的 redis, 通过 {@code -Dredis.host}(默认: localhost)
+ * 与 {@code -Dredis.port}(默认: 6379) 指定, 运行 {@link #main(String[])}: <br>
+ * {@code mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=top.dcenter.ums.security.core.oauth.repository.jdbc.cache.RedisHashCacheWriterBenchmark}
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/21 16:42
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RedisHashCacheWriterBenchmark {
+
+    private static final String NAME = "benchmark";
+    private static final byte[] KEY = "benchmark::h1".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] VALUE = new byte[256];
+    private static final Duration TTL = Duration.ofMinutes(10);
+
+    @Param({"false", "true"})
+    private boolean scriptEnabled;
+
+    private final AtomicLong fieldSequence = new AtomicLong();
+    private LettuceConnectionFactory connectionFactory;
+    private RedisHashCacheWriter writer;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        RedisStandaloneConfiguration configuration =
+                new RedisStandaloneConfiguration(System.getProperty("redis.host", "localhost"),
+                                                 Integer.getInteger("redis.port", 6379));
+        connectionFactory = new LettuceConnectionFactory(configuration);
+        connectionFactory.afterPropertiesSet();
+        writer = new RedisHashCacheWriter(connectionFactory, Duration.ZERO, RedisHashCacheCleanOptions.DEFAULT,
+                                          scriptEnabled, 0.5D);
+        writer.loadScripts();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        writer.remove(NAME, KEY);
+        connectionFactory.destroy();
+    }
+
+    @Benchmark
+    public void hPut() {
+        writer.hPut(NAME, KEY, nextField(), VALUE, TTL);
+    }
+
+    @Benchmark
+    public byte[] hPutIfAbsent() {
+        // 一半写入新 field, 一半命中已存在的 field
+        long sequence = fieldSequence.incrementAndGet();
+        return writer.hPutIfAbsent(NAME, KEY, field(sequence >> 1), VALUE, TTL);
+    }
+
+    private byte[] nextField() {
+        return field(fieldSequence.incrementAndGet() % 10_000);
+    }
+
+    private static byte[] field(long sequence) {
+        return Long.toString(sequence).getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(RedisHashCacheWriterBenchmark.class.getSimpleName()).build()).run();
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.repository.jdbc.cache;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.ScanOptions;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * {@link RedisHashCacheWriter#clean(String, byte[])} 增量清理测试
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/21 14:12
+ */
+class RedisHashCacheWriterCleanTest {
+
+    private final RedisConnectionFactory connectionFactory = mock(RedisConnectionFactory.class);
+    private final RedisConnection connection = mock(RedisConnection.class);
+    private final List<Long> progress = new ArrayList<>();
+    private final List<Boolean> finished = new ArrayList<>();
+
+    @Test
+    void cleanScansAndUnlinksInBatches() throws IOException {
+        when(connectionFactory.getConnection()).thenReturn(connection);
+        Cursor<byte[]> cursor = cursorOf("c::k1", "c::k2", "c::k3", "c::k4", "c::k5");
+        when(connection.scan(any(ScanOptions.class))).thenReturn(cursor);
+        when(connection.closePipeline()).thenReturn(Arrays.asList(2L)).thenReturn(Arrays.asList(2L))
+                                         .thenReturn(Arrays.asList(1L));
+
+        RedisHashCacheCleanOptions options = RedisHashCacheCleanOptions.of(10, 2, Duration.ZERO, true,
+                (name, deleted, done) -> {
+                    progress.add(deleted);
+                    finished.add(done);
+                });
+        RedisHashCacheWriter writer = new RedisHashCacheWriter(connectionFactory, Duration.ZERO, options);
+
+        writer.clean("c", "c::*".getBytes(StandardCharsets.UTF_8));
+
+        verify(connection, never()).keys(any());
+        verify(connection, times(3)).unlink((byte[][]) any());
+        verify(cursor).close();
+        assertThat(progress).containsExactly(2L, 4L, 5L);
+        assertThat(finished).containsExactly(false, false, true);
+    }
+
+    @Test
+    void cleanUsesDelWhenUnlinkDisabled() {
+        when(connectionFactory.getConnection()).thenReturn(connection);
+        Cursor<byte[]> cursor = cursorOf("c::k1");
+        when(connection.scan(any(ScanOptions.class))).thenReturn(cursor);
+        when(connection.closePipeline()).thenReturn(Arrays.asList(1L));
+
+        RedisHashCacheCleanOptions options = RedisHashCacheCleanOptions.of(10, 100, Duration.ZERO, false, null);
+        RedisHashCacheWriter writer = new RedisHashCacheWriter(connectionFactory, Duration.ZERO, options);
+
+        writer.clean("c", "c::*".getBytes(StandardCharsets.UTF_8));
+
+        verify(connection).del((byte[][]) any());
+        verify(connection, never()).unlink((byte[][]) any());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Cursor<byte[]> cursorOf(String... keys) {
+        Iterator<String> iterator = Arrays.asList(keys).iterator();
+        Cursor<byte[]> cursor = mock(Cursor.class);
+        when(cursor.hasNext()).thenAnswer(invocation -> iterator.hasNext());
+        when(cursor.next()).thenAnswer(invocation -> iterator.next().getBytes(StandardCharsets.UTF_8));
+        return cursor;
+    }
+
+}
@@ -0,0 +1,130 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.repository.jdbc.cache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import top.dcenter.ums.security.core.oauth.enums.CacheWriterMode;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link RedisHashCacheWriter} 连接模式吞吐量基准测试: 对比 {@link CacheWriterMode#DEDICATED}(每条命令获取并关闭 RedisConnection)
+ * 与 {@link CacheWriterMode#SHARED}(直接在共享原生连接上发送) 在 64 与 256 个并发线程下的 get/getWithTtl/put 吞吐量. <br>
+ * 通过 {@code -Dredis.host} 与 {@code -Dredis.port}(默认: 6379) 指定 redis, 未指定 redis.host 时使用
+ * {@link EmbeddedRespServer}(只比较客户端开销), 运行 {@link #main(String[])}: <br>
+ * {@code mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=top.dcenter.ums.security.core.oauth.repository.jdbc.cache.RedisHashCacheWriterModeBenchmark}
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/24 11:40
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RedisHashCacheWriterModeBenchmark {
+
+    private static final String NAME = "benchmark";
+    private static final byte[] KEY = "benchmark::k1".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] VALUE = new byte[256];
+    private static final Duration TTL = Duration.ofMinutes(10);
+
+    @Param({"DEDICATED", "SHARED"})
+    private CacheWriterMode writerMode;
+
+    private EmbeddedRespServer server;
+    private LettuceConnectionFactory connectionFactory;
+    private RedisHashCacheWriter writer;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        String host = System.getProperty("redis.host");
+        int port = Integer.getInteger("redis.port", 6379);
+        if (host == null)
+        {
+            server = new EmbeddedRespServer();
+            host = "127.0.0.1";
+            port = server.getPort();
+        }
+        connectionFactory = new LettuceConnectionFactory(new RedisStandaloneConfiguration(host, port));
+        connectionFactory.afterPropertiesSet();
+        writer = new RedisHashCacheWriter(connectionFactory, Duration.ZERO).withWriterMode(writerMode);
+        writer.put(NAME, KEY, VALUE, TTL);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        writer.remove(NAME, KEY);
+        connectionFactory.destroy();
+        if (server != null)
+        {
+            server.close();
+        }
+    }
+
+    @Benchmark
+    public byte[] get() {
+        return writer.get(NAME, KEY);
+    }
+
+    @Benchmark
+    public IRedisHashCacheWriter.TtlValue getWithTtl() {
+        return writer.getWithTtl(NAME, KEY);
+    }
+
+    @Benchmark
+    public void put() {
+        writer.put(NAME, KEY, VALUE, TTL);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads : new int[]{64, 256})
+        {
+            new Runner(new OptionsBuilder().include(RedisHashCacheWriterModeBenchmark.class.getSimpleName())
+                                           .threads(threads)
+                                           .build()).run();
+        }
+    }
+
+}
@@ -0,0 +1,150 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.repository.jdbc.cache;
+
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.SetArgs;
+import io.lettuce.core.cluster.api.async.RedisClusterAsyncCommands;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import top.dcenter.ums.security.core.oauth.enums.CacheWriterMode;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * {@link RedisHashCacheWriter} 连接模式测试: {@link CacheWriterMode#SHARED} 时非事务命令在共享原生连接上发送
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/24 10:40
+ */
+class RedisHashCacheWriterModeTest {
+
+    private static final byte[] KEY = bytes("c::k1");
+    private static final byte[] FIELD = bytes("f1");
+    private static final byte[] VALUE = bytes("v1");
+
+    private final LettuceConnectionFactory connectionFactory = mock(LettuceConnectionFactory.class);
+    private final RedisConnection connection = mock(RedisConnection.class);
+    @SuppressWarnings("unchecked")
+    private final RedisClusterAsyncCommands<byte[], byte[]> commands = mock(RedisClusterAsyncCommands.class);
+
+    @Test
+    void sharedModeSendsCommandsWithoutGettingConnections() throws Exception {
+        sharedNativeConnection();
+        RedisFuture<byte[]> valueFuture = completed(VALUE);
+        RedisFuture<String> okFuture = completed("OK");
+        RedisFuture<Long> delFuture = completed(1L);
+        when(commands.get(KEY)).thenReturn(valueFuture);
+        when(commands.hget(KEY, FIELD)).thenReturn(valueFuture);
+        when(commands.set(eq(KEY), eq(VALUE), any(SetArgs.class))).thenReturn(okFuture);
+        when(commands.del(KEY)).thenReturn(delFuture);
+        RedisHashCacheWriter writer = writer(CacheWriterMode.SHARED);
+
+        writer.put("c", KEY, VALUE, Duration.ofMinutes(1));
+        assertThat(writer.get("c", KEY)).isEqualTo(VALUE);
+        assertThat(writer.hGet("c", KEY, FIELD)).isEqualTo(VALUE);
+        writer.remove("c", KEY);
+
+        // 只在第一次使用时获取一次连接以取得共享原生连接
+        verify(connectionFactory, times(1)).getConnection();
+        verify(commands).set(eq(KEY), eq(VALUE), any(SetArgs.class));
+        verify(connection, never()).get(KEY);
+    }
+
+    @Test
+    void sharedModeUsesConnectionForTransactionalCommands() throws Exception {
+        sharedNativeConnection();
+        RedisHashCacheWriter writer = writer(CacheWriterMode.SHARED);
+
+        writer.hPut("c", KEY, FIELD, VALUE, Duration.ofMinutes(1));
+
+        verify(connection).multi();
+        verify(connection).hSet(KEY, FIELD, VALUE);
+        verify(connection).exec();
+    }
+
+    @Test
+    void dedicatedModeGetsConnectionPerCommand() {
+        when(connectionFactory.getShareNativeConnection()).thenReturn(true);
+        when(connectionFactory.getConnection()).thenReturn(connection);
+        when(connection.get(KEY)).thenReturn(VALUE);
+        RedisHashCacheWriter writer = writer(CacheWriterMode.DEDICATED);
+
+        writer.get("c", KEY);
+        writer.get("c", KEY);
+
+        verify(connectionFactory, times(2)).getConnection();
+        verify(connection, times(2)).close();
+    }
+
+    @Test
+    void sharedModeRequiresSharedNativeConnection() {
+        RedisConnectionFactory factory = mock(RedisConnectionFactory.class);
+        when(factory.getConnection()).thenReturn(connection);
+        when(connection.get(KEY)).thenReturn(VALUE);
+        RedisHashCacheWriter writer = new RedisHashCacheWriter(factory, Duration.ZERO).withWriterMode(CacheWriterMode.SHARED);
+
+        assertThat(writer.getWriterMode()).isEqualTo(CacheWriterMode.DEDICATED);
+        assertThat(writer.get("c", KEY)).isEqualTo(VALUE);
+        verify(connection).get(KEY);
+    }
+
+    private void sharedNativeConnection() {
+        when(connectionFactory.getShareNativeConnection()).thenReturn(true);
+        when(connectionFactory.getTimeout()).thenReturn(1000L);
+        when(connectionFactory.getConnection()).thenReturn(connection);
+        when(connection.getNativeConnection()).thenReturn(commands);
+        when(commands.isOpen()).thenReturn(true);
+    }
+
+    private RedisHashCacheWriter writer(CacheWriterMode writerMode) {
+        return new RedisHashCacheWriter(connectionFactory, Duration.ZERO).withWriterMode(writerMode);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> RedisFuture<T> completed(T value) throws Exception {
+        RedisFuture<T> future = mock(RedisFuture.class);
+        when(future.await(anyLong(), any(TimeUnit.class))).thenReturn(true);
+        when(future.get()).thenReturn(value);
+        return future;
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,137 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.repository.jdbc.cache;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.invocation.Invocation;
+import org.springframework.dao.InvalidDataAccessApiUsageException;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.ReturnType;
+
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockingDetails;
+import static org.mockito.Mockito.when;
+
+/**
+ * {@link RedisHashCacheWriter} lua 脚本模式测试: 统计每次写入发送到 redis 的命令数(往返次数)
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/21 16:10
+ */
+class RedisHashCacheWriterScriptTest {
+
+    private static final byte[] KEY = bytes("c::h1");
+    private static final byte[] FIELD = bytes("f1");
+    private static final byte[] VALUE = bytes("v1");
+    private static final Duration TTL = Duration.ofSeconds(10);
+
+    private final RedisConnectionFactory connectionFactory = mock(RedisConnectionFactory.class);
+    private final RedisConnection connection = mock(RedisConnection.class);
+
+    @Test
+    void hPutWithoutScriptSendsMultiHSetPExpireExec() {
+        when(connectionFactory.getConnection()).thenReturn(connection);
+        RedisHashCacheWriter writer = new RedisHashCacheWriter(connectionFactory, Duration.ZERO);
+
+        writer.hPut("c", KEY, FIELD, VALUE, TTL);
+
+        assertThat(commands()).containsExactly("multi", "hSet", "pExpire", "exec");
+    }
+
+    @Test
+    void hPutWithScriptSendsOneEvalSha() {
+        when(connectionFactory.getConnection()).thenReturn(connection);
+        RedisHashCacheWriter writer = scriptWriter();
+
+        writer.hPut("c", KEY, FIELD, VALUE, TTL);
+
+        assertThat(commands()).containsExactly("evalSha");
+    }
+
+    @Test
+    void hPutIfAbsentWithoutScriptSendsTwoCommandsForExistingField() {
+        when(connectionFactory.getConnection()).thenReturn(connection);
+        when(connection.hSetNX(KEY, FIELD, VALUE)).thenReturn(false);
+        when(connection.hGet(KEY, FIELD)).thenReturn(bytes("old"));
+        RedisHashCacheWriter writer = new RedisHashCacheWriter(connectionFactory, Duration.ZERO);
+
+        assertThat(writer.hPutIfAbsent("c", KEY, FIELD, VALUE, TTL)).isEqualTo(bytes("old"));
+
+        assertThat(commands()).containsExactly("hSetNX", "hGet");
+    }
+
+    @Test
+    void hPutIfAbsentWithScriptSendsOneEvalShaAndReturnsExisting() {
+        when(connectionFactory.getConnection()).thenReturn(connection);
+        when(connection.evalSha(any(byte[].class), any(ReturnType.class), anyInt(), (byte[][]) any()))
+                .thenReturn(bytes("old"));
+        RedisHashCacheWriter writer = scriptWriter();
+
+        assertThat(writer.hPutIfAbsent("c", KEY, FIELD, VALUE, TTL)).isEqualTo(bytes("old"));
+
+        assertThat(commands()).containsExactly("evalSha");
+    }
+
+    @Test
+    void noScriptErrorFallsBackToEval() {
+        when(connectionFactory.getConnection()).thenReturn(connection);
+        when(connection.evalSha(any(byte[].class), any(ReturnType.class), anyInt(), (byte[][]) any()))
+                .thenThrow(new InvalidDataAccessApiUsageException("NOSCRIPT No matching script."));
+        RedisHashCacheWriter writer = scriptWriter();
+
+        writer.hPut("c", KEY, FIELD, VALUE, TTL);
+
+        assertThat(commands()).containsExactly("evalSha", "eval");
+    }
+
+    private RedisHashCacheWriter scriptWriter() {
+        return new RedisHashCacheWriter(connectionFactory, Duration.ZERO, RedisHashCacheCleanOptions.DEFAULT,
+                                        true, 0.5D);
+    }
+
+    /**
+     * @return 发送到 redis 的命令(不包括关闭连接)
+     */
+    private List<String> commands() {
+        return mockingDetails(connection).getInvocations().stream()
+                                         .map(Invocation::getMethod)
+                                         .map(Method::getName)
+                                         .filter(name -> !"close".equals(name))
+                                         .collect(Collectors.toList());
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+}
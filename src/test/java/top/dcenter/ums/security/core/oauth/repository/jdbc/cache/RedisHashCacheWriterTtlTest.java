@@ -0,0 +1,111 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.repository.jdbc.cache;
+
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.cluster.api.async.RedisClusterAsyncCommands;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * {@link RedisHashCacheWriter#hGetWithTtl(String, byte[], byte[])} 测试: 共享原生连接时不使用 pipeline
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/22 16:30
+ */
+class RedisHashCacheWriterTtlTest {
+
+    private static final byte[] KEY = bytes("c::h1");
+    private static final byte[] FIELD = bytes("f1");
+    private static final byte[] VALUE = bytes("v1");
+
+    private final RedisConnection connection = mock(RedisConnection.class);
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void sharedNativeConnectionSendsCommandsWithoutPipeline() throws Exception {
+        LettuceConnectionFactory connectionFactory = mock(LettuceConnectionFactory.class);
+        when(connectionFactory.getShareNativeConnection()).thenReturn(true);
+        when(connectionFactory.getTimeout()).thenReturn(1000L);
+        when(connectionFactory.getConnection()).thenReturn(connection);
+        RedisClusterAsyncCommands<byte[], byte[]> commands = mock(RedisClusterAsyncCommands.class);
+        when(connection.getNativeConnection()).thenReturn(commands);
+        RedisFuture<byte[]> valueFuture = completed(VALUE);
+        RedisFuture<Long> ttlFuture = completed(3000L);
+        when(commands.hget(KEY, FIELD)).thenReturn(valueFuture);
+        when(commands.pttl(KEY)).thenReturn(ttlFuture);
+
+        IRedisHashCacheWriter.TtlValue result =
+                new RedisHashCacheWriter(connectionFactory, Duration.ZERO).hGetWithTtl("c", KEY, FIELD);
+
+        assertThat(result).isNotNull();
+        assertThat(result.getValue()).isEqualTo(VALUE);
+        assertThat(result.getTtlMillis()).isEqualTo(3000L);
+        verify(connection, never()).openPipeline();
+        verify(connection).close();
+    }
+
+    @Test
+    void pipelineWithoutSharedNativeConnection() {
+        RedisConnectionFactory connectionFactory = mock(RedisConnectionFactory.class);
+        when(connectionFactory.getConnection()).thenReturn(connection);
+        when(connection.closePipeline()).thenReturn(Arrays.asList(VALUE, 3000L));
+
+        IRedisHashCacheWriter.TtlValue result =
+                new RedisHashCacheWriter(connectionFactory, Duration.ZERO).hGetWithTtl("c", KEY, FIELD);
+
+        assertThat(result).isNotNull();
+        assertThat(result.getTtlMillis()).isEqualTo(3000L);
+        verify(connection).openPipeline();
+        verify(connection).hGet(KEY, FIELD);
+        verify(connection).pTtl(KEY);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> RedisFuture<T> completed(T value) throws Exception {
+        RedisFuture<T> future = mock(RedisFuture.class);
+        when(future.await(anyLong(), any(TimeUnit.class))).thenReturn(true);
+        when(future.get()).thenReturn(value);
+        return future;
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+}
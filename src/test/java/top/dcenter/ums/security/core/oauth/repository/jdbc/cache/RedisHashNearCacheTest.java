@@ -0,0 +1,110 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.repository.jdbc.cache;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * {@link RedisHashNearCache} 测试
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/21 11:20
+ */
+class RedisHashNearCacheTest {
+
+    @Test
+    void invalidateHashKeyDropsWholeHash() {
+        RedisHashNearCache nearCache = new RedisHashNearCache(100, Duration.ofMinutes(1));
+        nearCache.put("h1", "v0");
+        nearCache.put("h1__f1", "v1");
+        nearCache.put("h1__f2", "v2");
+        nearCache.put("h10__f1", "v3");
+
+        nearCache.invalidate("h1");
+
+        assertThat(nearCache.get("h1")).isNull();
+        assertThat(nearCache.get("h1__f1")).isNull();
+        assertThat(nearCache.get("h1__f2")).isNull();
+        assertThat(nearCache.get("h10__f1")).isEqualTo("v3");
+        assertThat(nearCache.size()).isEqualTo(1L);
+    }
+
+    @Test
+    void invalidateFieldKeyKeepsOtherFields() {
+        RedisHashNearCache nearCache = new RedisHashNearCache(100, Duration.ofMinutes(1));
+        nearCache.put("h1__f1", "v1");
+        nearCache.put("h1__f2", "v2");
+
+        nearCache.invalidate("h1__f1");
+
+        assertThat(nearCache.get("h1__f1")).isNull();
+        assertThat(nearCache.get("h1__f2")).isEqualTo("v2");
+        assertThat(nearCache.size()).isEqualTo(1L);
+    }
+
+    @Test
+    void replaceDoesNotGrowSize() {
+        RedisHashNearCache nearCache = new RedisHashNearCache(100, Duration.ofMinutes(1));
+        nearCache.put("h1__f1", "v1");
+        nearCache.put("h1__f1", "v2");
+
+        assertThat(nearCache.get("h1__f1")).isEqualTo("v2");
+        assertThat(nearCache.size()).isEqualTo(1L);
+    }
+
+    @Test
+    void fullCacheAdmitsOnlyMoreFrequentKey() {
+        RedisHashNearCache nearCache = new RedisHashNearCache(2, Duration.ofMinutes(1));
+        nearCache.put("h1__f1", "v1");
+        nearCache.put("h2__f1", "v2");
+
+        // 一次性访问的 key 不准入
+        nearCache.put("h3__f1", "v3");
+        assertThat(nearCache.get("h3__f1")).isNull();
+        assertThat(nearCache.size()).isEqualTo(2L);
+
+        for (int i = 0; i < 5; i++)
+        {
+            nearCache.get("h4__f1");
+        }
+        nearCache.put("h4__f1", "v4");
+        assertThat(nearCache.get("h4__f1")).isEqualTo("v4");
+        assertThat(nearCache.size()).isEqualTo(2L);
+    }
+
+    @Test
+    void expiredEntryIsNotReturned() throws InterruptedException {
+        RedisHashNearCache nearCache = new RedisHashNearCache(100, Duration.ofMillis(20));
+        nearCache.put("h1__f1", "v1");
+
+        Thread.sleep(40);
+
+        assertThat(nearCache.get("h1__f1")).isNull();
+        assertThat(nearCache.size()).isEqualTo(0L);
+    }
+
+}
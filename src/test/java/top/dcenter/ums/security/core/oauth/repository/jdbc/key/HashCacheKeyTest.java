@@ -0,0 +1,106 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.repository.jdbc.key;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * {@link HashCacheKey} 测试
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/22 15:10
+ */
+class HashCacheKeyTest {
+
+    @Test
+    void toStringMatchesSpelKey() {
+        HashCacheKey key = HashCacheKey.of("hs:github", "12345");
+
+        assertThat(key.toString()).isEqualTo("hs:github__12345");
+        assertThat(key.getKeyBytes()).isEqualTo("hs:github".getBytes(StandardCharsets.UTF_8));
+        assertThat(key.getFieldBytes()).isEqualTo("12345".getBytes(StandardCharsets.UTF_8));
+        assertThat(key.hasField()).isTrue();
+        assertThat(key).isEqualTo(HashCacheKey.of("hs:github", "12345")).hasSameHashCodeAs(HashCacheKey.of("hs:github", "12345"));
+    }
+
+    @Test
+    void keyWithoutField() {
+        HashCacheKey key = HashCacheKey.of("hm:user1");
+
+        assertThat(key.toString()).isEqualTo("hm:user1");
+        assertThat(key.hasField()).isFalse();
+        assertThat(key.getField()).isNull();
+        assertThat(key.getFieldBytes()).isNull();
+        assertThat(key).isNotEqualTo(HashCacheKey.of("hm:user1", ""));
+    }
+
+    @Test
+    void emptyKeyIsRejected() {
+        assertThatThrownBy(() -> HashCacheKey.of("")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> HashCacheKey.of("hs:", null)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void setFieldIsOrderIndependent() {
+        HashCacheKey hashSet = HashCacheKey.ofDigest("hm:github", new HashSet<>(Arrays.asList("b", "c", "a")));
+        HashCacheKey treeSet = HashCacheKey.ofDigest("hm:github", new TreeSet<>(Arrays.asList("c", "a", "b")));
+
+        assertThat(hashSet.getField()).isEqualTo("[a,b,c]");
+        assertThat(hashSet).isEqualTo(treeSet);
+        // List 保留顺序
+        assertThat(HashCacheKey.ofDigest("hm:github", Arrays.asList("b", "a")).getField()).isEqualTo("[b,a]");
+    }
+
+    @Test
+    void mapAndArrayFields() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("providerId", "github");
+        map.put("ids", new String[]{"1", "2"});
+
+        assertThat(HashCacheKey.ofDigest("hm:u1", map).getField()).isEqualTo("{providerId=github,ids=[1,2]}");
+        assertThat(HashCacheKey.ofDigest("hm:u1", null).getField()).isEqualTo("null");
+    }
+
+    @Test
+    void longFieldIsDigested() {
+        String[] ids = new String[40];
+        Arrays.fill(ids, "provider-user");
+        HashCacheKey key = HashCacheKey.ofDigest("hm:github", Arrays.asList(ids));
+
+        assertThat(key.getField()).startsWith("#").hasSize(44);
+        assertThat(key).isEqualTo(HashCacheKey.ofDigest("hm:github", Arrays.asList(ids.clone())));
+        ids[39] = "other";
+        assertThat(key).isNotEqualTo(HashCacheKey.ofDigest("hm:github", Arrays.asList(ids)));
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.repository.jdbc.key.generator;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import top.dcenter.ums.security.core.oauth.entity.ConnectionKey;
+import top.dcenter.ums.security.core.oauth.repository.jdbc.key.HashCacheKey;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * 缓存 key 生成器测试: 生成的 {@link HashCacheKey} 与原 SpEL 字符串 key 相同
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/22 15:32
+ */
+class HashCacheKeyGeneratorTest {
+
+    private final Object target = new Object();
+
+    @Test
+    void paramsKeyGenerator() throws NoSuchMethodException {
+        Object key = new ParamsHashCacheKeyGenerator("hs:").generate(target, method("toString"), "github", "12345");
+
+        assertThat(key).isEqualTo(HashCacheKey.of("hs:github", "12345"));
+        assertThat(key.toString()).isEqualTo("hs:github__12345");
+    }
+
+    @Test
+    void methodNameKeyGenerator() throws NoSuchMethodException {
+        Object key = new MethodNameHashCacheKeyGenerator("hm:").generate(target, method("hashCode"), "user1");
+
+        assertThat(key.toString()).isEqualTo("hm:user1__hashCode");
+    }
+
+    @Test
+    void digestKeyGenerator() throws NoSuchMethodException {
+        DigestHashCacheKeyGenerator generator = new DigestHashCacheKeyGenerator("hm:", 0, 1);
+
+        Object key = generator.generate(target, method("toString"), "github", new HashSet<>(Arrays.asList("2", "1")));
+
+        assertThat(key.toString()).isEqualTo("hm:github__[1,2]");
+    }
+
+    @Test
+    void digestKeyGeneratorUsesMapSqlParameterSourceValues() throws NoSuchMethodException {
+        DigestHashCacheKeyGenerator generator = new DigestHashCacheKeyGenerator("hm:", 2, 0);
+        MapSqlParameterSource parameters = new MapSqlParameterSource("providerId", "github");
+
+        Object key = generator.generate(target, method("toString"), parameters, "sql", "user1");
+
+        assertThat(key.toString()).isEqualTo("hm:user1__{providerId=github}");
+    }
+
+    @Test
+    void removeConnectionsByConnectionKeyWithUserIdKeyGenerator() throws NoSuchMethodException {
+        Object key = new RemoveConnectionsByConnectionKeyWithUserIdKeyGenerator()
+                .generate(target, method("toString"), "user1", new ConnectionKey("github", "12345"));
+
+        assertThat(key.toString()).isEqualTo("h:user1:github__12345");
+    }
+
+    private static Method method(String name) throws NoSuchMethodException {
+        return Object.class.getMethod(name);
+    }
+
+}
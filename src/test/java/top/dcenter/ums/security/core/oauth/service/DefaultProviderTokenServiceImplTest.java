@@ -0,0 +1,135 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.test.util.ReflectionTestUtils;
+import top.dcenter.ums.security.core.oauth.entity.AuthTokenPo;
+import top.dcenter.ums.security.core.oauth.entity.ConnectionData;
+import top.dcenter.ums.security.core.oauth.exception.RefreshTokenFailureException;
+import top.dcenter.ums.security.core.oauth.properties.Auth2Properties;
+import top.dcenter.ums.security.core.oauth.repository.UsersConnectionRepository;
+import top.dcenter.ums.security.core.oauth.repository.UsersConnectionTokenRepository;
+
+import java.time.Duration;
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * {@link DefaultProviderTokenServiceImpl} 租约被其他服务器(或定时刷新任务)持有时等待刷新结果的测试
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/23 17:35
+ */
+class DefaultProviderTokenServiceImplTest {
+
+    private final UsersConnectionRepository connectionRepository = mock(UsersConnectionRepository.class);
+    private final UsersConnectionTokenRepository tokenRepository = mock(UsersConnectionTokenRepository.class);
+    private final Auth2Properties.ProviderToken providerToken = new Auth2Properties.ProviderToken();
+
+    @BeforeEach
+    void setUp() throws Exception {
+        ConnectionData connection = new ConnectionData();
+        connection.setTokenId(1L);
+        when(connectionRepository.getPrimaryConnection("u1", "github")).thenReturn(connection);
+        when(tokenRepository.findAuthTokenById(anyString())).thenReturn(token(-1000L));
+        providerToken.setWaitTimeout(Duration.ofMillis(100));
+        providerToken.setLeaseTtl(Duration.ofSeconds(2));
+    }
+
+    @Test
+    void leaseTtlMustExceedHttpTimeout() {
+        providerToken.setLeaseTtl(Duration.ofSeconds(15));
+
+        assertThatThrownBy(() -> new DefaultProviderTokenServiceImpl(connectionRepository, tokenRepository, null,
+                                                                     providerToken, lease(),
+                                                                     Duration.ofSeconds(15)))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("leaseTtl");
+    }
+
+    @Test
+    void followerWaitsForLeaseHolderHttpCall() throws Exception {
+        final long refreshedAt = System.currentTimeMillis() + 400L;
+        when(tokenRepository.findAuthTokensByIds(anyList())).thenAnswer(invocation -> Collections.singletonList(
+                System.currentTimeMillis() < refreshedAt ? token(-1000L) : token(3_600_000L)));
+
+        // 租约持有者的第三方 HTTP 请求在 waitTimeout 之后完成, 在 waitTimeout + HTTP 超时时间之内
+        AuthTokenPo token = service(Duration.ofSeconds(1)).getValidAuthToken("u1", "github");
+
+        assertThat(token.getExpireTime()).isGreaterThan(System.currentTimeMillis());
+    }
+
+    @Test
+    void followerGivesUpAfterWaitTimeoutPlusHttpTimeout() throws Exception {
+        when(tokenRepository.findAuthTokensByIds(anyList()))
+                .thenAnswer(invocation -> Collections.singletonList(token(-1000L)));
+        DefaultProviderTokenServiceImpl service = service(Duration.ofMillis(300));
+
+        final long start = System.currentTimeMillis();
+        assertThatThrownBy(() -> service.getValidAuthToken("u1", "github"))
+                .isInstanceOf(RefreshTokenFailureException.class);
+        assertThat(System.currentTimeMillis() - start).isGreaterThanOrEqualTo(400L);
+    }
+
+    /**
+     * redis 租约一直被其他服务器持有
+     */
+    private DefaultProviderTokenServiceImpl service(Duration httpTimeout) {
+        RedisConnectionFactory connectionFactory = mock(RedisConnectionFactory.class);
+        RedisConnection connection = mock(RedisConnection.class);
+        when(connectionFactory.getConnection()).thenReturn(connection);
+        when(connection.set(any(byte[].class), any(byte[].class), any(Expiration.class),
+                            any(RedisStringCommands.SetOption.class))).thenReturn(false);
+        DefaultProviderTokenServiceImpl service =
+                new DefaultProviderTokenServiceImpl(connectionRepository, tokenRepository, null, providerToken,
+                                                    lease(), httpTimeout);
+        ReflectionTestUtils.setField(service, "redisConnectionFactory", connectionFactory);
+        return service;
+    }
+
+    private ProviderTokenLease lease() {
+        return new ProviderTokenLease(tokenRepository, providerToken.getLeaseTtl());
+    }
+
+    private static AuthTokenPo token(long expiresIn) {
+        AuthTokenPo token = new AuthTokenPo();
+        token.setId(1L);
+        token.setProviderId("github");
+        token.setExpireTime(System.currentTimeMillis() + expiresIn);
+        return token;
+    }
+
+}
@@ -0,0 +1,146 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.service;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.types.Expiration;
+import top.dcenter.ums.security.core.oauth.repository.UsersConnectionTokenRepository;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * {@link ProviderTokenLease} 按 redis, auth_token 表租约字段, 本机的顺序选择租约的测试
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/23 17:20
+ */
+class ProviderTokenLeaseTest {
+
+    private final UsersConnectionTokenRepository tokenRepository = mock(UsersConnectionTokenRepository.class);
+    private final ProviderTokenLease lease = new ProviderTokenLease(tokenRepository, Duration.ofSeconds(30));
+
+    @Test
+    void redisLeaseUsesSharedKey() throws Exception {
+        RedisConnectionFactory connectionFactory = mock(RedisConnectionFactory.class);
+        RedisConnection connection = mock(RedisConnection.class);
+        when(connectionFactory.getConnection()).thenReturn(connection);
+        byte[] key = (ProviderTokenLease.LEASE_KEY_PREFIX + 7).getBytes(StandardCharsets.UTF_8);
+        when(connection.set(eq(key), any(byte[].class), any(Expiration.class),
+                            eq(RedisStringCommands.SetOption.SET_IF_ABSENT))).thenReturn(true);
+
+        String owner = lease.newOwner();
+        assertThat(lease.tryAcquire(connectionFactory, 7L, owner)).isTrue();
+        lease.release(connectionFactory, 7L, owner);
+
+        verify(connection).eval(any(byte[].class), eq(ReturnType.INTEGER), eq(1), eq(key),
+                                eq(owner.getBytes(StandardCharsets.UTF_8)));
+        verify(tokenRepository, never()).claimAuthToken(anyLong(), any(), anyLong(), anyLong());
+    }
+
+    @Test
+    void withoutRedisClaimsAuthTokenRow() throws Exception {
+        when(tokenRepository.supportsClaim()).thenReturn(true);
+        when(tokenRepository.claimAuthToken(eq(8L), any(), anyLong(), anyLong())).thenReturn(false);
+
+        assertThat(lease.tryAcquire(null, 8L, lease.newOwner())).isFalse();
+    }
+
+    @Test
+    void redisLeasesAcquiredAndReleasedInOnePipeline() throws Exception {
+        RedisConnectionFactory connectionFactory = mock(RedisConnectionFactory.class);
+        RedisConnection connection = mock(RedisConnection.class);
+        when(connectionFactory.getConnection()).thenReturn(connection);
+        when(connection.closePipeline()).thenReturn(Arrays.asList(true, false, true));
+
+        String owner = lease.newOwner();
+        Set<Long> acquired = lease.tryAcquireAll(connectionFactory, Arrays.asList(1L, 2L, 3L), owner);
+
+        assertThat(acquired).containsExactlyInAnyOrder(1L, 3L);
+        verify(connection).openPipeline();
+        verify(connection, times(3)).set(any(byte[].class), eq(owner.getBytes(StandardCharsets.UTF_8)),
+                                         any(Expiration.class), eq(RedisStringCommands.SetOption.SET_IF_ABSENT));
+
+        Map<Long, String> leases = new HashMap<>();
+        acquired.forEach(tokenId -> leases.put(tokenId, owner));
+        lease.releaseAll(connectionFactory, leases);
+
+        verify(connection, times(2)).openPipeline();
+        verify(connection, times(2)).eval(any(byte[].class), eq(ReturnType.INTEGER), eq(1), any(byte[].class),
+                                          eq(owner.getBytes(StandardCharsets.UTF_8)));
+        verify(connection, times(2)).closePipeline();
+    }
+
+    @Test
+    void withoutRedisOrClaimExcludesLocally() throws Exception {
+        String owner = lease.newOwner();
+        assertThat(lease.tryAcquire(null, 9L, owner)).isTrue();
+
+        // 共用同一实例的其他调用方(如: 定时刷新任务)不能获取
+        assertThat(lease.tryAcquire(null, 9L, lease.newOwner())).isFalse();
+        // 只有租约持有者可以释放
+        lease.release(null, 9L, lease.newOwner());
+        assertThat(lease.tryAcquire(null, 9L, lease.newOwner())).isFalse();
+
+        lease.release(null, 9L, owner);
+        String otherOwner = lease.newOwner();
+        assertThat(lease.tryAcquire(null, 9L, otherOwner)).isTrue();
+        lease.release(null, 9L, otherOwner);
+    }
+
+    @Test
+    void localLeaseExpiresAfterLeaseTtl() throws Exception {
+        ProviderTokenLease shortLease = new ProviderTokenLease(tokenRepository, Duration.ofMillis(50));
+        String owner = shortLease.newOwner();
+        assertThat(shortLease.tryAcquire(null, 10L, owner)).isTrue();
+        assertThat(shortLease.renew(null, 10L, owner)).isTrue();
+        assertThat(shortLease.tryAcquire(null, 10L, shortLease.newOwner())).isFalse();
+
+        Thread.sleep(100L);
+
+        // 持有者未释放的租约过期后可以被其他调用方获取, 原持有者不能再续租
+        String next = shortLease.newOwner();
+        assertThat(shortLease.tryAcquire(null, 10L, next)).isTrue();
+        assertThat(shortLease.renew(null, 10L, owner)).isFalse();
+        shortLease.release(null, 10L, next);
+    }
+
+}
@@ -0,0 +1,106 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.signup;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.security.crypto.encrypt.TextEncryptor;
+import top.dcenter.ums.security.core.oauth.entity.AuthTokenPo;
+import top.dcenter.ums.security.core.oauth.entity.ConnectionData;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static top.dcenter.ums.security.core.oauth.enums.EnableRefresh.NO;
+import static top.dcenter.ums.security.core.oauth.signup.ConnectionUpdateWriteBehindTest.authUser;
+import static top.dcenter.ums.security.core.oauth.signup.ConnectionUpdateWriteBehindTest.connectionData;
+
+/**
+ * {@link ConnectionUpdateCodec} 编解码测试
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/23 10:15
+ */
+class ConnectionUpdateCodecTest {
+
+    private final ConnectionUpdateCodec codec = new ConnectionUpdateCodec(new PrefixTextEncryptor());
+
+    @Test
+    void roundTripKeepsAllFieldsAndEncryptsTokens() throws IOException {
+        ConnectionUpdate update = ConnectionUpdate.of(authUser("1", "secret-token"), connectionData("1"), 3000);
+        AuthTokenPo token = update.getAuthToken();
+        token.setEnableRefresh(NO);
+        token.setRefreshToken("secret-refresh");
+        token.setOauthCallbackConfirmed(true);
+        token.setRefreshTokenExpireIn(3600);
+
+        byte[] payload = codec.encode(update);
+        assertThat(new String(payload, StandardCharsets.UTF_8)).doesNotContain("secret-token", "secret-refresh");
+
+        ConnectionUpdate decoded = codec.decode(payload);
+        assertThat(decoded.getScope()).isEqualTo(ConnectionUpdate.Scope.ALL);
+        assertThat(decoded.getKey()).isEqualTo(update.getKey());
+        ConnectionData data = decoded.getConnectionData();
+        assertThat(data).isEqualToComparingFieldByField(update.getConnectionData());
+        assertThat(data.getExpireTime()).isNotNull().isEqualTo(update.getConnectionData().getExpireTime());
+        assertThat(decoded.getAuthToken()).isEqualToComparingFieldByField(token);
+    }
+
+    @Test
+    void roundTripKeepsNullFieldsAndScope() throws IOException {
+        ConnectionData data = ConnectionData.builder().userId("u1").providerId("github").providerUserId("1").build();
+        ConnectionUpdate update = ConnectionUpdate.restore(data, new AuthTokenPo(), ConnectionUpdate.Scope.CONNECTION);
+
+        ConnectionUpdate decoded = codec.decode(codec.encode(update));
+
+        assertThat(decoded.getScope()).isEqualTo(ConnectionUpdate.Scope.CONNECTION);
+        assertThat(decoded.getConnectionData()).isEqualToComparingFieldByField(data);
+        assertThat(decoded.getConnectionData().getAccessToken()).isNull();
+        assertThat(decoded.getConnectionData().getExpireTime()).isNull();
+        assertThat(decoded.getAuthToken().getId()).isNull();
+        assertThat(decoded.getAuthToken().getOauthCallbackConfirmed()).isNull();
+    }
+
+    @Test
+    void rejectsUnknownVersion() throws IOException {
+        byte[] payload = codec.encode(ConnectionUpdate.of(authUser("1", "token"), connectionData("1"), 3000));
+        payload[0] = 99;
+
+        assertThatThrownBy(() -> codec.decode(payload)).isInstanceOf(IOException.class);
+    }
+
+    private static class PrefixTextEncryptor implements TextEncryptor {
+
+        @Override
+        public String encrypt(String text) {
+            return "enc:" + new StringBuilder(text).reverse();
+        }
+
+        @Override
+        public String decrypt(String encryptedText) {
+            return new StringBuilder(encryptedText.substring(4)).reverse().toString();
+        }
+    }
+
+}
@@ -0,0 +1,104 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.signup;
+
+import me.zhyd.oauth.model.AuthToken;
+import me.zhyd.oauth.model.AuthUser;
+import org.junit.jupiter.api.Test;
+import top.dcenter.ums.security.core.oauth.entity.ConnectionData;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * {@link ConnectionUpdateFilter} 更新范围测试
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/22 18:05
+ */
+class ConnectionUpdateFilterTest {
+
+    private static final Integer TIMEOUT = 3000;
+
+    private final ConnectionUpdateFilter filter = new ConnectionUpdateFilter(TIMEOUT, Duration.ofMinutes(1));
+
+    @Test
+    void unchangedProfileAndTokenIsSkipped() {
+        ConnectionData data = connectionData(expireTime(7200));
+
+        assertThat(filter.scopeOf(authUser("user", "token", 7200), data)).isEqualTo(ConnectionUpdate.Scope.NONE);
+        assertThat(filter.skip(authUser("user", "token", 7200), data)).isTrue();
+        assertThat(filter.getSkipped()).isEqualTo(1L);
+    }
+
+    @Test
+    void changedProfileUpdatesConnectionOnly() {
+        ConnectionData data = connectionData(expireTime(7200));
+
+        assertThat(filter.scopeOf(authUser("renamed", "token", 7200), data))
+                .isEqualTo(ConnectionUpdate.Scope.CONNECTION);
+        assertThat(filter.skip(authUser("renamed", "token", 7200), data)).isFalse();
+        assertThat(filter.getConnectionOnly()).isEqualTo(1L);
+    }
+
+    @Test
+    void changedTokenUpdatesAll() {
+        ConnectionData data = connectionData(expireTime(7200));
+
+        assertThat(filter.scopeOf(authUser("user", "new-token", 7200), data)).isEqualTo(ConnectionUpdate.Scope.ALL);
+        // 过期时间超出误差
+        assertThat(filter.scopeOf(authUser("user", "token", 3600), data)).isEqualTo(ConnectionUpdate.Scope.ALL);
+        // 无过期时间(-1)与有过期时间
+        assertThat(filter.scopeOf(authUser("user", "token", 0), data)).isEqualTo(ConnectionUpdate.Scope.ALL);
+        assertThat(filter.scopeOf(authUser("user", "token", 0), connectionData(-1L)))
+                .isEqualTo(ConnectionUpdate.Scope.NONE);
+    }
+
+    private static long expireTime(int expireIn) {
+        return Instant.now().plusSeconds(expireIn).minusMillis(TIMEOUT).toEpochMilli();
+    }
+
+    private static AuthUser authUser(String username, String accessToken, int expireIn) {
+        return AuthUser.builder()
+                       .uuid("1")
+                       .username(username)
+                       .avatar("https://avatar/1")
+                       .token(AuthToken.builder().accessToken(accessToken).expireIn(expireIn).build())
+                       .build();
+    }
+
+    private static ConnectionData connectionData(Long expireTime) {
+        return ConnectionData.builder()
+                             .userId("u1")
+                             .providerId("github")
+                             .providerUserId("1")
+                             .displayName("user")
+                             .imageUrl("https://avatar/1")
+                             .accessToken("token")
+                             .expireTime(expireTime)
+                             .build();
+    }
+
+}
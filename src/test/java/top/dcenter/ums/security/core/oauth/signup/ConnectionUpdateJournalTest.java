@@ -0,0 +1,258 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.signup;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.security.crypto.encrypt.Encryptors;
+import org.springframework.security.crypto.encrypt.TextEncryptor;
+import org.springframework.util.unit.DataSize;
+import top.dcenter.ums.security.core.oauth.entity.ConnectionData;
+import top.dcenter.ums.security.core.oauth.properties.RepositoryProperties;
+import top.dcenter.ums.security.core.oauth.repository.UsersConnectionRepository;
+import top.dcenter.ums.security.core.oauth.repository.UsersConnectionTokenRepository;
+import top.dcenter.ums.security.core.oauth.repository.jdbc.Auth2JdbcUsersConnectionRepository;
+import top.dcenter.ums.security.core.oauth.repository.jdbc.Auth2JdbcUsersConnectionTokenRepository;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static top.dcenter.ums.security.core.oauth.signup.ConnectionUpdateWriteBehindTest.authUser;
+import static top.dcenter.ums.security.core.oauth.signup.ConnectionUpdateWriteBehindTest.connectionData;
+
+/**
+ * {@link ConnectionUpdateJournal} 回放与日志文件切换测试
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/23 11:05
+ */
+class ConnectionUpdateJournalTest {
+
+    private static final Integer TIMEOUT = 3000;
+    private static final TextEncryptor TEXT_ENCRYPTOR = Encryptors.noOpText();
+
+    @TempDir
+    Path directory;
+
+    private final RepositoryProperties repositoryProperties = new RepositoryProperties();
+    private final RepositoryProperties.Journal properties = new RepositoryProperties.Journal();
+    private ConnectionUpdateJournal journal;
+    private JdbcTemplate jdbcTemplate;
+
+    @BeforeEach
+    void setUp() {
+        properties.setDirectory(directory.toString());
+        properties.setSegmentSize(DataSize.ofMegabytes(1));
+        properties.setPollInterval(Duration.ofMillis(10));
+        properties.setRetryInterval(Duration.ofHours(1));
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (journal != null)
+        {
+            journal.destroy();
+        }
+        if (jdbcTemplate != null)
+        {
+            jdbcTemplate.execute("drop all objects");
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void replaysPendingUpdatesAfterRestart() throws Exception {
+        appendWhileDatabaseUnavailable("1", "2");
+
+        UsersConnectionRepository connectionRepository = mock(UsersConnectionRepository.class);
+        UsersConnectionTokenRepository tokenRepository = mock(UsersConnectionTokenRepository.class);
+        journal = start(connectionRepository, tokenRepository);
+
+        ArgumentCaptor<List<ConnectionData>> connections = ArgumentCaptor.forClass(List.class);
+        verify(connectionRepository, timeout(5000)).updateConnectionsIfNotStale(connections.capture());
+        assertThat(connections.getValue()).extracting(ConnectionData::getProviderUserId).containsExactly("1", "2");
+        assertThat(connections.getValue()).extracting(ConnectionData::getAccessToken)
+                                           .containsExactly("token-1", "token-2");
+        verify(tokenRepository, timeout(5000)).updateAuthTokensIfNotStale(anyList());
+        await(() -> journal.getBacklogBytes() == 0L);
+    }
+
+    @Test
+    void replayDoesNotOverwriteRowsRefreshedSinceAppend() throws IOException {
+        appendWhileDatabaseUnavailable("1", "2");
+        createTables();
+        long now = System.currentTimeMillis();
+        // 1 在写入日志后已被刷新, 2 仍是旧数据
+        insertRow(1L, "refreshed", now + Duration.ofDays(1).toMillis());
+        insertRow(2L, "old", now);
+
+        Auth2JdbcUsersConnectionTokenRepository tokenRepository =
+                new Auth2JdbcUsersConnectionTokenRepository(jdbcTemplate, TEXT_ENCRYPTOR, "auth_token");
+        Auth2JdbcUsersConnectionRepository connectionRepository =
+                new Auth2JdbcUsersConnectionRepository(jdbcTemplate, TEXT_ENCRYPTOR, repositoryProperties);
+        journal = start(connectionRepository, tokenRepository);
+        await(() -> journal.getApplied() == 2L);
+
+        assertThat(connectionAccessToken(1L)).isEqualTo("refreshed");
+        assertThat(tokenAccessToken(1L)).isEqualTo("refreshed");
+        assertThat(connectionAccessToken(2L)).isEqualTo("token-2");
+        assertThat(tokenAccessToken(2L)).isEqualTo("token-2");
+        assertThat(journal.getFailed()).isZero();
+    }
+
+    @Test
+    void rollsToPreallocatedSegment() throws IOException {
+        UsersConnectionRepository connectionRepository = mock(UsersConnectionRepository.class);
+        journal = start(connectionRepository, mock(UsersConnectionTokenRepository.class));
+        int count = 10000;
+
+        for (int i = 1; i <= count; i++)
+        {
+            String id = String.valueOf(i);
+            assertThat(journal.append(authUser(id, "token-" + id), connectionData(id))).isTrue();
+        }
+
+        assertThat(journal.getRejected()).isZero();
+        await(() -> journal.getApplied() == count);
+        // 已消费的日志文件被删除, 只剩当前写入的文件与预先创建的下一个文件
+        await(() -> segmentFiles().size() == 2);
+        assertThat(segmentFiles().get(0)).isNotEqualTo("journal-00000000000000000001.log");
+
+        journal.destroy();
+        journal = null;
+        assertThat(segmentFiles()).hasSize(1);
+    }
+
+    /**
+     * 数据库不可用时写入日志, 消费线程不推进消费位置, 关闭后日志保留到下次启动回放
+     */
+    private void appendWhileDatabaseUnavailable(String... ids) throws IOException {
+        UsersConnectionRepository unavailable = mock(UsersConnectionRepository.class);
+        doThrow(new DataAccessResourceFailureException("database unavailable"))
+                .when(unavailable).updateConnectionsIfNotStale(anyList());
+        ConnectionUpdateJournal offline = start(unavailable, mock(UsersConnectionTokenRepository.class));
+        for (String id : ids)
+        {
+            assertThat(offline.append(authUser(id, "token-" + id), connectionData(id))).isTrue();
+        }
+        verify(unavailable, timeout(5000).atLeastOnce()).updateConnectionsIfNotStale(anyList());
+        offline.destroy();
+        assertThat(offline.getApplied()).isZero();
+    }
+
+    private ConnectionUpdateJournal start(UsersConnectionRepository connectionRepository,
+                                          UsersConnectionTokenRepository tokenRepository) throws IOException {
+        ConnectionUpdateJournal journal = new ConnectionUpdateJournal(connectionRepository, tokenRepository, null,
+                                                                      TEXT_ENCRYPTOR, properties, TIMEOUT);
+        journal.afterPropertiesSet();
+        return journal;
+    }
+
+    private void createTables() {
+        DriverManagerDataSource dataSource = new DriverManagerDataSource(
+                "jdbc:h2:mem:" + UUID.randomUUID() + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE;"
+                        + "CASE_INSENSITIVE_IDENTIFIERS=TRUE;DB_CLOSE_DELAY=-1", "sa", "");
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.execute("create table user_connection (userId varchar(36), providerId varchar(20), "
+                                     + "providerUserId varchar(36), `rank` int, displayName varchar(64), "
+                                     + "profileUrl varchar(256), imageUrl varchar(256), accessToken varchar(512), "
+                                     + "tokenId bigint, refreshToken varchar(512), expireTime bigint)");
+        jdbcTemplate.execute("create table auth_token (id bigint primary key, enableRefresh tinyint, "
+                                     + "providerId varchar(20), accessToken varchar(512), expireIn bigint, "
+                                     + "refreshTokenExpireIn bigint, refreshToken varchar(512), uid varchar(20), "
+                                     + "openId varchar(256), accessCode varchar(256), unionId varchar(256), "
+                                     + "scope varchar(256), tokenType varchar(20), idToken varchar(256), "
+                                     + "macAlgorithm varchar(20), macKey varchar(256), code varchar(256), "
+                                     + "oauthToken varchar(256), oauthTokenSecret varchar(256), userId varchar(64), "
+                                     + "screenName varchar(64), oauthCallbackConfirmed varchar(64), expireTime bigint)");
+    }
+
+    private void insertRow(long id, String accessToken, long expireTime) {
+        jdbcTemplate.update("insert into user_connection (userId, providerId, providerUserId, `rank`, accessToken, "
+                                    + "tokenId, expireTime) values (?, 'github', ?, 1, ?, ?, ?)",
+                            "u" + id, String.valueOf(id), accessToken, id, expireTime);
+        jdbcTemplate.update("insert into auth_token (id, enableRefresh, providerId, accessToken, expireTime) "
+                                    + "values (?, 1, 'github', ?, ?)", id, accessToken, expireTime);
+    }
+
+    private String connectionAccessToken(long id) {
+        return jdbcTemplate.queryForObject("select accessToken from user_connection where providerUserId = ?",
+                                           String.class, String.valueOf(id));
+    }
+
+    private String tokenAccessToken(long id) {
+        return jdbcTemplate.queryForObject("select accessToken from auth_token where id = ?", String.class, id);
+    }
+
+    private List<String> segmentFiles() {
+        try (Stream<Path> files = Files.list(directory))
+        {
+            return files.map(path -> path.getFileName().toString())
+                        .filter(name -> name.startsWith("journal-"))
+                        .sorted()
+                        .collect(Collectors.toList());
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void await(BooleanSupplier condition) {
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (!condition.getAsBoolean())
+        {
+            assertThat(System.currentTimeMillis()).as("等待超时").isLessThan(deadline);
+            try
+            {
+                Thread.sleep(10L);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+}
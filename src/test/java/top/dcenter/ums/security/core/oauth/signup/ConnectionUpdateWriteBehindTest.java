@@ -0,0 +1,192 @@
+/*
+ * MIT License
+ * Copyright (c) 2020-2029 YongWu zheng (dcenter.top and gitee.com/pcore and github.com/ZeroOrInfinity)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package top.dcenter.ums.security.core.oauth.signup;
+
+import me.zhyd.oauth.model.AuthToken;
+import me.zhyd.oauth.model.AuthUser;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import top.dcenter.ums.security.core.oauth.entity.AuthTokenPo;
+import top.dcenter.ums.security.core.oauth.entity.ConnectionData;
+import top.dcenter.ums.security.core.oauth.properties.RepositoryProperties;
+import top.dcenter.ums.security.core.oauth.repository.UsersConnectionRepository;
+import top.dcenter.ums.security.core.oauth.repository.UsersConnectionTokenRepository;
+
+import java.time.Duration;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * {@link ConnectionUpdateWriteBehind} 合并延迟写测试
+ * @author YongWu zheng
+ * @version V2.0  Created by 2020/12/22 17:40
+ */
+class ConnectionUpdateWriteBehindTest {
+
+    private static final Integer TIMEOUT = 3000;
+
+    private final UsersConnectionRepository connectionRepository = mock(UsersConnectionRepository.class);
+    private final UsersConnectionTokenRepository tokenRepository = mock(UsersConnectionTokenRepository.class);
+    private final RepositoryProperties.WriteBehind properties = new RepositoryProperties.WriteBehind();
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void coalescesUpdatesOfSameConnection() throws Exception {
+        ConnectionUpdateWriteBehind writeBehind = writeBehind();
+
+        assertThat(writeBehind.offer(authUser("1", "token-1"), connectionData("1"))).isTrue();
+        assertThat(writeBehind.offer(authUser("1", "token-2"), connectionData("1"))).isTrue();
+        assertThat(writeBehind.getQueueDepth()).isEqualTo(1);
+
+        writeBehind.flush();
+
+        ArgumentCaptor<List<ConnectionData>> connections = ArgumentCaptor.forClass(List.class);
+        verify(connectionRepository).updateConnections(connections.capture());
+        assertThat(connections.getValue()).hasSize(1);
+        assertThat(connections.getValue().get(0).getAccessToken()).isEqualTo("token-2");
+        ArgumentCaptor<List<AuthTokenPo>> tokens = ArgumentCaptor.forClass(List.class);
+        verify(tokenRepository).updateAuthTokens(tokens.capture());
+        assertThat(tokens.getValue().get(0).getId()).isEqualTo(1L);
+        assertThat(writeBehind.getOffered()).isEqualTo(2L);
+        assertThat(writeBehind.getCoalesced()).isEqualTo(1L);
+        assertThat(writeBehind.getFlushed()).isEqualTo(1L);
+        assertThat(writeBehind.getQueueDepth()).isZero();
+    }
+
+    @Test
+    void flushesInBatches() {
+        properties.setBatchSize(2);
+        ConnectionUpdateWriteBehind writeBehind = writeBehind();
+        for (int i = 1; i <= 5; i++)
+        {
+            writeBehind.offer(authUser(String.valueOf(i), "token"), connectionData(String.valueOf(i)));
+        }
+
+        writeBehind.flush();
+
+        verify(connectionRepository, times(3)).updateConnections(anyList());
+        assertThat(writeBehind.getFlushCount()).isEqualTo(3L);
+        assertThat(writeBehind.getFlushed()).isEqualTo(5L);
+    }
+
+    @Test
+    void failedBatchFallsBackToSingleUpdates() throws Exception {
+        doThrow(new IllegalStateException("batch")).when(connectionRepository).updateConnections(anyList());
+        when(connectionRepository.updateConnection(any(ConnectionData.class)))
+                .thenAnswer(invocation -> {
+                    ConnectionData data = invocation.getArgument(0);
+                    if ("2".equals(data.getProviderUserId()))
+                    {
+                        throw new IllegalStateException("row");
+                    }
+                    return data;
+                });
+        ConnectionUpdateWriteBehind writeBehind = writeBehind();
+        writeBehind.offer(authUser("1", "token"), connectionData("1"));
+        writeBehind.offer(authUser("2", "token"), connectionData("2"));
+
+        writeBehind.flush();
+
+        verify(connectionRepository, times(2)).updateConnection(any(ConnectionData.class));
+        verify(tokenRepository, times(1)).updateAuthToken(any(AuthTokenPo.class));
+        assertThat(writeBehind.getFlushed()).isEqualTo(1L);
+        assertThat(writeBehind.getFailed()).isEqualTo(1L);
+    }
+
+    @Test
+    void connectionScopeSkipsAuthToken() throws Exception {
+        ConnectionUpdateFilter filter = mock(ConnectionUpdateFilter.class);
+        when(filter.scopeOf(any(AuthUser.class), any(ConnectionData.class)))
+                .thenReturn(ConnectionUpdate.Scope.CONNECTION, ConnectionUpdate.Scope.NONE);
+        ConnectionUpdateWriteBehind writeBehind = writeBehind();
+        writeBehind.setConnectionUpdateFilter(filter);
+
+        writeBehind.offer(authUser("1", "token"), connectionData("1"));
+        writeBehind.offer(authUser("2", "token"), connectionData("2"));
+        assertThat(writeBehind.getQueueDepth()).isEqualTo(1);
+        writeBehind.flush();
+
+        verify(connectionRepository).updateConnections(anyList());
+        verify(tokenRepository, never()).updateAuthTokens(anyList());
+    }
+
+    @Test
+    void maxPendingTriggersImmediateFlush() {
+        properties.setWindow(Duration.ofHours(1));
+        properties.setMaxPending(2);
+        ConnectionUpdateWriteBehind writeBehind = writeBehind();
+
+        writeBehind.offer(authUser("1", "token"), connectionData("1"));
+        writeBehind.offer(authUser("2", "token"), connectionData("2"));
+
+        verify(connectionRepository, timeout(2000)).updateConnections(anyList());
+        writeBehind.destroy();
+    }
+
+    @Test
+    void destroyFlushesRemainingAndRejectsNewUpdates() {
+        ConnectionUpdateWriteBehind writeBehind = writeBehind();
+        writeBehind.offer(authUser("1", "token"), connectionData("1"));
+
+        writeBehind.destroy();
+
+        verify(connectionRepository).updateConnections(anyList());
+        assertThat(writeBehind.offer(authUser("2", "token"), connectionData("2"))).isFalse();
+        assertThat(writeBehind.getQueueDepth()).isZero();
+    }
+
+    private ConnectionUpdateWriteBehind writeBehind() {
+        return new ConnectionUpdateWriteBehind(connectionRepository, tokenRepository, null, properties, TIMEOUT);
+    }
+
+    static AuthUser authUser(String uuid, String accessToken) {
+        return AuthUser.builder()
+                       .uuid(uuid)
+                       .username("user" + uuid)
+                       .avatar("https://avatar/" + uuid)
+                       .token(AuthToken.builder().accessToken(accessToken).expireIn(7200).build())
+                       .build();
+    }
+
+    static ConnectionData connectionData(String providerUserId) {
+        return ConnectionData.builder()
+                             .userId("u" + providerUserId)
+                             .providerId("github")
+                             .providerUserId(providerUserId)
+                             .tokenId(Long.valueOf(providerUserId))
+                             .accessToken("old")
+                             .build();
+    }
+
+}